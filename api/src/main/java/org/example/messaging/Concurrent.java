@@ -0,0 +1,28 @@
+package org.example.messaging;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicates to the messaging implementation that a blocking {@link MessageSubscriber} method, that is, one that takes
+ * a message rather than returning a stream, may be invoked for several messages of each partition at once.
+ *
+ * Messages may then be handled in any order, but they're still committed in offset order: a message's offset is only
+ * committed once it, and every message before it in the partition, have been handled, so if the subscriber is
+ * restarted, messages that had already been handled may be redelivered.
+ *
+ * Without this, a blocking subscriber method handles the messages of each partition one at a time, in order. A
+ * blocking subscriber method can't be both concurrent and {@link Parallel}, since a parallel method already handles
+ * the messages of different keys at once.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Concurrent {
+
+    /**
+     * The maximum number of messages per partition that the method is handling at once.
+     */
+    int value();
+}
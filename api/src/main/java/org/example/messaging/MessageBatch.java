@@ -0,0 +1,77 @@
+package org.example.messaging;
+
+import java.util.List;
+
+/**
+ * A batch of messages.
+ *
+ * A batch can be used as the element type of the streams of {@link MessagePublisher} and {@link MessageSubscriber}
+ * methods in place of individual messages or {@link MessageEnvelope}s. This lets many messages be published or
+ * consumed with a single element, and committed with a single {@link #commit()}, which is useful, for example, for
+ * subscribers that write messages to a database with bulk inserts.
+ *
+ * When subscribing, the implementation decides how many messages to put in each batch, typically filling batches
+ * with whatever messages are available, up to some limit.
+ */
+public interface MessageBatch<Message> {
+
+    /**
+     * Get the messages in this batch.
+     */
+    List<Message> messages();
+
+    /**
+     * Get the number of messages in this batch.
+     */
+    default int size() {
+        return messages().size();
+    }
+
+    /**
+     * Get the offset of the first message in this batch.
+     */
+    default MessageOffset firstOffset() {
+        return MessageOffset.None.INSTANCE;
+    }
+
+    /**
+     * Get the offset of the last message in this batch.
+     */
+    default MessageOffset lastOffset() {
+        return MessageOffset.None.INSTANCE;
+    }
+
+    /**
+     * Commit all the messages in this batch, that is, acknowledge they were successfully processed.
+     */
+    default void commit() {
+    }
+
+    /**
+     * Create a simple batch with no meta data.
+     */
+    static <Message> MessageBatch<Message> create(List<Message> messages) {
+        return () -> messages;
+    }
+
+    /**
+     * Create a simple batch with offsets.
+     */
+    static <Message> MessageBatch<Message> create(List<Message> messages, MessageOffset firstOffset,
+            MessageOffset lastOffset) {
+        return new MessageBatch<Message>() {
+            @Override
+            public List<Message> messages() {
+                return messages;
+            }
+            @Override
+            public MessageOffset firstOffset() {
+                return firstOffset;
+            }
+            @Override
+            public MessageOffset lastOffset() {
+                return lastOffset;
+            }
+        };
+    }
+}
@@ -0,0 +1,27 @@
+package org.example.messaging;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Filters the messages delivered to a {@link MessageSubscriber} by their type.
+ *
+ * Only messages that are instances of one of the given types are delivered, the rest are skipped by the messaging
+ * implementation before they reach the subscriber, and where it can tell the type of a message without decoding it,
+ * before they're decoded. So a subscriber that's only interested in a few of the types of message published to a
+ * topic doesn't pay for decoding, delivering and committing the rest, and skipped messages don't use up its demand.
+ *
+ * The offsets of skipped messages are committed as if the subscriber had consumed them, so they're never redelivered,
+ * and don't count towards the subscriber's lag.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface MessageFilter {
+
+    /**
+     * The types of message to deliver.
+     */
+    Class<?>[] value();
+}
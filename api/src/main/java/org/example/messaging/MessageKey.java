@@ -0,0 +1,18 @@
+package org.example.messaging;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the key of a message class, that is, the field or no argument method that identifies the entity that the
+ * message is about.
+ *
+ * Messages with the same key are consumed in order by {@link Parallel} subscribers. Keys must implement
+ * {@link Object#equals(Object)} and {@link Object#hashCode()}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface MessageKey {
+}
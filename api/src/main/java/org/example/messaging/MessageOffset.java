@@ -49,18 +49,73 @@ public interface MessageOffset {
 
     /**
      * A time based UUID message offset, ordered by the timestamps in the UUIDs.
+     *
+     * UUIDs with the same timestamp are ordered by their clock sequence and node, so the ordering is consistent with
+     * equals. Comparing doesn't allocate, or check the version of the UUIDs, a UUID that isn't time based is ordered
+     * by whatever is in the bits where the timestamp would be.
      */
-    final class TimeUuid implements MessageOffset {
+    final class TimeUuid implements MessageOffset, Comparable<TimeUuid> {
+
+        /**
+         * The number of 100 nanosecond intervals from the start of the Gregorian calendar, which time based UUIDs
+         * count from, to the Unix epoch.
+         */
+        private static final long GREGORIAN_TO_UNIX = 0x01b21dd213814000L;
+
         private final UUID value;
 
         public TimeUuid(UUID value) {
             this.value = value;
         }
 
+        /**
+         * The first time UUID of the given millisecond, ordered before any other time UUID of that millisecond, for
+         * example to start from a point in time.
+         *
+         * @param epochMillis The time in milliseconds since the Unix epoch.
+         */
+        public static TimeUuid startOf(long epochMillis) {
+            long timestamp = epochMillis * 10000 + GREGORIAN_TO_UNIX;
+            long most = (timestamp << 32)
+                    | ((timestamp >>> 16) & 0xffff0000L)
+                    | 0x1000L
+                    | ((timestamp >>> 48) & 0x0fffL);
+            return new TimeUuid(new UUID(most, 0x8000000000000000L));
+        }
+
         public UUID value() {
             return value;
         }
 
+        /**
+         * The timestamp of the UUID, in 100 nanosecond intervals since the start of the Gregorian calendar.
+         */
+        public long timestamp() {
+            long most = value.getMostSignificantBits();
+            return (most & 0x0fffL) << 48 | ((most >>> 16) & 0xffffL) << 32 | most >>> 32;
+        }
+
+        /**
+         * The timestamp of the UUID, in milliseconds since the Unix epoch.
+         */
+        public long epochMillis() {
+            return Math.floorDiv(timestamp() - GREGORIAN_TO_UNIX, 10000);
+        }
+
+        @Override
+        public int compareTo(TimeUuid other) {
+            int result = Long.compare(timestamp(), other.timestamp());
+            if (result == 0) {
+                result = Long.compareUnsigned(value.getLeastSignificantBits(),
+                        other.value.getLeastSignificantBits());
+            }
+            if (result == 0) {
+                // Only differs in the version
+                result = Long.compare(value.getMostSignificantBits(), other.value.getMostSignificantBits());
+            }
+            return result;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
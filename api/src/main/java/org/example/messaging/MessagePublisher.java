@@ -17,7 +17,9 @@ import java.lang.annotation.Target;
  *
  * The type of elements that the streams emit or consume can either be the message itself, or can be a
  * {@link MessageEnvelope}, which can be used to convey meta data, and can also allow the implementation to invoke
- * {@link MessageEnvelope#commit()} to acknowledge that the message has been sent.
+ * {@link MessageEnvelope#commit()} to acknowledge that the message has been sent. They can also be a
+ * {@link MessageBatch}, to publish many messages with a single element, in which case {@link MessageBatch#commit()}
+ * is invoked once every message in the batch has been sent.
  *
  * Indirect message publisher methods may also accept a {@link MessageOffset} parameter, allowing them to resume
  * publishing from the last {@link MessageOffset} that was successfully published.
@@ -17,7 +17,13 @@ import java.lang.annotation.Target;
  *
  * The type of elements that the <tt>Subscriber</tt> or <tt>Processor</tt> can either be the message itself, or can be
  * a {@link MessageEnvelope}, which allows access to message meta data as well as the ability to manually acknowledge
- * the message.
+ * the message, or a {@link MessageBatch}, which allows many messages to be consumed and acknowledged at once.
+ *
+ * Alternatively, a message subscriber on an indirect message handler may be a blocking method, that takes the message,
+ * envelope or batch itself, and returns either nothing, or a {@link java.util.concurrent.CompletionStage}. The method
+ * is invoked for each element in turn, or for several at once if it's {@link Concurrent}, and the element is
+ * acknowledged once the method returns, or once the stage it returns completes. If the method throws, or the stage
+ * fails, the subscriber is restarted from the last acknowledged message.
  *
  * @author James Roper
  */
@@ -0,0 +1,33 @@
+package org.example.messaging;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicates to the messaging implementation that a {@link MessageSubscriber} may consume each partition with several
+ * workers in parallel.
+ *
+ * The subscriber method is invoked once for each worker, and the messages of each partition are spread across the
+ * workers by their {@link MessageKey}, so that messages with the same key are always consumed by the same worker, in
+ * the order they were published. Messages with different keys may be consumed in any order.
+ *
+ * This lets a subscriber that is slow to process each message, for example, one that updates a database, use many
+ * cores for a single partition, without the topic needing to be repartitioned.
+ *
+ * Messages are still committed in offset order: a message's offset is only committed once it, and every message
+ * before it in the partition, have been committed by the worker that consumed them, so if the subscriber is restarted,
+ * messages that some workers had already processed may be redelivered.
+ *
+ * The messages consumed must have a {@link MessageKey}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Parallel {
+
+    /**
+     * The number of workers per partition.
+     */
+    int value();
+}
@@ -0,0 +1,78 @@
+package org.example.messaging.benchmarks;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A processor that counts the elements it consumes, and acknowledges each one.
+ *
+ * Demand for acknowledgements is passed straight upstream, which is all a subscriber handler's processor needs, since
+ * the broker subscribes to the acknowledgements before it subscribes the processor to the topic.
+ */
+final class AckingProcessor<T> implements Processor<T, AckingProcessor.Ack> {
+
+    enum Ack {
+        INSTANCE
+    }
+
+    private final Counter counter;
+    private final AtomicLong pendingDemand = new AtomicLong();
+    private volatile Subscription upstream;
+    private volatile Subscriber<? super Ack> downstream;
+
+    AckingProcessor(Counter counter) {
+        this.counter = counter;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Ack> s) {
+        downstream = s;
+        s.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                Subscription current = upstream;
+                if (current != null) {
+                    current.request(n);
+                } else {
+                    pendingDemand.addAndGet(n);
+                }
+            }
+
+            @Override
+            public void cancel() {
+                Subscription current = upstream;
+                if (current != null) {
+                    current.cancel();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        upstream = subscription;
+        long demand = pendingDemand.getAndSet(0);
+        if (demand > 0) {
+            subscription.request(demand);
+        }
+    }
+
+    @Override
+    public void onNext(T element) {
+        counter.increment();
+        downstream.onNext(Ack.INSTANCE);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        downstream.onError(t);
+    }
+
+    @Override
+    public void onComplete() {
+        downstream.onComplete();
+    }
+}
@@ -0,0 +1,136 @@
+package org.example.messaging.benchmarks;
+
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.example.messaging.Partition;
+import org.example.messaging.broker.InMemoryMessageBroker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of binding handlers and clients to the broker, and of invoking client methods.
+ *
+ * {@link #register()} registers a batch of handlers on a fresh broker per iteration, since every registration starts
+ * streams that stay registered until the broker is closed. The client benchmarks compare a client interface that the
+ * annotation processor generates a class for with a generic one, which falls back to a dynamic proxy.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BindingBenchmark {
+
+    static final int REGISTRATIONS = 1000;
+
+    @SuppressWarnings("unchecked")
+    private static final Class<GenericClient<Long>> GENERIC_CLIENT = (Class<GenericClient<Long>>) (Class<?>)
+            GenericClient.class;
+
+    private InMemoryMessageBroker broker;
+    private Client client;
+    private GenericClient<Long> proxiedClient;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        broker = new InMemoryMessageBroker();
+        client = broker.create(Client.class);
+        proxiedClient = broker.create(GENERIC_CLIENT);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 10, batchSize = REGISTRATIONS)
+    @Measurement(iterations = 20, batchSize = REGISTRATIONS)
+    public void register() {
+        broker.register(new Handler());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Client createGenerated() {
+        return broker.create(Client.class);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public GenericClient<Long> createProxy() {
+        return broker.create(GENERIC_CLIENT);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Publisher<Long> invokeGenerated() {
+        return client.subscribe(0, MessageOffset.None.INSTANCE);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Publisher<Long> invokeProxy() {
+        return proxiedClient.subscribe(0, MessageOffset.None.INSTANCE);
+    }
+
+    public interface Client {
+        @MessagePublisher("binding")
+        Subscriber<Long> publish();
+
+        @MessageSubscriber("binding")
+        Publisher<Long> subscribe(@Partition int partition, MessageOffset offset);
+    }
+
+    public interface GenericClient<T> {
+        @MessagePublisher("binding")
+        Subscriber<T> publish();
+
+        @MessageSubscriber("binding")
+        Publisher<T> subscribe(@Partition int partition, MessageOffset offset);
+    }
+
+    public static class Handler {
+        @MessageSubscriber("binding")
+        public Subscriber<Long> consume() {
+            return new Subscriber<Long>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                }
+
+                @Override
+                public void onNext(Long message) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.example.messaging.benchmarks;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.example.messaging.broker.BrokerSettings;
+import org.example.messaging.broker.InMemoryMessageBroker;
+import org.example.messaging.broker.InMemoryOffsetStore;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rate at which a subscriber can commit messages, and how often the broker writes to the offset store to keep up.
+ *
+ * The subscriber either commits each envelope as it receives it, commits envelopes in reverse order in groups of
+ * {@link #GROUP}, as a subscriber that processes messages concurrently might, or commits whole batches. The number of
+ * writes to the offset store is reported as the <tt>offsetWrites</tt> secondary result.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommitBenchmark {
+
+    static final int GROUP = 16;
+
+    @Param({"in-order", "out-of-order", "batch"})
+    public String commits;
+
+    private InMemoryMessageBroker broker;
+    private CountingOffsetStore offsetStore;
+    private Feed feed;
+    private Counter counter;
+    private long expected;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class OffsetWrites {
+        public long offsetWrites;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        offsetStore = new CountingOffsetStore();
+        broker = new InMemoryMessageBroker(BrokerSettings.defaults().withOffsetStore(offsetStore));
+        feed = new Feed();
+        counter = new Counter();
+        switch (commits) {
+            case "in-order":
+                broker.register(new InOrderHandler(feed, counter));
+                break;
+            case "out-of-order":
+                broker.register(new OutOfOrderHandler(feed, counter));
+                break;
+            case "batch":
+                broker.register(new BatchHandler(feed, counter));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown commit order " + commits);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(EndToEndBenchmark.BURST)
+    public void commit(OffsetWrites writes) {
+        expected += EndToEndBenchmark.BURST;
+        feed.offer(EndToEndBenchmark.BURST);
+        counter.awaitAtLeast(expected);
+        writes.offsetWrites += offsetStore.takeWrites();
+    }
+
+    /**
+     * An in memory offset store that counts the offsets written by subscribers.
+     */
+    static class CountingOffsetStore extends InMemoryOffsetStore {
+        private final AtomicLong writes = new AtomicLong();
+
+        @Override
+        public void store(String streamId, int partition, MessageOffset offset) {
+            super.store(streamId, partition, offset);
+            writes.incrementAndGet();
+        }
+
+        long takeWrites() {
+            return writes.getAndSet(0);
+        }
+    }
+
+    /**
+     * A subscriber that commits envelopes in reverse order, in groups.
+     */
+    static class OutOfOrderSubscriber extends CountingSubscriber<MessageEnvelope<Long>> {
+        private final Counter counter;
+        private final MessageEnvelope<?>[] group = new MessageEnvelope<?>[GROUP];
+        private int size;
+
+        OutOfOrderSubscriber(Counter counter) {
+            super(counter);
+            this.counter = counter;
+        }
+
+        @Override
+        public void onNext(MessageEnvelope<Long> envelope) {
+            group[size++] = envelope;
+            if (size == GROUP) {
+                while (size > 0) {
+                    group[--size].commit();
+                    group[size] = null;
+                }
+                counter.add(GROUP);
+            }
+            requestMore();
+        }
+    }
+
+    public static class InOrderHandler extends EndToEndBenchmark.FeedHandler {
+        InOrderHandler(Feed feed, Counter counter) {
+            super(feed, counter);
+        }
+
+        @MessagePublisher("commit-in-order")
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset) {
+            return feed;
+        }
+
+        @MessageSubscriber("commit-in-order")
+        public Subscriber<MessageEnvelope<Long>> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+
+    public static class OutOfOrderHandler extends EndToEndBenchmark.FeedHandler {
+        OutOfOrderHandler(Feed feed, Counter counter) {
+            super(feed, counter);
+        }
+
+        @MessagePublisher("commit-out-of-order")
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset) {
+            return feed;
+        }
+
+        @MessageSubscriber("commit-out-of-order")
+        public Subscriber<MessageEnvelope<Long>> consume() {
+            return new OutOfOrderSubscriber(counter);
+        }
+    }
+
+    public static class BatchHandler extends EndToEndBenchmark.FeedHandler {
+        BatchHandler(Feed feed, Counter counter) {
+            super(feed, counter);
+        }
+
+        @MessagePublisher("commit-batch")
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset) {
+            return feed;
+        }
+
+        @MessageSubscriber("commit-batch")
+        public Subscriber<MessageBatch<Long>> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+}
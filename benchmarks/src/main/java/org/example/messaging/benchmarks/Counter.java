@@ -0,0 +1,37 @@
+package org.example.messaging.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the messages received by a subscriber, so that a benchmark can wait for them.
+ *
+ * A counter must only be incremented by one thread at a time.
+ */
+final class Counter {
+
+    private final AtomicLong count = new AtomicLong();
+
+    void increment() {
+        count.lazySet(count.get() + 1);
+    }
+
+    void add(long n) {
+        count.lazySet(count.get() + n);
+    }
+
+    long get() {
+        return count.get();
+    }
+
+    /**
+     * Wait until the count reaches the target.
+     */
+    void awaitAtLeast(long target) {
+        int spins = 0;
+        while (count.get() < target) {
+            if (++spins > 100) {
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.example.messaging.benchmarks;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A subscriber that counts the messages it receives, committing envelopes and batches as it goes, and keeping a
+ * fixed window of demand outstanding.
+ */
+class CountingSubscriber<T> implements Subscriber<T> {
+
+    private static final int WINDOW = 256;
+
+    private final Counter counter;
+    private Subscription subscription;
+    private int received;
+
+    CountingSubscriber(Counter counter) {
+        this.counter = counter;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(WINDOW);
+    }
+
+    @Override
+    public void onNext(T element) {
+        if (element instanceof MessageEnvelope) {
+            ((MessageEnvelope<?>) element).commit();
+            counter.increment();
+        } else if (element instanceof MessageBatch) {
+            MessageBatch<?> batch = (MessageBatch<?>) element;
+            batch.commit();
+            counter.add(batch.size());
+        } else {
+            counter.increment();
+        }
+        requestMore();
+    }
+
+    /**
+     * Account for an element received, requesting more once half the window has been consumed.
+     */
+    final void requestMore() {
+        if (++received == WINDOW / 2) {
+            received = 0;
+            subscription.request(WINDOW / 2);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        t.printStackTrace();
+    }
+
+    @Override
+    public void onComplete() {
+    }
+}
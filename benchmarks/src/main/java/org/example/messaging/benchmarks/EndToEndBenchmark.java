@@ -0,0 +1,200 @@
+package org.example.messaging.benchmarks;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.example.messaging.broker.InMemoryMessageBroker;
+import org.example.messaging.broker.ReusableEnvelopes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages published by a handler publisher method, through a single partition, to a handler subscriber method.
+ *
+ * The throughput benchmark pushes a burst of messages through the broker per invocation, and reports the rate per
+ * message, while the latency benchmark sends one message at a time and reports the distribution of the time it takes
+ * to reach the subscriber. The subscriber is one of:
+ *
+ * <ul>
+ *     <li><tt>messages</tt> - a <tt>Subscriber</tt> of plain messages, with at most once delivery.</li>
+ *     <li><tt>envelopes</tt> - a <tt>Subscriber</tt> of envelopes, committing each one.</li>
+ *     <li><tt>reusable</tt> - the same, with {@link ReusableEnvelopes}.</li>
+ *     <li><tt>batches</tt> - a <tt>Subscriber</tt> of batches, committing each one.</li>
+ *     <li><tt>processor</tt> - a <tt>Processor</tt> of plain messages, acknowledging each one.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EndToEndBenchmark {
+
+    static final int BURST = 10_000;
+
+    @Param({"messages", "envelopes", "reusable", "batches", "processor"})
+    public String subscriber;
+
+    private InMemoryMessageBroker broker;
+    private Feed feed;
+    private Counter counter;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        broker = new InMemoryMessageBroker();
+        feed = new Feed();
+        counter = new Counter();
+        broker.register(handler(subscriber, feed, counter));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void throughput() {
+        expected += BURST;
+        feed.offer(BURST);
+        counter.awaitAtLeast(expected);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() {
+        expected++;
+        feed.offer(1);
+        counter.awaitAtLeast(expected);
+    }
+
+    static Object handler(String subscriber, Feed feed, Counter counter) {
+        switch (subscriber) {
+            case "messages":
+                return new MessagesHandler(feed, counter);
+            case "envelopes":
+                return new EnvelopesHandler(feed, counter);
+            case "reusable":
+                return new ReusableEnvelopesHandler(feed, counter);
+            case "batches":
+                return new BatchesHandler(feed, counter);
+            case "processor":
+                return new ProcessorHandler(feed, counter);
+            default:
+                throw new IllegalArgumentException("Unknown subscriber " + subscriber);
+        }
+    }
+
+    static abstract class FeedHandler {
+        final Feed feed;
+        final Counter counter;
+
+        FeedHandler(Feed feed, Counter counter) {
+            this.feed = feed;
+            this.counter = counter;
+        }
+    }
+
+    public static class MessagesHandler extends FeedHandler {
+        MessagesHandler(Feed feed, Counter counter) {
+            super(feed, counter);
+        }
+
+        @MessagePublisher("end-to-end-messages")
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset) {
+            return feed;
+        }
+
+        @MessageSubscriber("end-to-end-messages")
+        public Subscriber<Long> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+
+    public static class EnvelopesHandler extends FeedHandler {
+        EnvelopesHandler(Feed feed, Counter counter) {
+            super(feed, counter);
+        }
+
+        @MessagePublisher("end-to-end-envelopes")
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset) {
+            return feed;
+        }
+
+        @MessageSubscriber("end-to-end-envelopes")
+        public Subscriber<MessageEnvelope<Long>> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+
+    public static class ReusableEnvelopesHandler extends FeedHandler {
+        ReusableEnvelopesHandler(Feed feed, Counter counter) {
+            super(feed, counter);
+        }
+
+        @MessagePublisher("end-to-end-reusable")
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset) {
+            return feed;
+        }
+
+        @MessageSubscriber("end-to-end-reusable")
+        @ReusableEnvelopes
+        public Subscriber<MessageEnvelope<Long>> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+
+    public static class BatchesHandler extends FeedHandler {
+        BatchesHandler(Feed feed, Counter counter) {
+            super(feed, counter);
+        }
+
+        @MessagePublisher("end-to-end-batches")
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset) {
+            return feed;
+        }
+
+        @MessageSubscriber("end-to-end-batches")
+        public Subscriber<MessageBatch<Long>> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+
+    public static class ProcessorHandler extends FeedHandler {
+        ProcessorHandler(Feed feed, Counter counter) {
+            super(feed, counter);
+        }
+
+        @MessagePublisher("end-to-end-processor")
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset) {
+            return feed;
+        }
+
+        @MessageSubscriber("end-to-end-processor")
+        public Processor<Long, AckingProcessor.Ack> consume() {
+            return new AckingProcessor<>(counter);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.example.messaging.benchmarks;
+
+import org.example.messaging.MessageEnvelope;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publisher for handler publisher methods to return, that emits as many messages as the benchmark has offered.
+ *
+ * It emits the same envelope every time, so that the allocations reported for a benchmark are those of the broker,
+ * not of the publisher.
+ */
+final class Feed implements Publisher<MessageEnvelope<Long>>, Subscription {
+
+    private static final MessageEnvelope<Long> ENVELOPE = MessageEnvelope.create(1L);
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile Subscriber<? super MessageEnvelope<Long>> subscriber;
+
+    @Override
+    public void subscribe(Subscriber<? super MessageEnvelope<Long>> s) {
+        subscriber = s;
+        s.onSubscribe(this);
+    }
+
+    /**
+     * Offer the given number of messages to the subscriber.
+     */
+    void offer(long n) {
+        offered.addAndGet(n);
+        drain();
+    }
+
+    @Override
+    public void request(long n) {
+        demand.addAndGet(n);
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        subscriber = null;
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Subscriber<? super MessageEnvelope<Long>> s = subscriber;
+            if (s != null) {
+                long n = Math.min(offered.get(), demand.get());
+                for (long i = 0; i < n; i++) {
+                    s.onNext(ENVELOPE);
+                }
+                offered.addAndGet(-n);
+                demand.addAndGet(-n);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
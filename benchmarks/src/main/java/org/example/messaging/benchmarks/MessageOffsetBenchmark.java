@@ -0,0 +1,106 @@
+package org.example.messaging.benchmarks;
+
+import org.example.messaging.MessageOffset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comparing and hashing offsets, as done when tracking and storing the offsets of streams.
+ *
+ * Time UUIDs are compared by their timestamp, then by their clock sequence and node, which is the order they were
+ * generated in.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageOffsetBenchmark {
+
+    private static final int SIZE = 1024;
+
+    private final MessageOffset.Sequence[] sequences = new MessageOffset.Sequence[SIZE];
+    private final MessageOffset.TimeUuid[] timeUuids = new MessageOffset.TimeUuid[SIZE];
+    private final MessageOffset[] lookups = new MessageOffset[SIZE];
+    private final Map<MessageOffset, Integer> offsets = new HashMap<>();
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        long node = random.nextLong() & 0xffffffffffffL;
+        for (int i = 0; i < SIZE; i++) {
+            sequences[i] = new MessageOffset.Sequence(random.nextInt(SIZE * 16));
+            timeUuids[i] = new MessageOffset.TimeUuid(timeUuid(random.nextLong() & 0x0fffffffffffffffL,
+                    random.nextInt(0x4000), node));
+            MessageOffset offset = i % 2 == 0 ? new MessageOffset.Sequence(i) : timeUuids[i];
+            offsets.put(offset, i);
+            // Equal, but not the same instance, as a lookup by a decoded offset would be
+            lookups[i] = i % 2 == 0 ? new MessageOffset.Sequence(i) : new MessageOffset.TimeUuid(timeUuids[i].value());
+        }
+    }
+
+    private int next() {
+        return index = (index + 1) & (SIZE - 1);
+    }
+
+    @Benchmark
+    public int compareSequences() {
+        int i = next();
+        return Long.compare(sequences[i].value(), sequences[(i + 1) & (SIZE - 1)].value());
+    }
+
+    @Benchmark
+    public int compareTimeUuids() {
+        int i = next();
+        return timeUuids[i].compareTo(timeUuids[(i + 1) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int hashSequence() {
+        return sequences[next()].hashCode();
+    }
+
+    @Benchmark
+    public int hashTimeUuid() {
+        return timeUuids[next()].hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsTimeUuid() {
+        int i = next();
+        return timeUuids[i].equals(lookups[i | 1]);
+    }
+
+    @Benchmark
+    public Integer lookup() {
+        return offsets.get(lookups[next()]);
+    }
+
+    /**
+     * Create a version 1 UUID.
+     */
+    static UUID timeUuid(long timestamp, int clockSequence, long node) {
+        long most = (timestamp << 32)
+                | ((timestamp >>> 16) & 0xffff0000L)
+                | 0x1000L
+                | ((timestamp >>> 48) & 0x0fffL);
+        long least = 0x8000000000000000L | ((long) clockSequence << 48) | node;
+        return new UUID(most, least);
+    }
+}
@@ -0,0 +1,150 @@
+package org.example.messaging.benchmarks;
+
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.example.messaging.Partition;
+import org.example.messaging.Partitioned;
+import org.example.messaging.broker.InMemoryMessageBroker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages published by a {@link Partitioned} handler publisher method, fanning in from every partition to a single
+ * subscriber.
+ *
+ * Each invocation offers an equal share of the burst to the publisher of each partition.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PartitionedBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int partitions;
+
+    private InMemoryMessageBroker broker;
+    private Feed[] feeds;
+    private Counter counter;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        broker = new InMemoryMessageBroker();
+        feeds = new Feed[partitions];
+        for (int i = 0; i < partitions; i++) {
+            feeds[i] = new Feed();
+        }
+        counter = new Counter();
+        switch (partitions) {
+            case 1:
+                broker.register(new OnePartitionHandler(feeds, counter));
+                break;
+            case 4:
+                broker.register(new FourPartitionsHandler(feeds, counter));
+                break;
+            case 16:
+                broker.register(new SixteenPartitionsHandler(feeds, counter));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported number of partitions " + partitions);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(EndToEndBenchmark.BURST)
+    public void fanIn() {
+        expected += EndToEndBenchmark.BURST;
+        int share = EndToEndBenchmark.BURST / partitions;
+        for (int i = 0; i < partitions; i++) {
+            feeds[i].offer(i == 0 ? EndToEndBenchmark.BURST - share * (partitions - 1) : share);
+        }
+        counter.awaitAtLeast(expected);
+    }
+
+    static abstract class FeedsHandler {
+        final Feed[] feeds;
+        final Counter counter;
+
+        FeedsHandler(Feed[] feeds, Counter counter) {
+            this.feeds = feeds;
+            this.counter = counter;
+        }
+    }
+
+    public static class OnePartitionHandler extends FeedsHandler {
+        OnePartitionHandler(Feed[] feeds, Counter counter) {
+            super(feeds, counter);
+        }
+
+        @MessagePublisher("partitioned-1")
+        @Partitioned(1)
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset, @Partition int partition) {
+            return feeds[partition];
+        }
+
+        @MessageSubscriber("partitioned-1")
+        public Subscriber<MessageEnvelope<Long>> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+
+    public static class FourPartitionsHandler extends FeedsHandler {
+        FourPartitionsHandler(Feed[] feeds, Counter counter) {
+            super(feeds, counter);
+        }
+
+        @MessagePublisher("partitioned-4")
+        @Partitioned(4)
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset, @Partition int partition) {
+            return feeds[partition];
+        }
+
+        @MessageSubscriber("partitioned-4")
+        public Subscriber<MessageEnvelope<Long>> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+
+    public static class SixteenPartitionsHandler extends FeedsHandler {
+        SixteenPartitionsHandler(Feed[] feeds, Counter counter) {
+            super(feeds, counter);
+        }
+
+        @MessagePublisher("partitioned-16")
+        @Partitioned(16)
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset, @Partition int partition) {
+            return feeds[partition];
+        }
+
+        @MessageSubscriber("partitioned-16")
+        public Subscriber<MessageEnvelope<Long>> consume() {
+            return new CountingSubscriber<>(counter);
+        }
+    }
+}
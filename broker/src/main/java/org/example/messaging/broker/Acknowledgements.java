@@ -0,0 +1,76 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.function.Function;
+
+/**
+ * Creates the acknowledgement elements that publisher processors emit.
+ *
+ * The API leaves the type of acknowledgement up to the user, for example, it's typically <tt>akka.Done</tt> when
+ * using Akka streams, so the broker has to work out how to obtain an instance of it.
+ */
+final class Acknowledgements {
+
+    private Acknowledgements() {
+    }
+
+    /**
+     * Get a function that creates the acknowledgement for an element consumed by a processor.
+     *
+     * @param ackType The element type of the processor's publisher side.
+     * @param elementType The element type of the processor's subscriber side.
+     * @throws IllegalArgumentException If there's no way to create acknowledgements of the given type.
+     */
+    static Function<Object, Object> forType(Type ackType, Type elementType) {
+        Class<?> ack = Types.rawType(ackType);
+        Class<?> element = Types.rawType(elementType);
+        if (ack.isAssignableFrom(element)) {
+            return Function.identity();
+        } else if (ack == MessageOffset.class && MessageEnvelope.class.isAssignableFrom(element)) {
+            return e -> ((MessageEnvelope<?>) e).offset();
+        } else if (ack == MessageOffset.class && MessageBatch.class.isAssignableFrom(element)) {
+            return e -> ((MessageBatch<?>) e).lastOffset();
+        }
+        Object singleton = singleton(ack);
+        if (singleton == null) {
+            throw new IllegalArgumentException("Don't know how to create acknowledgements of type " + ackType
+                    + ", acknowledgement types must either be a supertype of the element type, or a singleton type");
+        }
+        return e -> singleton;
+    }
+
+    private static Object singleton(Class<?> type) {
+        if (type.isEnum() && type.getEnumConstants().length == 1) {
+            return type.getEnumConstants()[0];
+        }
+        for (String name : new String[] {"getInstance", "instance"}) {
+            try {
+                Method method = type.getMethod(name);
+                if (Modifier.isStatic(method.getModifiers()) && type.isAssignableFrom(method.getReturnType())) {
+                    return method.invoke(null);
+                }
+            } catch (ReflectiveOperationException e) {
+                // Try the next one
+            }
+        }
+        // Scala objects, and common Java singleton conventions
+        for (String name : new String[] {"MODULE$", "INSTANCE"}) {
+            try {
+                Field field = type.getField(name);
+                if (Modifier.isStatic(field.getModifiers()) && type.isAssignableFrom(field.getType())) {
+                    return field.get(null);
+                }
+            } catch (ReflectiveOperationException e) {
+                // Try the next one
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,54 @@
+package org.example.messaging.broker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the records of the batches that are written to a topic's log, and sent to remote subscribers.
+ *
+ * Batches are compressed as a whole, so the repetition between the messages of a batch compresses away, which it
+ * wouldn't if each message were compressed on its own. Each compressed batch records the {@link #id()} of the
+ * compression it was compressed with, so anything that reads a log, or receives its batches, must be configured with
+ * every compression its batches may have been compressed with. {@link DeflateCompression} is always available.
+ *
+ * Implementations must be thread safe.
+ *
+ * @see DeflateCompression
+ * @see BrokerSettings#withCompression(String, BatchCompression)
+ */
+public interface BatchCompression {
+
+    /**
+     * The id recorded in the batches compressed with this compression, between 1 and 63. It identifies the format
+     * of the compressed bytes, so it must never change, and {@link DeflateCompression#ID} is taken.
+     */
+    int id();
+
+    /**
+     * Compress the bytes of the source buffer, from its position to its limit, into the target buffer, starting at its
+     * position.
+     *
+     * @param source The bytes to compress, which may be a region of a memory mapped log segment.
+     * @param target The buffer to compress into. On return, its position must be just after the compressed bytes.
+     * @throws java.nio.BufferOverflowException If the compressed bytes don't fit in the remaining space of the
+     *                                          target, in which case the batch is left uncompressed.
+     */
+    void compress(ByteBuffer source, ByteBuffer target);
+
+    /**
+     * Decompress the bytes of the source buffer, from its position to its limit, into the target buffer.
+     *
+     * @param source The compressed bytes.
+     * @param target The buffer to decompress into, which has exactly as many bytes remaining as were compressed. On
+     *               return, its position must be at its limit.
+     */
+    void decompress(ByteBuffer source, ByteBuffer target);
+
+    /**
+     * Release any native memory or other resources that the compression holds for the threads that have used it.
+     *
+     * Invoked when a broker or transport client that uses the compression is closed. Since a compression may be shared
+     * by several of them, it must still work if it's used again afterwards, acquiring its resources again as needed.
+     */
+    default void release() {
+    }
+}
@@ -0,0 +1,137 @@
+package org.example.messaging.broker;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+
+/**
+ * Compresses and decompresses the records of batches laid out as they are in a {@link LogSegment}.
+ *
+ * The low six bits of the attributes of a batch hold the {@link BatchCompression#id()} of the compression its
+ * records are compressed with, or 0 if they aren't compressed. After the header, a compressed batch holds an int of
+ * the length of its records uncompressed, followed by the compressed records. The header itself is never compressed,
+ * so batches can be skipped and transferred without decompressing them.
+ *
+ * Compressing is done in place, through a scratch buffer that's reused from batch to batch, so it's not thread safe,
+ * and each writer of batches has a compressor of its own. Decompressing is thread safe, and decompresses each batch
+ * into a buffer that the reader passes in, which it may reuse from batch to batch, so the records of a decompressed
+ * batch are only valid until the reader passes the same buffer in again.
+ */
+final class BatchCompressor {
+
+    static final int ATTRIBUTES_OFFSET = 28;
+    private static final int COMPRESSION_MASK = 0x3f;
+
+    /**
+     * Batches with fewer bytes of records than this aren't worth compressing.
+     */
+    private static final int MIN_COMPRESSED_SIZE = 128;
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final BatchCompression compression;
+    private final IntFunction<BatchCompression> compressions;
+    private ByteBuffer scratch;
+
+    /**
+     * @param compression The compression to compress batches with, or null to leave them uncompressed.
+     * @param compressions Finds the compression with the given id, to decompress batches with, or returns null if
+     *                     there is none.
+     */
+    BatchCompressor(BatchCompression compression, IntFunction<BatchCompression> compressions) {
+        this.compression = compression;
+        this.compressions = compressions;
+    }
+
+    /**
+     * A compressor with the same compressions, for another writer of batches.
+     */
+    BatchCompressor copy() {
+        return new BatchCompressor(compression, compressions);
+    }
+
+    /**
+     * Compress the records of the batch at the given position in place, if that makes it smaller, and set the
+     * compression bits of the attributes of the batch to say whether it's compressed, leaving the other bits as they
+     * are. The length and checksum of the batch are left to the caller to write afterwards.
+     *
+     * @param end The position after the last record of the batch.
+     * @return The position after the last byte of the batch, once it's been compressed.
+     */
+    int compress(ByteBuffer buffer, int batchStart, int end) {
+        int attributes = buffer.get(batchStart + ATTRIBUTES_OFFSET) & ~COMPRESSION_MASK;
+        buffer.put(batchStart + ATTRIBUTES_OFFSET, (byte) attributes);
+        int recordsStart = batchStart + LogSegment.BATCH_HEADER_SIZE;
+        int length = end - recordsStart;
+        if (compression == null || length < MIN_COMPRESSED_SIZE) {
+            return end;
+        }
+        if (scratch == null || scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, scratch == null ? 0 : scratch.capacity() * 2));
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.limit(end).position(recordsStart);
+        scratch.clear();
+        // Only worth it if the compressed records and their length take up less space than the records
+        scratch.limit(length - 5);
+        try {
+            compression.compress(source, scratch);
+        } catch (BufferOverflowException e) {
+            return end;
+        }
+        scratch.flip();
+        int compressedEnd = recordsStart + 4 + scratch.remaining();
+        buffer.putInt(recordsStart, length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(recordsStart + 4);
+        target.put(scratch);
+        // Clear what's left of the uncompressed records, so it can never be mistaken for the start of the next batch
+        target.limit(end);
+        while (target.hasRemaining()) {
+            target.put(ZEROS, 0, Math.min(ZEROS.length, target.remaining()));
+        }
+        buffer.put(batchStart + ATTRIBUTES_OFFSET, (byte) (attributes | compression.id()));
+        return compressedEnd;
+    }
+
+    /**
+     * Whether the batch at the given position is compressed.
+     */
+    static boolean isCompressed(ByteBuffer buffer, int batchStart) {
+        return (buffer.get(batchStart + ATTRIBUTES_OFFSET) & COMPRESSION_MASK) != 0;
+    }
+
+    /**
+     * The records of the batch at the given position, decompressed if they're compressed.
+     *
+     * @param target The buffer to decompress the records into, if it's large enough, or null.
+     * @return A buffer holding the records from its position to its limit, which is a view of the given buffer if the
+     *         batch isn't compressed, otherwise the target, or if it's too small or null, a larger buffer for the
+     *         reader to reuse in its place.
+     */
+    ByteBuffer records(ByteBuffer buffer, int batchStart, ByteBuffer target) {
+        int recordsStart = batchStart + LogSegment.BATCH_HEADER_SIZE;
+        int end = batchStart + 4 + buffer.getInt(batchStart);
+        ByteBuffer source = buffer.duplicate();
+        int id = buffer.get(batchStart + ATTRIBUTES_OFFSET) & COMPRESSION_MASK;
+        if (id == 0) {
+            source.limit(end).position(recordsStart);
+            return source;
+        }
+        BatchCompression batchCompression = compressions.apply(id);
+        if (batchCompression == null) {
+            throw new IllegalStateException("Batch is compressed with compression " + id
+                    + ", which isn't configured");
+        }
+        source.limit(end).position(recordsStart + 4);
+        int length = buffer.getInt(recordsStart);
+        ByteBuffer records = target;
+        if (records == null || records.capacity() < length) {
+            records = ByteBuffer.allocate(Math.max(length, records == null ? 0 : records.capacity() * 2));
+        }
+        records.clear().limit(length);
+        batchCompression.decompress(source, records);
+        records.flip();
+        return records;
+    }
+}
@@ -0,0 +1,128 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * The subscriber of a blocking {@link org.example.messaging.MessageSubscriber} method, that is, one that takes each
+ * message, envelope or batch, rather than returning a subscriber.
+ *
+ * The subscriber is delivered envelopes, or batches, and invokes the method with each on the broker's blocking
+ * executor, which runs it on a virtual thread where the JVM has them, so that the method can block without holding up
+ * the threads that streams run on. It only requests as many elements as the method's
+ * {@link org.example.messaging.Concurrent} concurrency, and requests another as each invocation finishes, so that no
+ * more invocations than that are ever in flight for the partition, and nothing is buffered for them. Each element is
+ * committed once the method returns, or once the {@link CompletionStage} it returns completes. Elements may finish in
+ * any order, the stream's commit tracker only moves the committed offset past a message once every message before it
+ * has been committed.
+ *
+ * If an invocation fails, the subscriber cancels its subscription, and the stream is restarted from the committed
+ * offset. Invocations that are already in flight are left to finish, but elements that haven't been handled yet are
+ * dropped, to be redelivered to the next incarnation.
+ */
+final class BlockingSubscriber implements Subscriber<Object> {
+
+    private final Executor executor;
+    private final Object handler;
+    private final HandlerMethod method;
+    private final int partition;
+    private final boolean messages;
+    private final boolean asynchronous;
+    private final Consumer<Throwable> terminated;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private volatile Subscription subscription;
+
+    /**
+     * @param terminated Invoked if an invocation fails, with the error.
+     */
+    BlockingSubscriber(BrokerContext context, Object handler, HandlerMethod method, int partition,
+            Consumer<Throwable> terminated) {
+        this.executor = context.blockingExecutor();
+        this.handler = handler;
+        this.method = method;
+        this.partition = partition;
+        this.messages = method.elements() == HandlerMethod.Elements.MESSAGES;
+        this.asynchronous = CompletionStage.class.isAssignableFrom(method.method().getReturnType());
+        this.terminated = terminated;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(method.concurrency());
+    }
+
+    @Override
+    public void onNext(Object element) {
+        try {
+            executor.execute(() -> handle(element));
+        } catch (RuntimeException e) {
+            // The executor is shutting down, or was configured with a bound that it has reached
+            failed(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        stopped.set(true);
+    }
+
+    @Override
+    public void onComplete() {
+        stopped.set(true);
+    }
+
+    private void handle(Object element) {
+        if (stopped.get()) {
+            return;
+        }
+        Object result;
+        try {
+            result = method.handle(handler, messages ? ((MessageEnvelope<?>) element).message() : element, partition);
+        } catch (Throwable t) {
+            failed(t);
+            return;
+        }
+        if (!asynchronous) {
+            handled(element);
+        } else if (result == null) {
+            failed(new NullPointerException("Subscriber method " + method + " returned null"));
+        } else {
+            ((CompletionStage<?>) result).whenComplete((ignored, error) -> {
+                if (error == null) {
+                    handled(element);
+                } else {
+                    failed(error instanceof CompletionException && error.getCause() != null ? error.getCause()
+                            : error);
+                }
+            });
+        }
+    }
+
+    private void handled(Object element) {
+        if (element instanceof MessageEnvelope) {
+            ((MessageEnvelope<?>) element).commit();
+        } else {
+            ((MessageBatch<?>) element).commit();
+        }
+        if (!stopped.get()) {
+            subscription.request(1);
+        }
+    }
+
+    private void failed(Throwable error) {
+        if (stopped.compareAndSet(false, true)) {
+            // Before cancelling, so that the stream sees the error rather than just the cancellation
+            terminated.accept(error);
+            subscription.cancel();
+        }
+    }
+}
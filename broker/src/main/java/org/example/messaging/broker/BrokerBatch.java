@@ -0,0 +1,89 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageOffset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A batch of messages from a single partition, delivered by a {@link TopicSource}.
+ *
+ * The messages of a batch are consecutive deliveries from the partition, so committing the batch commits every
+ * delivered message between its first and last sequence.
+ *
+ * Messages read from a log are decoded the first time the messages of the batch are asked for, so the size, offsets
+ * and commit of the batch never need them to be decoded.
+ */
+final class BrokerBatch<Message> implements MessageBatch<Message> {
+
+    private final ArrayList<Object> messages;
+    private volatile List<Message> decoded;
+    private final TopicSource source;
+    private final int partition;
+    private final long firstSequence;
+    private final long lastSequence;
+
+    /**
+     * @param messages The messages, some of which may be {@link EncodedMessage}s.
+     */
+    BrokerBatch(ArrayList<Object> messages, TopicSource source, int partition, long firstSequence, long lastSequence) {
+        this.messages = messages;
+        this.source = source;
+        this.partition = partition;
+        this.firstSequence = firstSequence;
+        this.lastSequence = lastSequence;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Message> messages() {
+        List<Message> current = decoded;
+        if (current == null) {
+            synchronized (messages) {
+                current = decoded;
+                if (current == null) {
+                    for (int i = 0; i < messages.size(); i++) {
+                        Object message = messages.get(i);
+                        if (message instanceof EncodedMessage) {
+                            messages.set(i, ((EncodedMessage) message).decode());
+                        }
+                    }
+                    current = Collections.unmodifiableList((List<Message>) (List<?>) messages);
+                    decoded = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public MessageOffset firstOffset() {
+        return new MessageOffset.Sequence(firstSequence);
+    }
+
+    @Override
+    public MessageOffset lastOffset() {
+        return new MessageOffset.Sequence(lastSequence);
+    }
+
+    @Override
+    public void commit() {
+        source.commit(partition, firstSequence, lastSequence);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageBatch{" +
+                "size=" + messages.size() +
+                ", firstOffset=" + firstSequence +
+                ", lastOffset=" + lastSequence +
+                '}';
+    }
+}
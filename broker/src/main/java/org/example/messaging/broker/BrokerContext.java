@@ -0,0 +1,228 @@
+package org.example.messaging.broker;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * The shared state of a broker, that the streams it runs need access to.
+ */
+final class BrokerContext {
+
+    private final BrokerSettings settings;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final Executor[] lanes;
+    // Created the first time a blocking subscriber needs it, guarded by this
+    private volatile Executor blockingExecutor;
+    private ExecutorService ownedBlockingExecutor;
+    private boolean shutdown;
+    private final ScheduledExecutorService scheduler;
+    private final OffsetStore offsetStore;
+    private final BrokerMetrics metrics;
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+    BrokerContext(BrokerSettings settings) {
+        this.settings = settings;
+        if (settings.executor() == null) {
+            AtomicInteger counter = new AtomicInteger();
+            ownedExecutor = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("messaging-broker-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, null, true);
+            executor = ownedExecutor;
+        } else {
+            ownedExecutor = null;
+            executor = settings.executor();
+        }
+        this.lanes = new Executor[settings.executorLanes()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new SerialExecutor(executor);
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "messaging-broker-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.offsetStore = settings.offsetStore() == null ? new InMemoryOffsetStore() : settings.offsetStore();
+        this.metrics = new BrokerMetrics(settings, scheduler);
+    }
+
+    BrokerSettings settings() {
+        return settings;
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    /**
+     * The executor for the work of the given partition, the lane it's pinned to if lanes are configured.
+     */
+    Executor executor(String topic, int partition) {
+        return lanes.length == 0 ? executor : lanes[PartitionScheduler.lane(topic, partition, lanes.length)];
+    }
+
+    /**
+     * The executor that blocking subscriber methods are run on, which the broker creates the first time it's needed,
+     * unless one is configured.
+     */
+    Executor blockingExecutor() {
+        Executor current = blockingExecutor;
+        if (current == null) {
+            synchronized (this) {
+                current = blockingExecutor;
+                if (current == null) {
+                    if (shutdown) {
+                        // Not worth creating for a stream that's being started as the broker shuts down
+                        return command -> {
+                            throw new RejectedExecutionException("Broker has been shut down");
+                        };
+                    }
+                    if (settings.blockingExecutor() == null) {
+                        ownedBlockingExecutor = newBlockingExecutor(settings.blockingThreads());
+                        current = ownedBlockingExecutor;
+                    } else {
+                        current = settings.blockingExecutor();
+                    }
+                    blockingExecutor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    OffsetStore offsetStore() {
+        return offsetStore;
+    }
+
+    BrokerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Check that the messages of a publisher method have keys that a compacted topic can hash, see
+     * {@link KeyIndex#hashable(Class)}, if it publishes to one.
+     *
+     * @throws IllegalArgumentException If the messages have keys of a type that can't be hashed.
+     */
+    void checkKeys(HandlerMethod method) {
+        if (method.kind() != HandlerMethod.Kind.PUBLISHER || !settings.compacted(method.topic())) {
+            return;
+        }
+        Class<?> keyType = MessageKeys.keyType(method.messageType());
+        if (keyType != null && !KeyIndex.hashable(keyType)) {
+            throw new IllegalArgumentException("Publisher method " + method + " publishes to compacted topic "
+                    + method.topic() + ", but the @MessageKey of " + method.messageType().getName() + " is a "
+                    + keyType.getName() + ", compacted topics only support keys that are strings, numbers, UUIDs or "
+                    + "enums");
+        }
+    }
+
+    /**
+     * Get the given topic, if it has been created.
+     *
+     * @return The topic, or null if it doesn't exist.
+     */
+    Topic existingTopic(String name) {
+        return topics.get(name);
+    }
+
+    /**
+     * Get or create the given topic.
+     *
+     * @param name The name of the topic.
+     * @param declaredPartitions The number of partitions declared by the stream that is using the topic, or -1 if it
+     *                           doesn't declare any.
+     */
+    Topic topic(String name, int declaredPartitions) {
+        Topic existing = topics.get(name);
+        Topic topic = existing != null ? existing : topics.computeIfAbsent(name, n -> {
+            int partitions = settings.partitions(n);
+            if (partitions < 1) {
+                partitions = declaredPartitions > 0 ? declaredPartitions : settings.defaultPartitions();
+            }
+            Path logDirectory = settings.logDirectory();
+            IntFunction<SegmentLog> logs = logDirectory == null ? null : partition -> SegmentLog.open(
+                    logDirectory.resolve(encode(n) + "-" + partition), settings.segmentSize(),
+                    settings.indexInterval(), settings.codec(n),
+                    new BatchCompressor(settings.compression(n), settings::compressionFor));
+            return new Topic(this, n, partitions, settings.ringBufferSize(), logs);
+        });
+        if (declaredPartitions > 0 && topic.partitionCount() != declaredPartitions) {
+            throw new IllegalStateException("Topic " + name + " has " + topic.partitionCount()
+                    + " partitions, but a publisher declares " + declaredPartitions
+                    + ". Configure the partitions for the topic, or register its publishers before its subscribers.");
+        }
+        return topic;
+    }
+
+    /**
+     * Create an executor that runs each task on a virtual thread of its own, if the JVM has them, otherwise a pool of
+     * the given number of threads, which only keeps its threads while they're busy.
+     */
+    private static ExecutorService newBlockingExecutor(int threads) {
+        try {
+            // Virtual threads can only be created reflectively, since the broker is built for Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "messaging-broker-blocking-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    private static String encode(String topic) {
+        try {
+            return URLEncoder.encode(topic, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    void shutdown() {
+        metrics.close();
+        for (Topic topic : topics.values()) {
+            topic.close();
+        }
+        scheduler.shutdownNow();
+        for (BatchCompression compression : settings.compressions()) {
+            compression.release();
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+        synchronized (this) {
+            shutdown = true;
+            if (ownedBlockingExecutor != null) {
+                ownedBlockingExecutor.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+
+/**
+ * An envelope for a message delivered by a {@link TopicSource}.
+ *
+ * The offset is held as a primitive sequence, and the {@link MessageOffset.Sequence} is only created if it's asked
+ * for. If the envelope belongs to a pool, it's returned to the pool once it's committed, and reused for a later
+ * message.
+ *
+ * A message read from a log is held encoded until {@link #message()} is first invoked, so a subscriber that commits
+ * or skips a message without looking at it never decodes it.
+ */
+final class BrokerEnvelope<Message> implements MessageEnvelope<Message> {
+
+    private final TopicSource source;
+    private final EnvelopePool pool;
+    private Object message;
+    private int partition;
+    private long sequence;
+    private MessageOffset offset;
+
+    /**
+     * The next envelope in the pool.
+     */
+    BrokerEnvelope<Object> next;
+
+    /**
+     * @param pool The pool to return the envelope to when it's committed, or null if it shouldn't be reused.
+     */
+    BrokerEnvelope(TopicSource source, EnvelopePool pool) {
+        this.source = source;
+        this.pool = pool;
+    }
+
+    /**
+     * Set the message that the envelope is for.
+     */
+    BrokerEnvelope<Message> set(Object message, int partition, long sequence) {
+        this.message = message;
+        this.partition = partition;
+        this.sequence = sequence;
+        this.offset = null;
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Message message() {
+        Object current = message;
+        if (current instanceof EncodedMessage) {
+            current = ((EncodedMessage) current).decode();
+            message = current;
+        }
+        return (Message) current;
+    }
+
+    @Override
+    public MessageOffset offset() {
+        MessageOffset current = offset;
+        if (current == null) {
+            current = new MessageOffset.Sequence(sequence);
+            offset = current;
+        }
+        return current;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void commit() {
+        long committed = sequence;
+        if (committed < 0) {
+            // Already committed and returned to the pool
+            return;
+        }
+        source.commit(partition, committed, committed);
+        if (pool != null) {
+            message = null;
+            offset = null;
+            sequence = -1;
+            pool.release((BrokerEnvelope<Object>) this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MessageEnvelope{" +
+                "message=" + message +
+                ", offset=" + sequence +
+                '}';
+    }
+}
@@ -0,0 +1,130 @@
+package org.example.messaging.broker;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports the metrics of the broker's supervised streams to the configured {@link MetricsListener}, and registers them
+ * with JMX if enabled.
+ *
+ * Metrics are only considered enabled if there's somewhere to report them to. When they're disabled, counters are
+ * still kept, since they're cheap, but messages aren't timestamped when they're published, so there's no lag time or
+ * commit latency.
+ */
+final class BrokerMetrics {
+
+    private static final Logger log = Logger.getLogger(BrokerMetrics.class.getName());
+    private static final AtomicInteger brokers = new AtomicInteger();
+
+    private final MetricsListener listener;
+    private final boolean jmx;
+    private final boolean enabled;
+    private final String broker = "broker-" + brokers.incrementAndGet();
+    private final Set<SupervisedStream> streams = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<SupervisedStream, ObjectName> mbeans = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> reporting;
+
+    BrokerMetrics(BrokerSettings settings, ScheduledExecutorService scheduler) {
+        this.listener = settings.metricsListener();
+        this.jmx = settings.jmxEnabled();
+        this.enabled = listener != null || jmx;
+        if (enabled) {
+            long interval = settings.metricsInterval().toNanos();
+            reporting = scheduler.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.NANOSECONDS);
+        } else {
+            reporting = null;
+        }
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * The time to stamp published messages with, or zero if metrics are disabled.
+     */
+    long publishTime() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void register(SupervisedStream stream) {
+        streams.add(stream);
+        if (jmx) {
+            StreamMeter meter = stream.meter();
+            try {
+                ObjectName name = new ObjectName("org.example.messaging.broker:type=Stream,broker=" + broker
+                        + ",topic=" + ObjectName.quote(meter.getTopic()) + ",partition=" + meter.getPartition()
+                        + ",name=" + ObjectName.quote(meter.getStream()));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(meter, StreamMetricsMXBean.class, true), name);
+                mbeans.put(stream, name);
+            } catch (JMException e) {
+                log.log(Level.WARNING, "Failed to register stream " + stream + " with JMX", e);
+            }
+        }
+    }
+
+    void unregister(SupervisedStream stream) {
+        streams.remove(stream);
+        ObjectName name = mbeans.remove(stream);
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                log.log(Level.FINE, "Failed to unregister " + name + " from JMX", e);
+            }
+        }
+    }
+
+    /**
+     * Record that a stream terminated, and will be restarted after the given backoff.
+     */
+    void restarted(SupervisedStream stream, Throwable error, long backoffNanos) {
+        stream.meter().restarted(backoffNanos);
+        if (listener != null) {
+            try {
+                listener.streamRestarted(stream.toString(), error, Duration.ofNanos(backoffNanos));
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+
+    void close() {
+        if (reporting != null) {
+            reporting.cancel(false);
+        }
+        for (SupervisedStream stream : streams) {
+            unregister(stream);
+        }
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        List<StreamMetrics> snapshots = new ArrayList<>(streams.size());
+        for (SupervisedStream stream : streams) {
+            snapshots.add(stream.snapshotMetrics(now));
+        }
+        if (listener != null) {
+            try {
+                listener.report(snapshots);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,799 @@
+package org.example.messaging.broker;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+/**
+ * Settings for the {@link InMemoryMessageBroker}.
+ *
+ * Settings are immutable, each <tt>with</tt> method returns a copy with the given setting changed.
+ */
+public final class BrokerSettings implements Cloneable {
+
+    private static final BrokerSettings DEFAULTS = new BrokerSettings();
+    private static final BatchCompression DEFLATE = new DeflateCompression();
+
+    private int ringBufferSize = 16384;
+    private int defaultPartitions = 1;
+    private Map<String, Integer> topicPartitions = Collections.emptyMap();
+    private int publishBatchSize = 256;
+    private Executor executor;
+    private OffsetStore offsetStore;
+    private Duration minBackoff = Duration.ofMillis(100);
+    private Duration maxBackoff = Duration.ofSeconds(10);
+    private Path logDirectory;
+    private int segmentSize = 64 * 1024 * 1024;
+    private int indexInterval = 4096;
+    private MessageCodec codec = new JavaSerializationCodec();
+    private Map<String, MessageCodec> topicCodecs = Collections.emptyMap();
+    private BatchCompression compression;
+    private Map<String, BatchCompression> topicCompressions = Collections.emptyMap();
+    private Map<String, Predicate<Object>> topicCompactions = Collections.emptyMap();
+    private Duration compactionInterval = Duration.ofMinutes(1);
+    private Duration tombstoneRetention = Duration.ofDays(1);
+    private Set<String> idempotentTopics = Collections.emptySet();
+    private int groupCommitSize;
+    private Duration groupCommitDelay = Duration.ofMillis(1);
+    private int commitBatchSize = 1024;
+    private Duration commitInterval = Duration.ofSeconds(1);
+    private int maxBatchSize = 256;
+    private Duration batchLinger = Duration.ZERO;
+    private MetricsListener metricsListener;
+    private Duration metricsInterval = Duration.ofSeconds(10);
+    private boolean jmxEnabled;
+    private PartitionScheduler partitionScheduler;
+    private String node;
+    private double nodeWeight = 1;
+    private int executorLanes;
+    private Executor blockingExecutor;
+    private int blockingThreads = 256;
+    private int prefetchBudget = 65536;
+    private Map<String, Integer> topicPrefetchBudgets = Collections.emptyMap();
+
+    private BrokerSettings() {
+    }
+
+    /**
+     * The default settings.
+     */
+    public static BrokerSettings defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * The number of messages that each partition buffers. Must be a power of two.
+     */
+    public int ringBufferSize() {
+        return ringBufferSize;
+    }
+
+    public BrokerSettings withRingBufferSize(int ringBufferSize) {
+        if (ringBufferSize < 1 || Integer.bitCount(ringBufferSize) != 1) {
+            throw new IllegalArgumentException("Ring buffer size must be a power of two, but was " + ringBufferSize);
+        }
+        BrokerSettings copy = copy();
+        copy.ringBufferSize = ringBufferSize;
+        return copy;
+    }
+
+    /**
+     * The number of partitions that a topic is created with, if no {@link org.example.messaging.Partitioned}
+     * publisher declares the number of partitions, and it isn't configured using {@link #withPartitions}.
+     */
+    public int defaultPartitions() {
+        return defaultPartitions;
+    }
+
+    public BrokerSettings withDefaultPartitions(int defaultPartitions) {
+        if (defaultPartitions < 1) {
+            throw new IllegalArgumentException("Default partitions must be at least one, but was " + defaultPartitions);
+        }
+        BrokerSettings copy = copy();
+        copy.defaultPartitions = defaultPartitions;
+        return copy;
+    }
+
+    /**
+     * The number of partitions configured for the given topic, or -1 if not configured.
+     */
+    public int partitions(String topic) {
+        Integer partitions = topicPartitions.get(topic);
+        return partitions == null ? -1 : partitions;
+    }
+
+    public BrokerSettings withPartitions(String topic, int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Topic " + topic + " must have at least one partition, but was "
+                    + partitions);
+        }
+        Map<String, Integer> updated = new HashMap<>(topicPartitions);
+        updated.put(topic, partitions);
+        BrokerSettings copy = copy();
+        copy.topicPartitions = Collections.unmodifiableMap(updated);
+        return copy;
+    }
+
+    /**
+     * The number of ring buffer slots that a publisher stream claims, and hence requests from its publisher, at a
+     * time.
+     *
+     * Publishers that are slow to respond to requests are asked for more at a time, according to the rate they emit
+     * at and how long they take to respond, up to a quarter of the ring buffer, within the topic's
+     * {@link #prefetchBudget(String) prefetch budget}.
+     */
+    public int publishBatchSize() {
+        return publishBatchSize;
+    }
+
+    public BrokerSettings withPublishBatchSize(int publishBatchSize) {
+        if (publishBatchSize < 1) {
+            throw new IllegalArgumentException("Publish batch size must be at least one, but was " + publishBatchSize);
+        }
+        BrokerSettings copy = copy();
+        copy.publishBatchSize = publishBatchSize;
+        return copy;
+    }
+
+    /**
+     * The executor that streams are run on, or null if the broker should create and own its own executor.
+     */
+    public Executor executor() {
+        return executor;
+    }
+
+    public BrokerSettings withExecutor(Executor executor) {
+        BrokerSettings copy = copy();
+        copy.executor = executor;
+        return copy;
+    }
+
+    /**
+     * The offset store, or null if offsets should be stored in memory.
+     */
+    public OffsetStore offsetStore() {
+        return offsetStore;
+    }
+
+    public BrokerSettings withOffsetStore(OffsetStore offsetStore) {
+        BrokerSettings copy = copy();
+        copy.offsetStore = offsetStore;
+        return copy;
+    }
+
+    /**
+     * The backoff before the first restart of a failed stream.
+     */
+    public Duration minBackoff() {
+        return minBackoff;
+    }
+
+    /**
+     * The maximum backoff between restarts of a stream that keeps failing.
+     */
+    public Duration maxBackoff() {
+        return maxBackoff;
+    }
+
+    public BrokerSettings withBackoff(Duration minBackoff, Duration maxBackoff) {
+        Objects.requireNonNull(minBackoff, "minBackoff");
+        Objects.requireNonNull(maxBackoff, "maxBackoff");
+        if (minBackoff.compareTo(maxBackoff) > 0) {
+            throw new IllegalArgumentException("Min backoff " + minBackoff + " is greater than max backoff "
+                    + maxBackoff);
+        }
+        BrokerSettings copy = copy();
+        copy.minBackoff = minBackoff;
+        copy.maxBackoff = maxBackoff;
+        return copy;
+    }
+
+    /**
+     * The directory that topic logs are stored in, or null if topics are only held in memory.
+     */
+    public Path logDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * Make topics durable, by appending them to memory mapped logs in the given directory.
+     *
+     * Each partition of each topic gets its own subdirectory, and topics are recovered from the directory when the
+     * broker starts.
+     */
+    public BrokerSettings withLogDirectory(Path logDirectory) {
+        BrokerSettings copy = copy();
+        copy.logDirectory = logDirectory;
+        return copy;
+    }
+
+    /**
+     * The size of each segment of a topic log, in bytes. A message must fit in a single segment.
+     */
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    public BrokerSettings withSegmentSize(int segmentSize) {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segment size must be at least 4096 bytes, but was " + segmentSize);
+        }
+        BrokerSettings copy = copy();
+        copy.segmentSize = segmentSize;
+        return copy;
+    }
+
+    /**
+     * The approximate number of bytes between entries in the sparse index of a log segment.
+     */
+    public int indexInterval() {
+        return indexInterval;
+    }
+
+    public BrokerSettings withIndexInterval(int indexInterval) {
+        if (indexInterval < 1) {
+            throw new IllegalArgumentException("Index interval must be at least one byte, but was " + indexInterval);
+        }
+        BrokerSettings copy = copy();
+        copy.indexInterval = indexInterval;
+        return copy;
+    }
+
+    /**
+     * The codec that messages are encoded to the log with, for topics that don't have their own codec configured.
+     */
+    public MessageCodec codec() {
+        return codec;
+    }
+
+    public BrokerSettings withCodec(MessageCodec codec) {
+        BrokerSettings copy = copy();
+        copy.codec = Objects.requireNonNull(codec, "codec");
+        return copy;
+    }
+
+    /**
+     * The codec that messages of the given topic are encoded to the log with.
+     */
+    public MessageCodec codec(String topic) {
+        MessageCodec topicCodec = topicCodecs.get(topic);
+        return topicCodec == null ? codec : topicCodec;
+    }
+
+    /**
+     * Configure the codec for a topic, for example a {@link PojoCodec} for the topic's message class.
+     *
+     * Since a topic's log is encoded with its codec, the codec of a durable topic can't be changed once messages have
+     * been written to it.
+     */
+    public BrokerSettings withCodec(String topic, MessageCodec codec) {
+        Map<String, MessageCodec> updated = new HashMap<>(topicCodecs);
+        updated.put(Objects.requireNonNull(topic, "topic"), Objects.requireNonNull(codec, "codec"));
+        BrokerSettings copy = copy();
+        copy.topicCodecs = Collections.unmodifiableMap(updated);
+        return copy;
+    }
+
+    /**
+     * The compression that batches are compressed with, for topics that don't have their own compression configured,
+     * or null if they aren't compressed.
+     */
+    public BatchCompression compression() {
+        return compression;
+    }
+
+    /**
+     * Compress the batches of all topics that don't have their own compression configured.
+     *
+     * @see #withCompression(String, BatchCompression)
+     */
+    public BrokerSettings withCompression(BatchCompression compression) {
+        BrokerSettings copy = copy();
+        copy.compression = validate(compression);
+        return copy;
+    }
+
+    /**
+     * The compression that batches of the given topic are compressed with, or null if they aren't compressed.
+     */
+    public BatchCompression compression(String topic) {
+        BatchCompression topicCompression = topicCompressions.get(topic);
+        return topicCompression == null ? compression : topicCompression;
+    }
+
+    /**
+     * Configure the compression for a topic.
+     *
+     * The batches that are appended to the topic's log are compressed, and stay compressed when they're read back,
+     * and when they're sent to remote subscribers, so each batch is only decompressed when its messages are read by a
+     * subscriber. For a topic that isn't durable, batches are compressed when they're sent to remote subscribers.
+     *
+     * Each batch records the compression it was compressed with, so the compression of a durable topic can be
+     * changed at any time, as long as the compressions of the batches already in its log, and those sent to a
+     * {@link TransportClient}, are still configured where they're read. {@link DeflateCompression} is always
+     * available.
+     */
+    public BrokerSettings withCompression(String topic, BatchCompression compression) {
+        Map<String, BatchCompression> updated = new HashMap<>(topicCompressions);
+        updated.put(Objects.requireNonNull(topic, "topic"), validate(compression));
+        BrokerSettings copy = copy();
+        copy.topicCompressions = Collections.unmodifiableMap(updated);
+        return copy;
+    }
+
+    private static BatchCompression validate(BatchCompression compression) {
+        Objects.requireNonNull(compression, "compression");
+        if (compression.id() < 1 || compression.id() > 63) {
+            throw new IllegalArgumentException("Compression id must be between 1 and 63, but was "
+                    + compression.id());
+        }
+        return compression;
+    }
+
+    /**
+     * The configured compression with the given id, to decompress batches with, or null if there is none.
+     */
+    BatchCompression compressionFor(int id) {
+        if (compression != null && compression.id() == id) {
+            return compression;
+        }
+        for (BatchCompression topicCompression : topicCompressions.values()) {
+            if (topicCompression.id() == id) {
+                return topicCompression;
+            }
+        }
+        return id == DeflateCompression.ID ? DEFLATE : null;
+    }
+
+    /**
+     * Every compression that batches may be compressed or decompressed with.
+     */
+    Set<BatchCompression> compressions() {
+        Set<BatchCompression> compressions = new LinkedHashSet<>(topicCompressions.values());
+        if (compression != null) {
+            compressions.add(compression);
+        }
+        compressions.add(DEFLATE);
+        return compressions;
+    }
+
+    /**
+     * Whether the log of the given topic is compacted.
+     */
+    public boolean compacted(String topic) {
+        return topicCompactions.containsKey(topic);
+    }
+
+    /**
+     * The predicate that says whether a message of the given topic is a tombstone, or null if the topic isn't
+     * compacted.
+     */
+    public Predicate<Object> tombstone(String topic) {
+        return topicCompactions.get(topic);
+    }
+
+    /**
+     * Compact the log of a durable topic, without tombstones.
+     *
+     * @see #withCompaction(String, Predicate)
+     */
+    public BrokerSettings withCompaction(String topic) {
+        return withCompaction(topic, message -> false);
+    }
+
+    /**
+     * Compact the log of a durable topic, keeping only the latest message with each
+     * {@link org.example.messaging.MessageKey}.
+     *
+     * Every {@link #compactionInterval()}, if segments have been sealed since the last compaction, the sealed segments
+     * of each partition's log are rewritten without the messages that a later message has the same key as. Messages
+     * keep their sequences, so the offsets that subscribers have committed stay valid, and a subscriber that starts
+     * from the beginning only reads the latest message of each key, followed by whatever hasn't been compacted yet.
+     * Messages without a key are always kept. Keys must be strings, numbers, UUIDs or enums, and publishers to the
+     * topic whose messages have keys of any other type are refused when they're registered or created.
+     *
+     * A tombstone says that its key has been deleted. It's kept until it's older than the
+     * {@link #tombstoneRetention()}, so that subscribers get a chance to see it, and is then removed too, so that
+     * nothing of its key is left.
+     *
+     * @param tombstone Whether a message is a tombstone.
+     */
+    public BrokerSettings withCompaction(String topic, Predicate<Object> tombstone) {
+        Map<String, Predicate<Object>> updated = new HashMap<>(topicCompactions);
+        updated.put(Objects.requireNonNull(topic, "topic"), Objects.requireNonNull(tombstone, "tombstone"));
+        BrokerSettings copy = copy();
+        copy.topicCompactions = Collections.unmodifiableMap(updated);
+        return copy;
+    }
+
+    /**
+     * How often the logs of compacted topics are checked for segments to compact.
+     */
+    public Duration compactionInterval() {
+        return compactionInterval;
+    }
+
+    public BrokerSettings withCompactionInterval(Duration compactionInterval) {
+        if (compactionInterval.isNegative() || compactionInterval.isZero()) {
+            throw new IllegalArgumentException("Compaction interval must be positive, but was " + compactionInterval);
+        }
+        BrokerSettings copy = copy();
+        copy.compactionInterval = compactionInterval;
+        return copy;
+    }
+
+    /**
+     * How long a tombstone is kept in a compacted log once it was appended, see
+     * {@link #withCompaction(String, Predicate)}.
+     */
+    public Duration tombstoneRetention() {
+        return tombstoneRetention;
+    }
+
+    public BrokerSettings withTombstoneRetention(Duration tombstoneRetention) {
+        if (tombstoneRetention.isNegative()) {
+            throw new IllegalArgumentException("Tombstone retention must not be negative, but was "
+                    + tombstoneRetention);
+        }
+        BrokerSettings copy = copy();
+        copy.tombstoneRetention = tombstoneRetention;
+        return copy;
+    }
+
+    /**
+     * Whether publishing to the given topic is idempotent.
+     */
+    public boolean idempotent(String topic) {
+        return idempotentTopics.contains(topic);
+    }
+
+    /**
+     * Make publishing to a topic idempotent, so that the messages that handler
+     * {@link org.example.messaging.MessagePublisher}s republish when they're restarted are dropped.
+     *
+     * Each stream of a handler publisher method, that is, the method and the partition it publishes to, is a producer
+     * with an id of its own, and the offsets of the {@link org.example.messaging.MessageEnvelope}s and
+     * {@link org.example.messaging.MessageBatch}es it publishes are its producer sequences, which must be
+     * {@link org.example.messaging.MessageOffset.Sequence} offsets that increase with each message. Each partition
+     * keeps the latest producer sequence published by each producer, and drops messages whose producer sequence isn't
+     * after it, as duplicates.
+     *
+     * If the topic is durable, the producer id and sequence of each message are also appended to the log, the latest
+     * producer sequences are snapshotted each time the log rolls, and they're recovered from the latest snapshot and
+     * the records after it when the broker starts, so messages are also deduplicated across broker restarts, however
+     * long ago their producer last published.
+     * Messages published without an offset, or by client publishers, which have no stable identity, are never
+     * dropped. Since a producer's id is derived from its method's stream id, a broker refuses to register a handler
+     * whose idempotent publisher methods are already registered, with another instance of the handler's class.
+     */
+    public BrokerSettings withIdempotentPublishing(String topic) {
+        Set<String> updated = new HashSet<>(idempotentTopics);
+        updated.add(Objects.requireNonNull(topic, "topic"));
+        BrokerSettings copy = copy();
+        copy.idempotentTopics = Collections.unmodifiableSet(updated);
+        return copy;
+    }
+
+    /**
+     * The number of messages appended to a log that starts a group commit, or 0 if logs aren't forced to disk as
+     * they're written.
+     */
+    public int groupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * The longest time a message appended to a log may wait for a group commit.
+     */
+    public Duration groupCommitDelay() {
+        return groupCommitDelay;
+    }
+
+    /**
+     * Force the logs of durable topics to disk in group commits.
+     *
+     * Rather than forcing each message as it's appended, the messages appended to a partition's log are gathered into
+     * a group, which is forced with a single force once the given number of messages have been appended since the
+     * last one, or once the given delay has passed since the first message appended after the last one, whichever
+     * comes first. Appending carries on while a group is being forced, so the next group fills up in the meantime.
+     *
+     * The acknowledgements emitted by publisher processors are held back until the messages they acknowledge have been
+     * forced, and are emitted in order as each group completes. Without group commit, which is the default, they're
+     * emitted once the messages have been appended to the log, which survives the JVM stopping, but not the machine.
+     */
+    public BrokerSettings withGroupCommit(int groupCommitSize, Duration groupCommitDelay) {
+        if (groupCommitSize < 1) {
+            throw new IllegalArgumentException("Group commit size must be at least 1, but was " + groupCommitSize);
+        }
+        Objects.requireNonNull(groupCommitDelay, "groupCommitDelay");
+        BrokerSettings copy = copy();
+        copy.groupCommitSize = groupCommitSize;
+        copy.groupCommitDelay = groupCommitDelay;
+        return copy;
+    }
+
+    /**
+     * The number of messages a subscriber may commit before its committed offset is written to the offset store.
+     */
+    public int commitBatchSize() {
+        return commitBatchSize;
+    }
+
+    /**
+     * The longest time a subscriber's committed offset may go without being written to the offset store.
+     */
+    public Duration commitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * Configure how subscribers' committed offsets are written to the offset store.
+     *
+     * Offsets are written once the given number of messages have been committed since the last write, or once the
+     * given interval has passed since the first commit after the last write, whichever comes first. Offsets are also
+     * written when a subscriber is stopped. Larger batches mean fewer writes, but more messages redelivered if the
+     * broker stops without being closed.
+     */
+    public BrokerSettings withCommitBatching(int commitBatchSize, Duration commitInterval) {
+        if (commitBatchSize < 1) {
+            throw new IllegalArgumentException("Commit batch size must be at least 1, but was " + commitBatchSize);
+        }
+        Objects.requireNonNull(commitInterval, "commitInterval");
+        BrokerSettings copy = copy();
+        copy.commitBatchSize = commitBatchSize;
+        copy.commitInterval = commitInterval;
+        return copy;
+    }
+
+    /**
+     * The maximum number of messages in each {@link org.example.messaging.MessageBatch} delivered to a subscriber.
+     */
+    public int maxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * How long to wait for a batch to fill up before delivering it with fewer than the maximum number of messages.
+     */
+    public Duration batchLinger() {
+        return batchLinger;
+    }
+
+    /**
+     * Configure how {@link org.example.messaging.MessageBatch}es are filled for subscribers that consume batches.
+     *
+     * With no linger, which is the default, each batch holds whatever messages are available when it's delivered, up
+     * to the maximum, so batches only get large when the subscriber is behind. A linger trades latency for larger
+     * batches.
+     */
+    public BrokerSettings withBatching(int maxBatchSize, Duration batchLinger) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Max batch size must be at least 1, but was " + maxBatchSize);
+        }
+        Objects.requireNonNull(batchLinger, "batchLinger");
+        BrokerSettings copy = copy();
+        copy.maxBatchSize = maxBatchSize;
+        copy.batchLinger = batchLinger;
+        return copy;
+    }
+
+    /**
+     * The listener that stream metrics are reported to, or null if they aren't reported to a listener.
+     */
+    public MetricsListener metricsListener() {
+        return metricsListener;
+    }
+
+    public BrokerSettings withMetricsListener(MetricsListener metricsListener) {
+        BrokerSettings copy = copy();
+        copy.metricsListener = Objects.requireNonNull(metricsListener, "metricsListener");
+        return copy;
+    }
+
+    /**
+     * How often stream metrics are reported, and the interval that rates and latency histograms cover.
+     */
+    public Duration metricsInterval() {
+        return metricsInterval;
+    }
+
+    public BrokerSettings withMetricsInterval(Duration metricsInterval) {
+        if (metricsInterval.isNegative() || metricsInterval.isZero()) {
+            throw new IllegalArgumentException("Metrics interval must be positive, but was " + metricsInterval);
+        }
+        BrokerSettings copy = copy();
+        copy.metricsInterval = metricsInterval;
+        return copy;
+    }
+
+    /**
+     * Whether stream metrics are registered with the platform MBean server, as {@link StreamMetricsMXBean}s.
+     */
+    public boolean jmxEnabled() {
+        return jmxEnabled;
+    }
+
+    public BrokerSettings withJmxEnabled(boolean jmxEnabled) {
+        BrokerSettings copy = copy();
+        copy.jmxEnabled = jmxEnabled;
+        return copy;
+    }
+
+    /**
+     * The scheduler that assigns the partitions of {@link org.example.messaging.Partitioned} publishers to this
+     * broker, or null if this broker runs all of them.
+     */
+    public PartitionScheduler partitionScheduler() {
+        return partitionScheduler;
+    }
+
+    /**
+     * The name of this broker's node in the partition scheduler.
+     */
+    public String node() {
+        return node;
+    }
+
+    /**
+     * The weight of this broker's node in the partition scheduler.
+     */
+    public double nodeWeight() {
+        return nodeWeight;
+    }
+
+    /**
+     * Only run the partitioned publisher streams for the partitions that the given scheduler assigns to this broker.
+     *
+     * The broker joins the scheduler as the given node when it's created, and leaves it when it's closed. Brokers
+     * sharing a scheduler should share an offset store too, so that a partition's publisher resumes from the last
+     * offset it stored when the partition moves to another broker.
+     *
+     * @param node The name of the node, unique within the scheduler.
+     * @param weight The weight of the node, relative to the other nodes, brokers on larger machines should get
+     *               proportionally more partitions.
+     */
+    public BrokerSettings withPartitionScheduler(PartitionScheduler partitionScheduler, String node, double weight) {
+        Objects.requireNonNull(partitionScheduler, "partitionScheduler");
+        Objects.requireNonNull(node, "node");
+        if (!(weight > 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("Node weight must be positive, but was " + weight);
+        }
+        BrokerSettings copy = copy();
+        copy.partitionScheduler = partitionScheduler;
+        copy.node = node;
+        copy.nodeWeight = weight;
+        return copy;
+    }
+
+    /**
+     * The number of lanes that partitions are pinned to, or 0 if partitions aren't pinned.
+     */
+    public int executorLanes() {
+        return executorLanes;
+    }
+
+    /**
+     * Pin each partition to one of the given number of lanes of the executor.
+     *
+     * Each lane runs the work of its partitions, that is, publishing, delivering and appending to the log, one task at
+     * a time, so however many partitions there are, no more than that many threads are ever busy with them, and a
+     * partition's work tends to stay on the same thread. Since a handler that blocks holds up every partition in its
+     * lane, lanes should only be used with handlers that don't block. By default, partitions aren't pinned, and their
+     * work is run on the executor directly.
+     */
+    public BrokerSettings withExecutorLanes(int executorLanes) {
+        if (executorLanes < 0) {
+            throw new IllegalArgumentException("Executor lanes must not be negative, but was " + executorLanes);
+        }
+        BrokerSettings copy = copy();
+        copy.executorLanes = executorLanes;
+        return copy;
+    }
+
+    /**
+     * The executor that blocking {@link org.example.messaging.MessageSubscriber} methods are run on, or null if the
+     * broker should create and own its own.
+     */
+    public Executor blockingExecutor() {
+        return blockingExecutor;
+    }
+
+    /**
+     * Run blocking {@link org.example.messaging.MessageSubscriber} methods, that is, methods that take a message
+     * rather than returning a subscriber, on the given executor.
+     *
+     * By default, the broker runs them on virtual threads, one per invocation, if the JVM has them, otherwise on a
+     * pool of {@link #withBlockingThreads(int)} threads of its own. Either way, how many invocations a method has in
+     * flight at once is bounded by its {@link org.example.messaging.Concurrent} annotation.
+     */
+    public BrokerSettings withBlockingExecutor(Executor blockingExecutor) {
+        BrokerSettings copy = copy();
+        copy.blockingExecutor = blockingExecutor;
+        return copy;
+    }
+
+    /**
+     * The number of threads in the pool that the broker runs blocking subscriber methods on, if the JVM doesn't have
+     * virtual threads.
+     */
+    public int blockingThreads() {
+        return blockingThreads;
+    }
+
+    /**
+     * Configure the number of threads in the pool that the broker runs blocking subscriber methods on, if the JVM
+     * doesn't have virtual threads and no blocking executor is configured. Invocations beyond that wait for a thread.
+     */
+    public BrokerSettings withBlockingThreads(int blockingThreads) {
+        if (blockingThreads < 1) {
+            throw new IllegalArgumentException("Blocking threads must be at least 1, but was " + blockingThreads);
+        }
+        BrokerSettings copy = copy();
+        copy.blockingThreads = blockingThreads;
+        return copy;
+    }
+
+    /**
+     * The number of elements that the broker may prefetch for a topic, on top of a small minimum per stream, across
+     * all of the topic's streams, for topics that don't have their own budget configured.
+     */
+    public int prefetchBudget() {
+        return prefetchBudget;
+    }
+
+    /**
+     * The number of elements that the broker may prefetch for the given topic.
+     */
+    public int prefetchBudget(String topic) {
+        Integer budget = topicPrefetchBudgets.get(topic);
+        return budget == null ? prefetchBudget : budget;
+    }
+
+    /**
+     * Configure the default prefetch budget of topics.
+     *
+     * The broker sizes the demand it keeps outstanding with the streams it subscribes to, such as publishers and
+     * {@link org.example.messaging.Parallel} subscriber workers, to their rates and latencies, so that fast streams
+     * stay busy without slow streams buffering more than they need. The budget caps what the streams of a topic may
+     * have outstanding between them, and so the memory that prefetching can use.
+     */
+    public BrokerSettings withPrefetchBudget(int prefetchBudget) {
+        if (prefetchBudget < 0) {
+            throw new IllegalArgumentException("Prefetch budget must not be negative, but was " + prefetchBudget);
+        }
+        BrokerSettings copy = copy();
+        copy.prefetchBudget = prefetchBudget;
+        return copy;
+    }
+
+    /**
+     * Configure the prefetch budget of a topic, for example a small budget for a topic with large messages.
+     */
+    public BrokerSettings withPrefetchBudget(String topic, int prefetchBudget) {
+        if (prefetchBudget < 0) {
+            throw new IllegalArgumentException("Prefetch budget for " + topic + " must not be negative, but was "
+                    + prefetchBudget);
+        }
+        Map<String, Integer> updated = new HashMap<>(topicPrefetchBudgets);
+        updated.put(Objects.requireNonNull(topic, "topic"), prefetchBudget);
+        BrokerSettings copy = copy();
+        copy.topicPrefetchBudgets = Collections.unmodifiableMap(updated);
+        return copy;
+    }
+
+    private BrokerSettings copy() {
+        try {
+            return (BrokerSettings) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.example.messaging.broker;
+
+import org.reactivestreams.Subscription;
+
+/**
+ * A subscription that does nothing, for rejecting subscribers.
+ */
+enum CancelledSubscription implements Subscription {
+    INSTANCE;
+
+    @Override
+    public void request(long n) {
+    }
+
+    @Override
+    public void cancel() {
+    }
+}
@@ -0,0 +1,38 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageOffset;
+
+/**
+ * Binds the methods of a generated direct client class to the broker.
+ *
+ * Client classes are generated by {@link ClientGenerator} at compile time. Each generated class has a public
+ * constructor that accepts a binder, and binds each of its methods once when it's constructed, so that invoking a
+ * client method is a direct call to its stream factory. This is not intended to be used by application code.
+ */
+public interface ClientBinder {
+
+    /**
+     * Bind a method of the client interface.
+     *
+     * @param methodName The name of the method.
+     * @param parameterTypes The parameter types of the method.
+     * @return The factory for the streams that the method returns.
+     * @throws IllegalArgumentException If the method isn't a valid messaging method.
+     */
+    StreamFactory bind(String methodName, Class<?>... parameterTypes);
+
+    /**
+     * Creates the stream returned by a client method.
+     */
+    interface StreamFactory {
+
+        /**
+         * Create the stream.
+         *
+         * @param partition The partition passed to the method, or -1 if it has no
+         *                  {@link org.example.messaging.Partition} parameter.
+         * @param offset The offset passed to the method, or null if it has no {@link MessageOffset} parameter.
+         */
+        Object create(int partition, MessageOffset offset);
+    }
+}
@@ -0,0 +1,214 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.example.messaging.Partition;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An annotation processor that generates an implementation of each direct client interface, that is, each interface
+ * with {@link MessagePublisher} or {@link MessageSubscriber} methods.
+ *
+ * The generated class binds each of its methods to the stream factory for that method when it's constructed, so
+ * invoking a client method is a direct call, rather than a dispatch through a dynamic proxy, which would box its
+ * arguments into an array, and look the method up, on every call. The generated class is named after the interface,
+ * with any enclosing class names separated by underscores and a <tt>_MessagingClient</tt> suffix, and is placed in
+ * the same package, which is where {@link InMemoryMessageBroker#create(Class)} looks for it. Interfaces that no class
+ * could be generated for, such as generic or private interfaces, fall back to dynamic proxies.
+ *
+ * The processor is registered as a service, so it runs automatically for any code compiled with the broker on the
+ * classpath.
+ */
+@SupportedAnnotationTypes({"org.example.messaging.MessagePublisher", "org.example.messaging.MessageSubscriber"})
+public class ClientGenerator extends AbstractProcessor {
+
+    static final String SUFFIX = "_MessagingClient";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> interfaces = new LinkedHashSet<>();
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                Element enclosing = element.getEnclosingElement();
+                if (element.getKind() == ElementKind.METHOD && enclosing.getKind() == ElementKind.INTERFACE) {
+                    interfaces.add((TypeElement) enclosing);
+                }
+            }
+        }
+        for (TypeElement clientInterface : interfaces) {
+            if (canImplement(clientInterface)) {
+                generate(clientInterface);
+            }
+        }
+        // Other processors may be interested in the messaging annotations too
+        return false;
+    }
+
+    private boolean canImplement(TypeElement clientInterface) {
+        if (!clientInterface.getTypeParameters().isEmpty()) {
+            return false;
+        }
+        for (Element element = clientInterface; element instanceof TypeElement;
+             element = element.getEnclosingElement()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement clientInterface) {
+        DeclaredType interfaceType = (DeclaredType) clientInterface.asType();
+        List<ExecutableElement> methods = new ArrayList<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils()
+                .getAllMembers(clientInterface))) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT)
+                    || method.getEnclosingElement().getKind() != ElementKind.INTERFACE) {
+                continue;
+            }
+            if (method.getAnnotation(MessagePublisher.class) == null
+                    && method.getAnnotation(MessageSubscriber.class) == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Client interface method "
+                        + method.getSimpleName() + " is not annotated with @MessagePublisher or @MessageSubscriber",
+                        method);
+                return;
+            }
+            methods.add(method);
+        }
+
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(clientInterface);
+        String packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(clientInterface).toString();
+        String simpleName = generatedSimpleName(packageName, binaryName);
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n")
+                .append(" * Generated by ").append(ClientGenerator.class.getName()).append(", do not edit.\n")
+                .append(" */\n")
+                .append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+                .append("public final class ").append(simpleName).append(" implements ")
+                .append(clientInterface.getQualifiedName()).append(" {\n\n");
+        for (int i = 0; i < methods.size(); i++) {
+            source.append("    private final ").append(ClientBinder.StreamFactory.class.getCanonicalName())
+                    .append(" stream").append(i).append(";\n");
+        }
+        source.append("\n    public ").append(simpleName).append("(")
+                .append(ClientBinder.class.getCanonicalName()).append(" binder) {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            ExecutableElement method = methods.get(i);
+            source.append("        this.stream").append(i).append(" = binder.bind(\"")
+                    .append(method.getSimpleName()).append('"');
+            for (VariableElement parameter : method.getParameters()) {
+                source.append(", ").append(processingEnv.getTypeUtils().erasure(parameter.asType())).append(".class");
+            }
+            source.append(");\n");
+        }
+        source.append("    }\n");
+
+        for (int i = 0; i < methods.size(); i++) {
+            ExecutableElement method = methods.get(i);
+            ExecutableType type = (ExecutableType) processingEnv.getTypeUtils().asMemberOf(interfaceType, method);
+            List<? extends VariableElement> parameters = method.getParameters();
+            String partition = "-1";
+            String offset = "null";
+            source.append("\n    @Override\n    public ");
+            appendTypeParameters(source, method.getTypeParameters());
+            source.append(type.getReturnType()).append(' ').append(method.getSimpleName()).append('(');
+            for (int p = 0; p < parameters.size(); p++) {
+                TypeMirror parameterType = type.getParameterTypes().get(p);
+                if (p > 0) {
+                    source.append(", ");
+                }
+                source.append(parameterType).append(" arg").append(p);
+                if (parameters.get(p).getAnnotation(Partition.class) != null) {
+                    partition = "arg" + p;
+                } else if (parameterType.toString().equals(MessageOffset.class.getCanonicalName())) {
+                    offset = "arg" + p;
+                }
+            }
+            source.append(") {\n")
+                    .append("        return (").append(type.getReturnType()).append(") this.stream").append(i)
+                    .append(".create(").append(partition).append(", ").append(offset).append(");\n")
+                    .append("    }\n");
+        }
+
+        source.append("\n    @Override\n    public String toString() {\n")
+                .append("        return \"").append(binaryName).append(" message broker client\";\n")
+                .append("    }\n")
+                .append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, clientInterface);
+            try (Writer writer = file.openWriter()) {
+                writer.write(source.toString());
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to generate client "
+                    + qualifiedName + ": " + e, clientInterface);
+        }
+    }
+
+    private static void appendTypeParameters(StringBuilder source, List<? extends TypeParameterElement> parameters) {
+        if (parameters.isEmpty()) {
+            return;
+        }
+        source.append('<');
+        for (int i = 0; i < parameters.size(); i++) {
+            TypeParameterElement parameter = parameters.get(i);
+            if (i > 0) {
+                source.append(", ");
+            }
+            source.append(parameter.getSimpleName());
+            String separator = " extends ";
+            for (TypeMirror bound : parameter.getBounds()) {
+                if (!bound.toString().equals(Object.class.getName())) {
+                    source.append(separator).append(bound);
+                    separator = " & ";
+                }
+            }
+        }
+        source.append("> ");
+    }
+
+    /**
+     * The simple name of the class generated for the client interface with the given binary name.
+     */
+    static String generatedSimpleName(String packageName, String binaryName) {
+        String name = packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1);
+        return name.replace('$', '_') + SUFFIX;
+    }
+}
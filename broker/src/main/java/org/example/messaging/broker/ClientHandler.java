@@ -0,0 +1,249 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.reactivestreams.Publisher;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The implementation of direct message broker clients created by {@link InMemoryMessageBroker#create(Class)}.
+ *
+ * If {@link ClientGenerator} generated a class for the client interface, then the client is an instance of that
+ * class, bound to this handler, otherwise it's a dynamic proxy that uses this handler as its invocation handler.
+ *
+ * Client {@link org.example.messaging.MessagePublisher} methods return a subscriber or processor that publishes to the
+ * topic, either to the partition passed to the {@link org.example.messaging.Partition} parameter, or to each
+ * partition in turn for each invocation.
+ *
+ * Client {@link org.example.messaging.MessageSubscriber} methods return a publisher of the messages on the topic,
+ * starting after the offset passed to the {@link MessageOffset} parameter. Without a
+ * {@link org.example.messaging.Partition} parameter, the messages of all partitions are merged. While subscribed to a
+ * partition that isn't durable, the publisher holds back producers rather than let them overwrite messages it hasn't
+ * seen yet.
+ */
+final class ClientHandler implements InvocationHandler, ClientBinder {
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(void.class, ClientBinder.class);
+
+    /**
+     * The constructors of generated client classes, as <tt>(ClientBinder)Object</tt> method handles.
+     */
+    private static final ClassValue<Optional<MethodHandle>> GENERATED = new ClassValue<Optional<MethodHandle>>() {
+        @Override
+        protected Optional<MethodHandle> computeValue(Class<?> clientInterface) {
+            Class<?> generated;
+            try {
+                generated = Class.forName(generatedClassName(clientInterface.getName()), true,
+                        clientInterface.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                return Optional.empty();
+            }
+            if (!clientInterface.isAssignableFrom(generated)) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(MethodHandles.publicLookup().findConstructor(generated, CONSTRUCTOR_TYPE)
+                        .asType(MethodType.methodType(Object.class, ClientBinder.class)));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Generated client class " + generated + " has no public "
+                        + "constructor accepting a ClientBinder", e);
+            }
+        }
+    };
+
+    /**
+     * The name of the class that {@link ClientGenerator} generates for a client interface.
+     *
+     * This is computed here rather than by the generator, so that the generator, which depends on the compiler API,
+     * never needs to be loaded at runtime.
+     */
+    private static String generatedClassName(String binaryName) {
+        int packageEnd = binaryName.lastIndexOf('.');
+        return binaryName.substring(0, packageEnd + 1) + binaryName.substring(packageEnd + 1).replace('$', '_')
+                + "_MessagingClient";
+    }
+
+    private final BrokerContext context;
+    private final Class<?> clientInterface;
+    private final Map<Method, HandlerMethod> methods = new HashMap<>();
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    private ClientHandler(BrokerContext context, Class<?> clientInterface, List<HandlerMethod> methods) {
+        this.context = context;
+        this.clientInterface = clientInterface;
+        for (HandlerMethod method : methods) {
+            this.methods.put(method.method(), method);
+        }
+    }
+
+    /**
+     * Create a client for the given interface.
+     *
+     * @throws IllegalArgumentException If the interface isn't a valid client interface.
+     */
+    static Object create(BrokerContext context, Class<?> clientInterface) {
+        List<HandlerMethod> methods = HandlerMethod.forClient(clientInterface);
+        for (HandlerMethod method : methods) {
+            context.checkKeys(method);
+        }
+        ClientHandler handler = new ClientHandler(context, clientInterface, methods);
+        Optional<MethodHandle> constructor = GENERATED.get(clientInterface);
+        if (constructor.isPresent()) {
+            try {
+                return (Object) constructor.get().invokeExact((ClientBinder) handler);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Failed to create generated client for " + clientInterface, t);
+            }
+        }
+        return Proxy.newProxyInstance(clientInterface.getClassLoader(), new Class<?>[] {clientInterface}, handler);
+    }
+
+    @Override
+    public StreamFactory bind(String methodName, Class<?>... parameterTypes) {
+        HandlerMethod handlerMethod;
+        try {
+            handlerMethod = methods.get(clientInterface.getMethod(methodName, parameterTypes));
+        } catch (NoSuchMethodException e) {
+            handlerMethod = null;
+        }
+        if (handlerMethod == null) {
+            throw new IllegalArgumentException("Method " + methodName + " of " + clientInterface
+                    + " is not a messaging method");
+        }
+        HandlerMethod method = handlerMethod;
+        return (partition, offset) -> stream(method, partition, offset);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        HandlerMethod handlerMethod = methods.get(method);
+        if (handlerMethod == null) {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return clientInterface.getName() + " message broker client";
+                    default:
+                        break;
+                }
+            }
+            throw new UnsupportedOperationException("Method " + method + " is not a messaging method");
+        }
+        Object[] arguments = args == null ? new Object[0] : args;
+        return stream(handlerMethod, handlerMethod.partitionArgument(arguments),
+                handlerMethod.offsetArgument(arguments));
+    }
+
+    private Object stream(HandlerMethod method, int partition, MessageOffset offset) {
+        Topic topic = context.topic(method.topic(), -1);
+        if (method.kind() == HandlerMethod.Kind.PUBLISHER) {
+            return publish(method, topic, partition);
+        } else {
+            return subscribe(method, topic, partition, offset == null ? MessageOffset.None.INSTANCE : offset);
+        }
+    }
+
+    private Object publish(HandlerMethod method, Topic topic, int partition) {
+        if (partition < 0) {
+            partition = Math.floorMod(roundRobin.getAndIncrement(), topic.partitionCount());
+        }
+        TopicPartition topicPartition = topic.partition(partition);
+        if (method.processor()) {
+            return new PublishingProcessor(context, topicPartition, method.elements(), method.acknowledgement());
+        } else {
+            return new TopicSink(context, topicPartition, method.elements(), new TopicSink.Listener() {
+                @Override
+                public void published(Object element, long sequence) {
+                    if (element instanceof MessageEnvelope) {
+                        ((MessageEnvelope<?>) element).commit();
+                    } else if (element instanceof MessageBatch) {
+                        ((MessageBatch<?>) element).commit();
+                    }
+                }
+
+                @Override
+                public void terminated(Throwable error) {
+                }
+            });
+        }
+    }
+
+    private Publisher<Object> subscribe(HandlerMethod method, Topic topic, int partition, MessageOffset offset) {
+        TopicPartition[] partitions;
+        if (partition >= 0) {
+            partitions = new TopicPartition[] {topic.partition(partition)};
+        } else {
+            partitions = new TopicPartition[topic.partitionCount()];
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i] = topic.partition(i);
+            }
+        }
+        long start;
+        if (offset instanceof MessageOffset.Sequence) {
+            if (partitions.length > 1) {
+                throw new IllegalArgumentException("A sequence offset can only be used to subscribe to a single "
+                        + "partition, but topic " + topic + " has " + partitions.length + " partitions");
+            }
+            start = ((MessageOffset.Sequence) offset).value() + 1;
+        } else if (offset == MessageOffset.None.INSTANCE) {
+            start = 0;
+        } else {
+            throw new IllegalArgumentException("Unsupported offset type for topic " + topic + ": " + offset);
+        }
+
+        return subscriber -> {
+            if (subscriber == null) {
+                throw new NullPointerException("Subscriber must not be null");
+            }
+            PartitionCursor[] cursors = new PartitionCursor[partitions.length];
+            Cursor[] positions = new Cursor[partitions.length];
+            for (int i = 0; i < partitions.length; i++) {
+                long first = Math.max(start, partitions[i].firstSequence());
+                cursors[i] = new PartitionCursor(partitions[i], first, method.filter());
+                positions[i] = new Cursor(first);
+                partitions[i].retain(positions[i]);
+            }
+            TopicSource.Listener listener = new TopicSource.Listener() {
+                @Override
+                public void delivered(int partition, long firstSequence, long lastSequence) {
+                    positions[partition].lazySet(lastSequence + 1);
+                }
+
+                @Override
+                public void filtered(int partition, long nextSequence) {
+                    positions[partition].lazySet(nextSequence);
+                }
+
+                @Override
+                public void committed(int partition, long firstSequence, long lastSequence) {
+                }
+
+                @Override
+                public void terminated(Throwable error) {
+                    for (int i = 0; i < partitions.length; i++) {
+                        partitions[i].release(positions[i]);
+                    }
+                }
+            };
+            new TopicSource(context, cursors, subscriber, method.elements(), method.reusableEnvelopes(), listener)
+                    .start();
+        };
+    }
+}
@@ -0,0 +1,193 @@
+package org.example.messaging.broker;
+
+/**
+ * Tracks which of the messages delivered to a subscriber are still waiting to be committed, in order to find the
+ * watermark, that is, the sequence below which every delivered message has been committed.
+ *
+ * Messages may be committed in any order. Pending messages are held as bits in a sliding bitset, indexed by sequence,
+ * which grows if the subscriber has a wide spread of messages pending, and slides forward a word at a time as the
+ * watermark moves. Sequences that were never delivered, such as sequences skipped by publishers, are never pending, so
+ * they never hold the watermark back. Nor are sequences that were filtered out, which move the watermark past them
+ * once every message delivered before them has been committed.
+ *
+ * For processors, which acknowledge elements in the order they were delivered rather than committing specific
+ * messages, the tracker also queues the last sequence of each delivered element, in a growable circular array of
+ * primitive longs, so that tracking acknowledgements doesn't allocate.
+ *
+ * Deliveries must be tracked in sequence order, by a single thread, commits may come from any thread.
+ */
+final class CommitTracker {
+
+    private static final int INITIAL_WORDS = 16;
+
+    private long[] words = new long[INITIAL_WORDS];
+    private int mask = INITIAL_WORDS - 1;
+    /**
+     * The number of the lowest word that may have bits set.
+     */
+    private long firstWord;
+    /**
+     * The sequence after the last delivered message.
+     */
+    private long deliveredEnd;
+    /**
+     * The sequence after the last message filtered out, which the watermark moves to once nothing is pending.
+     */
+    private long filteredEnd;
+    private long watermark;
+
+    private long[] awaitingAck = new long[INITIAL_WORDS];
+    private int ackHead;
+    private int ackCount;
+
+    /**
+     * @param next The sequence of the first message that may be delivered.
+     */
+    CommitTracker(long next) {
+        this.firstWord = next >>> 6;
+        this.deliveredEnd = next;
+        this.watermark = next;
+    }
+
+    /**
+     * The sequence of the first message that is still pending, or if none are, the sequence after the last delivered
+     * message.
+     */
+    synchronized long watermark() {
+        return watermark;
+    }
+
+    /**
+     * Track the delivery of the messages with sequences from <tt>first</tt> to <tt>last</tt> inclusive.
+     *
+     * @param awaitAcknowledgement Whether the element will be committed by {@link #acknowledged()}.
+     * @return The watermark.
+     */
+    synchronized long delivered(long first, long last, boolean awaitAcknowledgement) {
+        if (first < deliveredEnd) {
+            throw new IllegalStateException("Message " + first + " delivered out of order, expected at least "
+                    + deliveredEnd);
+        }
+        boolean nonePending = watermark == deliveredEnd;
+        if (nonePending) {
+            // Every word is clear, so the bitset can start wherever this delivery is
+            firstWord = first >>> 6;
+        }
+        if ((last >>> 6) - firstWord >= words.length) {
+            grow(last >>> 6);
+        }
+        update(first, last, true);
+        deliveredEnd = last + 1;
+        if (awaitAcknowledgement) {
+            if (ackCount == awaitingAck.length) {
+                long[] grown = new long[ackCount << 1];
+                for (int i = 0; i < ackCount; i++) {
+                    grown[i] = awaitingAck[(ackHead + i) & (ackCount - 1)];
+                }
+                awaitingAck = grown;
+                ackHead = 0;
+            }
+            awaitingAck[(ackHead + ackCount) & (awaitingAck.length - 1)] = last;
+            ackCount++;
+        }
+        if (nonePending) {
+            watermark = first;
+        }
+        return watermark;
+    }
+
+    /**
+     * Track that the messages before the given sequence that weren't delivered were filtered out.
+     *
+     * @return The watermark.
+     */
+    synchronized long filtered(long next) {
+        filteredEnd = Math.max(filteredEnd, next);
+        if (watermark == deliveredEnd) {
+            // Nothing is pending, so the filtered out messages can be treated as delivered and committed
+            deliveredEnd = filteredEnd;
+            firstWord = deliveredEnd >>> 6;
+            watermark = deliveredEnd;
+        }
+        return watermark;
+    }
+
+    /**
+     * Mark the delivered messages with sequences from <tt>first</tt> to <tt>last</tt> inclusive as committed.
+     *
+     * @return The watermark.
+     */
+    synchronized long commit(long first, long last) {
+        long from = Math.max(first, watermark);
+        long to = Math.min(last, deliveredEnd - 1);
+        if (from > to) {
+            return watermark;
+        }
+        update(from, to, false);
+        if (from == watermark) {
+            advance();
+        }
+        return watermark;
+    }
+
+    /**
+     * Commit the oldest element awaiting acknowledgement.
+     *
+     * Since acknowledgements are in delivery order, every message up to the end of the element is committed.
+     *
+     * @return The watermark.
+     */
+    synchronized long acknowledged() {
+        if (ackCount == 0) {
+            return watermark;
+        }
+        long last = awaitingAck[ackHead];
+        ackHead = (ackHead + 1) & (awaitingAck.length - 1);
+        ackCount--;
+        return commit(watermark, last);
+    }
+
+    private void update(long from, long to, boolean set) {
+        for (long word = from >>> 6; word <= to >>> 6; word++) {
+            long low = Math.max(from, word << 6) & 63;
+            long high = Math.min(to, (word << 6) + 63) & 63;
+            long bits = (-1L << low) & (-1L >>> (63 - high));
+            int index = (int) word & mask;
+            words[index] = set ? words[index] | bits : words[index] & ~bits;
+        }
+    }
+
+    /**
+     * Move the watermark to the next pending message, releasing words that are no longer needed.
+     */
+    private void advance() {
+        long lastWord = (deliveredEnd - 1) >>> 6;
+        while (firstWord <= lastWord) {
+            long bits = words[(int) firstWord & mask];
+            if (bits != 0) {
+                watermark = (firstWord << 6) + Long.numberOfTrailingZeros(bits);
+                return;
+            }
+            firstWord++;
+        }
+        // Leave the first word where the next delivery will go, so the bitset never needs to grow to reach it
+        deliveredEnd = Math.max(deliveredEnd, filteredEnd);
+        firstWord = deliveredEnd >>> 6;
+        watermark = deliveredEnd;
+    }
+
+    private void grow(long word) {
+        int length = words.length;
+        while (word - firstWord >= length) {
+            length <<= 1;
+        }
+        long[] grown = new long[length];
+        int grownMask = length - 1;
+        long lastWord = deliveredEnd == 0 ? -1 : (deliveredEnd - 1) >>> 6;
+        for (long w = firstWord; w <= lastWord; w++) {
+            grown[(int) w & grownMask] = words[(int) w & mask];
+        }
+        words = grown;
+        mask = grownMask;
+    }
+}
@@ -0,0 +1,69 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A sequence cursor.
+ *
+ * Cursors are read by every producer and consumer of a partition, so the value is padded on both sides to keep it on
+ * its own cache line.
+ */
+final class Cursor extends CursorRightPad {
+
+    private static final AtomicLongFieldUpdater<CursorValue> VALUE =
+            AtomicLongFieldUpdater.newUpdater(CursorValue.class, "value");
+
+    Cursor(long initial) {
+        this.value = initial;
+    }
+
+    long get() {
+        return value;
+    }
+
+    void set(long value) {
+        this.value = value;
+    }
+
+    void lazySet(long value) {
+        VALUE.lazySet(this, value);
+    }
+
+    boolean compareAndSet(long expected, long update) {
+        return VALUE.compareAndSet(this, expected, update);
+    }
+
+    /**
+     * Move the cursor forward to the given value, if it isn't already past it.
+     *
+     * @return true if the cursor was moved.
+     */
+    boolean advanceTo(long update) {
+        for (;;) {
+            long current = value;
+            if (current >= update) {
+                return false;
+            }
+            if (VALUE.compareAndSet(this, current, update)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(value);
+    }
+}
+
+class CursorLeftPad {
+    long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class CursorValue extends CursorLeftPad {
+    volatile long value;
+}
+
+class CursorRightPad extends CursorValue {
+    long p9, p10, p11, p12, p13, p14, p15;
+}
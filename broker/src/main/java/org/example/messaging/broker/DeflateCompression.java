@@ -0,0 +1,217 @@
+package org.example.messaging.broker;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compression that uses the JDK's Deflate implementation.
+ *
+ * Each thread that compresses or decompresses batches keeps its own {@link Deflater} and {@link Inflater}, along with
+ * the arrays that batches are copied through, and reuses them from batch to batch. Their native memory is released by
+ * {@link #release()}, or when a thread that used them is found to have died, rather than being left for the garbage
+ * collector to find. A thread whose deflater and inflater have been released creates new ones the next time it uses
+ * the compression.
+ */
+public class DeflateCompression implements BatchCompression {
+
+    /**
+     * The id of batches compressed with Deflate.
+     */
+    public static final int ID = 1;
+
+    private final int level;
+    private final ThreadLocal<Buffers> buffers;
+    private final Set<Buffers> allBuffers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create a Deflate compression that favours speed over compression.
+     */
+    public DeflateCompression() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level The compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or
+     *              {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public DeflateCompression(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9, or -1 for the default, but "
+                    + "was " + level);
+        }
+        this.level = level;
+        this.buffers = ThreadLocal.withInitial(this::newBuffers);
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public void compress(ByteBuffer source, ByteBuffer target) {
+        for (;;) {
+            Buffers buffers = this.buffers.get();
+            synchronized (buffers) {
+                if (!buffers.released) {
+                    compress(buffers, source, target);
+                    return;
+                }
+            }
+            this.buffers.set(newBuffers());
+        }
+    }
+
+    private static void compress(Buffers buffers, ByteBuffer source, ByteBuffer target) {
+        Deflater deflater = buffers.deflater;
+        deflater.reset();
+        setInput(source, buffers, deflater::setInput);
+        deflater.finish();
+        int max = target.remaining();
+        byte[] output = target.hasArray() ? target.array() : buffers.output(max);
+        int offset = target.hasArray() ? target.arrayOffset() + target.position() : 0;
+        int written = 0;
+        while (!deflater.finished()) {
+            if (written == max) {
+                throw new BufferOverflowException();
+            }
+            written += deflater.deflate(output, offset + written, max - written);
+        }
+        if (target.hasArray()) {
+            target.position(target.position() + written);
+        } else {
+            target.put(output, 0, written);
+        }
+    }
+
+    @Override
+    public void decompress(ByteBuffer source, ByteBuffer target) {
+        for (;;) {
+            Buffers buffers = this.buffers.get();
+            synchronized (buffers) {
+                if (!buffers.released) {
+                    decompress(buffers, source, target);
+                    return;
+                }
+            }
+            this.buffers.set(newBuffers());
+        }
+    }
+
+    private static void decompress(Buffers buffers, ByteBuffer source, ByteBuffer target) {
+        Inflater inflater = buffers.inflater;
+        inflater.reset();
+        setInput(source, buffers, inflater::setInput);
+        int expected = target.remaining();
+        byte[] output = target.hasArray() ? target.array() : buffers.output(expected);
+        int offset = target.hasArray() ? target.arrayOffset() + target.position() : 0;
+        int read = 0;
+        try {
+            while (read < expected) {
+                int inflated = inflater.inflate(output, offset + read, expected - read);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed batch is corrupt", e);
+        }
+        if (read != expected) {
+            throw new IllegalStateException("Compressed batch decompressed to " + read + " bytes, but should have "
+                    + "decompressed to " + expected);
+        }
+        if (target.hasArray()) {
+            target.position(target.position() + read);
+        } else {
+            target.put(output, 0, read);
+        }
+    }
+
+    @Override
+    public void release() {
+        for (Buffers buffers : allBuffers) {
+            allBuffers.remove(buffers);
+            buffers.release();
+        }
+    }
+
+    private Buffers newBuffers() {
+        // Threads that have died can't use theirs again
+        for (Buffers buffers : allBuffers) {
+            if (!buffers.owner.isAlive()) {
+                allBuffers.remove(buffers);
+                buffers.release();
+            }
+        }
+        Buffers buffers = new Buffers(level);
+        allBuffers.add(buffers);
+        return buffers;
+    }
+
+    private static void setInput(ByteBuffer source, Buffers buffers, Input input) {
+        int length = source.remaining();
+        if (source.hasArray()) {
+            input.set(source.array(), source.arrayOffset() + source.position(), length);
+        } else {
+            byte[] bytes = buffers.input(length);
+            source.duplicate().get(bytes, 0, length);
+            input.set(bytes, 0, length);
+        }
+        source.position(source.limit());
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateCompression{level=" + level + "}";
+    }
+
+    private interface Input {
+        void set(byte[] bytes, int offset, int length);
+    }
+
+    /**
+     * The state of a thread's compressions and decompressions, which is only used while holding its lock.
+     */
+    private static final class Buffers {
+
+        final Thread owner = Thread.currentThread();
+        final Deflater deflater;
+        final Inflater inflater = new Inflater();
+        boolean released;
+        private byte[] input = new byte[0];
+        private byte[] output = new byte[0];
+
+        Buffers(int level) {
+            this.deflater = new Deflater(level);
+        }
+
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                deflater.end();
+                inflater.end();
+            }
+        }
+
+        byte[] input(int length) {
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+            return input;
+        }
+
+        byte[] output(int length) {
+            if (output.length < length) {
+                output = new byte[Math.max(length, output.length * 2)];
+            }
+            return output;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes the window of demand that a subscriber inside the broker keeps outstanding with its upstream.
+ *
+ * The window is sized like a TCP window, to the bandwidth delay product: twice the rate that elements are taken at,
+ * multiplied by the latency of the upstream, that is, the time from requesting elements to the first of them
+ * arriving. A consumer that takes microseconds per element, fed by an upstream that takes milliseconds to respond,
+ * keeps enough outstanding to stay busy for a whole round trip, while a consumer that takes milliseconds per element,
+ * or an upstream that responds immediately, only needs a small window. While the window is what limits the rate, the
+ * rate grows with the window, so the window doubles every round trip until it stops being the limit, like TCP slow
+ * start.
+ *
+ * The window never goes below its minimum, and only grows beyond it as far as the {@link Budget} of its topic allows,
+ * which bounds the elements in flight for all the windows of a topic together.
+ *
+ * Rather than reporting every element, the consumer counts the elements it has received, and only reports its count
+ * every {@link #REPORT_INTERVAL} elements, and when it reaches the {@link #probeTarget()}, that is, when the first
+ * element of a request that's being timed arrives.
+ */
+final class DemandController {
+
+    /**
+     * The number of elements, on top of the minimum windows, that the windows of a topic may hold between them.
+     */
+    static final class Budget {
+
+        private final AtomicLong available;
+
+        Budget(long budget) {
+            this.available = new AtomicLong(budget);
+        }
+
+        /**
+         * Reserve up to the given number of elements.
+         *
+         * @return The number reserved.
+         */
+        long reserve(long n) {
+            for (;;) {
+                long current = available.get();
+                long reserved = Math.min(current, n);
+                if (reserved <= 0) {
+                    return 0;
+                }
+                if (available.compareAndSet(current, current - reserved)) {
+                    return reserved;
+                }
+            }
+        }
+
+        void release(long n) {
+            available.addAndGet(n);
+        }
+    }
+
+    /**
+     * How often a consumer should report its count, must be a power of two.
+     */
+    static final int REPORT_INTERVAL = 64;
+
+    private static final long RATE_SAMPLE_NANOS = 1000000;
+    private static final double SMOOTHING = 0.25;
+
+    private final int min;
+    private final int max;
+    private final Budget budget;
+    private volatile int window;
+    private volatile long probeTarget = Long.MAX_VALUE;
+
+    // Guarded by this
+    private double rate;
+    private double latency;
+    private long sampleStart;
+    private long sampleCount;
+    private long probeStart;
+    private long requested;
+    private long received;
+    private boolean closed;
+
+    /**
+     * @param min The smallest window, which doesn't count against the budget.
+     * @param max The largest window.
+     */
+    DemandController(int min, int max, Budget budget) {
+        this.min = Math.min(min, max);
+        this.max = max;
+        this.budget = budget;
+        this.window = this.min;
+    }
+
+    /**
+     * The current window.
+     */
+    int window() {
+        return window;
+    }
+
+    /**
+     * The count at which the consumer must report, since the element that takes it there is the first of a request
+     * that's being timed, or {@link Long#MAX_VALUE} if no request is being timed.
+     */
+    long probeTarget() {
+        return probeTarget;
+    }
+
+    /**
+     * Elements were requested from upstream.
+     */
+    synchronized void requested(long n, long now) {
+        if (probeTarget == Long.MAX_VALUE) {
+            probeStart = now;
+            probeTarget = requested + 1;
+        }
+        requested += n;
+    }
+
+    /**
+     * Report the number of elements received from upstream so far.
+     */
+    synchronized void received(long count, long now) {
+        long n = count - received;
+        if (n <= 0 || closed) {
+            return;
+        }
+        received = count;
+        if (count >= probeTarget) {
+            probeTarget = Long.MAX_VALUE;
+            latency = smooth(latency, now - probeStart);
+        }
+        if (sampleStart == 0) {
+            sampleStart = now;
+        }
+        sampleCount += n;
+        long elapsed = now - sampleStart;
+        if (elapsed >= RATE_SAMPLE_NANOS) {
+            rate = smooth(rate, (double) sampleCount / elapsed);
+            sampleStart = now;
+            sampleCount = 0;
+            resize();
+        }
+    }
+
+    private static double smooth(double average, double sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    private void resize() {
+        long target = Math.max(min, Math.min(max, (long) Math.ceil(2 * rate * latency)));
+        int current = window;
+        if (target > current) {
+            window = current + (int) budget.reserve(target - current);
+        } else if (target < current) {
+            budget.release(current - target);
+            window = (int) target;
+        }
+    }
+
+    /**
+     * Give the window's share of the budget back, since the consumer has finished, after which the window no longer
+     * grows.
+     */
+    synchronized void close() {
+        closed = true;
+        budget.release(window - min);
+        window = min;
+    }
+}
@@ -0,0 +1,66 @@
+package org.example.messaging.broker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message read from a log that hasn't been decoded yet.
+ *
+ * The buffer is a slice of the memory mapped log segment, so holding an encoded message doesn't copy anything. It's
+ * only decoded if the subscriber actually looks at the message, so subscribers of envelopes and batches that skip
+ * messages based on their offsets, or that just count or commit them, never pay for decoding. Messages read from
+ * compressed batches are slices of the buffer their batch was decompressed into, which the {@link LogReader} doesn't
+ * reuse once it's handed out.
+ *
+ * The decoded message is kept, so subscribers that share the encoded message through a {@link LogReadCache} only
+ * decode it once between them.
+ */
+final class EncodedMessage {
+
+    private final long sequence;
+    private final ByteBuffer bytes;
+    private final MessageCodec codec;
+    private volatile Object decoded;
+
+    EncodedMessage(long sequence, ByteBuffer bytes, MessageCodec codec) {
+        this.sequence = sequence;
+        this.bytes = bytes;
+        this.codec = codec;
+    }
+
+    /**
+     * The sequence of the record the message was read from.
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    Object decode() {
+        Object current = decoded;
+        if (current == null) {
+            // Racing subscribers may both decode it, which is harmless
+            current = codec.decode(bytes.duplicate());
+            decoded = current;
+        }
+        return current;
+    }
+
+    /**
+     * The name of the class of the message, without decoding it if it hasn't been, or null if the codec can't tell.
+     */
+    String typeName() {
+        Object current = decoded;
+        return current != null ? current.getClass().getName() : codec.typeName(bytes.duplicate());
+    }
+
+    /**
+     * Decode the given message, if it's encoded.
+     */
+    static Object decoded(Object message) {
+        return message instanceof EncodedMessage ? ((EncodedMessage) message).decode() : message;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedMessage{" + bytes.remaining() + " bytes}";
+    }
+}
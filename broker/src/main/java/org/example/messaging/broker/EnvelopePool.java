@@ -0,0 +1,47 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pool of envelopes that have been committed, for a source to reuse.
+ *
+ * The pool is a lock-free stack linked through the envelopes themselves, so releasing an envelope doesn't allocate.
+ * Envelopes may be released from any thread, but only the source acquires them, and since only one thread ever pops,
+ * a popped envelope can't be pushed back between reading the head and swapping it out, so the stack is free of ABA
+ * problems.
+ */
+final class EnvelopePool {
+
+    private final AtomicReference<BrokerEnvelope<Object>> head = new AtomicReference<>();
+
+    /**
+     * Take an envelope from the pool.
+     *
+     * @return The envelope, or null if the pool is empty.
+     */
+    BrokerEnvelope<Object> acquire() {
+        for (;;) {
+            BrokerEnvelope<Object> envelope = head.get();
+            if (envelope == null) {
+                return null;
+            }
+            if (head.compareAndSet(envelope, envelope.next)) {
+                envelope.next = null;
+                return envelope;
+            }
+        }
+    }
+
+    /**
+     * Return an envelope to the pool.
+     */
+    void release(BrokerEnvelope<Object> envelope) {
+        for (;;) {
+            BrokerEnvelope<Object> current = head.get();
+            envelope.next = current;
+            if (head.compareAndSet(current, envelope)) {
+                return;
+            }
+        }
+    }
+}
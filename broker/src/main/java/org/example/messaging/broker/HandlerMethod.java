@@ -0,0 +1,580 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.Concurrent;
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageFilter;
+import org.example.messaging.MessageKey;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.example.messaging.Parallel;
+import org.example.messaging.Partition;
+import org.example.messaging.Partitioned;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * A {@link MessagePublisher} or {@link MessageSubscriber} method on a handler or client interface.
+ *
+ * The methods of a class are only ever inspected once, the result is cached against the class. Handler methods are
+ * compiled to a method handle that takes the target, the offset and the partition, and passes the offset and
+ * partition to whichever parameters the method declares for them, so that invoking a handler method each time its
+ * stream is started or restarted costs no more than a direct call. Blocking subscriber methods, which take each
+ * element rather than returning a subscriber, are compiled in the same way to a method handle that takes the target,
+ * the element and the partition, since they're invoked for every element.
+ */
+final class HandlerMethod {
+
+    enum Kind {
+        PUBLISHER, SUBSCRIBER
+    }
+
+    /**
+     * The type of the elements of a method's stream.
+     */
+    enum Elements {
+        /**
+         * Plain messages.
+         */
+        MESSAGES,
+        /**
+         * {@link MessageEnvelope}s.
+         */
+        ENVELOPES,
+        /**
+         * {@link MessageBatch}es of plain messages.
+         */
+        BATCHES
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class,
+            MessageOffset.class, int.class);
+    private static final MethodType HANDLER_TYPE = MethodType.methodType(Object.class, Object.class, Object.class,
+            int.class);
+
+    private static final ClassValue<List<HandlerMethod>> HANDLERS = new ClassValue<List<HandlerMethod>>() {
+        @Override
+        protected List<HandlerMethod> computeValue(Class<?> type) {
+            return Collections.unmodifiableList(findHandlerMethods(type));
+        }
+    };
+
+    private static final ClassValue<List<HandlerMethod>> CLIENTS = new ClassValue<List<HandlerMethod>>() {
+        @Override
+        protected List<HandlerMethod> computeValue(Class<?> type) {
+            return Collections.unmodifiableList(findClientMethods(type));
+        }
+    };
+
+    private final Method method;
+    private final Kind kind;
+    private final String topic;
+    private final int partitions;
+    private final int offsetParameter;
+    private final int partitionParameter;
+    private final Type elementType;
+    private final Elements elements;
+    private final boolean reusableEnvelopes;
+    private final boolean blocking;
+    private final int parallelism;
+    private final int concurrency;
+    private final MethodHandle key;
+    private final TypeFilter filter;
+    private final boolean processor;
+    private final Type ackType;
+    private final MethodHandle invoker;
+    private final Function<Object, Object> acknowledgement;
+
+    private HandlerMethod(Method method, Kind kind, String topic, int partitions, int offsetParameter,
+            int partitionParameter, Type elementType, boolean blocking, int parallelism, int concurrency,
+            MethodHandle key, TypeFilter filter, boolean processor, Type ackType, MethodHandle invoker,
+            Function<Object, Object> acknowledgement) {
+        this.method = method;
+        this.kind = kind;
+        this.topic = topic;
+        this.partitions = partitions;
+        this.offsetParameter = offsetParameter;
+        this.partitionParameter = partitionParameter;
+        this.elementType = elementType;
+        Class<?> rawElementType = Types.rawType(elementType);
+        if (MessageEnvelope.class.isAssignableFrom(rawElementType)) {
+            this.elements = Elements.ENVELOPES;
+        } else if (MessageBatch.class.isAssignableFrom(rawElementType)) {
+            this.elements = Elements.BATCHES;
+        } else {
+            this.elements = Elements.MESSAGES;
+        }
+        // Blocking methods that take messages never see their envelopes, so they can always be reused
+        this.reusableEnvelopes = method.isAnnotationPresent(ReusableEnvelopes.class)
+                || blocking && elements == Elements.MESSAGES;
+        this.blocking = blocking;
+        this.parallelism = parallelism;
+        this.concurrency = concurrency;
+        this.key = key;
+        this.filter = filter;
+        this.processor = processor;
+        this.ackType = ackType;
+        this.invoker = invoker;
+        this.acknowledgement = acknowledgement;
+    }
+
+    /**
+     * Find all the handler methods on an indirect message handler.
+     *
+     * @throws IllegalArgumentException If any of the annotated methods have an invalid signature.
+     */
+    static List<HandlerMethod> forHandler(Class<?> handlerClass) {
+        return HANDLERS.get(handlerClass);
+    }
+
+    /**
+     * Find all the handler methods on a direct client interface.
+     *
+     * @throws IllegalArgumentException If any of the annotated methods have an invalid signature.
+     */
+    static List<HandlerMethod> forClient(Class<?> clientInterface) {
+        return CLIENTS.get(clientInterface);
+    }
+
+    private static List<HandlerMethod> findHandlerMethods(Class<?> handlerClass) {
+        List<HandlerMethod> methods = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Class<?> clazz = handlerClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Method method : clazz.getDeclaredMethods()) {
+                if (Modifier.isStatic(method.getModifiers()) || method.isBridge() || !seen.add(signature(method))) {
+                    continue;
+                }
+                HandlerMethod handlerMethod = forMethod(method, false);
+                if (handlerMethod != null) {
+                    methods.add(handlerMethod);
+                }
+            }
+        }
+        return methods;
+    }
+
+    private static List<HandlerMethod> findClientMethods(Class<?> clientInterface) {
+        if (!clientInterface.isInterface()) {
+            throw new IllegalArgumentException(clientInterface + " is not an interface");
+        }
+        List<HandlerMethod> methods = new ArrayList<>();
+        for (Method method : clientInterface.getMethods()) {
+            HandlerMethod handlerMethod = forMethod(method, true);
+            if (handlerMethod != null) {
+                methods.add(handlerMethod);
+            } else if (!method.isDefault() && !Modifier.isStatic(method.getModifiers())) {
+                throw new IllegalArgumentException("Client interface method " + method + " is not annotated with "
+                        + "@MessagePublisher or @MessageSubscriber");
+            }
+        }
+        return methods;
+    }
+
+    private static HandlerMethod forMethod(Method method, boolean client) {
+        MessagePublisher publisher = method.getAnnotation(MessagePublisher.class);
+        MessageSubscriber subscriber = method.getAnnotation(MessageSubscriber.class);
+        if (publisher == null && subscriber == null) {
+            return null;
+        } else if (publisher != null && subscriber != null) {
+            throw invalid(method, "it can't be both a @MessagePublisher and a @MessageSubscriber");
+        }
+        Kind kind = publisher != null ? Kind.PUBLISHER : Kind.SUBSCRIBER;
+        String topic = publisher != null ? publisher.value() : subscriber.value();
+        Partitioned partitioned = method.getAnnotation(Partitioned.class);
+        if (partitioned != null && (kind != Kind.PUBLISHER || client)) {
+            throw invalid(method, "only handler @MessagePublisher methods may be @Partitioned");
+        }
+
+        int offsetParameter = -1;
+        int partitionParameter = -1;
+        int messageParameter = -1;
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (isPartitionParameter(parameterAnnotations[i])) {
+                if (parameterTypes[i] != int.class && parameterTypes[i] != Integer.class) {
+                    throw invalid(method, "@Partition parameters must be of type int");
+                }
+                if (partitionParameter >= 0) {
+                    throw invalid(method, "it has more than one @Partition parameter");
+                }
+                partitionParameter = i;
+            } else if (parameterTypes[i] == MessageOffset.class) {
+                if (offsetParameter >= 0) {
+                    throw invalid(method, "it has more than one MessageOffset parameter");
+                }
+                if (kind == Kind.SUBSCRIBER && !client) {
+                    throw invalid(method, "handler @MessageSubscriber methods can't accept a MessageOffset, the "
+                            + "broker tracks their offsets");
+                }
+                offsetParameter = i;
+            } else if (kind == Kind.SUBSCRIBER && !client && !parameterTypes[i].isPrimitive()) {
+                if (messageParameter >= 0) {
+                    throw invalid(method, "it has more than one parameter that isn't a @Partition int");
+                }
+                messageParameter = i;
+            } else {
+                throw invalid(method, "parameter " + i + " is neither a MessageOffset nor a @Partition int");
+            }
+        }
+
+        Class<?> returnType = method.getReturnType();
+        Type genericReturnType = method.getGenericReturnType();
+        // Whether the stream is one that the broker publishes to, or subscribes to
+        boolean brokerPublishes = (kind == Kind.SUBSCRIBER) != client;
+        boolean blocking = messageParameter >= 0;
+        boolean processor = false;
+        Type ackType = null;
+        if (blocking) {
+            if (returnType != void.class && !CompletionStage.class.isAssignableFrom(returnType)) {
+                throw invalid(method, "blocking @MessageSubscriber methods, which take the message, must return "
+                        + "void or a CompletionStage");
+            }
+        } else if (brokerPublishes) {
+            if (!Subscriber.class.isAssignableFrom(returnType)) {
+                throw invalid(method, "it must return a Subscriber or Processor");
+            }
+            if (Processor.class.isAssignableFrom(returnType)) {
+                processor = true;
+                ackType = Types.typeArgument(genericReturnType, 1);
+            }
+        } else if (!Publisher.class.isAssignableFrom(returnType)) {
+            throw invalid(method, "it must return a Publisher");
+        }
+
+        Type elementType = blocking ? method.getGenericParameterTypes()[messageParameter]
+                : Types.typeArgument(genericReturnType, 0);
+        if (blocking && method.isAnnotationPresent(ReusableEnvelopes.class)) {
+            throw invalid(method, "blocking @MessageSubscriber methods can't be @ReusableEnvelopes, since the broker "
+                    + "commits their envelopes once they've been handled");
+        }
+        if (method.isAnnotationPresent(ReusableEnvelopes.class) && (kind != Kind.SUBSCRIBER
+                || !MessageEnvelope.class.isAssignableFrom(Types.rawType(elementType)))) {
+            throw invalid(method, "only @MessageSubscriber methods that consume MessageEnvelopes may be "
+                    + "@ReusableEnvelopes");
+        }
+        Parallel parallel = method.getAnnotation(Parallel.class);
+        MethodHandle key = null;
+        if (parallel != null) {
+            if (kind != Kind.SUBSCRIBER || client) {
+                throw invalid(method, "only handler @MessageSubscriber methods may be @Parallel");
+            }
+            if (parallel.value() < 1) {
+                throw invalid(method, "@Parallel must have at least one worker");
+            }
+            Class<?> rawElementType = Types.rawType(elementType);
+            if (MessageBatch.class.isAssignableFrom(rawElementType)) {
+                throw invalid(method, "@Parallel methods can't consume MessageBatches, since a batch may hold "
+                        + "messages for any worker");
+            }
+            key = compileKey(method, messageType(elementType));
+        }
+        Concurrent concurrent = method.getAnnotation(Concurrent.class);
+        if (concurrent != null) {
+            if (!blocking) {
+                throw invalid(method, "only blocking @MessageSubscriber methods may be @Concurrent");
+            }
+            if (parallel != null) {
+                throw invalid(method, "it can't be both @Concurrent and @Parallel, each worker of a @Parallel "
+                        + "method handles its messages one at a time");
+            }
+            if (concurrent.value() < 1) {
+                throw invalid(method, "@Concurrent must allow at least one message at once");
+            }
+        }
+        MessageFilter messageFilter = method.getAnnotation(MessageFilter.class);
+        TypeFilter filter = null;
+        if (messageFilter != null) {
+            if (kind != Kind.SUBSCRIBER) {
+                throw invalid(method, "only @MessageSubscriber methods may have a @MessageFilter");
+            }
+            filter = compileFilter(method, messageFilter, messageType(elementType));
+        }
+        MethodHandle invoker = null;
+        if (blocking) {
+            invoker = compileInvoker(method, messageParameter, Object.class, HANDLER_TYPE);
+        } else if (!client) {
+            invoker = compileInvoker(method, offsetParameter, MessageOffset.class, INVOKER_TYPE);
+        }
+        Function<Object, Object> acknowledgement = null;
+        if (client && processor) {
+            try {
+                acknowledgement = Acknowledgements.forType(ackType, elementType);
+            } catch (IllegalArgumentException e) {
+                throw invalid(method, e.getMessage());
+            }
+        }
+        return new HandlerMethod(method, kind, topic, partitioned == null ? 0 : partitioned.value(),
+                offsetParameter, partitionParameter, elementType, blocking, parallel == null ? 1 : parallel.value(),
+                concurrent == null ? 1 : concurrent.value(), key, filter, processor, ackType, invoker,
+                acknowledgement);
+    }
+
+    /**
+     * The type of the messages in a stream of the given type of element.
+     */
+    private static Class<?> messageType(Type elementType) {
+        Class<?> rawElementType = Types.rawType(elementType);
+        if (MessageEnvelope.class.isAssignableFrom(rawElementType)
+                || MessageBatch.class.isAssignableFrom(rawElementType)) {
+            return Types.rawType(Types.typeArgument(elementType, 0));
+        }
+        return rawElementType;
+    }
+
+    /**
+     * Compile the filter declared by a {@link MessageFilter}, checking that each of its types can be consumed.
+     */
+    private static TypeFilter compileFilter(Method method, MessageFilter messageFilter, Class<?> messageType) {
+        Class<?>[] types = messageFilter.value();
+        if (types.length == 0) {
+            throw invalid(method, "@MessageFilter must have at least one type");
+        }
+        for (Class<?> type : types) {
+            if (type.isPrimitive() || !messageType.isAssignableFrom(type) && !type.isAssignableFrom(messageType)) {
+                throw invalid(method, "@MessageFilter type " + type.getName() + " can never be a " + messageType);
+            }
+        }
+        return new TypeFilter(types);
+    }
+
+    /**
+     * Compile a method handle of type <tt>(Object message)Object</tt> that gets the {@link MessageKey} of a message
+     * of the given type.
+     */
+    private static MethodHandle compileKey(Method method, Class<?> messageType) {
+        MethodHandle key;
+        try {
+            key = MessageKeys.find(messageType);
+        } catch (IllegalArgumentException e) {
+            throw invalid(method, e.getMessage());
+        }
+        if (key == null) {
+            throw invalid(method, "@Parallel methods must consume messages with a @MessageKey, but " + messageType
+                    + " has none");
+        }
+        return key;
+    }
+
+    /**
+     * Compile a method handle of the given type, either <tt>(Object target, MessageOffset offset, int
+     * partition)Object</tt>, or for blocking methods <tt>(Object target, Object element, int partition)Object</tt>,
+     * that invokes the given method, passing the offset or element, and the partition, to the parameters that accept
+     * them.
+     */
+    private static MethodHandle compileInvoker(Method method, int argumentParameter, Class<?> argumentType,
+            MethodType type) {
+        method.setAccessible(true);
+        MethodHandle handle;
+        try {
+            handle = LOOKUP.unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw invalid(method, "it isn't accessible: " + e.getMessage());
+        }
+        int parameterCount = method.getParameterCount();
+        Class<?>[] parameterTypes = new Class<?>[parameterCount + 1];
+        int[] reorder = new int[parameterCount + 1];
+        parameterTypes[0] = Object.class;
+        for (int i = 0; i < parameterCount; i++) {
+            if (i == argumentParameter) {
+                parameterTypes[i + 1] = argumentType;
+                reorder[i + 1] = 1;
+            } else {
+                // Boxes the partition if the parameter is an Integer
+                parameterTypes[i + 1] = int.class;
+                reorder[i + 1] = 2;
+            }
+        }
+        // Casts the element to the parameter's type, and returns null if the method is void
+        handle = handle.asType(MethodType.methodType(Object.class, parameterTypes));
+        return MethodHandles.permuteArguments(handle, type, reorder);
+    }
+
+    private static boolean isPartitionParameter(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof Partition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String signature(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName());
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            signature.append(',').append(parameterType.getName());
+        }
+        return signature.toString();
+    }
+
+    private static IllegalArgumentException invalid(Method method, String reason) {
+        return new IllegalArgumentException("Invalid messaging method " + method + ": " + reason);
+    }
+
+    Method method() {
+        return method;
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    String topic() {
+        return topic;
+    }
+
+    /**
+     * Whether the method is {@link Partitioned}.
+     */
+    boolean isPartitioned() {
+        return partitions != 0;
+    }
+
+    /**
+     * The number of partitions declared by {@link Partitioned}, or -1 if it doesn't declare any.
+     */
+    int declaredPartitions() {
+        return partitions > 0 ? partitions : -1;
+    }
+
+    boolean hasPartitionParameter() {
+        return partitionParameter >= 0;
+    }
+
+    Type elementType() {
+        return elementType;
+    }
+
+    /**
+     * The type of the messages of the method's stream, the element type itself unless it's an envelope or batch.
+     */
+    Class<?> messageType() {
+        return messageType(elementType);
+    }
+
+    Elements elements() {
+        return elements;
+    }
+
+    /**
+     * Whether the method is {@link ReusableEnvelopes}.
+     */
+    boolean reusableEnvelopes() {
+        return reusableEnvelopes;
+    }
+
+    /**
+     * Whether the method is a blocking subscriber method, that's invoked with each element with {@link #handle}.
+     */
+    boolean blocking() {
+        return blocking;
+    }
+
+    /**
+     * The number of workers declared by {@link Parallel}, or 1 if it isn't parallel.
+     */
+    int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * The number of elements a blocking method handles at once per partition, declared by {@link Concurrent}, or 1
+     * if it isn't concurrent.
+     */
+    int concurrency() {
+        return concurrency;
+    }
+
+    /**
+     * The filter declared by {@link MessageFilter}, or null if it doesn't declare one.
+     */
+    TypeFilter filter() {
+        return filter;
+    }
+
+    /**
+     * Get the {@link MessageKey} of a message consumed by a {@link Parallel} method.
+     */
+    Object key(Object message) throws Throwable {
+        return (Object) key.invokeExact(message);
+    }
+
+    /**
+     * Whether the stream returned is a processor that emits acknowledgements.
+     */
+    boolean processor() {
+        return processor;
+    }
+
+    Type ackType() {
+        return ackType;
+    }
+
+    /**
+     * The function that creates acknowledgements for the elements of a client processor.
+     */
+    Function<Object, Object> acknowledgement() {
+        return acknowledgement;
+    }
+
+    /**
+     * An id for the stream that this method returns, unique per handler class.
+     */
+    String streamId() {
+        return method.getDeclaringClass().getName() + "." + method.getName() + "/" + topic;
+    }
+
+    /**
+     * Invoke the method.
+     */
+    Object invoke(Object target, MessageOffset offset, int partition) throws Throwable {
+        return (Object) invoker.invokeExact(target, offset, partition);
+    }
+
+    /**
+     * Invoke a blocking subscriber method with an element.
+     *
+     * @return What the method returned, or null if it's void.
+     */
+    Object handle(Object target, Object element, int partition) throws Throwable {
+        return (Object) invoker.invokeExact(target, element, partition);
+    }
+
+    /**
+     * Get the offset passed to the method for an invocation.
+     */
+    MessageOffset offsetArgument(Object[] args) {
+        return offsetParameter >= 0 && args[offsetParameter] != null ? (MessageOffset) args[offsetParameter]
+                : MessageOffset.None.INSTANCE;
+    }
+
+    /**
+     * Get the partition passed to the method for an invocation, or -1 if it has no partition parameter.
+     */
+    int partitionArgument(Object[] args) {
+        return partitionParameter >= 0 ? (Integer) args[partitionParameter] : -1;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package org.example.messaging.broker;
+
+import java.time.Duration;
+
+/**
+ * A snapshot of a latency histogram.
+ *
+ * Values are bucketed with a precision of about 3%, and percentiles and the maximum are reported as the highest value
+ * in their bucket, so they're never understated.
+ */
+public final class HistogramSnapshot {
+
+    static final HistogramSnapshot EMPTY = new HistogramSnapshot(new long[0]);
+
+    private final long[] counts;
+    private final long count;
+
+    HistogramSnapshot(long[] counts) {
+        this.counts = counts;
+        long total = 0;
+        for (long bucket : counts) {
+            total += bucket;
+        }
+        this.count = total;
+    }
+
+    /**
+     * The number of values recorded.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * The value at the given percentile, or zero if nothing was recorded.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     */
+    public Duration percentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, but was " + percentile);
+        }
+        if (count == 0) {
+            return Duration.ZERO;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Duration.ofNanos(LatencyHistogram.highestValue(i));
+            }
+        }
+        return max();
+    }
+
+    /**
+     * The largest value recorded, or zero if nothing was recorded.
+     */
+    public Duration max() {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] != 0) {
+                return Duration.ofNanos(LatencyHistogram.highestValue(i));
+            }
+        }
+        return Duration.ZERO;
+    }
+
+    /**
+     * The mean of the values recorded, or zero if nothing was recorded.
+     */
+    public Duration mean() {
+        if (count == 0) {
+            return Duration.ZERO;
+        }
+        double total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                total += (double) counts[i] * LatencyHistogram.medianValue(i);
+            }
+        }
+        return Duration.ofNanos((long) (total / count));
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot{" +
+                "count=" + count +
+                ", p50=" + percentile(50) +
+                ", p99=" + percentile(99) +
+                ", p999=" + percentile(99.9) +
+                ", max=" + max() +
+                '}';
+    }
+}
@@ -0,0 +1,292 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageBroker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A message broker that runs entirely within the JVM.
+ *
+ * Each partition of each topic is backed by a bounded, lock-free ring buffer. Publishers claim slots in the ring
+ * buffer before requesting elements, and subscribers read directly out of the ring buffer as they request elements,
+ * so reactive streams back pressure maps directly onto ring buffer capacity, and memory usage is bounded by the size
+ * of the ring buffers.
+ *
+ * If a log directory is configured with {@link BrokerSettings#withLogDirectory(java.nio.file.Path)}, topics are also
+ * durable. Everything published to a partition is appended to a memory mapped segment log, messages are only
+ * delivered once they've been appended, and subscribers that fall behind the ring buffer, or that start from an offset
+ * that is no longer in it, read from the log instead. The log is recovered when the broker is next started with the
+ * same directory. Logs can be forced to disk in group commits, configured with
+ * {@link BrokerSettings#withGroupCommit(int, java.time.Duration)}, in which case publisher processors only acknowledge
+ * messages once they've been forced. Batches can be compressed, configured per topic with
+ * {@link BrokerSettings#withCompression(String, BatchCompression)}, and are only decompressed when they're read.
+ * The logs of topics configured with {@link BrokerSettings#withCompaction(String, java.util.function.Predicate)} are
+ * compacted in the background, keeping only the latest message of each {@link org.example.messaging.MessageKey}.
+ *
+ * Registered handlers are wired up as follows:
+ *
+ * <ul>
+ *     <li>{@link org.example.messaging.MessagePublisher} methods are invoked once, or, if they are
+ *     {@link org.example.messaging.Partitioned}, once for each partition of the topic, with the partition passed to
+ *     the {@link org.example.messaging.Partition} parameter. Each publisher publishes to the partition it was invoked
+ *     for. The offset of the last published envelope is passed back to the method when its stream is restarted.</li>
+ *     <li>{@link org.example.messaging.MessageSubscriber} methods are invoked once for each partition of the topic,
+ *     and may accept the partition in a {@link org.example.messaging.Partition} parameter. Messages that a subscriber
+ *     hasn't committed are retained until it does, and are redelivered when its stream is restarted. A
+ *     {@link org.example.messaging.Parallel} subscriber method is invoked once for each of its workers, for each
+ *     partition, and the messages of the partition are spread across the workers by their
+ *     {@link org.example.messaging.MessageKey}. Blocking subscriber methods, which take each message rather than
+ *     returning a subscriber, are invoked on virtual threads where the JVM has them, otherwise on a bounded pool, with
+ *     as many messages of each partition at once as they're {@link org.example.messaging.Concurrent}, and each
+ *     message is committed once it's been handled.</li>
+ * </ul>
+ *
+ * The number of partitions of a topic is fixed when the topic is first used. It is taken from the broker settings if
+ * configured there, otherwise from the first {@link org.example.messaging.Partitioned} publisher registered for it,
+ * otherwise from the default number of partitions. Since {@link #register(Object)} registers publishers before
+ * subscribers, a handler that both publishes and subscribes to a topic will always see the partitions it declares.
+ *
+ * Offsets are {@link org.example.messaging.MessageOffset.Sequence} offsets, per partition. A subscriber can be moved
+ * to a point in time by storing a {@link org.example.messaging.MessageOffset.TimeUuid} offset for it before it's
+ * started, which a durable topic finds with a binary search of the time index of its log.
+ *
+ * Streams of {@link org.example.messaging.MessageBatch}es are supported on both sides. Batches delivered to
+ * subscribers hold messages from a single partition, and are filled according to
+ * {@link BrokerSettings#withBatching(int, java.time.Duration)}.
+ *
+ * If a {@link PartitionScheduler} is configured, with
+ * {@link BrokerSettings#withPartitionScheduler(PartitionScheduler, String, double)}, the broker joins it as a node,
+ * and only runs the streams of {@link org.example.messaging.Partitioned} publishers for the partitions assigned to it,
+ * starting and stopping them as partitions move between nodes. Other streams run on every broker.
+ *
+ * The streams of registered handlers are instrumented, with message rates, subscriber lag, outstanding demand,
+ * publish to commit latency and restarts reported for each partition of each handler method, to a
+ * {@link MetricsListener} and to JMX, if configured.
+ *
+ * The partitions of the broker's topics can be served to subscribers in other JVMs with
+ * {@link #listen(InetSocketAddress)}, which they subscribe to with a {@link TransportClient}.
+ */
+public class InMemoryMessageBroker implements MessageBroker, AutoCloseable {
+
+    private final BrokerContext context;
+    private final ConcurrentLinkedQueue<SupervisedStream> streams = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<TransportServer> servers = new ConcurrentLinkedQueue<>();
+    private final PartitionScheduler partitionScheduler;
+    // Guarded by itself
+    private final List<ScheduledPartition> scheduledPartitions = new ArrayList<>();
+    // The stream ids of the registered publisher methods that are idempotent producers, guarded by itself
+    private final Set<String> producerStreamIds = new HashSet<>();
+    private volatile boolean closed;
+
+    /**
+     * Create a broker with the default settings.
+     */
+    public InMemoryMessageBroker() {
+        this(BrokerSettings.defaults());
+    }
+
+    public InMemoryMessageBroker(BrokerSettings settings) {
+        this.context = new BrokerContext(settings);
+        this.partitionScheduler = settings.partitionScheduler();
+        if (partitionScheduler != null) {
+            partitionScheduler.join(settings.node(), settings.nodeWeight(), new PartitionScheduler.Member() {
+                @Override
+                public void revoke() {
+                    synchronized (scheduledPartitions) {
+                        for (ScheduledPartition partition : scheduledPartitions) {
+                            partition.revoke();
+                        }
+                    }
+                }
+
+                @Override
+                public void assign() {
+                    synchronized (scheduledPartitions) {
+                        for (ScheduledPartition partition : scheduledPartitions) {
+                            partition.assign();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void register(Object handler) {
+        if (closed) {
+            throw new IllegalStateException("Message broker has been closed");
+        }
+        List<HandlerMethod> methods = HandlerMethod.forHandler(handler.getClass());
+        if (methods.isEmpty()) {
+            throw new IllegalArgumentException(handler.getClass() + " has no @MessagePublisher or @MessageSubscriber "
+                    + "methods");
+        }
+
+        for (HandlerMethod method : methods) {
+            context.checkKeys(method);
+        }
+        claimProducers(methods);
+
+        List<SupervisedStream> handlerStreams = new ArrayList<>();
+        List<ScheduledPartition> handlerPartitions = new ArrayList<>();
+        for (HandlerMethod method : methods) {
+            if (method.kind() == HandlerMethod.Kind.PUBLISHER) {
+                Topic topic = context.topic(method.topic(), method.declaredPartitions());
+                int partitions = method.isPartitioned() ? topic.partitionCount() : 1;
+                for (int partition = 0; partition < partitions; partition++) {
+                    if (partitionScheduler != null && method.isPartitioned()) {
+                        handlerPartitions.add(new ScheduledPartition(handler, method, topic.partition(partition),
+                                partition));
+                    } else {
+                        handlerStreams.add(new PublisherStream(context, handler, method, topic.partition(partition),
+                                partition));
+                    }
+                }
+            }
+        }
+        for (HandlerMethod method : methods) {
+            if (method.kind() == HandlerMethod.Kind.SUBSCRIBER) {
+                Topic topic = context.topic(method.topic(), -1);
+                for (int partition = 0; partition < topic.partitionCount(); partition++) {
+                    handlerStreams.add(new SubscriberStream(context, handler, method, topic.partition(partition)));
+                }
+            }
+        }
+
+        streams.addAll(handlerStreams);
+        for (SupervisedStream stream : handlerStreams) {
+            context.metrics().register(stream);
+            stream.start();
+        }
+        synchronized (scheduledPartitions) {
+            scheduledPartitions.addAll(handlerPartitions);
+            for (ScheduledPartition partition : handlerPartitions) {
+                partition.assign();
+            }
+        }
+    }
+
+    /**
+     * Claim the producer ids of the given methods' idempotent publisher streams, which are derived from their stream
+     * ids, so that no two registered handlers publish as the same producer, which would drop each other's messages as
+     * duplicates.
+     *
+     * @throws IllegalArgumentException If a publisher method with the same stream id is already registered.
+     */
+    private void claimProducers(List<HandlerMethod> methods) {
+        List<String> streamIds = new ArrayList<>();
+        for (HandlerMethod method : methods) {
+            if (method.kind() == HandlerMethod.Kind.PUBLISHER && context.settings().idempotent(method.topic())) {
+                streamIds.add(method.streamId());
+            }
+        }
+        synchronized (producerStreamIds) {
+            for (String streamId : streamIds) {
+                if (producerStreamIds.contains(streamId)) {
+                    throw new IllegalArgumentException("Publisher " + streamId + " publishes to an idempotent topic, "
+                            + "and is already registered");
+                }
+            }
+            producerStreamIds.addAll(streamIds);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T create(Class<? extends T> clientInterface) {
+        if (closed) {
+            throw new IllegalStateException("Message broker has been closed");
+        }
+        return (T) ClientHandler.create(context, clientInterface);
+    }
+
+    /**
+     * Serve the partitions of the broker's topics to remote subscribers.
+     *
+     * @param address The address to listen on, which may have port 0 to listen on any free port.
+     * @return The server, which is closed when the broker is closed, if it hasn't been closed already.
+     */
+    public TransportServer listen(InetSocketAddress address) {
+        if (closed) {
+            throw new IllegalStateException("Message broker has been closed");
+        }
+        TransportServer server;
+        try {
+            server = new TransportServer(context, address);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to listen on " + address, e);
+        }
+        servers.add(server);
+        return server;
+    }
+
+    /**
+     * Stop all registered streams, and shut down the broker.
+     *
+     * Subscribers are completed, and publishers are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (partitionScheduler != null) {
+            // Hands our partitions over to the remaining nodes, and stops their streams here
+            partitionScheduler.leave(context.settings().node());
+        }
+        SupervisedStream stream;
+        while ((stream = streams.poll()) != null) {
+            stream.stop();
+        }
+        TransportServer server;
+        while ((server = servers.poll()) != null) {
+            server.close();
+        }
+        context.shutdown();
+    }
+
+    /**
+     * A partition of a partitioned publisher, whose stream only runs while the partition is assigned to this broker.
+     */
+    private final class ScheduledPartition {
+
+        private final Object handler;
+        private final HandlerMethod method;
+        private final TopicPartition topicPartition;
+        private final int partition;
+        private PublisherStream stream;
+
+        ScheduledPartition(Object handler, HandlerMethod method, TopicPartition topicPartition, int partition) {
+            this.handler = handler;
+            this.method = method;
+            this.topicPartition = topicPartition;
+            this.partition = partition;
+        }
+
+        private boolean assigned() {
+            return partitionScheduler.isOwner(context.settings().node(), method.topic(), partition);
+        }
+
+        void revoke() {
+            if (stream != null && (closed || !assigned())) {
+                streams.remove(stream);
+                stream.stop();
+                stream = null;
+            }
+        }
+
+        void assign() {
+            if (stream == null && !closed && assigned()) {
+                stream = new PublisherStream(context, handler, method, topicPartition, partition);
+                streams.add(stream);
+                context.metrics().register(stream);
+                stream.start();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageOffset;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An offset store that holds offsets in memory.
+ *
+ * Offsets only survive restarts of the streams, not of the JVM.
+ */
+public class InMemoryOffsetStore implements OffsetStore {
+
+    private final ConcurrentMap<String, MessageOffset> offsets = new ConcurrentHashMap<>();
+
+    @Override
+    public MessageOffset load(String streamId, int partition) {
+        MessageOffset offset = offsets.get(key(streamId, partition));
+        return offset == null ? MessageOffset.None.INSTANCE : offset;
+    }
+
+    @Override
+    public void store(String streamId, int partition, MessageOffset offset) {
+        offsets.put(key(streamId, partition), offset);
+    }
+
+    private static String key(String streamId, int partition) {
+        return streamId + "#" + partition;
+    }
+}
@@ -0,0 +1,98 @@
+package org.example.messaging.broker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A codec that uses Java serialization.
+ *
+ * Messages must be {@link java.io.Serializable}.
+ *
+ * The type of an encoded message is read from the class descriptor at the start of the stream, without decoding it.
+ */
+public class JavaSerializationCodec implements MessageCodec {
+
+    private static final short STREAM_MAGIC = (short) 0xaced;
+    private static final byte TC_CLASSDESC = 0x72;
+    private static final byte TC_OBJECT = 0x73;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_LONGSTRING = 0x7c;
+    private static final byte TC_ENUM = 0x7e;
+
+    @Override
+    public void encode(Object message, ByteBuffer target) {
+        try (ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                target.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                target.put(b, off, len);
+            }
+        })) {
+            out.writeObject(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to serialize " + message, e);
+        }
+    }
+
+    @Override
+    public Object decode(ByteBuffer source) {
+        try (ObjectInputStream in = new ObjectInputStream(new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, source.remaining());
+                source.get(b, off, n);
+                return n;
+            }
+        })) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Failed to deserialize message", e);
+        }
+    }
+
+    @Override
+    public String typeName(ByteBuffer source) {
+        // The stream header, then either a string, or an object or enum whose class descriptor starts with its name
+        int start = source.position();
+        if (source.remaining() < 8 || source.getShort(start) != STREAM_MAGIC) {
+            return null;
+        }
+        byte tag = source.get(start + 4);
+        if (tag == TC_STRING || tag == TC_LONGSTRING) {
+            return String.class.getName();
+        } else if ((tag != TC_OBJECT && tag != TC_ENUM) || source.get(start + 5) != TC_CLASSDESC) {
+            return null;
+        }
+        int length = source.getShort(start + 6) & 0xffff;
+        if (source.remaining() < 8 + length) {
+            return null;
+        }
+        byte[] name = new byte[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = source.get(start + 8 + i);
+            if (name[i] < 0) {
+                // Not ASCII, so it would need decoding as modified UTF-8, which isn't worth it
+                return null;
+            }
+        }
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,201 @@
+package org.example.messaging.broker;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Maps the keys of a log's records to the sequence of the latest record with each key, for a {@link LogCompactor}.
+ * Also maps the ids of idempotent producers, which are already 64 bit hashes, to their latest sequences.
+ *
+ * Keys are held as 64 bit hashes in an open addressing hash table of primitive arrays, so the index takes 16 bytes
+ * per slot, however large the keys are, and indexing a record allocates nothing once the table has grown to fit.
+ * Only keys of the types that {@link #hashable(Class)} accepts can be hashed. Each is hashed from an encoding of its
+ * value that's tagged with its type, so that keys that are equal hash the same in every JVM, while keys of different
+ * types, such as the string <tt>"1"</tt> and the long <tt>1</tt>, hash differently. Since the hashes are 64 bits, two
+ * keys of a log colliding is vanishingly unlikely.
+ *
+ * Not thread safe.
+ */
+final class KeyIndex {
+
+    private static final long EMPTY = 0;
+
+    // The bytes that tag the encodings of keys that aren't strings, which never occur in UTF-8
+    private static final int TAG_LONG = 0xf5;
+    private static final int TAG_INTEGER = 0xf6;
+    private static final int TAG_SHORT = 0xf7;
+    private static final int TAG_BYTE = 0xf8;
+    private static final int TAG_DOUBLE = 0xf9;
+    private static final int TAG_FLOAT = 0xfa;
+    private static final int TAG_BIG_INTEGER = 0xfb;
+    private static final int TAG_BIG_DECIMAL = 0xfc;
+    private static final int TAG_UUID = 0xfd;
+    private static final int TAG_ENUM = 0xfe;
+
+    private long[] hashes;
+    private long[] sequences;
+    private int mask;
+    private int size;
+
+    /**
+     * Receives the entries of an index.
+     */
+    interface Entries {
+        void accept(long hash, long sequence);
+    }
+
+    KeyIndex(int expectedKeys) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedKeys * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Whether keys of the given type can be hashed: strings, the primitive numbers and their boxes,
+     * {@link BigInteger}s, {@link BigDecimal}s, {@link UUID}s and enums.
+     */
+    static boolean hashable(Class<?> type) {
+        return type == String.class || type == Long.class || type == long.class || type == Integer.class
+                || type == int.class || type == Short.class || type == short.class || type == Byte.class
+                || type == byte.class || type == Double.class || type == double.class || type == Float.class
+                || type == float.class || type == BigInteger.class || type == BigDecimal.class || type == UUID.class
+                || Enum.class.isAssignableFrom(type) && type != Enum.class;
+    }
+
+    /**
+     * The hash of a key.
+     *
+     * @throws IllegalArgumentException If the key isn't of a type that can be hashed, see {@link #hashable(Class)}.
+     */
+    static long hash(Object key) {
+        // FNV-1a, over the UTF-8 bytes of a string, or a tag byte that never occurs in UTF-8 followed by the value of
+        // any other type, then mixed so that every bit affects the slot
+        long hash = 0xcbf29ce484222325L;
+        if (key instanceof String) {
+            hash = mixBytes(hash, ((String) key).getBytes(StandardCharsets.UTF_8));
+        } else if (key instanceof Long) {
+            hash = mixLong(mixByte(hash, TAG_LONG), (Long) key);
+        } else if (key instanceof Integer) {
+            hash = mixLong(mixByte(hash, TAG_INTEGER), (Integer) key);
+        } else if (key instanceof Short) {
+            hash = mixLong(mixByte(hash, TAG_SHORT), (Short) key);
+        } else if (key instanceof Byte) {
+            hash = mixLong(mixByte(hash, TAG_BYTE), (Byte) key);
+        } else if (key instanceof Double) {
+            hash = mixLong(mixByte(hash, TAG_DOUBLE), Double.doubleToLongBits((Double) key));
+        } else if (key instanceof Float) {
+            hash = mixLong(mixByte(hash, TAG_FLOAT), Float.floatToIntBits((Float) key));
+        } else if (key instanceof BigInteger) {
+            hash = mixBytes(mixByte(hash, TAG_BIG_INTEGER), ((BigInteger) key).toByteArray());
+        } else if (key instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) key;
+            hash = mixLong(mixByte(hash, TAG_BIG_DECIMAL), decimal.scale());
+            hash = mixBytes(hash, decimal.unscaledValue().toByteArray());
+        } else if (key instanceof UUID) {
+            UUID uuid = (UUID) key;
+            hash = mixLong(mixByte(hash, TAG_UUID), uuid.getMostSignificantBits());
+            hash = mixLong(hash, uuid.getLeastSignificantBits());
+        } else if (key instanceof Enum) {
+            // The name of the enum, then the name of the constant, separated by another byte that isn't UTF-8
+            Enum<?> constant = (Enum<?>) key;
+            hash = mixBytes(mixByte(hash, TAG_ENUM), constant.getDeclaringClass().getName()
+                    .getBytes(StandardCharsets.UTF_8));
+            hash = mixBytes(mixByte(hash, TAG_ENUM), constant.name().getBytes(StandardCharsets.UTF_8));
+        } else {
+            throw new IllegalArgumentException("Keys of " + key.getClass() + " can't be hashed, keys must be strings, "
+                    + "numbers, UUIDs or enums");
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        // Zero marks an empty slot
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private static long mixByte(long hash, int b) {
+        return (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+
+    private static long mixBytes(long hash, byte[] bytes) {
+        for (byte b : bytes) {
+            hash = mixByte(hash, b);
+        }
+        return hash;
+    }
+
+    private static long mixLong(long hash, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            hash = mixByte(hash, (int) (value >>> shift));
+        }
+        return hash;
+    }
+
+    /**
+     * Record the sequence of a record with the key of the given hash, which replaces any earlier sequence.
+     */
+    void put(long hash, long sequence) {
+        if (size * 2 >= hashes.length) {
+            grow();
+        }
+        int slot = slot(hash);
+        if (hashes[slot] == EMPTY) {
+            hashes[slot] = hash;
+            size++;
+        }
+        sequences[slot] = sequence;
+    }
+
+    /**
+     * The latest sequence recorded for the key of the given hash, or -1 if there is none.
+     */
+    long get(long hash) {
+        int slot = slot(hash);
+        return hashes[slot] == EMPTY ? -1 : sequences[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Pass each entry of the index to the given consumer, in no particular order.
+     */
+    void forEach(Entries entries) {
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != EMPTY) {
+                entries.accept(hashes[i], sequences[i]);
+            }
+        }
+    }
+
+    /**
+     * The slot that holds the given hash, or the empty slot it would go in.
+     */
+    private int slot(long hash) {
+        int slot = (int) hash & mask;
+        while (hashes[slot] != EMPTY && hashes[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        sequences = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private void grow() {
+        long[] oldHashes = hashes;
+        long[] oldSequences = sequences;
+        allocate(oldHashes.length * 2);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != EMPTY) {
+                int slot = slot(oldHashes[i]);
+                hashes[slot] = oldHashes[i];
+                sequences[slot] = oldSequences[i];
+            }
+        }
+    }
+}
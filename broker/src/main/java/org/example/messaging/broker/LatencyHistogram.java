@@ -0,0 +1,64 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, that doesn't allocate when recording.
+ *
+ * Like an HDR histogram, values are counted in log-linear buckets: values below 64 each have their own bucket, and
+ * each power of two range above that is divided into 32 equal buckets, so every value is recorded with a precision of
+ * about 3%, using a fixed array of counts. Values of 2<sup>40</sup> nanoseconds, about 18 minutes, and over, are
+ * recorded in the highest bucket.
+ *
+ * Values may be recorded from any thread, and snapshots may be taken concurrently, a value recorded during a snapshot
+ * lands either in that snapshot or the next.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    static final int BUCKETS = (40 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        counts.getAndIncrement(index(Math.max(0, Math.min(nanos, MAX_VALUE))));
+    }
+
+    /**
+     * Take a snapshot of the counts, and reset them.
+     */
+    HistogramSnapshot snapshotAndReset() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts.get(i) != 0) {
+                snapshot[i] = counts.getAndSet(i, 0);
+            }
+        }
+        return new HistogramSnapshot(snapshot);
+    }
+
+    static int index(long value) {
+        int shift = (63 - SUB_BUCKET_BITS) - Long.numberOfLeadingZeros(value | (2 * SUB_BUCKETS - 1));
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * The highest value that is counted in the given bucket.
+     */
+    static long highestValue(int index) {
+        int shift = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+        long lowest = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * The middle of the range of values that are counted in the given bucket.
+     */
+    static long medianValue(int index) {
+        int shift = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+        long lowest = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+}
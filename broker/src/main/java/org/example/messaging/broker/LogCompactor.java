@@ -0,0 +1,206 @@
+package org.example.messaging.broker;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compacts the log of a partition of a compacted topic, see {@link BrokerSettings#withCompaction(String, Predicate)}.
+ *
+ * Every compaction interval, if a segment has been sealed since the last compaction, the compactor reads the whole
+ * log to build a {@link KeyIndex} of the latest sequence of each key, and then copies each sealed segment, with only
+ * the records that are the latest of their key, or that have no key, into a new segment that replaces it. Records keep
+ * their sequences and timestamps, and their messages are copied as they're encoded. A segment that no records would
+ * be removed from is left as it is.
+ *
+ * The {@link LogWriter} of a compacted topic appends the hash of each message's key to its record, so the compactor
+ * works from the record headers, and doesn't decode messages, other than those of records that are the latest of
+ * their key and old enough that they'd be removed if they were tombstones, and those of records appended before the
+ * topic was compacted, which have no key hash. A message that fails to decode is kept.
+ *
+ * For topics with idempotent publishing, the latest record of each producer is also kept, even if its key has been
+ * superseded, so that the producer's sequence can still be recovered from the log, see {@link ProducerSequences}.
+ *
+ * The active segment is never compacted, so the compactor never contends with the writer. Compaction runs on the
+ * broker's executor, and only one compaction of a log runs at a time.
+ */
+final class LogCompactor implements Runnable {
+
+    private static final Logger log = Logger.getLogger(LogCompactor.class.getName());
+    private static final int MAX_BATCH = 4096;
+
+    private final BrokerContext context;
+    private final TopicPartition partition;
+    private final SegmentLog segmentLog;
+    private final Predicate<Object> tombstone;
+    private final long tombstoneRetentionMillis;
+    private final BatchCompressor compressor;
+    private final boolean producers;
+    private final ScheduledFuture<?> schedule;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean closed;
+
+    // Only accessed by the running compaction
+    private long compactedTo = -1;
+    private int expectedKeys = 1024;
+    private int expectedProducers = 64;
+
+    LogCompactor(BrokerContext context, TopicPartition partition, SegmentLog segmentLog) {
+        this.context = context;
+        this.partition = partition;
+        this.segmentLog = segmentLog;
+        this.tombstone = context.settings().tombstone(partition.topic());
+        this.tombstoneRetentionMillis = context.settings().tombstoneRetention().toMillis();
+        this.compressor = segmentLog.compressor().copy();
+        this.producers = context.settings().idempotent(partition.topic());
+        long interval = context.settings().compactionInterval().toNanos();
+        this.schedule = context.scheduler().scheduleWithFixedDelay(this::scheduled, interval, interval,
+                TimeUnit.NANOSECONDS);
+    }
+
+    void close() {
+        closed = true;
+        schedule.cancel(false);
+    }
+
+    private void scheduled() {
+        if (!closed && running.compareAndSet(false, true)) {
+            context.executor().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.SEVERE, "Failed to compact log of " + partition + ", retrying at the next interval", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Compact the sealed segments of the log, if a segment has been sealed since the last compaction.
+     */
+    private void compact() throws IOException {
+        segmentLog.closeRetired();
+        List<LogSegment> sealed = segmentLog.sealedSegments();
+        if (sealed.isEmpty()) {
+            return;
+        }
+        long sealedTo = segmentLog.segmentAfter(sealed.get(sealed.size() - 1)).baseSequence();
+        if (sealedTo == compactedTo) {
+            return;
+        }
+
+        // Everything written so far, including the active segment, can supersede the records of the sealed segments
+        KeyIndex keys = new KeyIndex(expectedKeys);
+        KeyIndex latestOfProducers = producers ? new KeyIndex(expectedProducers) : null;
+        LogReader reader = segmentLog.reader(0);
+        while (reader.next()) {
+            if (closed) {
+                return;
+            }
+            long keyHash = keyHash(reader);
+            if (keyHash != 0) {
+                keys.put(keyHash, reader.sequence());
+            }
+            if (producers && reader.producerId() != 0) {
+                latestOfProducers.put(reader.producerId(), reader.sequence());
+            }
+        }
+        expectedKeys = Math.max(expectedKeys, keys.size());
+        if (producers) {
+            expectedProducers = Math.max(expectedProducers, latestOfProducers.size());
+        }
+
+        long tombstonesBefore = System.currentTimeMillis() - tombstoneRetentionMillis;
+        for (LogSegment segment : sealed) {
+            if (closed) {
+                return;
+            }
+            compact(segment, keys, latestOfProducers, tombstonesBefore);
+        }
+        compactedTo = sealedTo;
+    }
+
+    /**
+     * Replace the given segment with a copy of it that only has the records that should be kept.
+     *
+     * @param latestOfProducers The sequence of the latest record of each producer, or null if records have no
+     *                          producers.
+     */
+    private void compact(LogSegment segment, KeyIndex keys, KeyIndex latestOfProducers, long tombstonesBefore)
+            throws IOException {
+        long end = segmentLog.segmentAfter(segment).baseSequence();
+        LogSegment compacted = segmentLog.createCompacted(segment.baseSequence(), compressor);
+        LogReader reader = segmentLog.reader(segment.baseSequence());
+        boolean removed = false;
+        int batched = 0;
+        while (reader.next() && reader.sequence() < end) {
+            long keyHash = keyHash(reader);
+            boolean latestOfProducer = latestOfProducers != null && reader.producerId() != 0
+                    && latestOfProducers.get(reader.producerId()) == reader.sequence();
+            if (keyHash != 0 && !latestOfProducer && (keys.get(keyHash) != reader.sequence()
+                    || (reader.timestamp() < tombstonesBefore && isTombstone(reader)))) {
+                removed = true;
+                continue;
+            }
+            if (batched == 0 && !compacted.beginBatch(producers, true) || !compacted.appendEncodedRecord(
+                    reader.sequence(), reader.timestamp(), reader.producerId(), reader.producerSequence(), keyHash,
+                    reader.message())) {
+                // Batched differently, the records no longer fit, which can only be if hardly any were removed
+                segmentLog.discard(compacted);
+                return;
+            }
+            if (++batched == MAX_BATCH) {
+                compacted.endBatch();
+                batched = 0;
+            }
+        }
+        if (batched > 0) {
+            compacted.endBatch();
+        }
+        if (removed) {
+            segmentLog.replace(compacted);
+        } else {
+            segmentLog.discard(compacted);
+        }
+    }
+
+    /**
+     * The hash of the key of the reader's current record, from its header, or if it was appended before the topic was
+     * compacted, from its message.
+     *
+     * @return The hash, or 0 if the message has no key, or can't be decoded, in which case it's kept.
+     */
+    private long keyHash(LogReader reader) {
+        if (reader.hasKeyHash()) {
+            return reader.keyHash();
+        }
+        try {
+            return MessageKeys.keyHash(segmentLog.codec().decode(reader.message()));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Whether the message of the reader's current record is a tombstone, which it's not if it can't be decoded.
+     */
+    private boolean isTombstone(LogReader reader) {
+        Object message;
+        try {
+            message = segmentLog.codec().decode(reader.message());
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return tombstone.test(message);
+    }
+}
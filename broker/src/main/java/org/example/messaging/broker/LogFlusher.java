@@ -0,0 +1,109 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Forces what the {@link LogWriter} appends to a partition's log to disk, in group commits.
+ *
+ * The writer tells the flusher each time it appends a batch. Once {@link BrokerSettings#groupCommitSize()} messages
+ * have been appended since the last force, or {@link BrokerSettings#groupCommitDelay()} after the first append since
+ * the last force, the flusher forces everything appended so far with a single force, and then moves its durable
+ * cursor up to what was appended before the force started.
+ *
+ * The force runs on the broker's executor rather than the partition's, so the writer carries on appending while it's
+ * in progress, and the appends made in the meantime make up the next group, which is forced as soon as the current
+ * one completes if it's already due.
+ */
+final class LogFlusher implements Runnable {
+
+    private static final Logger log = Logger.getLogger(LogFlusher.class.getName());
+
+    private final BrokerContext context;
+    private final TopicPartition partition;
+    private final SegmentLog segmentLog;
+    private final long groupSize;
+    private final long delayNanos;
+    private final Cursor durable;
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    LogFlusher(BrokerContext context, TopicPartition partition, SegmentLog segmentLog) {
+        this.context = context;
+        this.partition = partition;
+        this.segmentLog = segmentLog;
+        this.groupSize = context.settings().groupCommitSize();
+        this.delayNanos = context.settings().groupCommitDelay().toNanos();
+        // Whatever was recovered is treated as durable, since it was there when the broker started
+        this.durable = new Cursor(segmentLog.written().get());
+    }
+
+    /**
+     * The cursor of the flusher, that is, the sequence after the last record forced to disk.
+     */
+    Cursor durable() {
+        return durable;
+    }
+
+    /**
+     * Records have been appended to the log, up to but not including the given sequence.
+     */
+    void appended(long written) {
+        if (written - durable.get() >= groupSize) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            context.scheduler().schedule(this::scheduledFlush, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    private void scheduledFlush() {
+        flushScheduled.set(false);
+        flush();
+    }
+
+    private void flush() {
+        if (wip.getAndIncrement() == 0) {
+            context.executor().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        for (;;) {
+            if (closed) {
+                return;
+            }
+            long target = segmentLog.written().get();
+            long from = durable.get();
+            if (target > from) {
+                try {
+                    segmentLog.force(from);
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Failed to force log of " + partition + ", retrying in 1s", e);
+                    context.scheduler().schedule(this::retry, 1, TimeUnit.SECONDS);
+                    wip.set(0);
+                    return;
+                }
+                durable.set(target);
+                partition.messagesDurable();
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void retry() {
+        flush();
+    }
+}
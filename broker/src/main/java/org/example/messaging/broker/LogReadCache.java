@@ -0,0 +1,45 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The messages most recently read from the log of a durable partition, shared by all the cursors that read from it.
+ *
+ * When several subscribers are catching up on the same partition at once, for example when a handler with several
+ * subscribers on one topic starts from the beginning of a recovered log, the first cursor to reach a record reads it
+ * from the log and puts it here, and the others take it from here without scanning the log for it. Since the
+ * {@link EncodedMessage} keeps its decoded message, it's also only decoded once, however many of them look at it.
+ *
+ * Each cursor still has its own position, and reads from the log itself whenever the message it wants isn't here, so
+ * a cursor that falls further behind than the cache holds doesn't hold up the others, or get held up by them.
+ *
+ * Messages are held in slots indexed by their sequence, a slot holding a different sequence is simply a miss.
+ */
+final class LogReadCache {
+
+    private final int mask;
+    private final AtomicReferenceArray<EncodedMessage> entries;
+
+    /**
+     * @param capacity The number of messages to hold, must be a power of two.
+     */
+    LogReadCache(int capacity) {
+        this.mask = capacity - 1;
+        this.entries = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Get the message with the given sequence, or null if it isn't held.
+     */
+    EncodedMessage get(long sequence) {
+        EncodedMessage message = entries.get((int) sequence & mask);
+        return message != null && message.sequence() == sequence ? message : null;
+    }
+
+    /**
+     * Hold the given message, in place of whatever message was held in its slot.
+     */
+    void put(EncodedMessage message) {
+        entries.lazySet((int) message.sequence() & mask, message);
+    }
+}
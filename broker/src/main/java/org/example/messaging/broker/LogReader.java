@@ -0,0 +1,207 @@
+package org.example.messaging.broker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads records from a {@link SegmentLog}, directly out of the memory mapped segments.
+ *
+ * A reader is created positioned at a sequence by looking the sequence up in the sparse index of the segment that
+ * contains it, so only the batches between the nearest index entry and the sequence need to be scanned. Whole batches
+ * that end before the sequence are skipped using their headers, without looking at their records, or decompressing
+ * them if they're compressed.
+ *
+ * Compressed batches are decompressed into a buffer that the reader reuses from batch to batch, until the messages of
+ * a batch are read as {@link EncodedMessage}s, which refer to the buffer rather than decoding their messages. The
+ * buffer then belongs to them, and is kept alive for as long as they're referenced, and the next compressed batch is
+ * decompressed into a new buffer.
+ *
+ * Readers are not thread safe.
+ */
+final class LogReader {
+
+    private final SegmentLog log;
+    private final long from;
+    private LogSegment segment;
+    private ByteBuffer view;
+    private int batchPosition;
+    // The records of the current batch, which are the view itself unless the batch is compressed
+    private ByteBuffer records;
+    private int recordPosition;
+    private int recordsRemaining;
+    private int recordHeaderSize;
+    private boolean producers;
+    private boolean keyHashes;
+    // The buffer that compressed batches are decompressed into, or null if none have been yet, and whether encoded
+    // messages refer to it, so it can't be reused
+    private ByteBuffer decompressed;
+    private boolean decompressedShared;
+
+    private long sequence = -1;
+    private long timestamp;
+    private long producerId;
+    private long producerSequence;
+    private long keyHash;
+    private int messageStart;
+    private int messageEnd;
+
+    LogReader(SegmentLog log, long from) {
+        this.log = log;
+        this.from = from;
+        this.segment = log.segmentFor(from);
+        this.view = segment.view();
+        this.batchPosition = segment.lookup(from);
+    }
+
+    /**
+     * Advance to the next record.
+     *
+     * @return false if there are no more records written yet.
+     */
+    boolean next() {
+        long limit = log.written().get();
+        for (;;) {
+            if (recordsRemaining > 0) {
+                int record = recordPosition;
+                int length = records.getInt(record);
+                recordPosition = record + 4 + length;
+                recordsRemaining--;
+                long recordSequence = records.getLong(record + 4);
+                if (recordSequence < from) {
+                    continue;
+                }
+                sequence = recordSequence;
+                timestamp = records.getLong(record + 12);
+                if (producers) {
+                    producerId = records.getLong(record + LogSegment.RECORD_HEADER_SIZE);
+                    producerSequence = records.getLong(record + LogSegment.RECORD_HEADER_SIZE + 8);
+                } else {
+                    producerId = 0;
+                    producerSequence = 0;
+                }
+                keyHash = keyHashes ? records.getLong(record + recordHeaderSize - LogSegment.KEY_HASH_SIZE) : 0;
+                messageStart = record + recordHeaderSize;
+                messageEnd = record + 4 + length;
+                return true;
+            }
+
+            int length = batchLength();
+            if (length == 0) {
+                // Either the end of what's been written, or the end of a sealed segment
+                LogSegment next = log.segmentAfter(segment);
+                if (next == null) {
+                    return false;
+                }
+                // The writer has rolled, so everything it wrote to this segment is now visible, check again
+                if (batchLength() != 0) {
+                    continue;
+                }
+                segment = next;
+                view = next.view();
+                batchPosition = 0;
+                continue;
+            }
+            long base = view.getLong(batchPosition + 8);
+            if (base >= limit) {
+                return false;
+            }
+            long last = view.getLong(batchPosition + 16);
+            int count = view.getInt(batchPosition + 24);
+            int batchStart = batchPosition;
+            batchPosition += 4 + length;
+            if (last >= from) {
+                if (BatchCompressor.isCompressed(view, batchStart)) {
+                    records = log.compressor().records(view, batchStart, decompressedShared ? null : decompressed);
+                    decompressed = records;
+                    decompressedShared = false;
+                    recordPosition = records.position();
+                } else {
+                    records = view;
+                    recordPosition = batchStart + LogSegment.BATCH_HEADER_SIZE;
+                }
+                recordsRemaining = count;
+                recordHeaderSize = LogSegment.recordHeaderSize(view, batchStart);
+                producers = LogSegment.hasProducers(view, batchStart);
+                keyHashes = LogSegment.hasKeyHashes(view, batchStart);
+            }
+        }
+    }
+
+    /**
+     * Advance to the next record with a sequence of at least the given sequence.
+     *
+     * @return false if there are no more records written yet.
+     */
+    boolean nextFrom(long from) {
+        while (sequence < from) {
+            if (!next()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int batchLength() {
+        return view.capacity() - batchPosition < LogSegment.BATCH_HEADER_SIZE ? 0 : view.getInt(batchPosition);
+    }
+
+    /**
+     * The sequence of the current record.
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * The time the current record was appended.
+     */
+    long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The id of the producer of the current record, or 0 if it has none.
+     */
+    long producerId() {
+        return producerId;
+    }
+
+    /**
+     * The producer sequence of the current record, if it has a producer.
+     */
+    long producerSequence() {
+        return producerSequence;
+    }
+
+    /**
+     * Whether the current record was appended with the hash of its key, see {@link #keyHash()}.
+     */
+    boolean hasKeyHash() {
+        return keyHashes;
+    }
+
+    /**
+     * The hash of the key of the current record's message, or 0 if it has none, or it wasn't appended with it.
+     */
+    long keyHash() {
+        return keyHash;
+    }
+
+    /**
+     * The message of the current record, to be decoded if and when it's needed.
+     */
+    EncodedMessage encodedMessage() {
+        if (records == decompressed) {
+            decompressedShared = true;
+        }
+        return new EncodedMessage(sequence, message(), log.codec());
+    }
+
+    /**
+     * The encoded message of the current record, which is only valid until the reader moves to another batch.
+     */
+    ByteBuffer message() {
+        ByteBuffer message = records.duplicate();
+        message.limit(messageEnd).position(messageStart);
+        return message.slice();
+    }
+}
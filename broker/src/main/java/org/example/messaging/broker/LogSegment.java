@@ -0,0 +1,583 @@
+package org.example.messaging.broker;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed size segment of a partition's log, memory mapped for both writing and reading.
+ *
+ * The segment is made up of batches of records, each batch is laid out as follows:
+ *
+ * <pre>
+ * int   length          the number of bytes in the batch after this field
+ * int   crc             CRC32 of the batch after this field
+ * long  baseSequence    the sequence of the first record
+ * long  lastSequence    the sequence of the last record
+ * int   count           the number of records
+ * byte  attributes      the id of the {@link BatchCompression} the records are compressed with, or 0, in the low
+ *                       six bits, whether the records have key hashes in the next bit, and whether they have
+ *                       producers in the high bit
+ * records...
+ * </pre>
+ *
+ * And each record:
+ *
+ * <pre>
+ * int   length          the number of bytes in the record after this field
+ * long  sequence
+ * long  timestamp       the time the record was appended, in milliseconds since the epoch
+ * long  producerId      only if the batch's records have producers, the id of the idempotent producer that
+ *                       published the record, or 0 if it has none
+ * long  producerSequence  only if the batch's records have producers, the record's producer sequence
+ * long  keyHash         only if the batch's records have key hashes, the {@link KeyIndex#hash(Object)} of the
+ *                       message's {@link org.example.messaging.MessageKey}, or 0 if it has none
+ * byte[] message        the message, as encoded by the {@link MessageCodec}
+ * </pre>
+ *
+ * Only the batches of topics with idempotent publishing have producers, see
+ * {@link BrokerSettings#withIdempotentPublishing(String)}, and only the batches of compacted topics have key hashes,
+ * see {@link BrokerSettings#withCompaction(String, java.util.function.Predicate)}, so other topics don't pay for
+ * them.
+ *
+ * If a batch is compressed, its records are replaced by an int of their length uncompressed, followed by the
+ * compressed records, see {@link BatchCompressor}. The batch is compressed in place when it's finished, so messages
+ * are still encoded straight into the segment.
+ *
+ * The file is preallocated, so the end of the written data is marked by a batch length of zero.
+ *
+ * Each segment has a sparse index file alongside it, which holds the sequence and position of a batch for roughly
+ * every <tt>indexInterval</tt> bytes of the segment, so that a sequence can be found with a binary search of the
+ * index followed by a short scan, rather than a scan of the whole segment. The index starts with an int count of its
+ * entries, followed by the entries, each a long sequence and int position.
+ *
+ * It also has a sparse time index, with an entry for each entry of the sequence index, which holds the timestamp and
+ * sequence of the first record of the batch. Since the writer never lets timestamps go backwards, every record before
+ * an entry is no newer than it, so the first record appended at or after a given time can be found in the same way.
+ * The time index starts with an int count of its entries, followed by the entries, each a long timestamp and long
+ * sequence. Segments written before the time index existed have their time index built from their sequence index when
+ * they're opened.
+ */
+final class LogSegment {
+
+    static final int BATCH_HEADER_SIZE = 29;
+    static final int RECORD_HEADER_SIZE = 20;
+    /**
+     * The size of the producer id and sequence of records in batches that have producers.
+     */
+    static final int PRODUCER_SIZE = 16;
+    /**
+     * The size of the key hash of records in batches that have key hashes.
+     */
+    static final int KEY_HASH_SIZE = 8;
+    private static final byte PRODUCERS = (byte) 0x80;
+    private static final byte KEY_HASHES = 0x40;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int TIME_INDEX_ENTRY_SIZE = 16;
+
+    private final long baseSequence;
+    private final Path logFile;
+    private final Path indexFile;
+    private final Path timeIndexFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer timeIndex;
+    private final int indexInterval;
+    private final int indexCapacity;
+    private final BatchCompressor compressor;
+    private final CRC32 crc = new CRC32();
+    private volatile int indexEntries;
+    private volatile int timeIndexEntries;
+    private int lastIndexedPosition = -1;
+    // The buffer that compressed batches are decompressed into while the segment is opened
+    private ByteBuffer decompressed;
+
+    // Writer state, only accessed by the log writer
+    private int position;
+    private int batchStart = -1;
+    private boolean batchProducers;
+    private boolean batchKeyHashes;
+    private long batchBase;
+    private long batchLast;
+    private int batchCount;
+    private long batchTimestamp;
+    private long lastTimestamp = -1;
+
+    private LogSegment(Path directory, long baseSequence, int size, int indexInterval, BatchCompressor compressor)
+            throws IOException {
+        this.baseSequence = baseSequence;
+        this.compressor = compressor;
+        this.logFile = directory.resolve(String.format("%020d.log", baseSequence));
+        this.indexFile = directory.resolve(String.format("%020d.index", baseSequence));
+        this.timeIndexFile = directory.resolve(String.format("%020d.timeindex", baseSequence));
+        this.indexInterval = indexInterval;
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long existing = channel.size();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(existing, size));
+        this.indexCapacity = buffer.capacity() / indexInterval + 2;
+        try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    4 + (long) indexCapacity * INDEX_ENTRY_SIZE);
+        }
+        try (FileChannel timeIndexChannel = FileChannel.open(timeIndexFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.timeIndex = timeIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    4 + (long) indexCapacity * TIME_INDEX_ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * Create a new, empty segment.
+     */
+    static LogSegment create(Path directory, long baseSequence, int size, int indexInterval,
+            BatchCompressor compressor) throws IOException {
+        LogSegment segment = new LogSegment(directory, baseSequence, size, indexInterval, compressor);
+        segment.index.putInt(0, 0);
+        segment.timeIndex.putInt(0, 0);
+        return segment;
+    }
+
+    /**
+     * Open an existing segment.
+     *
+     * @param recover Whether to validate the segment and rebuild its index, which must be done for the last segment
+     *                of a log, since it may have been partially written when the JVM stopped. It's also done for a
+     *                segment whose index is missing, see {@link #moveFiles(Path, Path, long)}.
+     */
+    static LogSegment open(Path directory, long baseSequence, int size, int indexInterval,
+            BatchCompressor compressor, boolean recover) throws IOException {
+        LogSegment segment = new LogSegment(directory, baseSequence, size, indexInterval, compressor);
+        if (recover || segment.index.getInt(0) == 0) {
+            segment.recover();
+        } else {
+            segment.indexEntries = segment.index.getInt(0);
+            segment.timeIndexEntries = segment.timeIndex.getInt(0);
+            segment.position = segment.buffer.capacity();
+            if (segment.timeIndexEntries == 0 && segment.indexEntries > 0) {
+                segment.rebuildTimeIndex();
+            }
+        }
+        return segment;
+    }
+
+    long baseSequence() {
+        return baseSequence;
+    }
+
+    Path logFile() {
+        return logFile;
+    }
+
+    /**
+     * The channel of the segment's file, for transferring ranges of it directly, see {@link TransportServer}.
+     */
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * The sequence of the last record in the segment, or -1 if it's empty. Only valid after recovery.
+     */
+    long recoveredLastSequence() {
+        return batchLast;
+    }
+
+    /**
+     * The latest timestamp of the records in the segment, or -1 if it's empty. Only valid after recovery.
+     */
+    long recoveredLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * The timestamp of the first record in the segment, or {@link Long#MAX_VALUE} if it's empty.
+     */
+    long firstTimestamp() {
+        return timeIndexEntries == 0 ? Long.MAX_VALUE : timeIndex.getLong(4);
+    }
+
+    /**
+     * Begin a new batch, whose records have neither producers nor key hashes.
+     *
+     * @return false if there isn't room in the segment for another batch.
+     */
+    boolean beginBatch() {
+        return beginBatch(false, false);
+    }
+
+    /**
+     * Begin a new batch.
+     *
+     * @param producers Whether the records of the batch have producers.
+     * @param keyHashes Whether the records of the batch have key hashes.
+     * @return false if there isn't room in the segment for another batch.
+     */
+    boolean beginBatch(boolean producers, boolean keyHashes) {
+        if (buffer.capacity() - position < BATCH_HEADER_SIZE + recordHeaderSize(producers, keyHashes)) {
+            return false;
+        }
+        batchStart = position;
+        batchProducers = producers;
+        batchKeyHashes = keyHashes;
+        batchCount = 0;
+        position += BATCH_HEADER_SIZE;
+        return true;
+    }
+
+    /**
+     * Append a record to the current batch.
+     *
+     * @return false if the record doesn't fit in the segment.
+     */
+    boolean appendRecord(long sequence, long timestamp, Object message, MessageCodec codec) {
+        return appendRecord(sequence, timestamp, 0, 0, 0, message, codec);
+    }
+
+    /**
+     * Append a record to the current batch.
+     *
+     * @param producerId The id of the record's producer, or 0 if it has none. Ignored unless the batch has producers.
+     * @param producerSequence The record's producer sequence.
+     * @param keyHash The hash of the message's key, or 0 if it has none. Ignored unless the batch has key hashes.
+     * @return false if the record doesn't fit in the segment.
+     */
+    boolean appendRecord(long sequence, long timestamp, long producerId, long producerSequence, long keyHash,
+            Object message, MessageCodec codec) {
+        int recordStart = position;
+        int headerSize = recordHeaderSize();
+        if (buffer.capacity() - recordStart < headerSize) {
+            return false;
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.position(recordStart + headerSize);
+        try {
+            codec.encode(message, target);
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+        recordAppended(recordStart, target.position(), sequence, timestamp, producerId, producerSequence, keyHash);
+        return true;
+    }
+
+    /**
+     * Append a record whose message is already encoded to the current batch.
+     *
+     * @param producerId The id of the record's producer, or 0 if it has none. Ignored unless the batch has producers.
+     * @param producerSequence The record's producer sequence.
+     * @param keyHash The hash of the message's key, or 0 if it has none. Ignored unless the batch has key hashes.
+     * @return false if the record doesn't fit in the segment.
+     */
+    boolean appendEncodedRecord(long sequence, long timestamp, long producerId, long producerSequence, long keyHash,
+            ByteBuffer message) {
+        int recordStart = position;
+        int headerSize = recordHeaderSize();
+        if (buffer.capacity() - recordStart < headerSize + message.remaining()) {
+            return false;
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.position(recordStart + headerSize);
+        target.put(message.duplicate());
+        recordAppended(recordStart, target.position(), sequence, timestamp, producerId, producerSequence, keyHash);
+        return true;
+    }
+
+    /**
+     * The size of the largest message that fits in a segment of the given size, in a batch of its own.
+     */
+    static int maxMessageSize(int segmentSize) {
+        return segmentSize - BATCH_HEADER_SIZE - RECORD_HEADER_SIZE - PRODUCER_SIZE - KEY_HASH_SIZE;
+    }
+
+    private int recordHeaderSize() {
+        return recordHeaderSize(batchProducers, batchKeyHashes);
+    }
+
+    private static int recordHeaderSize(boolean producers, boolean keyHashes) {
+        return RECORD_HEADER_SIZE + (producers ? PRODUCER_SIZE : 0) + (keyHashes ? KEY_HASH_SIZE : 0);
+    }
+
+    /**
+     * The size of the header of the records of the batch at the given position, that is, the offset of their
+     * messages.
+     */
+    static int recordHeaderSize(ByteBuffer buffer, int batchStart) {
+        return recordHeaderSize(hasProducers(buffer, batchStart), hasKeyHashes(buffer, batchStart));
+    }
+
+    /**
+     * Whether the records of the batch at the given position have producers.
+     */
+    static boolean hasProducers(ByteBuffer buffer, int batchStart) {
+        return (buffer.get(batchStart + BatchCompressor.ATTRIBUTES_OFFSET) & PRODUCERS) != 0;
+    }
+
+    /**
+     * Whether the records of the batch at the given position have key hashes, which follow their producers, if they
+     * have them.
+     */
+    static boolean hasKeyHashes(ByteBuffer buffer, int batchStart) {
+        return (buffer.get(batchStart + BatchCompressor.ATTRIBUTES_OFFSET) & KEY_HASHES) != 0;
+    }
+
+    private void recordAppended(int recordStart, int end, long sequence, long timestamp, long producerId,
+            long producerSequence, long keyHash) {
+        buffer.putInt(recordStart, end - recordStart - 4);
+        buffer.putLong(recordStart + 4, sequence);
+        buffer.putLong(recordStart + 12, timestamp);
+        if (batchProducers) {
+            buffer.putLong(recordStart + RECORD_HEADER_SIZE, producerId);
+            buffer.putLong(recordStart + RECORD_HEADER_SIZE + 8, producerSequence);
+        }
+        if (batchKeyHashes) {
+            buffer.putLong(recordStart + RECORD_HEADER_SIZE + (batchProducers ? PRODUCER_SIZE : 0), keyHash);
+        }
+        position = end;
+        if (batchCount == 0) {
+            batchBase = sequence;
+            batchTimestamp = timestamp;
+        }
+        lastTimestamp = timestamp;
+        batchLast = sequence;
+        batchCount++;
+    }
+
+    /**
+     * Finish the current batch, compressing it, writing its header and indexing it.
+     */
+    void endBatch() {
+        if (batchCount == 0) {
+            position = batchStart;
+            batchStart = -1;
+            return;
+        }
+        buffer.putLong(batchStart + 8, batchBase);
+        buffer.putLong(batchStart + 16, batchLast);
+        buffer.putInt(batchStart + 24, batchCount);
+        buffer.put(batchStart + BatchCompressor.ATTRIBUTES_OFFSET,
+                (byte) ((batchProducers ? PRODUCERS : 0) | (batchKeyHashes ? KEY_HASHES : 0)));
+        position = compressor.compress(buffer, batchStart, position);
+        buffer.putInt(batchStart + 4, checksum(batchStart, position));
+        buffer.putInt(batchStart, position - batchStart - 4);
+        if (lastIndexedPosition < 0 || batchStart - lastIndexedPosition >= indexInterval) {
+            addIndexEntry(batchBase, batchStart, batchTimestamp);
+        }
+        batchStart = -1;
+    }
+
+    /**
+     * Whether the current batch has no records.
+     */
+    boolean batchIsEmpty() {
+        return batchCount == 0;
+    }
+
+    /**
+     * Flush the segment to disk.
+     */
+    void force() {
+        buffer.force();
+        index.force();
+        timeIndex.force();
+    }
+
+    void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * Delete the files of a segment, which must be closed.
+     */
+    static void deleteFiles(Path directory, long baseSequence) throws IOException {
+        Files.deleteIfExists(directory.resolve(String.format("%020d.log", baseSequence)));
+        Files.deleteIfExists(directory.resolve(String.format("%020d.index", baseSequence)));
+        Files.deleteIfExists(directory.resolve(String.format("%020d.timeindex", baseSequence)));
+    }
+
+    /**
+     * Move the files of a segment into another directory, replacing the files of the segment with the same base
+     * sequence there, if there is one.
+     *
+     * The index files of the segment being replaced are deleted before its log file is replaced, and the new index
+     * files are only moved in after it, so if the JVM stops part way through, the log file is never left with index
+     * files that don't belong to it, and a segment without an index has it rebuilt when it's next opened.
+     */
+    static void moveFiles(Path fromDirectory, Path toDirectory, long baseSequence) throws IOException {
+        String log = String.format("%020d.log", baseSequence);
+        String index = String.format("%020d.index", baseSequence);
+        String timeIndex = String.format("%020d.timeindex", baseSequence);
+        Files.deleteIfExists(toDirectory.resolve(index));
+        Files.deleteIfExists(toDirectory.resolve(timeIndex));
+        Files.move(fromDirectory.resolve(log), toDirectory.resolve(log), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.move(fromDirectory.resolve(index), toDirectory.resolve(index), StandardCopyOption.ATOMIC_MOVE);
+        Files.move(fromDirectory.resolve(timeIndex), toDirectory.resolve(timeIndex), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Find the position of the batch that a reader looking for the given sequence should start scanning from.
+     */
+    int lookup(long sequence) {
+        int low = 0;
+        int high = indexEntries - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long entry = index.getLong(4 + mid * INDEX_ENTRY_SIZE);
+            if (entry <= sequence) {
+                found = index.getInt(4 + mid * INDEX_ENTRY_SIZE + 8);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the sequence that a reader looking for the first record appended at or after the given time should start
+     * scanning from, that is, the sequence of the last indexed batch before which every record is older than the
+     * time, or the base sequence of the segment if there is none.
+     */
+    long lookupTime(long timestamp) {
+        int low = 0;
+        int high = timeIndexEntries - 1;
+        long found = baseSequence;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long entry = timeIndex.getLong(4 + mid * TIME_INDEX_ENTRY_SIZE);
+            if (entry < timestamp) {
+                found = timeIndex.getLong(4 + mid * TIME_INDEX_ENTRY_SIZE + 8);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A read only view of the segment, with an independent position.
+     */
+    ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private void addIndexEntry(long sequence, int batchPosition, long timestamp) {
+        int entries = indexEntries;
+        if (entries < indexCapacity) {
+            index.putLong(4 + entries * INDEX_ENTRY_SIZE, sequence);
+            index.putInt(4 + entries * INDEX_ENTRY_SIZE + 8, batchPosition);
+            index.putInt(0, entries + 1);
+            indexEntries = entries + 1;
+            lastIndexedPosition = batchPosition;
+            addTimeIndexEntry(timestamp, sequence);
+        }
+    }
+
+    private void addTimeIndexEntry(long timestamp, long sequence) {
+        int entries = timeIndexEntries;
+        timeIndex.putLong(4 + entries * TIME_INDEX_ENTRY_SIZE, timestamp);
+        timeIndex.putLong(4 + entries * TIME_INDEX_ENTRY_SIZE + 8, sequence);
+        timeIndex.putInt(0, entries + 1);
+        timeIndexEntries = entries + 1;
+    }
+
+    /**
+     * The timestamp of the first record of the batch at the given position.
+     */
+    private long batchTimestamp(int batchPosition) {
+        if (BatchCompressor.isCompressed(buffer, batchPosition)) {
+            ByteBuffer records = compressor.records(buffer, batchPosition, decompressed);
+            decompressed = records;
+            return records.getLong(records.position() + 12);
+        }
+        return buffer.getLong(batchPosition + BATCH_HEADER_SIZE + 12);
+    }
+
+    /**
+     * Build the time index of a sealed segment from its sequence index.
+     */
+    private void rebuildTimeIndex() {
+        for (int i = 0; i < indexEntries; i++) {
+            addTimeIndexEntry(batchTimestamp(index.getInt(4 + i * INDEX_ENTRY_SIZE + 8)),
+                    index.getLong(4 + i * INDEX_ENTRY_SIZE));
+        }
+        decompressed = null;
+    }
+
+    private int checksum(int start, int end) {
+        return checksum(buffer, start, end, crc);
+    }
+
+    /**
+     * Compute the checksum of a batch, over everything after its crc field.
+     *
+     * @param start The position of the batch in the buffer.
+     * @param end The position of the end of the batch.
+     * @param crc The CRC to compute it with, which is reset first.
+     */
+    static int checksum(ByteBuffer buffer, int start, int end, CRC32 crc) {
+        ByteBuffer region = buffer.duplicate();
+        region.limit(end).position(start + 8);
+        crc.reset();
+        crc.update(region);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Validate the batches in the segment, truncating any partially written batch, and rebuild the index.
+     */
+    private void recover() {
+        indexEntries = 0;
+        timeIndexEntries = 0;
+        lastIndexedPosition = -1;
+        batchLast = -1;
+        lastTimestamp = -1;
+        int lastBatch = -1;
+        int pos = 0;
+        int capacity = buffer.capacity();
+        while (capacity - pos >= BATCH_HEADER_SIZE) {
+            int length = buffer.getInt(pos);
+            if (length < BATCH_HEADER_SIZE - 4 || pos + 4 + length > capacity
+                    || buffer.getInt(pos + 4) != checksum(pos, pos + 4 + length)) {
+                break;
+            }
+            long base = buffer.getLong(pos + 8);
+            batchLast = buffer.getLong(pos + 16);
+            if (lastIndexedPosition < 0 || pos - lastIndexedPosition >= indexInterval) {
+                addIndexEntry(base, pos, batchTimestamp(pos));
+            }
+            lastBatch = pos;
+            pos += 4 + length;
+        }
+        position = pos;
+        if (lastBatch >= 0) {
+            // The last record of the last batch has the latest timestamp
+            ByteBuffer records = compressor.records(buffer, lastBatch, decompressed);
+            int record = records.position();
+            for (int i = buffer.getInt(lastBatch + 24); i > 1; i--) {
+                record += 4 + records.getInt(record);
+            }
+            lastTimestamp = records.getLong(record + 12);
+        }
+        decompressed = null;
+        // Zero out anything after the last valid batch, so that stale bytes can never be mistaken for a batch
+        ByteBuffer remainder = buffer.duplicate();
+        remainder.position(pos);
+        byte[] zeros = new byte[Math.min(65536, Math.max(1, remainder.remaining()))];
+        while (remainder.hasRemaining()) {
+            remainder.put(zeros, 0, Math.min(zeros.length, remainder.remaining()));
+        }
+    }
+}
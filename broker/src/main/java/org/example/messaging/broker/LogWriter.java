@@ -0,0 +1,186 @@
+package org.example.messaging.broker;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends the messages published to a partition's ring buffer to the partition's log.
+ *
+ * The writer is just another consumer of the ring buffer, which gates producers with its cursor, and appends
+ * everything that is available each time it's woken as a single batch. Consumers of the partition never read past the
+ * writer's cursor, so a message is only ever delivered once it's in the log.
+ *
+ * Records are timestamped with the time they were appended, which is never before they were published, and never goes
+ * backwards, even if the clock does, so that the log can be searched by time. For topics with idempotent publishing,
+ * records also hold the producer id and sequence that their message was published with, and each time the log rolls,
+ * the writer snapshots the latest sequence of each producer that it has appended, see {@link ProducerSequences}. For
+ * compacted topics, records also hold the hash of their message's key, which the writer gets while it still has the
+ * message, so that the {@link LogCompactor} never needs to decode it.
+ */
+final class LogWriter implements Wakeable, Runnable {
+
+    private static final Logger log = Logger.getLogger(LogWriter.class.getName());
+    private static final int MAX_BATCH = 4096;
+
+    private final BrokerContext context;
+    private final TopicPartition partition;
+    private final RingBuffer ring;
+    private final SegmentLog segmentLog;
+    private final Cursor written;
+    private final LogFlusher flusher;
+    private final boolean producers;
+    private final boolean keyHashes;
+    // The latest sequence of each producer appended, by producer id, or null if records have no producers
+    private final KeyIndex producerSequences;
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean parked = true;
+    private volatile boolean closed;
+    // Only accessed while appending
+    private long lastTimestamp;
+
+    /**
+     * @param flusher The flusher to tell about appends, or null if the log isn't forced as it's written.
+     * @param producerSequences The latest sequence of each producer in the log, recovered when it was opened, or null
+     *                          if publishing to the partition isn't idempotent.
+     */
+    LogWriter(BrokerContext context, TopicPartition partition, SegmentLog segmentLog, LogFlusher flusher,
+            KeyIndex producerSequences) {
+        this.flusher = flusher;
+        this.context = context;
+        this.partition = partition;
+        this.ring = partition.ring();
+        this.segmentLog = segmentLog;
+        this.written = segmentLog.written();
+        this.producers = producerSequences != null;
+        this.keyHashes = context.settings().compacted(partition.topic());
+        this.producerSequences = producerSequences;
+        this.lastTimestamp = segmentLog.recoveredLastTimestamp();
+        ring.addGatingCursor(written);
+    }
+
+    @Override
+    public void wake() {
+        if (parked) {
+            parked = false;
+            partition.executor().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (appendBatch()) {
+                    continue;
+                }
+                parked = true;
+                // A message may have been published before we parked
+                if (ring.isAvailable(written.get())) {
+                    parked = false;
+                    continue;
+                }
+            } catch (IOException | RuntimeException e) {
+                log.log(Level.SEVERE, "Failed to append to log of " + partition + ", retrying in 1s", e);
+                context.scheduler().schedule(this::retry, 1, TimeUnit.SECONDS);
+                wip.set(0);
+                return;
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    private void retry() {
+        partition.executor().execute(this);
+    }
+
+    private long timestamp() {
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        lastTimestamp = timestamp;
+        return timestamp;
+    }
+
+    /**
+     * Seal the active segment, and start a new one at the given sequence, snapshotting the producer sequences of
+     * everything before it.
+     */
+    private LogSegment roll(long sequence) throws IOException {
+        LogSegment segment = segmentLog.roll(sequence);
+        if (producerSequences != null) {
+            ProducerSequences.snapshot(segmentLog.directory(), sequence, producerSequences);
+        }
+        return segment;
+    }
+
+    /**
+     * Append the available messages as a batch.
+     *
+     * @return false if there were no messages available.
+     */
+    private boolean appendBatch() throws IOException {
+        long sequence = written.get();
+        if (!ring.isAvailable(sequence)) {
+            return false;
+        }
+        MessageCodec codec = segmentLog.codec();
+        LogSegment segment = segmentLog.active();
+        if (!segment.beginBatch(producers, keyHashes)) {
+            segment = roll(sequence);
+            segment.beginBatch(producers, keyHashes);
+        }
+        long end = sequence + MAX_BATCH;
+        while (sequence < end) {
+            Object message = ring.read(sequence);
+            if (message == RingBuffer.NOT_AVAILABLE) {
+                break;
+            }
+            long producerId = producers ? ring.producerId(sequence) : 0;
+            long keyHash = keyHashes && message != RingBuffer.SKIPPED ? MessageKeys.keyHash(message) : 0;
+            if (message != RingBuffer.SKIPPED && !segment.appendRecord(sequence, timestamp(), producerId,
+                    ring.producerSequence(sequence), keyHash, message, codec)) {
+                if (segment.batchIsEmpty() && segment.baseSequence() == sequence) {
+                    // Sinks reject messages that are too large, so this is a codec that didn't encode the message the
+                    // same way twice. It can't be skipped, since it would then be lost, so the log stalls until it
+                    // fits.
+                    segment.endBatch();
+                    throw new IOException("Message at " + partition + " offset " + sequence + " is too large to fit "
+                            + "in a log segment");
+                } else {
+                    // Segment is full, finish the batch and carry on in a new segment
+                    segment.endBatch();
+                    written.set(sequence);
+                    segment = roll(sequence);
+                    segment.beginBatch(producers, keyHashes);
+                    continue;
+                }
+            } else if (producerId != 0 && message != RingBuffer.SKIPPED) {
+                producerSequences.put(producerId, ring.producerSequence(sequence));
+            }
+            sequence++;
+        }
+        segment.endBatch();
+        written.set(sequence);
+        partition.messagesAppended();
+        partition.capacityReleased();
+        if (flusher != null) {
+            flusher.appended(sequence);
+        }
+        return true;
+    }
+}
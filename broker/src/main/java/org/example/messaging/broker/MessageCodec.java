@@ -0,0 +1,54 @@
+package org.example.messaging.broker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes messages to and from the bytes stored in a topic's log.
+ *
+ * Codecs work directly against the log's memory mapped buffers, there's no intermediate copy. Messages that consumers
+ * read back from the log are decoded lazily, so a codec is only asked to decode a message that a subscriber actually
+ * looks at.
+ *
+ * Implementations must be thread safe.
+ *
+ * @see PojoCodec
+ * @see JavaSerializationCodec
+ */
+public interface MessageCodec {
+
+    /**
+     * Encode a message into the given buffer, starting at its position.
+     *
+     * Implementations should write directly into the buffer, which will typically be a region of a memory mapped log
+     * segment.
+     *
+     * @param message The message to encode.
+     * @param target The buffer to encode into. On return, its position must be just after the encoded message.
+     * @throws java.nio.BufferOverflowException If the message doesn't fit in the remaining space of the buffer.
+     */
+    void encode(Object message, ByteBuffer target);
+
+    /**
+     * Decode a message.
+     *
+     * @param source A buffer containing exactly the bytes of one encoded message, from its position to its limit. The
+     *               buffer may be read from directly, but must not be retained after returning.
+     * @return The decoded message.
+     */
+    Object decode(ByteBuffer source);
+
+    /**
+     * Get the name of the class of an encoded message, without decoding it.
+     *
+     * This lets subscribers that filter messages by their type, with {@link org.example.messaging.MessageFilter},
+     * skip messages without decoding them. Codecs that can't tell the type of a message any more cheaply than by
+     * decoding it should return null, in which case the message is decoded to find its type.
+     *
+     * @param source A buffer containing exactly the bytes of one encoded message, from its position to its limit. The
+     *               buffer may be read from directly, but must not be retained after returning.
+     * @return The name of the class, as returned by {@link Class#getName()}, or null if it can't be told.
+     */
+    default String typeName(ByteBuffer source) {
+        return null;
+    }
+}
@@ -0,0 +1,125 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageKey;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Finds the {@link MessageKey} of message classes.
+ */
+final class MessageKeys {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType KEY_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<MethodHandle> KEYS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                return find(type);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    };
+
+    private MessageKeys() {
+    }
+
+    /**
+     * Find a method handle of type <tt>(Object message)Object</tt> that gets the {@link MessageKey} of a message of
+     * the given type.
+     *
+     * @return The method handle, or null if the type has no key.
+     * @throws IllegalArgumentException If the key is declared on a method that can't be a key, or isn't accessible.
+     */
+    static MethodHandle find(Class<?> messageType) {
+        MethodHandle key = findDeclared(messageType);
+        return key == null ? null : key.asType(KEY_TYPE);
+    }
+
+    /**
+     * The declared type of the {@link MessageKey} of the given type of message.
+     *
+     * @return The type, which may be primitive, or null if the type has no key.
+     * @throws IllegalArgumentException If the key is declared on a method that can't be a key, or isn't accessible.
+     */
+    static Class<?> keyType(Class<?> messageType) {
+        MethodHandle key = findDeclared(messageType);
+        return key == null ? null : key.type().returnType();
+    }
+
+    /**
+     * Find a method handle that gets the {@link MessageKey} of a message of the given type, of the type it's declared
+     * with.
+     */
+    private static MethodHandle findDeclared(Class<?> messageType) {
+        for (Class<?> clazz = messageType; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            try {
+                for (Field field : clazz.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(MessageKey.class) && !Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        return LOOKUP.unreflectGetter(field);
+                    }
+                }
+                for (Method keyMethod : clazz.getDeclaredMethods()) {
+                    if (keyMethod.isAnnotationPresent(MessageKey.class)
+                            && !Modifier.isStatic(keyMethod.getModifiers())) {
+                        if (keyMethod.getParameterCount() != 0 || keyMethod.getReturnType() == void.class) {
+                            throw new IllegalArgumentException("@MessageKey method " + keyMethod
+                                    + " must take no arguments and return the key");
+                        }
+                        keyMethod.setAccessible(true);
+                        return LOOKUP.unreflect(keyMethod);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("the @MessageKey of " + messageType + " isn't accessible: "
+                        + e.getMessage());
+            }
+        }
+        for (Class<?> type : messageType.getInterfaces()) {
+            for (Method keyMethod : type.getMethods()) {
+                if (keyMethod.isAnnotationPresent(MessageKey.class) && keyMethod.getParameterCount() == 0) {
+                    try {
+                        return LOOKUP.unreflect(keyMethod);
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalArgumentException("the @MessageKey of " + messageType
+                                + " isn't accessible: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the key of a message, from the {@link MessageKey} of its runtime class.
+     *
+     * @return The key, or null if the message has no key.
+     */
+    static Object keyOf(Object message) throws Throwable {
+        MethodHandle key = message == null ? null : KEYS.get(message.getClass());
+        return key == null ? null : (Object) key.invokeExact(message);
+    }
+
+    /**
+     * Get the {@link KeyIndex#hash(Object)} of the key of a message, for compaction.
+     *
+     * @return The hash, or 0 if the message has no key, its key can't be got, or it's of a type that can't be hashed,
+     *         any of which means the message is never compacted away.
+     */
+    static long keyHash(Object message) {
+        try {
+            Object key = keyOf(message);
+            return key == null ? 0 : KeyIndex.hash(key);
+        } catch (Throwable e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.example.messaging.broker;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that the messages published to a durable partition fit in its log.
+ *
+ * A message that is too large for a log segment can never be appended, and since the log writer can't skip it without
+ * losing it, the message must be rejected before it's published. The only way to tell how large a message is, is to
+ * encode it, so the limit encodes each message into a scratch buffer that's reused from message to message, and only
+ * grows, up to the limit, for larger messages.
+ *
+ * Not thread safe, each sink has a limit of its own.
+ */
+final class MessageSizeLimit {
+
+    private static final int INITIAL_SIZE = 4096;
+    /**
+     * Scratch buffers larger than this are only kept for the message they were grown for.
+     */
+    private static final int RETAINED_SIZE = 1024 * 1024;
+
+    private final MessageCodec codec;
+    private final int maxSize;
+    private ByteBuffer scratch;
+
+    MessageSizeLimit(MessageCodec codec, int maxSize) {
+        this.codec = codec;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Check that the given message fits in the log.
+     *
+     * @throws IllegalArgumentException If it doesn't.
+     */
+    void check(Object message) {
+        if (scratch == null) {
+            scratch = ByteBuffer.allocate(Math.min(INITIAL_SIZE, maxSize));
+        }
+        for (;;) {
+            scratch.clear();
+            try {
+                codec.encode(message, scratch);
+                if (scratch.capacity() > RETAINED_SIZE) {
+                    scratch = null;
+                }
+                return;
+            } catch (BufferOverflowException e) {
+                if (scratch.capacity() >= maxSize) {
+                    throw new IllegalArgumentException("Message " + message.getClass().getName() + " is larger "
+                            + "than the largest message that fits in a log segment, " + maxSize + " bytes");
+                }
+                scratch = ByteBuffer.allocate((int) Math.min(maxSize, scratch.capacity() * 2L));
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.example.messaging.broker;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Receives the metrics of the streams that the broker runs for registered handlers.
+ *
+ * The broker records metrics as messages flow, using striped counters and lock-free histograms, and reports a snapshot
+ * of every stream to the listener once per {@link BrokerSettings#metricsInterval()}, on the broker's scheduler thread.
+ * Implementations should hand the snapshots off, for example to a metrics library, rather than doing anything slow,
+ * since the scheduler also drives stream restarts and offset writes.
+ *
+ * @see BrokerSettings#withMetricsListener(MetricsListener)
+ */
+public interface MetricsListener {
+
+    /**
+     * Report the metrics of all streams.
+     *
+     * @param streams A snapshot of each running stream, covering the interval since the last report.
+     */
+    void report(List<StreamMetrics> streams);
+
+    /**
+     * A stream terminated, and will be restarted after the given backoff.
+     *
+     * @param stream The name of the stream, as returned by {@link StreamMetrics#stream()}.
+     * @param error The error the stream failed with, or null if it completed or was cancelled.
+     * @param backoff How long the broker will wait before restarting the stream.
+     */
+    default void streamRestarted(String stream, Throwable error, Duration backoff) {
+    }
+}
@@ -0,0 +1,32 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageOffset;
+
+/**
+ * Stores the offsets that streams managed by the broker have reached.
+ *
+ * For subscribers, this is the offset of the last message that was committed, and for publishers, this is the offset
+ * of the last message that was published, which is passed back to the publisher method when its stream is restarted.
+ *
+ * Implementations must be thread safe.
+ */
+public interface OffsetStore {
+
+    /**
+     * Load the offset for the given stream and partition.
+     *
+     * @param streamId The id of the stream.
+     * @param partition The partition.
+     * @return The stored offset, or {@link MessageOffset.None#INSTANCE} if no offset has been stored.
+     */
+    MessageOffset load(String streamId, int partition);
+
+    /**
+     * Store the offset for the given stream and partition.
+     *
+     * @param streamId The id of the stream.
+     * @param partition The partition.
+     * @param offset The offset to store.
+     */
+    void store(String streamId, int partition, MessageOffset offset);
+}
@@ -0,0 +1,389 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageEnvelope;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Spreads the envelopes delivered by a {@link TopicSource} across the workers of a
+ * {@link org.example.messaging.Parallel} subscriber, by the key of their messages.
+ *
+ * Each worker has a bounded queue, which the source delivers into, and which the worker's subscriber drains on the
+ * executor as it requests more. All envelopes for a key go to the same worker, so they're consumed in order, but a
+ * slow key only holds up the other keys of its worker. Demand is only requested from the source while there's room
+ * in every queue, since the next envelope may be for any worker. How much of each queue is used is sized by a
+ * {@link DemandController} to how fast the workers consume, so slow workers don't have envelopes queued for them that
+ * they won't get to for a long time.
+ *
+ * Workers commit the envelopes they're delivered in the same way a subscriber that isn't parallel would: envelope
+ * subscribers commit them themselves, processors commit them by emitting an acknowledgement, which commits the oldest
+ * envelope the worker hasn't acknowledged yet, and plain subscribers commit them as they're delivered. Commits go back
+ * through the source to the stream's commit tracker, which only moves the committed offset past a message once every
+ * message before it has been committed, whichever worker consumed it.
+ */
+final class ParallelSubscriber implements Subscriber<Object> {
+
+    /**
+     * The capacity of each worker's queue.
+     */
+    static final int WORKER_BUFFER = 256;
+
+    private final BrokerContext context;
+    private final HandlerMethod method;
+    private final Worker[] workers;
+    private final Consumer<Throwable> terminated;
+    private final DemandController demand;
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private volatile Subscription upstream;
+    // The number of envelopes received, only accessed by onNext
+    private long received;
+
+    /**
+     * @param subscribers The subscribers returned by each invocation of the subscriber method.
+     * @param prefetchBudget The prefetch budget of the topic.
+     * @param terminated Invoked if a worker fails, cancels, or completes its acknowledgements, with the error, or null.
+     */
+    ParallelSubscriber(BrokerContext context, HandlerMethod method, Subscriber<?>[] subscribers,
+            DemandController.Budget prefetchBudget, Consumer<Throwable> terminated) {
+        this.context = context;
+        this.method = method;
+        this.workers = new Worker[subscribers.length];
+        for (int i = 0; i < subscribers.length; i++) {
+            workers[i] = new Worker(subscribers[i]);
+        }
+        this.terminated = terminated;
+        this.demand = new DemandController(WORKER_BUFFER / 16, WORKER_BUFFER, prefetchBudget);
+    }
+
+    /**
+     * Subscribe the workers, before the source starts delivering.
+     */
+    void start() {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stop the workers, completing the ones that haven't terminated, and no longer taking acknowledgements.
+     */
+    void stop() {
+        if (stopped.compareAndSet(false, true)) {
+            demand.close();
+            for (Worker worker : workers) {
+                worker.terminate(null);
+            }
+        }
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        upstream = subscription;
+        replenish();
+    }
+
+    @Override
+    public void onNext(Object element) {
+        MessageEnvelope<?> envelope = (MessageEnvelope<?>) element;
+        Object key;
+        try {
+            key = method.key(envelope.message());
+        } catch (Throwable t) {
+            failed(t);
+            return;
+        }
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= hash >>> 16;
+        workers[(hash & Integer.MAX_VALUE) % workers.length].offer(envelope);
+        // Only once it's queued, so that the room for it isn't requested again before it takes it up
+        outstanding.decrementAndGet();
+        long count = ++received;
+        if ((count & (DemandController.REPORT_INTERVAL - 1)) == 0 || count >= demand.probeTarget()) {
+            demand.received(count, System.nanoTime());
+        }
+        replenish();
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        if (stopped.compareAndSet(false, true)) {
+            demand.close();
+            for (Worker worker : workers) {
+                worker.terminate(error);
+            }
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        stop();
+    }
+
+    /**
+     * Request as much from the source as there's room for in every worker's window, if that's at least half a window,
+     * or nothing is outstanding.
+     */
+    private void replenish() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            Subscription subscription = upstream;
+            if (subscription != null && !stopped.get()) {
+                int window = demand.window();
+                long room = window;
+                for (Worker worker : workers) {
+                    room = Math.min(room, window - worker.queued());
+                }
+                long current = outstanding.get();
+                long n = room - current;
+                if (n > 0 && (n >= window / 2 || current == 0)) {
+                    outstanding.addAndGet(n);
+                    demand.requested(n, System.nanoTime());
+                    subscription.request(n);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void failed(Throwable error) {
+        if (stopped.compareAndSet(false, true)) {
+            demand.close();
+            for (Worker worker : workers) {
+                worker.terminate(null);
+            }
+            terminated.accept(error);
+        }
+    }
+
+    /**
+     * A worker, which delivers the envelopes queued for it to one of the subscribers, and takes its acknowledgements
+     * if it's a processor.
+     */
+    private final class Worker implements Subscription, Subscriber<Object>, Runnable {
+
+        private final Subscriber<Object> subscriber;
+        private final boolean processor;
+        private final boolean envelopes;
+        private final Object[] queue = new Object[WORKER_BUFFER];
+        // The next slot to deliver, only written by the drain loop
+        private final AtomicLong head = new AtomicLong();
+        // The next slot to queue into, only written by the source
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        // The envelopes delivered to a processor that it hasn't acknowledged yet, in the order they were delivered
+        private final ArrayDeque<MessageEnvelope<?>> unacknowledged;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile Throwable error;
+        private volatile Throwable invalidRequest;
+        private volatile Subscription acks;
+
+        @SuppressWarnings("unchecked")
+        Worker(Subscriber<?> subscriber) {
+            this.subscriber = (Subscriber<Object>) subscriber;
+            this.processor = subscriber instanceof Processor;
+            // Blocking subscribers take the envelopes of messages, to commit them once they've handled them
+            this.envelopes = method.elements() == HandlerMethod.Elements.ENVELOPES || method.blocking();
+            this.unacknowledged = processor ? new ArrayDeque<>() : null;
+        }
+
+        void start() {
+            if (processor) {
+                ((Processor<?, ?>) subscriber).subscribe(this);
+            }
+            try {
+                subscriber.onSubscribe(this);
+            } catch (Throwable t) {
+                // Rule 2.13, the subscription is considered cancelled
+                cancelled = true;
+                failed(t);
+            }
+        }
+
+        int queued() {
+            return (int) (tail.get() - head.get());
+        }
+
+        void offer(MessageEnvelope<?> envelope) {
+            long index = tail.get();
+            queue[(int) (index % WORKER_BUFFER)] = envelope;
+            tail.lazySet(index + 1);
+            drain();
+        }
+
+        void terminate(Throwable cause) {
+            error = cause;
+            done = true;
+            Subscription current = acks;
+            if (current != null) {
+                current.cancel();
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException(
+                        "Rule 3.9: Subscription.request must be called with a positive number, but was " + n);
+            } else {
+                for (;;) {
+                    long current = demand.get();
+                    long updated = current + n;
+                    if (updated < 0) {
+                        updated = Long.MAX_VALUE;
+                    }
+                    if (demand.compareAndSet(current, updated)) {
+                        break;
+                    }
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                failed(null);
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() == 0) {
+                context.executor().execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            for (;;) {
+                if (cancelled) {
+                    return;
+                }
+                if (invalidRequest != null) {
+                    cancelled = true;
+                    signalError(invalidRequest);
+                    failed(invalidRequest);
+                    return;
+                }
+                if (done && error != null) {
+                    // Nothing that's still queued is delivered after an error
+                    cancelled = true;
+                    signalError(error);
+                    return;
+                }
+
+                long requested = demand.get();
+                long emitted = 0;
+                long index = head.get();
+                try {
+                    while (emitted != requested && !cancelled && index != tail.get()) {
+                        int slot = (int) (index % WORKER_BUFFER);
+                        MessageEnvelope<?> envelope = (MessageEnvelope<?>) queue[slot];
+                        queue[slot] = null;
+                        head.lazySet(++index);
+                        deliver(envelope);
+                        emitted++;
+                    }
+                } catch (Throwable t) {
+                    // Rule 2.13, the subscription is considered cancelled
+                    cancelled = true;
+                    failed(t);
+                    return;
+                }
+                if (emitted != 0) {
+                    if (requested != Long.MAX_VALUE) {
+                        demand.addAndGet(-emitted);
+                    }
+                    replenish();
+                }
+                if (done && !cancelled && head.get() == tail.get()) {
+                    cancelled = true;
+                    try {
+                        subscriber.onComplete();
+                    } catch (Throwable t) {
+                        // Rule 2.13, nothing we can do
+                    }
+                    return;
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void deliver(MessageEnvelope<?> envelope) {
+            if (processor) {
+                synchronized (unacknowledged) {
+                    unacknowledged.add(envelope);
+                }
+                subscriber.onNext(envelopes ? envelope : envelope.message());
+            } else if (envelopes) {
+                subscriber.onNext(envelope);
+            } else {
+                Object message = envelope.message();
+                envelope.commit();
+                subscriber.onNext(message);
+            }
+        }
+
+        private void signalError(Throwable cause) {
+            try {
+                subscriber.onError(cause);
+            } catch (Throwable t) {
+                // Rule 2.13, nothing we can do
+            }
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            acks = subscription;
+            if (done) {
+                subscription.cancel();
+            } else {
+                subscription.request(Long.MAX_VALUE);
+            }
+        }
+
+        @Override
+        public void onNext(Object ack) {
+            MessageEnvelope<?> envelope;
+            synchronized (unacknowledged) {
+                envelope = unacknowledged.poll();
+            }
+            if (envelope != null) {
+                envelope.commit();
+            }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+            failed(cause);
+        }
+
+        @Override
+        public void onComplete() {
+            failed(null);
+        }
+    }
+}
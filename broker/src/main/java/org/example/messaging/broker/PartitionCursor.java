@@ -0,0 +1,150 @@
+package org.example.messaging.broker;
+
+/**
+ * A consumer's position in a partition.
+ *
+ * The cursor reads messages out of the partition's ring buffer while it keeps up. If the partition is durable, and
+ * the cursor falls so far behind that the messages it needs have been overwritten, it reads them from the log instead,
+ * switching back to the ring buffer once it has caught up. Messages read from the log are returned as
+ * {@link EncodedMessage}s, so that they're only decoded if they're used, and are shared with the partition's other
+ * cursors through its {@link LogReadCache}, so that when several cursors are catching up together, each message is
+ * only read from the log and decoded once.
+ *
+ * A cursor may have a {@link TypeFilter}, in which case the messages it filters out are skipped as if they had never
+ * been published, so the consumer never sees them, and they don't use up its demand.
+ *
+ * Cursors are not thread safe.
+ */
+final class PartitionCursor {
+
+    private final TopicPartition partition;
+    private final RingBuffer ring;
+    private final SegmentLog log;
+    private final LogReadCache cache;
+    private final TypeFilter filter;
+    private long next;
+    private long sequence = -1;
+    private LogReader reader;
+    private boolean filtered;
+
+    /**
+     * @param next The sequence of the first message to read.
+     */
+    PartitionCursor(TopicPartition partition, long next) {
+        this(partition, next, null);
+    }
+
+    /**
+     * @param next The sequence of the first message to read.
+     * @param filter The filter of the messages to poll, or null to poll every message.
+     */
+    PartitionCursor(TopicPartition partition, long next, TypeFilter filter) {
+        this.partition = partition;
+        this.ring = partition.ring();
+        this.log = partition.log();
+        this.cache = partition.logCache();
+        this.filter = filter;
+        this.next = next;
+    }
+
+    TopicPartition partition() {
+        return partition;
+    }
+
+    /**
+     * The sequence of the last message polled.
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * The sequence of the next message to read.
+     */
+    long next() {
+        return next;
+    }
+
+    /**
+     * Whether any messages have been filtered out since this was last called. If they have, every message before
+     * {@link #next()} has been either polled or filtered out.
+     */
+    boolean clearFiltered() {
+        boolean result = filtered;
+        filtered = false;
+        return result;
+    }
+
+    /**
+     * Poll the next message that passes the filter.
+     *
+     * @return The message, which may be an {@link EncodedMessage}, or null if there are no more messages available
+     *         yet.
+     */
+    Object poll() {
+        for (;;) {
+            Object message = read();
+            if (message == null || filter == null || filter.accepts(message)) {
+                return message;
+            }
+            filtered = true;
+        }
+    }
+
+    private Object read() {
+        long limit = partition.readLimit();
+        for (;;) {
+            if (reader != null) {
+                EncodedMessage message = next < limit ? cache.get(next) : null;
+                if (message == null && reader.nextFrom(next)) {
+                    message = reader.encodedMessage();
+                    cache.put(message);
+                }
+                if (message != null) {
+                    sequence = message.sequence();
+                    next = sequence + 1;
+                    // Go back to the ring buffer once we're comfortably within it
+                    if (next >= ring.oldestSequence() + ring.capacity() / 4) {
+                        reader = null;
+                    }
+                    return message;
+                }
+                // The log has no more records before the limit, so anything before it was never written
+                reader = null;
+                next = Math.max(next, limit);
+            }
+            if (next >= limit) {
+                return null;
+            }
+            if (log != null && next < ring.oldestSequence()) {
+                reader = log.reader(next);
+                continue;
+            }
+            Object message = ring.read(next);
+            if (message == RingBuffer.NOT_AVAILABLE) {
+                return null;
+            } else if (message == RingBuffer.OVERWRITTEN) {
+                if (log != null) {
+                    reader = log.reader(next);
+                } else {
+                    next = Math.max(next + 1, ring.oldestSequence());
+                }
+            } else if (message == RingBuffer.SKIPPED) {
+                next++;
+            } else {
+                sequence = next++;
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Whether there may be a message available to poll.
+     */
+    boolean mayBeAvailable() {
+        if (next >= partition.readLimit()) {
+            return false;
+        }
+        return reader != null || (log != null && next < ring.oldestSequence()) || ring.isAvailable(next);
+    }
+}
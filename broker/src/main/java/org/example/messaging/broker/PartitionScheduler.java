@@ -0,0 +1,213 @@
+package org.example.messaging.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns the partitions of {@link org.example.messaging.Partitioned} publishers to the nodes that run them.
+ *
+ * Each broker that is configured with a scheduler, using
+ * {@link BrokerSettings#withPartitionScheduler(PartitionScheduler, String, double)}, joins it as a node when it's
+ * created and leaves it when it's closed, and only runs the partitioned publisher streams for the partitions that are
+ * assigned to it. Nodes that aren't brokers in this JVM, for example nodes whose membership is learnt from elsewhere,
+ * can be added with {@link #join(String, double)}.
+ *
+ * Partitions are assigned by weighted rendezvous hashing: every node scores each partition with a hash of the node,
+ * topic and partition, scaled by the node's weight, and the partition is assigned to the node with the highest score.
+ * A node with twice the weight gets, on average, twice the partitions. Since a partition's scores don't depend on the
+ * other nodes, adding a node only moves the partitions that the new node now wins, about <tt>1/N</tt> of them for
+ * <tt>N</tt> equally weighted nodes, and removing a node only moves the partitions that it had.
+ *
+ * When the nodes change, every broker first stops the streams for the partitions it has lost, then starts the streams
+ * for the partitions it has gained. A publisher stream is invoked with the offset last stored for it, so for the new
+ * owner to resume where the old owner stopped, the brokers must share an {@link OffsetStore}.
+ */
+public final class PartitionScheduler {
+
+    /**
+     * A broker that is a node of the scheduler, and is told when the assignment changes.
+     */
+    interface Member {
+
+        /**
+         * Stop anything that is no longer assigned to the member.
+         */
+        void revoke();
+
+        /**
+         * Start anything that is newly assigned to the member.
+         */
+        void assign();
+    }
+
+    private static final class Node {
+        final String name;
+        final long hash;
+        final double weight;
+
+        Node(String name, double weight) {
+            this.name = name;
+            this.hash = mix(name.hashCode() * 0x9e3779b97f4a7c15L);
+            this.weight = weight;
+        }
+    }
+
+    private final Object lock = new Object();
+    // Immutable, replaced on each change
+    private volatile Node[] nodes = new Node[0];
+    private final Map<String, Member> members = new LinkedHashMap<>();
+
+    /**
+     * Add a node, or change the weight of a node.
+     *
+     * @param node The name of the node.
+     * @param weight The weight of the node, relative to the other nodes.
+     */
+    public void join(String node, double weight) {
+        join(node, weight, null);
+    }
+
+    /**
+     * Remove a node, its partitions are reassigned to the remaining nodes.
+     */
+    public void leave(String node) {
+        synchronized (lock) {
+            List<Node> updated = new ArrayList<>();
+            for (Node existing : nodes) {
+                if (!existing.name.equals(node)) {
+                    updated.add(existing);
+                }
+            }
+            if (updated.size() == nodes.length) {
+                return;
+            }
+            nodes = updated.toArray(new Node[0]);
+            // The leaving member revokes everything, but has nothing to assign
+            List<Member> notify = new ArrayList<>(members.values());
+            Member leaving = members.remove(node);
+            rebalance(notify, leaving);
+        }
+    }
+
+    void join(String node, double weight, Member member) {
+        if (node == null) {
+            throw new NullPointerException("node");
+        }
+        if (!(weight > 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("Node weight must be positive, but was " + weight);
+        }
+        synchronized (lock) {
+            List<Node> updated = new ArrayList<>();
+            for (Node existing : nodes) {
+                if (!existing.name.equals(node)) {
+                    updated.add(existing);
+                }
+            }
+            updated.add(new Node(node, weight));
+            nodes = updated.toArray(new Node[0]);
+            if (member != null) {
+                members.put(node, member);
+            }
+            rebalance(new ArrayList<>(members.values()), null);
+        }
+    }
+
+    private static void rebalance(List<Member> members, Member leaving) {
+        for (Member member : members) {
+            member.revoke();
+        }
+        for (Member member : members) {
+            if (member != leaving) {
+                member.assign();
+            }
+        }
+    }
+
+    /**
+     * The nodes and their weights.
+     */
+    public Map<String, Double> nodes() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Node node : nodes) {
+            result.put(node.name, node.weight);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * The node that the given partition is assigned to, or null if there are no nodes.
+     */
+    public String owner(String topic, int partition) {
+        Node[] current = nodes;
+        long key = key(topic, partition);
+        Node owner = null;
+        double best = Double.NEGATIVE_INFINITY;
+        for (Node node : current) {
+            double score = score(key, node.hash, node.weight);
+            if (score > best) {
+                best = score;
+                owner = node;
+            }
+        }
+        return owner == null ? null : owner.name;
+    }
+
+    /**
+     * Whether the given partition is assigned to the given node.
+     */
+    public boolean isOwner(String node, String topic, int partition) {
+        return node.equals(owner(topic, partition));
+    }
+
+    /**
+     * Choose one of <tt>n</tt> equally weighted lanes for a partition, such that changing the number of lanes moves
+     * as few partitions as possible.
+     */
+    static int lane(String topic, int partition, int n) {
+        long key = key(topic, partition);
+        int lane = 0;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            double score = score(key, mix((i + 1) * 0x9e3779b97f4a7c15L), 1);
+            if (score > best) {
+                best = score;
+                lane = i;
+            }
+        }
+        return lane;
+    }
+
+    private static long key(String topic, int partition) {
+        return mix(mix(topic.hashCode() * 0xc2b2ae3d27d4eb4fL) ^ partition);
+    }
+
+    /**
+     * The weighted score, <tt>-weight / ln(u)</tt> for a uniform <tt>u</tt> in (0, 1) hashed from the partition
+     * and node, which makes the chance of a node winning proportional to its weight.
+     */
+    private static double score(long key, long node, double weight) {
+        long hash = mix(key ^ node);
+        double uniform = ((hash >>> 11) + 0.5) * 0x1.0p-53;
+        return -weight / Math.log(uniform);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, to spread the bits of a hash.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "PartitionScheduler" + nodes();
+    }
+}
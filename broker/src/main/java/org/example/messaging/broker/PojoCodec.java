@@ -0,0 +1,369 @@
+package org.example.messaging.broker;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fast binary codec for simple classes, such as events made up of strings, primitives and enums.
+ *
+ * The codec handles one class, and writes its fields one after the other, with no type information or field names,
+ * so it's much faster and more compact than Java serialization. The fields are the non-static, non-transient fields
+ * of the class and its superclasses, superclass fields first, each in declaration order. Supported field types are
+ * primitives and their wrappers, {@link String}, <tt>byte[]</tt> and enums, which are written by name.
+ *
+ * Messages are created with a constructor whose parameter types are the types of the fields in that order, if there
+ * is one, otherwise with a no argument constructor, after which the fields are set directly. So a class like this:
+ *
+ * <pre>
+ * public class SomeEvent {
+ *     private final String value;
+ *
+ *     public SomeEvent(String value) {
+ *         this.value = value;
+ *     }
+ *     ...
+ * }
+ * </pre>
+ *
+ * Can be used without changes, by configuring its topic with <tt>withCodec("some-topic",
+ * PojoCodec.forClass(SomeEvent.class))</tt>.
+ *
+ * Since nothing but the values of the fields is written, adding, removing or reordering fields changes the format, so
+ * durable topics need a new topic, or a custom codec, when their message class changes.
+ */
+public final class PojoCodec<T> implements MessageCodec {
+
+    private enum Kind {
+        BOOLEAN, BYTE, SHORT, CHAR, INT, LONG, FLOAT, DOUBLE, STRING, BYTES, ENUM;
+
+        static Kind of(Class<?> type) {
+            if (type == boolean.class || type == Boolean.class) {
+                return BOOLEAN;
+            } else if (type == byte.class || type == Byte.class) {
+                return BYTE;
+            } else if (type == short.class || type == Short.class) {
+                return SHORT;
+            } else if (type == char.class || type == Character.class) {
+                return CHAR;
+            } else if (type == int.class || type == Integer.class) {
+                return INT;
+            } else if (type == long.class || type == Long.class) {
+                return LONG;
+            } else if (type == float.class || type == Float.class) {
+                return FLOAT;
+            } else if (type == double.class || type == Double.class) {
+                return DOUBLE;
+            } else if (type == String.class) {
+                return STRING;
+            } else if (type == byte[].class) {
+                return BYTES;
+            } else if (type.isEnum()) {
+                return ENUM;
+            }
+            return null;
+        }
+    }
+
+    private static final class Property {
+        final Field field;
+        final Kind kind;
+        /**
+         * Whether the value is a reference, which may be null, rather than a primitive.
+         */
+        final boolean nullable;
+        /**
+         * Gets the value, typed to take an Object and return the field's type if primitive, or Object otherwise.
+         */
+        final MethodHandle getter;
+
+        Property(Field field, Kind kind, MethodHandle getter) {
+            this.field = field;
+            this.kind = kind;
+            this.nullable = !field.getType().isPrimitive();
+            this.getter = getter;
+        }
+    }
+
+    private final Class<T> type;
+    private final Property[] properties;
+    /**
+     * Takes the field values in an array, and returns the message, or null if fields are set directly.
+     */
+    private final MethodHandle constructor;
+    private final Constructor<T> noArgsConstructor;
+
+    private PojoCodec(Class<T> type, Property[] properties, MethodHandle constructor,
+            Constructor<T> noArgsConstructor) {
+        this.type = type;
+        this.properties = properties;
+        this.constructor = constructor;
+        this.noArgsConstructor = noArgsConstructor;
+    }
+
+    /**
+     * Create a codec for the given class.
+     *
+     * @throws IllegalArgumentException If the class has a field of an unsupported type, or there's no way to create
+     *                                  instances of it.
+     */
+    public static <T> PojoCodec<T> forClass(Class<T> type) {
+        if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+            throw new IllegalArgumentException("PojoCodec can't create instances of abstract " + type);
+        }
+        List<Class<?>> hierarchy = new ArrayList<>();
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<Property> properties = new ArrayList<>();
+        for (Class<?> c : hierarchy) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                Kind kind = Kind.of(field.getType());
+                if (kind == null) {
+                    throw new IllegalArgumentException("Field " + field.getName() + " of " + type + " has type "
+                            + field.getType().getName() + ", which PojoCodec doesn't support");
+                }
+                field.setAccessible(true);
+                MethodHandle getter;
+                try {
+                    getter = lookup.unreflectGetter(field);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException("Can't access field " + field.getName() + " of " + type, e);
+                }
+                Class<?> valueType = field.getType().isPrimitive() ? field.getType() : Object.class;
+                properties.add(new Property(field, kind, getter.asType(MethodType.methodType(valueType,
+                        Object.class))));
+            }
+        }
+
+        Class<?>[] fieldTypes = new Class<?>[properties.size()];
+        for (int i = 0; i < fieldTypes.length; i++) {
+            fieldTypes[i] = properties.get(i).field.getType();
+        }
+        MethodHandle constructor = null;
+        Constructor<T> noArgsConstructor = null;
+        for (Constructor<?> candidate : type.getDeclaredConstructors()) {
+            if (Arrays.equals(candidate.getParameterTypes(), fieldTypes)) {
+                candidate.setAccessible(true);
+                try {
+                    constructor = lookup.unreflectConstructor(candidate)
+                            .asSpreader(Object[].class, fieldTypes.length)
+                            .asType(MethodType.methodType(Object.class, Object[].class));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException("Can't access constructor of " + type, e);
+                }
+                break;
+            }
+        }
+        if (constructor == null) {
+            try {
+                noArgsConstructor = type.getDeclaredConstructor();
+                noArgsConstructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(type + " has neither a constructor that takes its fields, "
+                        + Arrays.toString(fieldTypes) + ", nor a no argument constructor");
+            }
+        }
+        return new PojoCodec<>(type, properties.toArray(new Property[0]), constructor, noArgsConstructor);
+    }
+
+    @Override
+    public void encode(Object message, ByteBuffer target) {
+        if (!type.isInstance(message)) {
+            throw new IllegalArgumentException("PojoCodec for " + type.getName() + " can't encode " + message);
+        }
+        try {
+            for (Property property : properties) {
+                if (property.nullable) {
+                    Object value = (Object) property.getter.invokeExact(message);
+                    if (property.kind != Kind.STRING && property.kind != Kind.BYTES) {
+                        // Strings and byte arrays encode null as a negative length
+                        target.put((byte) (value == null ? 0 : 1));
+                        if (value == null) {
+                            continue;
+                        }
+                    }
+                    encodeReference(property.kind, value, target);
+                } else {
+                    encodePrimitive(property, message, target);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to encode " + message, t);
+        }
+    }
+
+    private static void encodePrimitive(Property property, Object message, ByteBuffer target) throws Throwable {
+        MethodHandle getter = property.getter;
+        switch (property.kind) {
+            case BOOLEAN:
+                target.put((byte) ((boolean) getter.invokeExact(message) ? 1 : 0));
+                break;
+            case BYTE:
+                target.put((byte) getter.invokeExact(message));
+                break;
+            case SHORT:
+                target.putShort((short) getter.invokeExact(message));
+                break;
+            case CHAR:
+                target.putChar((char) getter.invokeExact(message));
+                break;
+            case INT:
+                target.putInt((int) getter.invokeExact(message));
+                break;
+            case LONG:
+                target.putLong((long) getter.invokeExact(message));
+                break;
+            case FLOAT:
+                target.putFloat((float) getter.invokeExact(message));
+                break;
+            case DOUBLE:
+                target.putDouble((double) getter.invokeExact(message));
+                break;
+            default:
+                throw new AssertionError(property.kind);
+        }
+    }
+
+    private static void encodeReference(Kind kind, Object value, ByteBuffer target) {
+        switch (kind) {
+            case BOOLEAN:
+                target.put((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case BYTE:
+                target.put((Byte) value);
+                break;
+            case SHORT:
+                target.putShort((Short) value);
+                break;
+            case CHAR:
+                target.putChar((Character) value);
+                break;
+            case INT:
+                target.putInt((Integer) value);
+                break;
+            case LONG:
+                target.putLong((Long) value);
+                break;
+            case FLOAT:
+                target.putFloat((Float) value);
+                break;
+            case DOUBLE:
+                target.putDouble((Double) value);
+                break;
+            case STRING:
+                putBytes(value == null ? null : ((String) value).getBytes(StandardCharsets.UTF_8), target);
+                break;
+            case BYTES:
+                putBytes((byte[]) value, target);
+                break;
+            case ENUM:
+                putBytes(((Enum<?>) value).name().getBytes(StandardCharsets.UTF_8), target);
+                break;
+            default:
+                throw new AssertionError(kind);
+        }
+    }
+
+    private static void putBytes(byte[] bytes, ByteBuffer target) {
+        if (bytes == null) {
+            target.putInt(-1);
+        } else {
+            target.putInt(bytes.length);
+            target.put(bytes);
+        }
+    }
+
+    @Override
+    public String typeName(ByteBuffer source) {
+        return type.getName();
+    }
+
+    @Override
+    public Object decode(ByteBuffer source) {
+        Object[] values = new Object[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            Property property = properties[i];
+            boolean present = !property.nullable || property.kind == Kind.STRING || property.kind == Kind.BYTES
+                    || source.get() != 0;
+            values[i] = present ? decodeValue(property, source) : null;
+        }
+        try {
+            if (constructor != null) {
+                return (Object) constructor.invokeExact(values);
+            }
+            T message = noArgsConstructor.newInstance();
+            for (int i = 0; i < properties.length; i++) {
+                properties[i].field.set(message, values[i]);
+            }
+            return message;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to create " + type.getName(), t);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object decodeValue(Property property, ByteBuffer source) {
+        switch (property.kind) {
+            case BOOLEAN:
+                return source.get() != 0;
+            case BYTE:
+                return source.get();
+            case SHORT:
+                return source.getShort();
+            case CHAR:
+                return source.getChar();
+            case INT:
+                return source.getInt();
+            case LONG:
+                return source.getLong();
+            case FLOAT:
+                return source.getFloat();
+            case DOUBLE:
+                return source.getDouble();
+            case STRING: {
+                byte[] bytes = getBytes(source);
+                return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+            }
+            case BYTES:
+                return getBytes(source);
+            case ENUM:
+                return Enum.valueOf((Class) property.field.getType(), new String(getBytes(source),
+                        StandardCharsets.UTF_8));
+            default:
+                throw new AssertionError(property.kind);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer source) {
+        int length = source.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        source.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PojoCodec(" + type.getName() + ")";
+    }
+}
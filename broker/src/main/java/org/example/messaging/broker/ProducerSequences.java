@@ -0,0 +1,190 @@
+package org.example.messaging.broker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * The latest producer sequence that each idempotent producer has published to a partition, see
+ * {@link BrokerSettings#withIdempotentPublishing(String)}.
+ *
+ * Since a producer's sequences only ever increase, its window is just its latest sequence: a message is a duplicate
+ * if its producer sequence isn't after it. A producer is only ever published by one stream at a time, so the stream
+ * looks its producer up once, when it starts, and then checks and advances its sequence without contention.
+ *
+ * For a durable partition, the producer id and sequence of each message are appended to the log with it. Each time
+ * the log rolls, the writer also snapshots the latest sequence of each producer that it has appended, to a file named
+ * after the sequence the snapshot was taken at. When the partition is opened, the sequences are recovered from the
+ * latest valid snapshot, and the records appended after it, or if there's no snapshot, from the whole log, so however
+ * long ago a producer last published, its sequence is never lost. Compaction keeps the latest record of each producer
+ * for the same reason. Only the latest few snapshots are kept.
+ */
+final class ProducerSequences {
+
+    /**
+     * The number of snapshots kept, so that if the latest is corrupt, there's an earlier one to fall back on.
+     */
+    private static final int SNAPSHOTS_KEPT = 2;
+    private static final String SNAPSHOT_SUFFIX = ".producers";
+
+    private final ConcurrentMap<Long, Producer> producers = new ConcurrentHashMap<>();
+
+    /**
+     * The id of the producer that publishes the given stream of a handler publisher method. Only one handler can be
+     * registered with a broker for each stream id, so each producer is published by one stream.
+     */
+    static long producerId(String streamId, int partition) {
+        // Never 0, which records without a producer have
+        return KeyIndex.hash(streamId + "#" + partition);
+    }
+
+    Producer producer(long id) {
+        return producers.computeIfAbsent(id, Producer::new);
+    }
+
+    /**
+     * Recover the latest sequences from the latest snapshot of the given log, and the records appended after it.
+     *
+     * @return The latest sequence of each producer in the log, by producer id, for the log's writer to carry on
+     *         snapshotting from.
+     */
+    KeyIndex recover(SegmentLog log) throws IOException {
+        KeyIndex appended = new KeyIndex(16);
+        long from = 0;
+        List<Long> snapshots = snapshots(log.directory());
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            long sequence = snapshots.get(i);
+            // A snapshot past the end of the log is of records that were lost when it was recovered
+            if (sequence <= log.written().get() && readSnapshot(snapshotFile(log.directory(), sequence), appended)) {
+                from = sequence;
+                break;
+            }
+        }
+        LogReader reader = log.reader(from);
+        while (reader.next()) {
+            if (reader.producerId() != 0) {
+                appended.put(reader.producerId(), reader.producerSequence());
+            }
+        }
+        appended.forEach((id, sequence) -> producer(id).published(sequence));
+        return appended;
+    }
+
+    /**
+     * Snapshot the latest sequences of the producers of the records of a log, and delete all but the latest few
+     * snapshots.
+     *
+     * The snapshot is written to a temporary file, forced, and then moved into place, so a snapshot file is either
+     * complete, or doesn't exist.
+     *
+     * @param sequence The sequence after the last record that the sequences include.
+     */
+    static void snapshot(Path directory, long sequence, KeyIndex sequences) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + sequences.size() * 16);
+        buffer.position(8);
+        sequences.forEach((id, producerSequence) -> buffer.putLong(id).putLong(producerSequence));
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, buffer.position() - 8);
+        buffer.putInt(0, sequences.size()).putInt(4, (int) crc.getValue());
+        buffer.flip();
+        Path file = snapshotFile(directory, sequence);
+        Path temporary = directory.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        List<Long> snapshots = snapshots(directory);
+        for (int i = 0; i < snapshots.size() - SNAPSHOTS_KEPT; i++) {
+            Files.deleteIfExists(snapshotFile(directory, snapshots.get(i)));
+        }
+    }
+
+    /**
+     * Read a snapshot into the given index.
+     *
+     * @return false if the snapshot is corrupt, in which case nothing is read.
+     */
+    private static boolean readSnapshot(Path file, KeyIndex sequences) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() < 8) {
+            return false;
+        }
+        int count = buffer.getInt(0);
+        if (count < 0 || buffer.remaining() != 8 + count * 16L) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, count * 16);
+        if (buffer.getInt(4) != (int) crc.getValue()) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            sequences.put(buffer.getLong(8 + i * 16), buffer.getLong(16 + i * 16));
+        }
+        return true;
+    }
+
+    /**
+     * The sequences of the snapshots in the given directory, in order.
+     */
+    private static List<Long> snapshots(Path directory) throws IOException {
+        List<Long> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SNAPSHOT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                snapshots.add(Long.parseLong(name.substring(0, name.length() - SNAPSHOT_SUFFIX.length())));
+            }
+        }
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    private static Path snapshotFile(Path directory, long sequence) {
+        return directory.resolve(String.format("%020d", sequence) + SNAPSHOT_SUFFIX);
+    }
+
+    static final class Producer {
+
+        private final long id;
+        private volatile long lastSequence = -1;
+
+        private Producer(long id) {
+            this.id = id;
+        }
+
+        long id() {
+            return id;
+        }
+
+        /**
+         * Whether a message with the given producer sequence has already been published.
+         */
+        boolean isDuplicate(long sequence) {
+            return sequence <= lastSequence;
+        }
+
+        void published(long sequence) {
+            if (sequence > lastSequence) {
+                lastSequence = sequence;
+            }
+        }
+
+        long lastSequence() {
+            return lastSequence;
+        }
+    }
+}
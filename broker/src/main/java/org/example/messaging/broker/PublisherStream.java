@@ -0,0 +1,94 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.reactivestreams.Publisher;
+
+/**
+ * A supervised stream for one partition of a handler's {@link org.example.messaging.MessagePublisher} method.
+ *
+ * Each incarnation invokes the publisher method with the offset of the last message that was published, and
+ * publishes the elements of the returned publisher to the topic. The offset of the last envelope or batch published
+ * is stored, so that it can be passed to the next incarnation.
+ *
+ * If publishing to the topic is idempotent, the stream is a producer, whose id is derived from the stream's id and
+ * partition, so that each incarnation, and each incarnation after the broker restarts, is the same producer, and the
+ * messages that it republishes after resuming from the stored offset are dropped.
+ */
+final class PublisherStream extends SupervisedStream {
+
+    private final Object handler;
+    private final HandlerMethod method;
+    private final TopicPartition topicPartition;
+    private final int partition;
+    private volatile TopicSink sink;
+
+    PublisherStream(BrokerContext context, Object handler, HandlerMethod method, TopicPartition topicPartition,
+            int partition) {
+        super(context, method.streamId() + "#" + partition, StreamMetrics.Kind.PUBLISHER, topicPartition);
+        this.handler = handler;
+        this.method = method;
+        this.topicPartition = topicPartition;
+        this.partition = partition;
+    }
+
+    @Override
+    protected void startStream() throws Throwable {
+        OffsetStore offsetStore = context.offsetStore();
+        String streamId = method.streamId();
+        MessageOffset offset = offsetStore.load(streamId, partition);
+        Publisher<?> publisher = (Publisher<?>) method.invoke(handler, offset, partition);
+        if (publisher == null) {
+            throw new NullPointerException("Publisher method " + method + " returned null");
+        }
+        ProducerSequences producerSequences = topicPartition.producerSequences();
+        ProducerSequences.Producer producer = producerSequences == null ? null
+                : producerSequences.producer(ProducerSequences.producerId(streamId, partition));
+        TopicSink sink = new TopicSink(context, topicPartition, method.elements(), producer, new TopicSink.Listener() {
+            @Override
+            public void published(Object element, long sequence) {
+                if (element instanceof MessageEnvelope) {
+                    MessageEnvelope<?> envelope = (MessageEnvelope<?>) element;
+                    meter().messages(1);
+                    storeOffset(envelope.offset());
+                    envelope.commit();
+                } else if (element instanceof MessageBatch) {
+                    MessageBatch<?> batch = (MessageBatch<?>) element;
+                    meter().messages(batch.size());
+                    storeOffset(batch.lastOffset());
+                    batch.commit();
+                } else {
+                    meter().messages(1);
+                }
+            }
+
+            private void storeOffset(MessageOffset published) {
+                if (published != MessageOffset.None.INSTANCE) {
+                    offsetStore.store(streamId, partition, published);
+                }
+            }
+
+            @Override
+            public void terminated(Throwable error) {
+                streamTerminated(error);
+            }
+        });
+        this.sink = sink;
+        publisher.subscribe(sink);
+    }
+
+    @Override
+    long outstandingDemand() {
+        TopicSink current = sink;
+        return current == null ? 0 : current.outstanding();
+    }
+
+    @Override
+    protected void stopStream() {
+        TopicSink current = sink;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+}
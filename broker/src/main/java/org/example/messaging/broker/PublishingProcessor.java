@@ -0,0 +1,241 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A processor returned by a direct client {@link org.example.messaging.MessagePublisher} method, that publishes the
+ * elements it receives to a topic partition, and emits an acknowledgement for each element once it's been published.
+ *
+ * For a durable partition, an element has only been published once it's durable, so its acknowledgement is held back
+ * until then. The partition makes messages durable in order, a whole group commit at a time, so the held back
+ * acknowledgements are emitted in order as each group becomes durable, while the elements after them carry on being
+ * published. An element that is an envelope or batch is only committed when it's acknowledged.
+ *
+ * The sink never requests more elements than the acknowledgement subscriber has requested acknowledgements, so the
+ * acknowledgements that are held back never exceed the subscriber's demand.
+ */
+final class PublishingProcessor implements Processor<Object, Object>, TopicSink.Listener, Subscription, Wakeable,
+        Runnable {
+
+    /**
+     * An element waiting to become durable.
+     */
+    private static final class Pending {
+        final Object element;
+        final long sequence;
+
+        Pending(Object element, long sequence) {
+            this.element = element;
+            this.sequence = sequence;
+        }
+    }
+
+    private final TopicPartition partition;
+    private final TopicSink sink;
+    private final Function<Object, Object> acknowledgement;
+    private final Cursor durable;
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final AtomicBoolean terminalSignalled = new AtomicBoolean();
+    private volatile Subscriber<Object> subscriber;
+    private volatile boolean parked;
+    private volatile boolean cancelled;
+    private volatile boolean terminated;
+    private volatile Throwable error;
+
+    PublishingProcessor(BrokerContext context, TopicPartition partition, HandlerMethod.Elements elements,
+            Function<Object, Object> acknowledgement) {
+        this.partition = partition;
+        this.sink = new TopicSink(context, partition, elements, this);
+        this.acknowledgement = acknowledgement;
+        this.durable = partition.durable();
+        if (durable != null) {
+            partition.addAcknowledger(this);
+        }
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Object> s) {
+        if (s == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            s.onSubscribe(CancelledSubscription.INSTANCE);
+            s.onError(new IllegalStateException("This processor only supports one subscriber"));
+            return;
+        }
+        subscriber = s;
+        s.onSubscribe(this);
+        if (terminated) {
+            drain();
+        }
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        sink.onSubscribe(subscription);
+    }
+
+    @Override
+    public void onNext(Object element) {
+        sink.onNext(element);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        sink.onError(t);
+    }
+
+    @Override
+    public void onComplete() {
+        sink.onComplete();
+    }
+
+    @Override
+    public void published(Object element, long sequence) {
+        demand.decrementAndGet();
+        if (durable == null) {
+            acknowledge(element);
+        } else {
+            pending.offer(new Pending(element, sequence));
+            drain();
+        }
+    }
+
+    private void acknowledge(Object element) {
+        if (element instanceof MessageEnvelope) {
+            ((MessageEnvelope<?>) element).commit();
+        } else if (element instanceof MessageBatch) {
+            ((MessageBatch<?>) element).commit();
+        }
+        subscriber.onNext(acknowledgement.apply(element));
+    }
+
+    @Override
+    public long credit() {
+        return demand.get() - sink.outstanding();
+    }
+
+    @Override
+    public void terminated(Throwable error) {
+        if (error != null) {
+            this.error = error;
+        }
+        terminated = true;
+        if (subscriber != null) {
+            drain();
+        }
+    }
+
+    @Override
+    public void wake() {
+        if (parked) {
+            parked = false;
+            partition.executor().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        drain();
+    }
+
+    /**
+     * Emit the acknowledgements of the elements that have become durable, and the terminal signal once they've all
+     * been emitted, or straight away if the sink failed.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            if (cancelled || terminalSignalled.get()) {
+                pending.clear();
+                return;
+            }
+            if (error == null) {
+                long limit = durable == null ? Long.MAX_VALUE : durable.get();
+                Pending next;
+                while ((next = pending.peek()) != null && next.sequence < limit && !cancelled) {
+                    pending.poll();
+                    acknowledge(next.element);
+                }
+            }
+            if (terminated && (error != null || pending.isEmpty())) {
+                signalTerminated();
+                return;
+            }
+            Pending next = pending.peek();
+            if (next != null) {
+                parked = true;
+                // The messages may have become durable before we parked
+                if (next.sequence < durable.get()) {
+                    parked = false;
+                    continue;
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void signalTerminated() {
+        if (!terminalSignalled.compareAndSet(false, true)) {
+            return;
+        }
+        if (durable != null) {
+            partition.removeAcknowledger(this);
+        }
+        Throwable t = error;
+        if (t != null) {
+            subscriber.onError(t);
+        } else {
+            subscriber.onComplete();
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            error = new IllegalArgumentException(
+                    "Rule 3.9: Subscription.request must be called with a positive number, but was " + n);
+            sink.cancel();
+            return;
+        }
+        for (;;) {
+            long current = demand.get();
+            long updated = current + n;
+            if (updated < 0) {
+                updated = Long.MAX_VALUE;
+            }
+            if (demand.compareAndSet(current, updated)) {
+                break;
+            }
+        }
+        sink.replenish();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        if (durable != null) {
+            partition.removeAcknowledger(this);
+        }
+        sink.cancel();
+    }
+}
@@ -0,0 +1,19 @@
+package org.example.messaging.broker;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares that the subscriber of a {@link org.example.messaging.MessageSubscriber} method that consumes
+ * {@link org.example.messaging.MessageEnvelope}s doesn't use an envelope in any way once it has committed it.
+ *
+ * The {@link InMemoryMessageBroker} then reuses committed envelopes for later messages, rather than allocating a new
+ * envelope for every message. Envelopes that are never committed are simply not reused, so they're still safe to
+ * hold on to.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ReusableEnvelopes {
+}
@@ -0,0 +1,324 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer ring buffer of messages.
+ *
+ * Producers claim ranges of sequences up front with {@link #tryClaim(int)}, and then must publish every sequence they
+ * claimed, either with a message or with {@link #SKIPPED} if they end up not using it. Claiming is a single CAS on the
+ * claim cursor, which when there's only one writer for a partition is never contended. Producers cache the minimum of
+ * the gating cursors along with the set of cursors it was computed from, and only read the cursors again once a claim
+ * would pass the cached minimum, or the set has changed.
+ *
+ * Consumers don't take anything out of the buffer, they just read at their own sequence using {@link #read(long)}.
+ * Slots are only reused once every gating cursor has moved past them, so a consumer that holds a gating cursor will
+ * never miss a message, and a producer that can't claim simply has to wait until the slowest gating consumer moves on.
+ * Each slot is stamped with the sequence that was last published to it, so readers never need a shared cursor to
+ * know whether a sequence is available.
+ *
+ * Consumers that don't hold a gating cursor may find that the slot they want has been reused. While a slot is being
+ * reused, its stamp holds the complement of the new sequence, and readers check the stamp again after reading the
+ * entry, so such a consumer will always either read the right message, or be told it was overwritten.
+ *
+ * Each slot also records the time its message was published, if the producer supplied one, which is read the same
+ * way, for measuring consumer lag and latency. A ring buffer can also record the idempotent producer id and sequence
+ * of each message, for the log writer to append along with it.
+ */
+final class RingBuffer {
+
+    /**
+     * Published in place of a message for a claimed sequence that was never used.
+     */
+    static final Object SKIPPED = new Object() {
+        @Override
+        public String toString() {
+            return "SKIPPED";
+        }
+    };
+
+    /**
+     * Returned by {@link #read(long)} if the sequence hasn't been published yet.
+     */
+    static final Object NOT_AVAILABLE = new Object() {
+        @Override
+        public String toString() {
+            return "NOT_AVAILABLE";
+        }
+    };
+
+    /**
+     * Returned by {@link #read(long)} if the slot for the sequence has since been reused for a later sequence.
+     */
+    static final Object OVERWRITTEN = new Object() {
+        @Override
+        public String toString() {
+            return "OVERWRITTEN";
+        }
+    };
+
+    private static final Cursor[] NO_CURSORS = new Cursor[0];
+
+    /**
+     * The minimum of a set of gating cursors, as of when it was computed, which is only valid while the set is the
+     * same. Held as one immutable object, so that a producer can never pair a minimum with a set it wasn't computed
+     * from.
+     */
+    private static final class CachedGating {
+        final Cursor[] cursors;
+        final long minimum;
+
+        CachedGating(Cursor[] cursors, long minimum) {
+            this.cursors = cursors;
+            this.minimum = minimum;
+        }
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Object> entries;
+    private final AtomicLongArray stamps;
+    private final AtomicLongArray publishedAt;
+    private final AtomicLongArray producerIds;
+    private final AtomicLongArray producerSequences;
+    private final long initialSequence;
+    private final Cursor claimed;
+    private final AtomicReference<Cursor[]> gatingCursors = new AtomicReference<>(NO_CURSORS);
+    private volatile CachedGating cachedGating;
+
+    /**
+     * @param capacity The capacity, must be a power of two.
+     * @param initialSequence The first sequence that will be claimed.
+     */
+    RingBuffer(int capacity, long initialSequence) {
+        this(capacity, initialSequence, false);
+    }
+
+    /**
+     * @param capacity The capacity, must be a power of two.
+     * @param initialSequence The first sequence that will be claimed.
+     * @param producers Whether to record the producer id and sequence of each message.
+     */
+    RingBuffer(int capacity, long initialSequence, boolean producers) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring buffer capacity must be a power of two, but was " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.stamps = new AtomicLongArray(capacity);
+        this.publishedAt = new AtomicLongArray(capacity);
+        this.producerIds = producers ? new AtomicLongArray(capacity) : null;
+        this.producerSequences = producers ? new AtomicLongArray(capacity) : null;
+        this.initialSequence = initialSequence;
+        this.claimed = new Cursor(initialSequence);
+        this.cachedGating = new CachedGating(NO_CURSORS, initialSequence);
+        for (int i = 0; i < capacity; i++) {
+            stamps.lazySet(i, -1);
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * The next sequence that will be claimed.
+     */
+    long nextSequence() {
+        return claimed.get();
+    }
+
+    /**
+     * The lowest sequence that may still be read from the buffer.
+     */
+    long oldestSequence() {
+        return Math.max(initialSequence, claimed.get() - capacity);
+    }
+
+    /**
+     * Try to claim <tt>n</tt> consecutive sequences.
+     *
+     * @return The first claimed sequence, or -1 if there isn't enough free capacity.
+     */
+    long tryClaim(int n) {
+        if (n < 1 || n > capacity) {
+            throw new IllegalArgumentException("Can't claim " + n + " slots from a ring buffer of size " + capacity);
+        }
+        for (;;) {
+            long current = claimed.get();
+            long next = current + n;
+            long wrapPoint = next - capacity;
+            CachedGating cached = cachedGating;
+            // A cursor added since the minimum was cached isn't in it, so it's only used while the set is unchanged
+            if (wrapPoint > cached.minimum || cached.cursors != gatingCursors.get()) {
+                Cursor[] cursors = gatingCursors.get();
+                long gating = minimumGating(cursors, current);
+                cachedGating = new CachedGating(cursors, gating);
+                if (wrapPoint > gating) {
+                    return -1;
+                }
+            }
+            if (claimed.compareAndSet(current, next)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * The number of slots that could currently be claimed.
+     */
+    int remainingCapacity() {
+        long current = claimed.get();
+        return (int) Math.max(0, capacity - (current - minimumGating(gatingCursors.get(), current)));
+    }
+
+    /**
+     * Publish a message to a previously claimed sequence.
+     */
+    void publish(long sequence, Object message) {
+        publish(sequence, message, 0);
+    }
+
+    /**
+     * Publish a message to a previously claimed sequence.
+     *
+     * @param time The {@link System#nanoTime()} that the message was published at, or zero if not known.
+     */
+    void publish(long sequence, Object message, long time) {
+        publish(sequence, message, time, 0, 0);
+    }
+
+    /**
+     * Publish a message to a previously claimed sequence.
+     *
+     * @param time The {@link System#nanoTime()} that the message was published at, or zero if not known.
+     * @param producerId The id of the idempotent producer that published the message, or 0 if it has none.
+     * @param producerSequence The producer sequence of the message.
+     */
+    void publish(long sequence, Object message, long time, long producerId, long producerSequence) {
+        int index = (int) sequence & mask;
+        stamps.set(index, ~sequence);
+        publishedAt.lazySet(index, time);
+        if (producerIds != null) {
+            producerIds.lazySet(index, producerId);
+            producerSequences.lazySet(index, producerSequence);
+        }
+        entries.set(index, message);
+        // Volatile write, ordered after the entry, and before any subsequent check for parked consumers.
+        stamps.set(index, sequence);
+    }
+
+    /**
+     * Read the message at the given sequence.
+     *
+     * @return The message, {@link #SKIPPED}, {@link #NOT_AVAILABLE} or {@link #OVERWRITTEN}.
+     */
+    Object read(long sequence) {
+        int index = (int) sequence & mask;
+        long stamp = stamps.get(index);
+        if (stamp == sequence) {
+            Object entry = entries.get(index);
+            return stamps.get(index) == sequence ? entry : OVERWRITTEN;
+        } else if (stamp < 0) {
+            // Being published, either to this sequence, or overwritten by a later one
+            return ~stamp > sequence ? OVERWRITTEN : NOT_AVAILABLE;
+        } else if (stamp < sequence) {
+            return NOT_AVAILABLE;
+        } else {
+            return OVERWRITTEN;
+        }
+    }
+
+    /**
+     * The time the message at the given sequence was published.
+     *
+     * @return The {@link System#nanoTime()} it was published at, or zero if it isn't known, hasn't been published, or
+     *         has been overwritten.
+     */
+    long publishedAt(long sequence) {
+        int index = (int) sequence & mask;
+        if (stamps.get(index) != sequence) {
+            return 0;
+        }
+        long time = publishedAt.get(index);
+        return stamps.get(index) == sequence ? time : 0;
+    }
+
+    /**
+     * The id of the idempotent producer of the message at the given sequence, or 0 if it has none, or producers
+     * aren't recorded.
+     *
+     * Only valid for a gating consumer that has read the message, whose slot can't be reused until it moves on.
+     */
+    long producerId(long sequence) {
+        return producerIds == null ? 0 : producerIds.get((int) sequence & mask);
+    }
+
+    /**
+     * The producer sequence of the message at the given sequence, see {@link #producerId(long)}.
+     */
+    long producerSequence(long sequence) {
+        return producerSequences == null ? 0 : producerSequences.get((int) sequence & mask);
+    }
+
+    /**
+     * Whether the given sequence has been published.
+     */
+    boolean isAvailable(long sequence) {
+        long stamp = stamps.get((int) sequence & mask);
+        return stamp >= sequence || ~stamp > sequence;
+    }
+
+    /**
+     * Add a cursor that producers must not overtake.
+     *
+     * The cursor holds the next sequence its consumer needs, so every slot below it may be reused. Producers stop
+     * using the gating minimum they cached as soon as the cursor is added, but a claim that a producer checked just
+     * before may still go ahead, so a cursor added at a sequence that is about to be reused may find it
+     * {@link #OVERWRITTEN}.
+     */
+    void addGatingCursor(Cursor cursor) {
+        for (;;) {
+            Cursor[] current = gatingCursors.get();
+            Cursor[] updated = new Cursor[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = cursor;
+            if (gatingCursors.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    void removeGatingCursor(Cursor cursor) {
+        for (;;) {
+            Cursor[] current = gatingCursors.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == cursor) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            Cursor[] updated = current.length == 1 ? NO_CURSORS : new Cursor[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            if (gatingCursors.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    private static long minimumGating(Cursor[] cursors, long defaultValue) {
+        long minimum = defaultValue;
+        for (Cursor cursor : cursors) {
+            minimum = Math.min(minimum, cursor.get());
+        }
+        return minimum;
+    }
+}
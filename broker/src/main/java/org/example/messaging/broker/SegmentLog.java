@@ -0,0 +1,312 @@
+package org.example.messaging.broker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The append only log of a topic partition, split into fixed size memory mapped {@link LogSegment}s.
+ *
+ * There is exactly one writer, the partition's {@link LogWriter}, while any number of {@link LogReader}s may read
+ * concurrently. Readers never read past the writer's cursor, so they only ever see complete batches.
+ *
+ * Records are timestamped with the time they were appended, which the writer never lets go backwards, so the records
+ * of the log are in timestamp order as well as sequence order, and the first record appended at or after a given
+ * time can be found with {@link #sequenceAt(long)}.
+ *
+ * The sealed segments of a compacted log are replaced by their compacted copies, which are written to a directory of
+ * their own first, and then moved into place, see {@link LogCompactor}. Readers that are part way through a segment
+ * that's replaced carry on reading it, since it stays mapped, and its file is only closed once it has been retired for
+ * long enough that nothing should be transferring from it.
+ */
+final class SegmentLog {
+
+    private static final long RETIRED_GRACE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final MessageCodec codec;
+    private final BatchCompressor compressor;
+    private final ConcurrentNavigableMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private final Path compactingDirectory;
+    private final ConcurrentLinkedQueue<Retired> retired = new ConcurrentLinkedQueue<>();
+    private final Cursor written;
+    private final long recoveredLastTimestamp;
+    private LogSegment active;
+
+    private SegmentLog(Path directory, int segmentSize, int indexInterval, MessageCodec codec,
+            BatchCompressor compressor) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.codec = codec;
+        this.compressor = compressor;
+        this.compactingDirectory = directory.resolve("compacting");
+        Files.createDirectories(directory);
+        // Anything left here is from a compaction that didn't finish
+        if (Files.isDirectory(compactingDirectory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(compactingDirectory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+            }
+        }
+        bases.sort(null);
+        long next = 0;
+        long lastTimestamp = -1;
+        for (int i = 0; i < bases.size(); i++) {
+            boolean last = i == bases.size() - 1;
+            LogSegment segment = LogSegment.open(directory, bases.get(i), segmentSize, indexInterval, compressor,
+                    last);
+            segments.put(segment.baseSequence(), segment);
+            if (segment.firstTimestamp() != Long.MAX_VALUE) {
+                lastTimestamp = Math.max(lastTimestamp, segment.firstTimestamp());
+            }
+            if (last) {
+                active = segment;
+                lastTimestamp = Math.max(lastTimestamp, segment.recoveredLastTimestamp());
+                long lastSequence = segment.recoveredLastSequence();
+                next = lastSequence >= 0 ? lastSequence + 1 : segment.baseSequence();
+            }
+        }
+        if (active == null) {
+            active = LogSegment.create(directory, 0, segmentSize, indexInterval, compressor);
+            segments.put(0L, active);
+        }
+        this.written = new Cursor(next);
+        this.recoveredLastTimestamp = lastTimestamp;
+    }
+
+    /**
+     * Open the log in the given directory, recovering it if it already exists.
+     *
+     * @param compressor The compressor to compress batches with as they're written, and decompress them as they're
+     *                   read.
+     */
+    static SegmentLog open(Path directory, int segmentSize, int indexInterval, MessageCodec codec,
+            BatchCompressor compressor) {
+        try {
+            return new SegmentLog(directory, segmentSize, indexInterval, codec, compressor);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open log in " + directory, e);
+        }
+    }
+
+    /**
+     * The directory the log's files are in.
+     */
+    Path directory() {
+        return directory;
+    }
+
+    MessageCodec codec() {
+        return codec;
+    }
+
+    /**
+     * The size of the largest message that can be appended to the log.
+     */
+    int maxMessageSize() {
+        return LogSegment.maxMessageSize(segmentSize);
+    }
+
+    BatchCompressor compressor() {
+        return compressor;
+    }
+
+    /**
+     * The cursor of the writer, that is, the sequence after the last record in the log.
+     */
+    Cursor written() {
+        return written;
+    }
+
+    /**
+     * The latest timestamp of the records in the log when it was opened, or -1 if it was empty.
+     */
+    long recoveredLastTimestamp() {
+        return recoveredLastTimestamp;
+    }
+
+    /**
+     * The segment currently being written to. Only for use by the writer.
+     */
+    LogSegment active() {
+        return active;
+    }
+
+    /**
+     * Seal the active segment, and start a new one. Only for use by the writer.
+     *
+     * @param baseSequence The sequence that the next record written will have.
+     */
+    LogSegment roll(long baseSequence) throws IOException {
+        active.force();
+        LogSegment segment = LogSegment.create(directory, baseSequence, segmentSize, indexInterval, compressor);
+        segments.put(baseSequence, segment);
+        active = segment;
+        return segment;
+    }
+
+    /**
+     * Force the segments holding the given sequence and everything after it to disk.
+     */
+    void force(long from) {
+        for (LogSegment segment : segments.tailMap(segmentFor(from).baseSequence()).values()) {
+            segment.force();
+        }
+    }
+
+    /**
+     * The segments that have been sealed, that is, every segment but the last, in order.
+     */
+    List<LogSegment> sealedSegments() {
+        List<LogSegment> sealed = new ArrayList<>(segments.values());
+        sealed.remove(sealed.size() - 1);
+        return sealed;
+    }
+
+    /**
+     * Create a segment to write the compacted copy of the segment with the given base sequence to.
+     *
+     * @param compressor The compressor of the compactor, since the writer's compressor isn't thread safe.
+     */
+    LogSegment createCompacted(long baseSequence, BatchCompressor compressor) throws IOException {
+        Files.createDirectories(compactingDirectory);
+        LogSegment.deleteFiles(compactingDirectory, baseSequence);
+        return LogSegment.create(compactingDirectory, baseSequence, segmentSize, indexInterval, compressor);
+    }
+
+    /**
+     * Replace the segment with the same base sequence as the given compacted segment with it.
+     */
+    void replace(LogSegment compacted) throws IOException {
+        long baseSequence = compacted.baseSequence();
+        compacted.close();
+        LogSegment.moveFiles(compactingDirectory, directory, baseSequence);
+        LogSegment segment = LogSegment.open(directory, baseSequence, segmentSize, indexInterval, compressor, false);
+        LogSegment replaced = segments.put(baseSequence, segment);
+        if (replaced != null) {
+            retired.add(new Retired(replaced, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Throw away a compacted segment, since it turned out not to be worth replacing the original with.
+     */
+    void discard(LogSegment compacted) throws IOException {
+        compacted.close();
+        LogSegment.deleteFiles(compactingDirectory, compacted.baseSequence());
+    }
+
+    /**
+     * Close the segments that were replaced long enough ago.
+     */
+    void closeRetired() {
+        long now = System.nanoTime();
+        for (Iterator<Retired> iterator = retired.iterator(); iterator.hasNext(); ) {
+            Retired segment = iterator.next();
+            if (now - segment.retiredAt >= RETIRED_GRACE_NANOS) {
+                iterator.remove();
+                closeQuietly(segment.segment);
+            }
+        }
+    }
+
+    /**
+     * Get the segment that contains the given sequence.
+     */
+    LogSegment segmentFor(long sequence) {
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(sequence);
+        return entry == null ? segments.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * Get the segment after the given segment, or null if it's the last segment.
+     */
+    LogSegment segmentAfter(LogSegment segment) {
+        Map.Entry<Long, LogSegment> entry = segments.higherEntry(segment.baseSequence());
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Find the sequence of the first record appended at or after the given time.
+     *
+     * The segment to look in is the last one that starts before the time, its time index gives a sequence shortly
+     * before the record, and the records from there are scanned, without being decoded, until the record is found.
+     *
+     * @param timestamp The time, in milliseconds since the epoch.
+     * @return The sequence, or the sequence after the last record if every record was appended before the time.
+     */
+    long sequenceAt(long timestamp) {
+        LogSegment segment = null;
+        for (LogSegment candidate : segments.values()) {
+            if (segment != null && candidate.firstTimestamp() >= timestamp) {
+                break;
+            }
+            segment = candidate;
+        }
+        LogReader reader = reader(segment.lookupTime(timestamp));
+        while (reader.next()) {
+            if (reader.timestamp() >= timestamp) {
+                return reader.sequence();
+            }
+        }
+        return written.get();
+    }
+
+    /**
+     * Create a reader positioned at the first record with a sequence greater than or equal to the given sequence.
+     */
+    LogReader reader(long sequence) {
+        return new LogReader(this, sequence);
+    }
+
+    void close() {
+        for (LogSegment segment : segments.values()) {
+            closeQuietly(segment);
+        }
+        Retired segment;
+        while ((segment = retired.poll()) != null) {
+            closeQuietly(segment.segment);
+        }
+    }
+
+    private static void closeQuietly(LogSegment segment) {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            // Nothing more we can do
+        }
+    }
+
+    private static final class Retired {
+
+        final LogSegment segment;
+        final long retiredAt;
+
+        Retired(LogSegment segment, long retiredAt) {
+            this.segment = segment;
+            this.retiredAt = retiredAt;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An executor lane, that runs its tasks one at a time, in the order they were submitted, on an underlying executor.
+ *
+ * The lane only occupies a thread of the underlying executor while it has tasks, and gives the thread back after
+ * running a bounded number of them, so that lanes sharing an executor take turns.
+ */
+final class SerialExecutor implements Executor, Runnable {
+
+    private static final Logger log = Logger.getLogger(SerialExecutor.class.getName());
+
+    /**
+     * The number of tasks to run before giving the thread back.
+     */
+    private static final int TASKS_PER_TURN = 64;
+
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        int ran = 0;
+        for (;;) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.log(Level.SEVERE, "Task " + task + " failed", t);
+                }
+                if (++ran == TASKS_PER_TURN) {
+                    // Keep the lane scheduled, but let other lanes have the thread
+                    executor.execute(this);
+                    return;
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+}
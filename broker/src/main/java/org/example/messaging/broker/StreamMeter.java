@@ -0,0 +1,162 @@
+package org.example.messaging.broker;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the metrics of a supervised stream.
+ *
+ * Recording is lock-free, counters are striped so that recording from many threads doesn't contend, and the commit
+ * latency histogram doesn't allocate. Snapshots are only taken by the broker's metrics reporter, which keeps the last
+ * one for JMX.
+ */
+final class StreamMeter implements StreamMetricsMXBean {
+
+    private final String stream;
+    private final StreamMetrics.Kind kind;
+    private final String topic;
+    private final int partition;
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder restarts = new LongAdder();
+    private final LongAdder backoffNanos = new LongAdder();
+    private final LatencyHistogram commitLatency;
+
+    // Only accessed by the reporter
+    private long lastMessages;
+    private long lastReport = System.nanoTime();
+    private volatile StreamMetrics latest;
+
+    StreamMeter(String stream, StreamMetrics.Kind kind, TopicPartition partition) {
+        this.stream = stream;
+        this.kind = kind;
+        this.topic = partition.topic();
+        this.partition = partition.partition();
+        this.commitLatency = kind == StreamMetrics.Kind.SUBSCRIBER ? new LatencyHistogram() : null;
+        this.latest = new StreamMetrics(stream, kind, topic, this.partition, 0, 0, 0, Duration.ZERO, 0, 0,
+                Duration.ZERO, HistogramSnapshot.EMPTY);
+    }
+
+    /**
+     * Count messages published or delivered.
+     */
+    void messages(long count) {
+        messages.add(count);
+    }
+
+    void restarted(long backoff) {
+        restarts.increment();
+        backoffNanos.add(backoff);
+    }
+
+    /**
+     * The histogram of publish to commit latencies, or null for a publisher.
+     */
+    LatencyHistogram commitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Take a snapshot, covering the interval since the last snapshot.
+     */
+    StreamMetrics snapshot(long now, long lag, long lagNanos, long outstandingDemand) {
+        long total = messages.sum();
+        long elapsed = now - lastReport;
+        double rate = elapsed > 0 ? (total - lastMessages) * 1e9 / elapsed : 0;
+        lastMessages = total;
+        lastReport = now;
+        StreamMetrics snapshot = new StreamMetrics(stream, kind, topic, partition, total, rate, lag,
+                Duration.ofNanos(lagNanos), outstandingDemand, restarts.sum(), Duration.ofNanos(backoffNanos.sum()),
+                commitLatency == null ? HistogramSnapshot.EMPTY : commitLatency.snapshotAndReset());
+        latest = snapshot;
+        return snapshot;
+    }
+
+    @Override
+    public String getStream() {
+        return stream;
+    }
+
+    @Override
+    public String getKind() {
+        return kind.name();
+    }
+
+    @Override
+    public String getTopic() {
+        return topic;
+    }
+
+    @Override
+    public int getPartition() {
+        return partition;
+    }
+
+    @Override
+    public long getMessages() {
+        return latest.messages();
+    }
+
+    @Override
+    public double getMessageRate() {
+        return latest.messageRate();
+    }
+
+    @Override
+    public long getLag() {
+        return latest.lag();
+    }
+
+    @Override
+    public long getLagMillis() {
+        return latest.lagTime().toMillis();
+    }
+
+    @Override
+    public long getOutstandingDemand() {
+        return latest.outstandingDemand();
+    }
+
+    @Override
+    public long getRestarts() {
+        return latest.restarts();
+    }
+
+    @Override
+    public long getBackoffMillis() {
+        return latest.backoff().toMillis();
+    }
+
+    @Override
+    public long getCommitLatencyCount() {
+        return latest.commitLatency().count();
+    }
+
+    @Override
+    public double getCommitLatencyMeanMicros() {
+        return micros(latest.commitLatency().mean());
+    }
+
+    @Override
+    public double getCommitLatencyP50Micros() {
+        return micros(latest.commitLatency().percentile(50));
+    }
+
+    @Override
+    public double getCommitLatencyP99Micros() {
+        return micros(latest.commitLatency().percentile(99));
+    }
+
+    @Override
+    public double getCommitLatencyP999Micros() {
+        return micros(latest.commitLatency().percentile(99.9));
+    }
+
+    @Override
+    public double getCommitLatencyMaxMicros() {
+        return micros(latest.commitLatency().max());
+    }
+
+    private static double micros(Duration duration) {
+        return duration.toNanos() / 1e3;
+    }
+}
@@ -0,0 +1,147 @@
+package org.example.messaging.broker;
+
+import java.time.Duration;
+
+/**
+ * A snapshot of the metrics of one partition of a handler's publisher or subscriber method.
+ *
+ * Counts and durations are totals since the stream was registered, rates and the commit latency histogram cover the
+ * last reporting interval, and the lag and outstanding demand are as of the end of the interval.
+ */
+public final class StreamMetrics {
+
+    /**
+     * The kind of stream.
+     */
+    public enum Kind {
+        PUBLISHER,
+        SUBSCRIBER
+    }
+
+    private final String stream;
+    private final Kind kind;
+    private final String topic;
+    private final int partition;
+    private final long messages;
+    private final double messageRate;
+    private final long lag;
+    private final Duration lagTime;
+    private final long outstandingDemand;
+    private final long restarts;
+    private final Duration backoff;
+    private final HistogramSnapshot commitLatency;
+
+    StreamMetrics(String stream, Kind kind, String topic, int partition, long messages, double messageRate,
+            long lag, Duration lagTime, long outstandingDemand, long restarts, Duration backoff,
+            HistogramSnapshot commitLatency) {
+        this.stream = stream;
+        this.kind = kind;
+        this.topic = topic;
+        this.partition = partition;
+        this.messages = messages;
+        this.messageRate = messageRate;
+        this.lag = lag;
+        this.lagTime = lagTime;
+        this.outstandingDemand = outstandingDemand;
+        this.restarts = restarts;
+        this.backoff = backoff;
+        this.commitLatency = commitLatency;
+    }
+
+    /**
+     * The name of the stream, made up of the handler method and the partition.
+     */
+    public String stream() {
+        return stream;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public String topic() {
+        return topic;
+    }
+
+    public int partition() {
+        return partition;
+    }
+
+    /**
+     * The number of messages published by a publisher, or delivered to a subscriber.
+     */
+    public long messages() {
+        return messages;
+    }
+
+    /**
+     * The number of messages published or delivered per second over the last interval.
+     */
+    public double messageRate() {
+        return messageRate;
+    }
+
+    /**
+     * For a subscriber, the number of messages in the partition that it hasn't committed yet, zero for a publisher.
+     */
+    public long lag() {
+        return lag;
+    }
+
+    /**
+     * For a subscriber, how long ago the oldest message that it hasn't committed was published, zero for a publisher.
+     *
+     * If the message is no longer in the partition's ring buffer, this is the age of the oldest message that is, which
+     * is a lower bound.
+     */
+    public Duration lagTime() {
+        return lagTime;
+    }
+
+    /**
+     * For a subscriber, the demand it has requested that hasn't been delivered yet. For a publisher, the demand the
+     * broker has requested from it that it hasn't published yet.
+     */
+    public long outstandingDemand() {
+        return outstandingDemand;
+    }
+
+    /**
+     * The number of times the stream has terminated and been restarted.
+     */
+    public long restarts() {
+        return restarts;
+    }
+
+    /**
+     * The total time the stream has spent backing off before restarts.
+     */
+    public Duration backoff() {
+        return backoff;
+    }
+
+    /**
+     * For a subscriber, the time from messages being published to them being committed, empty for a publisher.
+     */
+    public HistogramSnapshot commitLatency() {
+        return commitLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamMetrics{" +
+                "stream='" + stream + '\'' +
+                ", kind=" + kind +
+                ", topic='" + topic + '\'' +
+                ", partition=" + partition +
+                ", messages=" + messages +
+                ", messageRate=" + messageRate +
+                ", lag=" + lag +
+                ", lagTime=" + lagTime +
+                ", outstandingDemand=" + outstandingDemand +
+                ", restarts=" + restarts +
+                ", backoff=" + backoff +
+                ", commitLatency=" + commitLatency +
+                '}';
+    }
+}
@@ -0,0 +1,44 @@
+package org.example.messaging.broker;
+
+/**
+ * The JMX view of the metrics of a stream, registered for each partition of each handler method when
+ * {@link BrokerSettings#withJmxEnabled(boolean)} is set.
+ *
+ * Attributes are as of the last reporting interval, see {@link StreamMetrics} for what they mean.
+ */
+public interface StreamMetricsMXBean {
+
+    String getStream();
+
+    String getKind();
+
+    String getTopic();
+
+    int getPartition();
+
+    long getMessages();
+
+    double getMessageRate();
+
+    long getLag();
+
+    long getLagMillis();
+
+    long getOutstandingDemand();
+
+    long getRestarts();
+
+    long getBackoffMillis();
+
+    long getCommitLatencyCount();
+
+    double getCommitLatencyMeanMicros();
+
+    double getCommitLatencyP50Micros();
+
+    double getCommitLatencyP99Micros();
+
+    double getCommitLatencyP999Micros();
+
+    double getCommitLatencyMaxMicros();
+}
@@ -0,0 +1,121 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageOffset;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The committed offset of a subscriber on a partition.
+ *
+ * This outlives the individual incarnations of the subscriber's stream, and retains the messages the subscriber hasn't
+ * committed in the partition, so that they can be redelivered when its stream is restarted.
+ *
+ * The committed offset moves forward in memory as soon as the subscriber commits, releasing capacity in the partition
+ * straight away, but it's only written to the offset store in batches, once
+ * {@link BrokerSettings#commitBatchSize()} messages have been committed since the last write, or
+ * {@link BrokerSettings#commitInterval()} after the first commit since the last write, and when the subscriber is
+ * stopped. If the broker stops without being closed, messages committed since the last write are redelivered, so
+ * delivery is still at least once.
+ *
+ * Each time the committed offset moves, the time from the last committed message being published to it being committed
+ * is recorded in the latency histogram, if there is one.
+ *
+ * The offset is loaded from the offset store when the subscriber is started. Normally it's the
+ * {@link MessageOffset.Sequence} of the last committed message, but a {@link MessageOffset.TimeUuid} may be stored in
+ * its place to move the subscriber to a point in time, for example with {@link MessageOffset.TimeUuid#startOf(long)},
+ * in which case the subscriber starts from the first message published at or after the time of the UUID. For a
+ * durable partition, that message is found using the time index of the log.
+ */
+final class SubscriberOffset {
+
+    private final BrokerContext context;
+    private final String streamId;
+    private final TopicPartition partition;
+    private final Cursor gating;
+    private final long batchSize;
+    private final long intervalNanos;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Object storeLock = new Object();
+    private final LatencyHistogram commitLatency;
+    private volatile long stored;
+
+    /**
+     * @param commitLatency The histogram to record commit latency in, or null if it's not being recorded.
+     */
+    SubscriberOffset(BrokerContext context, String streamId, TopicPartition partition,
+            LatencyHistogram commitLatency) {
+        this.context = context;
+        this.commitLatency = commitLatency;
+        this.streamId = streamId;
+        this.partition = partition;
+        this.batchSize = context.settings().commitBatchSize();
+        this.intervalNanos = context.settings().commitInterval().toNanos();
+        MessageOffset loaded = context.offsetStore().load(streamId, partition.partition());
+        long next;
+        if (loaded instanceof MessageOffset.Sequence) {
+            next = ((MessageOffset.Sequence) loaded).value() + 1;
+        } else if (loaded instanceof MessageOffset.TimeUuid) {
+            next = partition.sequenceAt(((MessageOffset.TimeUuid) loaded).epochMillis());
+        } else {
+            next = 0;
+        }
+        this.gating = new Cursor(Math.max(next, partition.firstSequence()));
+        this.stored = gating.get();
+        partition.retain(gating);
+    }
+
+    /**
+     * The sequence of the next message that needs to be delivered to a new incarnation of the stream.
+     */
+    long next() {
+        return gating.get();
+    }
+
+    /**
+     * Commit all messages before the given sequence.
+     *
+     * @param next The sequence of the first message that hasn't been committed.
+     */
+    void commitTo(long next) {
+        // Read before moving the cursor, which lets the slot be reused
+        long publishedAt = commitLatency == null || next == 0 ? 0 : partition.ring().publishedAt(next - 1);
+        if (gating.advanceTo(next)) {
+            partition.capacityReleased();
+            if (publishedAt != 0) {
+                commitLatency.record(System.nanoTime() - publishedAt);
+            }
+            if (next - stored >= batchSize) {
+                flush();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                context.scheduler().schedule(this::scheduledFlush, intervalNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Release the partition, since the subscriber has been stopped.
+     */
+    void close() {
+        flush();
+        partition.release(gating);
+    }
+
+    private void scheduledFlush() {
+        flushScheduled.set(false);
+        flush();
+    }
+
+    /**
+     * Write the committed offset to the offset store, if it has moved since it was last written.
+     */
+    private void flush() {
+        synchronized (storeLock) {
+            long next = gating.get();
+            if (next > stored) {
+                context.offsetStore().store(streamId, partition.partition(), new MessageOffset.Sequence(next - 1));
+                stored = next;
+            }
+        }
+    }
+}
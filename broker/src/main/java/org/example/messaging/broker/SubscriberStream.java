@@ -0,0 +1,233 @@
+package org.example.messaging.broker;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A supervised stream for one partition of a handler's {@link org.example.messaging.MessageSubscriber} method.
+ *
+ * Each incarnation invokes the subscriber method, and delivers messages to the returned subscriber starting from the
+ * last committed offset. Messages are committed according to the type of stream returned:
+ *
+ * <ul>
+ *     <li>A {@link Processor} commits each message when it emits the corresponding acknowledgement.</li>
+ *     <li>A {@link Subscriber} of {@link org.example.messaging.MessageEnvelope}s commits each message when its
+ *     envelope is committed.</li>
+ *     <li>A {@link Subscriber} of {@link org.example.messaging.MessageBatch}es commits the messages of each batch
+ *     when the batch is committed.</li>
+ *     <li>A plain {@link Subscriber} of messages commits each message as it's delivered, giving at most once
+ *     semantics.</li>
+ * </ul>
+ *
+ * Envelopes and batches may be committed in any order, the committed offset only moves past a message once it and every message
+ * delivered before it have been committed. Messages filtered out by a {@link org.example.messaging.MessageFilter} are
+ * committed once every message delivered before them has been.
+ *
+ * A {@link org.example.messaging.Parallel} method is invoked once for each worker, and the messages are spread across
+ * the returned subscribers by a {@link ParallelSubscriber}, each committing in the same way as above.
+ *
+ * A blocking method, which takes each message rather than returning a subscriber, is invoked with each message by a
+ * {@link BlockingSubscriber}, one for each worker if it's parallel, which commits each message once the method has
+ * handled it.
+ */
+final class SubscriberStream extends SupervisedStream {
+
+    private final Object handler;
+    private final HandlerMethod method;
+    private final TopicPartition topicPartition;
+    private final SubscriberOffset offset;
+    private volatile Incarnation incarnation;
+
+    SubscriberStream(BrokerContext context, Object handler, HandlerMethod method, TopicPartition topicPartition) {
+        super(context, method.streamId() + "#" + topicPartition.partition(), StreamMetrics.Kind.SUBSCRIBER,
+                topicPartition);
+        this.handler = handler;
+        this.method = method;
+        this.topicPartition = topicPartition;
+        this.offset = new SubscriberOffset(context, method.streamId(), topicPartition,
+                context.metrics().enabled() ? meter().commitLatency() : null);
+    }
+
+    @Override
+    protected void startStream() throws Throwable {
+        Subscriber<?>[] subscribers = new Subscriber<?>[method.parallelism()];
+        // The subscribers of blocking methods are created by the incarnation, which they report failures to
+        for (int i = 0; i < subscribers.length && !method.blocking(); i++) {
+            subscribers[i] = (Subscriber<?>) method.invoke(handler, null, topicPartition.partition());
+            if (subscribers[i] == null) {
+                throw new NullPointerException("Subscriber method " + method + " returned null");
+            }
+        }
+        Incarnation incarnation = new Incarnation(subscribers);
+        this.incarnation = incarnation;
+        incarnation.start();
+    }
+
+    @Override
+    long lag() {
+        return Math.max(0, topicPartition.ring().nextSequence() - offset.next());
+    }
+
+    @Override
+    long lagNanos(long now) {
+        RingBuffer ring = topicPartition.ring();
+        long next = offset.next();
+        if (next >= ring.nextSequence()) {
+            return 0;
+        }
+        long publishedAt = ring.publishedAt(Math.max(next, ring.oldestSequence()));
+        return publishedAt == 0 ? 0 : Math.max(0, now - publishedAt);
+    }
+
+    @Override
+    long outstandingDemand() {
+        Incarnation current = incarnation;
+        return current == null ? 0 : current.source.outstandingDemand();
+    }
+
+    @Override
+    protected void stopStream() {
+        Incarnation current = incarnation;
+        if (current != null) {
+            current.stop();
+        }
+        offset.close();
+    }
+
+    private final class Incarnation implements TopicSource.Listener, Subscriber<Object> {
+
+        private final Subscriber<?> subscriber;
+        private final ParallelSubscriber parallel;
+        private final boolean processor;
+        private final boolean atMostOnce;
+        private final AtomicBoolean terminated = new AtomicBoolean();
+        private final CommitTracker tracker;
+        private final TopicSource source;
+        private volatile Subscription acks;
+
+        Incarnation(Subscriber<?>[] subscribers) {
+            HandlerMethod.Elements elements = method.elements();
+            if (method.blocking()) {
+                for (int i = 0; i < subscribers.length; i++) {
+                    subscribers[i] = new BlockingSubscriber(context, handler, method, topicPartition.partition(),
+                            this::workersTerminated);
+                }
+                if (elements == HandlerMethod.Elements.MESSAGES) {
+                    elements = HandlerMethod.Elements.ENVELOPES;
+                }
+            }
+            if (subscribers.length == 1) {
+                this.subscriber = subscribers[0];
+                this.parallel = null;
+                this.processor = subscriber instanceof Processor;
+                this.atMostOnce = !processor && elements == HandlerMethod.Elements.MESSAGES;
+            } else {
+                // The workers commit the envelopes themselves, however they consume them
+                this.parallel = new ParallelSubscriber(context, method, subscribers,
+                        topicPartition.prefetchBudget(), this::workersTerminated);
+                this.subscriber = parallel;
+                this.processor = false;
+                this.atMostOnce = false;
+                elements = HandlerMethod.Elements.ENVELOPES;
+            }
+            long next = offset.next();
+            this.tracker = new CommitTracker(next);
+            this.source = new TopicSource(context,
+                    new PartitionCursor[] {new PartitionCursor(topicPartition, next, method.filter())}, subscriber,
+                    elements, method.reusableEnvelopes(), this);
+        }
+
+        void start() {
+            if (processor) {
+                ((Processor<?, ?>) subscriber).subscribe(this);
+            }
+            if (parallel != null) {
+                parallel.start();
+            }
+            source.start();
+        }
+
+        void stop() {
+            terminated.set(true);
+            source.complete();
+            Subscription current = acks;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void delivered(int partition, long firstSequence, long lastSequence) {
+            meter().messages(lastSequence - firstSequence + 1);
+            if (atMostOnce) {
+                offset.commitTo(lastSequence + 1);
+                return;
+            }
+            offset.commitTo(tracker.delivered(firstSequence, lastSequence, processor));
+        }
+
+        @Override
+        public void filtered(int partition, long nextSequence) {
+            offset.commitTo(atMostOnce ? nextSequence : tracker.filtered(nextSequence));
+        }
+
+        @Override
+        public void committed(int partition, long firstSequence, long lastSequence) {
+            offset.commitTo(tracker.commit(firstSequence, lastSequence));
+        }
+
+        @Override
+        public void terminated(Throwable error) {
+            if (terminated.compareAndSet(false, true)) {
+                Subscription current = acks;
+                if (current != null) {
+                    current.cancel();
+                }
+                if (parallel != null) {
+                    parallel.stop();
+                }
+                streamTerminated(error);
+            }
+        }
+
+        /**
+         * One of the workers of a parallel subscriber, or a blocking subscriber, failed or cancelled.
+         */
+        private void workersTerminated(Throwable error) {
+            if (terminated.compareAndSet(false, true)) {
+                source.cancel();
+                streamTerminated(error);
+            }
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            acks = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(Object ack) {
+            offset.commitTo(tracker.acknowledged());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (terminated.compareAndSet(false, true)) {
+                source.cancel();
+                streamTerminated(error);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (terminated.compareAndSet(false, true)) {
+                source.cancel();
+                streamTerminated(null);
+            }
+        }
+    }
+}
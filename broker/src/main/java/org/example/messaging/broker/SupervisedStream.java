@@ -0,0 +1,168 @@
+package org.example.messaging.broker;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A stream whose lifecycle is managed by the broker.
+ *
+ * Each time the stream terminates, whether by failing, completing or being cancelled, it is restarted after an
+ * exponential backoff, until the broker stops it.
+ *
+ * The stream's metrics are recorded in its {@link StreamMeter}, subclasses supply the gauges, such as lag, that are
+ * read when the metrics are reported.
+ */
+abstract class SupervisedStream {
+
+    private static final Logger log = Logger.getLogger(SupervisedStream.class.getName());
+
+    protected final BrokerContext context;
+    private final String name;
+    private final StreamMeter meter;
+    private final Executor executor;
+    private volatile boolean stopped;
+    private volatile int restarts;
+    private volatile long startedAt;
+    private volatile ScheduledFuture<?> pendingRestart;
+
+    SupervisedStream(BrokerContext context, String name, StreamMetrics.Kind kind, TopicPartition partition) {
+        this.context = context;
+        this.name = name;
+        this.meter = new StreamMeter(name, kind, partition);
+        this.executor = partition.executor();
+    }
+
+    final StreamMeter meter() {
+        return meter;
+    }
+
+    /**
+     * Start the stream.
+     */
+    final void start() {
+        executor.execute(this::run);
+    }
+
+    /**
+     * Stop the stream, it won't be restarted.
+     */
+    final void stop() {
+        stopped = true;
+        context.metrics().unregister(this);
+        ScheduledFuture<?> restart = pendingRestart;
+        if (restart != null) {
+            restart.cancel(false);
+        }
+        stopStream();
+    }
+
+    /**
+     * Take a snapshot of the stream's metrics.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     */
+    final StreamMetrics snapshotMetrics(long now) {
+        return meter.snapshot(now, lag(), lagNanos(now), outstandingDemand());
+    }
+
+    /**
+     * The number of messages the stream has yet to consume.
+     */
+    long lag() {
+        return 0;
+    }
+
+    /**
+     * How long ago the oldest message the stream has yet to consume was published.
+     */
+    long lagNanos(long now) {
+        return 0;
+    }
+
+    /**
+     * The demand that has been requested, but not yet fulfilled.
+     */
+    long outstandingDemand() {
+        return 0;
+    }
+
+    /**
+     * Start a new incarnation of the stream.
+     *
+     * The incarnation must invoke {@link #streamTerminated(Throwable)} exactly once when it terminates, unless it was
+     * stopped by {@link #stopStream()}.
+     */
+    protected abstract void startStream() throws Throwable;
+
+    /**
+     * Stop the current incarnation of the stream, if one is running.
+     */
+    protected abstract void stopStream();
+
+    /**
+     * Signal that the current incarnation of the stream has terminated.
+     *
+     * @param error The error that it failed with, or null if it completed or was cancelled.
+     */
+    protected final void streamTerminated(Throwable error) {
+        if (stopped) {
+            return;
+        }
+        long minBackoff = context.settings().minBackoff().toNanos();
+        long maxBackoff = context.settings().maxBackoff().toNanos();
+        // A stream that ran for longer than the max backoff was healthy, so start backing off from scratch
+        if (System.nanoTime() - startedAt > maxBackoff) {
+            restarts = 0;
+        }
+        int attempt = restarts++;
+        long backoff = minBackoff;
+        for (int i = 0; i < attempt && backoff < maxBackoff; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoff);
+        backoff += (long) (backoff * 0.2 * ThreadLocalRandom.current().nextDouble());
+        context.metrics().restarted(this, error, backoff);
+
+        if (error != null) {
+            log.log(Level.WARNING, "Stream " + name + " failed, restarting in "
+                    + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms", error);
+        } else {
+            log.info("Stream " + name + " terminated, restarting in " + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms");
+        }
+        try {
+            pendingRestart = context.scheduler().schedule(this::start, backoff, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            // The broker is shutting down
+            if (!stopped) {
+                throw e;
+            }
+        }
+    }
+
+    private void run() {
+        if (stopped) {
+            return;
+        }
+        pendingRestart = null;
+        startedAt = System.nanoTime();
+        try {
+            startStream();
+        } catch (Throwable t) {
+            streamTerminated(t);
+            return;
+        }
+        // We may have been stopped while starting
+        if (stopped) {
+            stopStream();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
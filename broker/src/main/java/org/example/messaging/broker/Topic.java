@@ -0,0 +1,56 @@
+package org.example.messaging.broker;
+
+import java.util.function.IntFunction;
+
+/**
+ * A topic, made up of one or more partitions.
+ */
+final class Topic {
+
+    private final String name;
+    private final TopicPartition[] partitions;
+
+    /**
+     * @param logs Provides the log for each partition, or null if the topic isn't durable.
+     */
+    Topic(BrokerContext context, String name, int partitions, int capacity, IntFunction<SegmentLog> logs) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Topic " + name + " must have at least one partition, but was given "
+                    + partitions);
+        }
+        this.name = name;
+        this.partitions = new TopicPartition[partitions];
+        DemandController.Budget prefetchBudget = new DemandController.Budget(context.settings().prefetchBudget(name));
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new TopicPartition(context, name, i, capacity, logs == null ? null : logs.apply(i),
+                    prefetchBudget);
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    int partitionCount() {
+        return partitions.length;
+    }
+
+    TopicPartition partition(int partition) {
+        if (partition < 0 || partition >= partitions.length) {
+            throw new IllegalArgumentException("Topic " + name + " has " + partitions.length
+                    + " partitions, there is no partition " + partition);
+        }
+        return partitions[partition];
+    }
+
+    void close() {
+        for (TopicPartition partition : partitions) {
+            partition.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
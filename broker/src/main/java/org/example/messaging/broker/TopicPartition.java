@@ -0,0 +1,302 @@
+package org.example.messaging.broker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single partition of a topic.
+ *
+ * Holds the ring buffer that the partition's messages are published to, as well as the producers and consumers that
+ * are parked on the partition waiting for capacity or messages.
+ *
+ * If the partition is durable, it also has a log, and a writer that appends everything published to the ring buffer
+ * to the log. In that case, consumers can't read past what has been appended to the log, and the only consumer that
+ * gates the ring buffer is the writer, consumers that fall too far behind read from the log instead. Consumers reading
+ * from the log share what they read through a {@link LogReadCache} the same size as the ring buffer.
+ *
+ * A durable partition also tracks which of its messages are durable, that is, forced to disk by its
+ * {@link LogFlusher} if group commit is configured, otherwise appended to the log, and wakes up the acknowledgers that
+ * are parked waiting for messages to become durable.
+ */
+final class TopicPartition {
+
+    private static final Wakeable[] NONE = new Wakeable[0];
+
+    private final String topic;
+    private final int partition;
+    private final RingBuffer ring;
+    private final SegmentLog log;
+    private final LogReadCache logCache;
+    private final LogWriter writer;
+    private final LogFlusher flusher;
+    private final LogCompactor compactor;
+    private final ProducerSequences producerSequences;
+    private final Executor executor;
+    private final DemandController.Budget prefetchBudget;
+    private final AtomicReference<Wakeable[]> consumers = new AtomicReference<>(NONE);
+    private final AtomicReference<Wakeable[]> producers = new AtomicReference<>(NONE);
+    private final AtomicReference<Wakeable[]> acknowledgers = new AtomicReference<>(NONE);
+
+    /**
+     * @param log The log to persist the partition to, or null if it's not durable.
+     * @param prefetchBudget The prefetch budget of the topic.
+     */
+    TopicPartition(BrokerContext context, String topic, int partition, int capacity, SegmentLog log,
+            DemandController.Budget prefetchBudget) {
+        this.topic = topic;
+        this.prefetchBudget = prefetchBudget;
+        this.partition = partition;
+        this.log = log;
+        this.executor = context.executor(topic, partition);
+        boolean idempotent = context.settings().idempotent(topic);
+        this.producerSequences = idempotent ? new ProducerSequences() : null;
+        if (log != null) {
+            this.ring = new RingBuffer(capacity, log.written().get(), idempotent);
+            KeyIndex appendedSequences = null;
+            if (idempotent) {
+                try {
+                    appendedSequences = producerSequences.recover(log);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to recover the producer sequences of " + topic + "-"
+                            + partition, e);
+                }
+            }
+            this.logCache = new LogReadCache(capacity);
+            this.flusher = context.settings().groupCommitSize() > 0 ? new LogFlusher(context, this, log) : null;
+            this.writer = new LogWriter(context, this, log, flusher, appendedSequences);
+            this.compactor = context.settings().compacted(topic) ? new LogCompactor(context, this, log) : null;
+        } else {
+            this.ring = new RingBuffer(capacity, 0);
+            this.logCache = null;
+            this.flusher = null;
+            this.writer = null;
+            this.compactor = null;
+        }
+    }
+
+    String topic() {
+        return topic;
+    }
+
+    /**
+     * The latest sequences of the partition's idempotent producers, or null if publishing to it isn't idempotent.
+     */
+    ProducerSequences producerSequences() {
+        return producerSequences;
+    }
+
+    int partition() {
+        return partition;
+    }
+
+    /**
+     * The executor that the work of the partition is run on.
+     */
+    Executor executor() {
+        return executor;
+    }
+
+    /**
+     * The prefetch budget shared by the partitions of the topic.
+     */
+    DemandController.Budget prefetchBudget() {
+        return prefetchBudget;
+    }
+
+    RingBuffer ring() {
+        return ring;
+    }
+
+    /**
+     * The log of the partition, or null if it's not durable.
+     */
+    SegmentLog log() {
+        return log;
+    }
+
+    /**
+     * The cache of messages read from the log, or null if it's not durable.
+     */
+    LogReadCache logCache() {
+        return logCache;
+    }
+
+    /**
+     * The cursor of the messages that are durable, that is, the sequence after the last durable message, or null if
+     * the partition isn't durable.
+     */
+    Cursor durable() {
+        if (log == null) {
+            return null;
+        }
+        return flusher == null ? log.written() : flusher.durable();
+    }
+
+    /**
+     * The sequence that consumers may read up to, but not including.
+     */
+    long readLimit() {
+        return log == null ? Long.MAX_VALUE : log.written().get();
+    }
+
+    /**
+     * The first sequence available to a new consumer.
+     */
+    long firstSequence() {
+        return log == null ? ring.oldestSequence() : 0;
+    }
+
+    /**
+     * The sequence of the first message published at or after the given time.
+     *
+     * Only a durable partition records when its messages were published, for a partition that isn't durable, this is
+     * the first sequence available.
+     *
+     * @param timestamp The time, in milliseconds since the epoch.
+     */
+    long sequenceAt(long timestamp) {
+        return log == null ? firstSequence() : log.sequenceAt(timestamp);
+    }
+
+    /**
+     * Retain the messages from the given cursor onwards until the cursor moves past them.
+     *
+     * For a durable partition, this does nothing, since all messages are retained in the log.
+     */
+    void retain(Cursor cursor) {
+        if (log == null) {
+            ring.addGatingCursor(cursor);
+        }
+    }
+
+    /**
+     * Stop retaining messages for the given cursor.
+     */
+    void release(Cursor cursor) {
+        if (log == null) {
+            ring.removeGatingCursor(cursor);
+            capacityReleased();
+        }
+    }
+
+    void addConsumer(Wakeable consumer) {
+        add(consumers, consumer);
+    }
+
+    void removeConsumer(Wakeable consumer) {
+        remove(consumers, consumer);
+    }
+
+    void addAcknowledger(Wakeable acknowledger) {
+        add(acknowledgers, acknowledger);
+    }
+
+    void removeAcknowledger(Wakeable acknowledger) {
+        remove(acknowledgers, acknowledger);
+    }
+
+    void addProducer(Wakeable producer) {
+        add(producers, producer);
+    }
+
+    void removeProducer(Wakeable producer) {
+        remove(producers, producer);
+    }
+
+    /**
+     * Signal that messages have been published to the ring buffer.
+     */
+    void messagesPublished() {
+        if (writer != null) {
+            writer.wake();
+        } else {
+            messagesAppended();
+        }
+    }
+
+    /**
+     * Wake up consumers that are waiting for messages, since messages have been published, or for a durable
+     * partition, since messages have been appended to the log.
+     */
+    void messagesAppended() {
+        for (Wakeable consumer : consumers.get()) {
+            consumer.wake();
+        }
+        if (log != null && flusher == null) {
+            messagesDurable();
+        }
+    }
+
+    /**
+     * Wake up acknowledgers that are waiting for messages to become durable, since messages have been forced, or
+     * appended if the log isn't forced.
+     */
+    void messagesDurable() {
+        for (Wakeable acknowledger : acknowledgers.get()) {
+            acknowledger.wake();
+        }
+    }
+
+    /**
+     * Wake up producers that are waiting for gating consumers to free up capacity.
+     */
+    void capacityReleased() {
+        for (Wakeable producer : producers.get()) {
+            producer.wake();
+        }
+    }
+
+    void close() {
+        if (writer != null) {
+            if (compactor != null) {
+                compactor.close();
+            }
+            writer.close();
+            if (flusher != null) {
+                flusher.close();
+            }
+            log.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return topic + "-" + partition;
+    }
+
+    private static void add(AtomicReference<Wakeable[]> ref, Wakeable wakeable) {
+        for (;;) {
+            Wakeable[] current = ref.get();
+            Wakeable[] updated = new Wakeable[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = wakeable;
+            if (ref.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    private static void remove(AtomicReference<Wakeable[]> ref, Wakeable wakeable) {
+        for (;;) {
+            Wakeable[] current = ref.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == wakeable) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            Wakeable[] updated = current.length == 1 ? NONE : new Wakeable[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            if (ref.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+}
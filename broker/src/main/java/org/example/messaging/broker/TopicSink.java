@@ -0,0 +1,439 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageBatch;
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A subscriber that publishes the elements it receives to a topic partition.
+ *
+ * Demand is mapped directly onto ring buffer claims: before requesting <tt>n</tt> elements from upstream, the sink
+ * claims <tt>n</tt> sequences from the ring buffer, so every element that arrives already has a slot to go in, and
+ * <tt>onNext</tt> never has to wait or buffer. When the ring buffer is full, the sink parks until a consumer releases
+ * capacity, which propagates back pressure all the way to the publisher. How many it claims and requests at a time is
+ * sized by a {@link DemandController}, from the publish batch size up to a quarter of the ring buffer, so that
+ * publishers that take a long time to respond to requests are asked for enough to keep the partition busy.
+ *
+ * When publishing {@link MessageBatch}es, the number of messages that an element holds isn't known until it arrives,
+ * so batches are requested one at a time instead, and the messages of each batch are published as capacity allows
+ * before the next batch is requested.
+ *
+ * A sink may publish for an idempotent producer, in which case the offsets of the envelopes and batches it receives
+ * are the producer sequences of their messages, and messages that the producer has already published are dropped, see
+ * {@link BrokerSettings#withIdempotentPublishing(String)}. A dropped message still takes up the sequence that was
+ * claimed for it, which is published as skipped.
+ *
+ * A sink that publishes to a durable partition checks that each message fits in the partition's log before publishing
+ * it, with a {@link MessageSizeLimit}, since the log can't skip a message that it can't append. A message that doesn't
+ * fit fails the sink, and the publisher, with an {@link IllegalArgumentException}, and its sequence is published as
+ * skipped.
+ */
+final class TopicSink implements Subscriber<Object>, Wakeable, Runnable {
+
+    /**
+     * Listens to the progress of a sink.
+     */
+    interface Listener {
+
+        /**
+         * An element was published to the partition.
+         *
+         * Invoked on the thread that invoked <tt>onNext</tt>, or for a batch, on the thread that published the last
+         * of its messages.
+         *
+         * @param sequence The sequence of the message, or for a batch, of its last message, or -1 if it was empty, or
+         *                 was dropped as a duplicate.
+         */
+        void published(Object element, long sequence);
+
+        /**
+         * The number of additional elements that the sink may request, on top of those already outstanding.
+         */
+        default long credit() {
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * The sink terminated.
+         *
+         * @param error The error it failed with, or null if it completed.
+         */
+        void terminated(Throwable error);
+    }
+
+    /**
+     * A claimed range of sequences.
+     */
+    private static final class Claim {
+        long next;
+        final long end;
+
+        Claim(long start, long end) {
+            this.next = start;
+            this.end = end;
+        }
+    }
+
+    private final BrokerContext context;
+    private final TopicPartition partition;
+    private final RingBuffer ring;
+    private final Listener listener;
+    private final ProducerSequences.Producer producer;
+    private final MessageSizeLimit sizeLimit;
+    private final DemandController demand;
+    private final boolean batches;
+    private final ConcurrentLinkedQueue<Claim> claims = new ConcurrentLinkedQueue<>();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile Subscription upstream;
+    private volatile boolean parked;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+
+    // The batch being published, and the index of its next message to publish
+    private volatile MessageBatch<?> pendingBatch;
+    private int pendingIndex;
+
+    // The number of elements received, only accessed by onNext
+    private long received;
+
+    /**
+     * @param elements The type of elements that will be published to the sink.
+     */
+    TopicSink(BrokerContext context, TopicPartition partition, HandlerMethod.Elements elements, Listener listener) {
+        this(context, partition, elements, null, listener);
+    }
+
+    /**
+     * @param elements The type of elements that will be published to the sink.
+     * @param producer The idempotent producer to publish for, or null if duplicates aren't dropped.
+     */
+    TopicSink(BrokerContext context, TopicPartition partition, HandlerMethod.Elements elements,
+            ProducerSequences.Producer producer, Listener listener) {
+        this.context = context;
+        this.partition = partition;
+        this.ring = partition.ring();
+        this.listener = listener;
+        this.producer = producer;
+        SegmentLog log = partition.log();
+        this.sizeLimit = log == null ? null : new MessageSizeLimit(log.codec(), log.maxMessageSize());
+        // Claiming fewer than the publish batch size at a time only adds overhead, since the slots are in the ring
+        // buffer either way, so the window only grows beyond it, for publishers that are slow to respond
+        int batchSize = Math.min(context.settings().publishBatchSize(), ring.capacity());
+        this.demand = new DemandController(batchSize, Math.max(batchSize, ring.capacity() / 4),
+                partition.prefetchBudget());
+        this.batches = elements == HandlerMethod.Elements.BATCHES;
+    }
+
+    TopicPartition partition() {
+        return partition;
+    }
+
+    /**
+     * The number of elements that have been requested but not yet received.
+     */
+    long outstanding() {
+        return outstanding.get();
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (subscription == null) {
+            throw new NullPointerException("Subscription must not be null");
+        }
+        if (upstream != null || done) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        partition.addProducer(this);
+        replenish();
+    }
+
+    @Override
+    public void onNext(Object element) {
+        if (element == null) {
+            throw new NullPointerException("Elements must not be null");
+        }
+        if (done) {
+            return;
+        }
+        if (batches) {
+            if (outstanding.get() == 0 || pendingBatch != null) {
+                upstream.cancel();
+                onError(new IllegalStateException("Publisher sent more elements than were requested"));
+                return;
+            }
+            MessageBatch<?> batch = (MessageBatch<?>) element;
+            for (Object message : batch.messages()) {
+                if (!fits(message)) {
+                    return;
+                }
+            }
+            pendingIndex = 0;
+            pendingBatch = batch;
+            outstanding.decrementAndGet();
+            replenish();
+            return;
+        }
+        Claim claim = claims.peek();
+        if (claim == null) {
+            upstream.cancel();
+            onError(new IllegalStateException("Publisher sent more elements than were requested"));
+            return;
+        }
+        long sequence = claim.next++;
+        if (claim.next == claim.end) {
+            claims.poll();
+        }
+        Object message = element;
+        long producerSequence = -1;
+        if (element instanceof MessageEnvelope) {
+            MessageEnvelope<?> envelope = (MessageEnvelope<?>) element;
+            message = envelope.message();
+            producerSequence = producerSequence(envelope.offset());
+        }
+        if (producerSequence >= 0 && producer.isDuplicate(producerSequence)) {
+            ring.publish(sequence, RingBuffer.SKIPPED);
+            partition.messagesPublished();
+            listener.published(element, -1);
+        } else if (!fits(message)) {
+            ring.publish(sequence, RingBuffer.SKIPPED);
+            partition.messagesPublished();
+            return;
+        } else if (producerSequence < 0) {
+            ring.publish(sequence, message, context.metrics().publishTime());
+            partition.messagesPublished();
+            listener.published(element, sequence);
+        } else {
+            ring.publish(sequence, message, context.metrics().publishTime(), producer.id(), producerSequence);
+            producer.published(producerSequence);
+            partition.messagesPublished();
+            listener.published(element, sequence);
+        }
+        long count = ++received;
+        if ((count & (DemandController.REPORT_INTERVAL - 1)) == 0 || count >= demand.probeTarget()) {
+            demand.received(count, System.nanoTime());
+        }
+        if (outstanding.decrementAndGet() <= demand.window() / 2) {
+            replenish();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (t == null) {
+            throw new NullPointerException("Error must not be null");
+        }
+        error = t;
+        done = true;
+        replenish();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        replenish();
+    }
+
+    /**
+     * Cancel the upstream.
+     *
+     * Any elements that the upstream sends after this are dropped.
+     */
+    void cancel() {
+        cancelled = true;
+        done = true;
+        Subscription subscription = upstream;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        replenish();
+    }
+
+    /**
+     * Request more elements from upstream if there's capacity for them.
+     *
+     * This should be invoked whenever the listener's credit increases.
+     */
+    void replenish() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            boolean blocked = false;
+            if (pendingBatch != null) {
+                if (cancelled || error != null) {
+                    pendingBatch = null;
+                } else {
+                    blocked = !publishPending();
+                }
+            }
+            if (!blocked) {
+                if (done) {
+                    terminate();
+                    return;
+                }
+                blocked = upstream != null && !tryRequest();
+            }
+            if (blocked) {
+                parked = true;
+                // Capacity may have been released before we parked
+                if (ring.remainingCapacity() > 0) {
+                    parked = false;
+                    continue;
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Claim sequences and request elements for them.
+     *
+     * @return false if more elements are wanted, but the ring buffer is full.
+     */
+    private boolean tryRequest() {
+        if (batches) {
+            if (outstanding.get() == 0 && listener.credit() > 0) {
+                outstanding.set(1);
+                upstream.request(1);
+            }
+            return true;
+        }
+        long inFlight = outstanding.get();
+        int window = demand.window();
+        if (inFlight > window / 2) {
+            return true;
+        }
+        long wanted = Math.min(window - inFlight, listener.credit());
+        if (wanted <= 0) {
+            return true;
+        }
+        int n = (int) Math.min(wanted, ring.remainingCapacity());
+        long start = n > 0 ? ring.tryClaim(n) : -1;
+        if (start < 0) {
+            return false;
+        }
+        claims.offer(new Claim(start, start + n));
+        outstanding.addAndGet(n);
+        demand.requested(n, System.nanoTime());
+        upstream.request(n);
+        return true;
+    }
+
+    /**
+     * Publish as much of the pending batch as there's capacity for.
+     *
+     * @return false if there's more of the batch to publish, but the ring buffer is full.
+     */
+    private boolean publishPending() {
+        MessageBatch<?> batch = pendingBatch;
+        List<?> messages = batch.messages();
+        int size = messages.size();
+        long last = -1;
+        // If the batch's offsets are the producer sequences of each of its messages in turn, each message is
+        // deduplicated on its own, otherwise the batch is deduplicated as a whole, by the sequence of its last message
+        long lastSequence = producerSequence(batch.lastOffset());
+        long firstSequence = producerSequence(batch.firstOffset());
+        boolean sequenced = lastSequence >= 0 && firstSequence >= 0 && lastSequence - firstSequence == size - 1;
+        if (lastSequence >= 0 && pendingIndex == 0) {
+            if (producer.isDuplicate(lastSequence)) {
+                pendingIndex = size;
+            } else if (sequenced) {
+                pendingIndex = (int) Math.max(0, producer.lastSequence() + 1 - firstSequence);
+            }
+        }
+        while (pendingIndex < size) {
+            int n = Math.min(size - pendingIndex, ring.remainingCapacity());
+            long start = n > 0 ? ring.tryClaim(n) : -1;
+            if (start < 0) {
+                return false;
+            }
+            long time = context.metrics().publishTime();
+            for (int i = 0; i < n; i++) {
+                int index = pendingIndex + i;
+                long producerSequence = sequenced ? firstSequence + index : index == size - 1 ? lastSequence : -1;
+                if (producerSequence < 0) {
+                    ring.publish(start + i, messages.get(index), time);
+                } else {
+                    ring.publish(start + i, messages.get(index), time, producer.id(), producerSequence);
+                    producer.published(producerSequence);
+                }
+            }
+            pendingIndex += n;
+            last = start + n - 1;
+            partition.messagesPublished();
+        }
+        pendingBatch = null;
+        listener.published(batch, last);
+        return true;
+    }
+
+    /**
+     * Check that a message fits in the partition's log, if it's durable, failing the sink if it doesn't.
+     */
+    private boolean fits(Object message) {
+        if (sizeLimit != null) {
+            try {
+                sizeLimit.check(message);
+            } catch (RuntimeException e) {
+                upstream.cancel();
+                onError(e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The producer sequence of a message or batch published with the given offset, or -1 if it isn't deduplicated.
+     */
+    private long producerSequence(MessageOffset offset) {
+        return producer != null && offset instanceof MessageOffset.Sequence
+                ? ((MessageOffset.Sequence) offset).value() : -1;
+    }
+
+    private void terminate() {
+        partition.removeProducer(this);
+        demand.close();
+        // Every claimed sequence must be published, otherwise consumers would wait for it forever
+        Claim claim;
+        boolean released = false;
+        while ((claim = claims.poll()) != null) {
+            for (long sequence = claim.next; sequence < claim.end; sequence++) {
+                ring.publish(sequence, RingBuffer.SKIPPED);
+                released = true;
+            }
+        }
+        if (released) {
+            partition.messagesPublished();
+        }
+        listener.terminated(error);
+    }
+
+    @Override
+    public void wake() {
+        if (parked) {
+            parked = false;
+            partition.executor().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        replenish();
+    }
+}
@@ -0,0 +1,390 @@
+package org.example.messaging.broker;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A subscription that delivers the messages of one or more topic partitions to a subscriber.
+ *
+ * Demand requested by the subscriber is served straight out of the partitions' ring buffers, each delivery just
+ * advances the source's own cursor into the ring buffer, or into the log for a durable partition that the source has
+ * fallen behind on. When there's outstanding demand but no messages, the source parks until messages are published
+ * to one of its partitions.
+ *
+ * Messages from multiple partitions are interleaved round robin.
+ *
+ * When delivering {@link org.example.messaging.MessageBatch}es, each unit of demand is served with a batch of the
+ * messages available from the next partition, up to the maximum batch size. If a batch linger is configured, a batch
+ * that isn't full is held back until either it fills up or the linger has passed.
+ *
+ * Messages that are read from a log are only decoded when the subscriber looks at them, that is, when it gets the
+ * message of an envelope, or the messages of a batch. Plain messages are decoded before they're delivered.
+ *
+ * Messages that the cursors filter out are never delivered, and don't use up demand, but the listener is told about
+ * them, so that their offsets can be committed.
+ */
+final class TopicSource implements Subscription, Wakeable, Runnable {
+
+    /**
+     * Listens to the progress of a source.
+     */
+    interface Listener {
+
+        /**
+         * An element is about to be delivered to the subscriber.
+         *
+         * @param partition The index of the partition in the partitions this source was created with.
+         * @param firstSequence The sequence of the first message in the element.
+         * @param lastSequence The sequence of the last message in the element, the same as the first unless the
+         *                     element is a batch.
+         */
+        void delivered(int partition, long firstSequence, long lastSequence);
+
+        /**
+         * Messages were filtered out, and will never be delivered.
+         *
+         * @param partition The index of the partition in the partitions this source was created with.
+         * @param nextSequence The sequence after the last filtered out message, every message before it has been
+         *                     either delivered or filtered out.
+         */
+        void filtered(int partition, long nextSequence);
+
+        /**
+         * A delivered element was committed using its envelope or batch.
+         */
+        void committed(int partition, long firstSequence, long lastSequence);
+
+        /**
+         * The source terminated, either due to the subscriber cancelling, or the subscriber failing.
+         *
+         * @param error The error, or null if cancelled.
+         */
+        void terminated(Throwable error);
+    }
+
+    private final BrokerContext context;
+    private final TopicPartition[] partitions;
+    private final PartitionCursor[] cursors;
+    private final Subscriber<Object> subscriber;
+    private final HandlerMethod.Elements elements;
+    private final EnvelopePool envelopePool;
+    private final int maxBatchSize;
+    private final long batchLingerNanos;
+    private final Listener listener;
+    private final Executor executor;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean terminated = new AtomicBoolean();
+    private volatile boolean parked;
+    private volatile boolean cancelled;
+    private volatile boolean completeRequested;
+    private volatile Throwable invalidRequest;
+    private int nextPartition;
+
+    // The batch being filled, only accessed while draining
+    private ArrayList<Object> batch;
+    private int batchPartition;
+    private long batchFirst;
+    private long batchLast;
+    private long batchDeadline;
+
+    /**
+     * @param cursors The cursors of the partitions to deliver messages from.
+     * @param subscriber The subscriber to deliver to.
+     * @param elements The type of elements to deliver.
+     * @param reuseEnvelopes Whether envelopes may be reused once they've been committed.
+     * @param listener The listener.
+     */
+    @SuppressWarnings("unchecked")
+    TopicSource(BrokerContext context, PartitionCursor[] cursors, Subscriber<?> subscriber,
+            HandlerMethod.Elements elements, boolean reuseEnvelopes, Listener listener) {
+        this.context = context;
+        this.cursors = cursors;
+        this.partitions = new TopicPartition[cursors.length];
+        for (int i = 0; i < cursors.length; i++) {
+            this.partitions[i] = cursors[i].partition();
+        }
+        this.subscriber = (Subscriber<Object>) subscriber;
+        this.elements = elements;
+        this.envelopePool = reuseEnvelopes ? new EnvelopePool() : null;
+        this.maxBatchSize = context.settings().maxBatchSize();
+        this.batchLingerNanos = context.settings().batchLinger().toNanos();
+        this.listener = listener;
+        this.executor = partitions.length == 1 ? partitions[0].executor() : context.executor();
+    }
+
+    /**
+     * Start delivering to the subscriber.
+     */
+    void start() {
+        for (TopicPartition partition : partitions) {
+            partition.addConsumer(this);
+        }
+        try {
+            subscriber.onSubscribe(this);
+        } catch (Throwable t) {
+            // Rule 2.13, the subscription is considered cancelled
+            cancelled = true;
+            terminate(t);
+        }
+    }
+
+    /**
+     * Complete the subscriber, since the broker is shutting down.
+     */
+    void complete() {
+        completeRequested = true;
+        executor.execute(this);
+    }
+
+    /**
+     * The demand the subscriber has requested that hasn't been delivered yet.
+     */
+    long outstandingDemand() {
+        return demand.get();
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            invalidRequest = new IllegalArgumentException(
+                    "Rule 3.9: Subscription.request must be called with a positive number, but was " + n);
+        } else {
+            for (;;) {
+                long current = demand.get();
+                long updated = current + n;
+                if (updated < 0) {
+                    updated = Long.MAX_VALUE;
+                }
+                if (demand.compareAndSet(current, updated)) {
+                    break;
+                }
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            terminate(null);
+        }
+    }
+
+    @Override
+    public void wake() {
+        if (parked) {
+            parked = false;
+            executor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        drain();
+    }
+
+    void commit(int partition, long firstSequence, long lastSequence) {
+        if (!cancelled) {
+            listener.committed(partition, firstSequence, lastSequence);
+        }
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            if (cancelled) {
+                return;
+            }
+            if (invalidRequest != null) {
+                fail(invalidRequest);
+                return;
+            }
+            if (completeRequested) {
+                cancelled = true;
+                removeConsumer();
+                subscriber.onComplete();
+                return;
+            }
+
+            long requested = demand.get();
+            long emitted = 0;
+            try {
+                while (emitted != requested && !cancelled && emitNext()) {
+                    emitted++;
+                }
+            } catch (Throwable t) {
+                // Rule 2.13, the subscription is considered cancelled
+                cancelled = true;
+                terminate(t);
+                return;
+            }
+            if (emitted != 0 && requested != Long.MAX_VALUE) {
+                demand.addAndGet(-emitted);
+            }
+            if (reportFiltered() || emitted != 0) {
+                for (TopicPartition partition : partitions) {
+                    partition.capacityReleased();
+                }
+            }
+            if (emitted != requested && !cancelled) {
+                parked = true;
+                // A message may have been published before we parked
+                if (anyAvailable()) {
+                    parked = false;
+                    continue;
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Emit the next available message, if there is one.
+     */
+    private boolean emitNext() {
+        if (elements == HandlerMethod.Elements.BATCHES) {
+            return emitBatch();
+        }
+        int count = partitions.length;
+        for (int i = 0; i < count; i++) {
+            int index = nextPartition + i;
+            if (index >= count) {
+                index -= count;
+            }
+            PartitionCursor cursor = cursors[index];
+            Object message = cursor.poll();
+            if (message != null) {
+                long sequence = cursor.sequence();
+                nextPartition = index + 1 == count ? 0 : index + 1;
+                listener.delivered(index, sequence, sequence);
+                subscriber.onNext(elements == HandlerMethod.Elements.ENVELOPES ? envelope(message, index, sequence)
+                        : EncodedMessage.decoded(message));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private BrokerEnvelope<Object> envelope(Object message, int partition, long sequence) {
+        BrokerEnvelope<Object> envelope = envelopePool == null ? null : envelopePool.acquire();
+        if (envelope == null) {
+            envelope = new BrokerEnvelope<>(this, envelopePool);
+        }
+        return envelope.set(message, partition, sequence);
+    }
+
+    /**
+     * Fill and emit the next batch, if there are messages available and it's not lingering.
+     */
+    private boolean emitBatch() {
+        if (batch == null) {
+            int count = partitions.length;
+            for (int i = 0; i < count && batch == null; i++) {
+                int index = nextPartition + i;
+                if (index >= count) {
+                    index -= count;
+                }
+                Object message = cursors[index].poll();
+                if (message != null) {
+                    nextPartition = index + 1 == count ? 0 : index + 1;
+                    batch = new ArrayList<>(Math.min(maxBatchSize, 64));
+                    batch.add(message);
+                    batchPartition = index;
+                    batchFirst = cursors[index].sequence();
+                    batchLast = batchFirst;
+                    batchDeadline = 0;
+                }
+            }
+            if (batch == null) {
+                return false;
+            }
+        }
+        PartitionCursor cursor = cursors[batchPartition];
+        Object message;
+        while (batch.size() < maxBatchSize && (message = cursor.poll()) != null) {
+            batch.add(message);
+            batchLast = cursor.sequence();
+        }
+        if (batch.size() < maxBatchSize && batchLingerNanos > 0) {
+            long now = System.nanoTime();
+            if (batchDeadline == 0) {
+                batchDeadline = now + batchLingerNanos;
+                context.scheduler().schedule(() -> executor.execute(this), batchLingerNanos,
+                        TimeUnit.NANOSECONDS);
+                return false;
+            } else if (now - batchDeadline < 0) {
+                return false;
+            }
+        }
+        BrokerBatch<Object> emit = new BrokerBatch<>(batch, this, batchPartition, batchFirst, batchLast);
+        batch = null;
+        listener.delivered(batchPartition, batchFirst, batchLast);
+        subscriber.onNext(emit);
+        return true;
+    }
+
+    /**
+     * Tell the listener about the messages that the cursors have filtered out.
+     *
+     * @return Whether any have been.
+     */
+    private boolean reportFiltered() {
+        boolean any = false;
+        for (int i = 0; i < cursors.length; i++) {
+            // The messages of a batch that's still being filled haven't been delivered yet, so wait until they are
+            if ((batch == null || batchPartition != i) && cursors[i].clearFiltered()) {
+                listener.filtered(i, cursors[i].next());
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    private boolean anyAvailable() {
+        for (PartitionCursor cursor : cursors) {
+            if (cursor.mayBeAvailable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fail(Throwable error) {
+        cancelled = true;
+        try {
+            subscriber.onError(error);
+        } catch (Throwable t) {
+            // Rule 2.13, nothing we can do
+        }
+        terminate(error);
+    }
+
+    private void terminate(Throwable error) {
+        if (terminated.compareAndSet(false, true)) {
+            removeConsumer();
+            listener.terminated(error);
+        }
+    }
+
+    private void removeConsumer() {
+        for (TopicPartition partition : partitions) {
+            partition.removeConsumer(this);
+        }
+    }
+}
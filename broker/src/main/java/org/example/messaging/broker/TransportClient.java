@@ -0,0 +1,468 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageOffset;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Subscribes to the partitions of a remote broker, served by a {@link TransportServer}.
+ *
+ * The client runs a single selector thread, that does the network IO of all of its subscriptions without blocking.
+ * Each subscription has its own connection, and keeps a window of credit outstanding with the server, granting more
+ * as its subscriber consumes messages, so a subscriber that stops requesting messages stops the server sending them
+ * once the window is used up. The window is sized by a {@link DemandController}, from {@link #MIN_CREDIT_WINDOW} up
+ * to {@link #MAX_CREDIT_WINDOW}, to the rate the messages arrive at and the round trip to the server, so a subscriber
+ * on a slow link keeps enough in flight to stay busy, without a slow subscriber buffering more than it needs. The
+ * windows of the client's subscriptions to a topic share the topic's {@link BrokerSettings#prefetchBudget(String)
+ * prefetch budget}.
+ *
+ * Messages arrive as whole log batches, whose checksums are validated as they're received, and each batch is only
+ * decompressed, and each message decoded, with the compressions and the topic's codec from the client's settings,
+ * when it's delivered to the subscriber, on the client's executor.
+ */
+public final class TransportClient implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(TransportClient.class.getName());
+
+    /**
+     * The smallest number of messages of credit that each subscription keeps outstanding with the server.
+     */
+    static final int MIN_CREDIT_WINDOW = 1024;
+
+    /**
+     * The largest number of messages of credit that each subscription keeps outstanding with the server.
+     */
+    static final int MAX_CREDIT_WINDOW = 64 * 1024;
+
+    private static final int MAX_FRAME = Integer.MAX_VALUE - 8;
+
+    private final BrokerSettings settings;
+    private final BatchCompressor decompressor;
+    private final Executor executor;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, DemandController.Budget> prefetchBudgets = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param settings The settings to take the codecs of topics, and the executor to deliver messages on, from.
+     */
+    public TransportClient(BrokerSettings settings) throws IOException {
+        this.settings = settings;
+        this.decompressor = new BatchCompressor(null, settings::compressionFor);
+        this.executor = settings.executor() == null ? ForkJoinPool.commonPool() : settings.executor();
+        this.selector = Selector.open();
+        Thread thread = new Thread(this::run, "messaging-transport-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Subscribe to a partition of a topic on the server with the given address.
+     *
+     * @param offset The offset of the last message already consumed, or {@link MessageOffset.None#INSTANCE} to start
+     *               from the first message the server has.
+     * @return A publisher that connects to the server each time it's subscribed to.
+     */
+    public <T> Publisher<T> subscribe(InetSocketAddress address, String topic, int partition, MessageOffset offset) {
+        long from = offset instanceof MessageOffset.Sequence ? ((MessageOffset.Sequence) offset).value() + 1 : 0;
+        MessageCodec codec = settings.codec(topic);
+        DemandController.Budget prefetchBudget = prefetchBudgets.computeIfAbsent(topic,
+                t -> new DemandController.Budget(settings.prefetchBudget(t)));
+        return subscriber -> {
+            if (subscriber == null) {
+                throw new NullPointerException("Subscriber must not be null");
+            }
+            @SuppressWarnings("unchecked")
+            RemoteSubscription subscription = new RemoteSubscription((Subscriber<Object>) subscriber, codec, from,
+                    prefetchBudget);
+            subscriber.onSubscribe(subscription);
+            execute(() -> subscription.connect(address, topic, partition));
+        };
+    }
+
+    /**
+     * Close all connections.
+     *
+     * Subscribers of the connections are failed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Run the given task on the selector thread.
+     */
+    private void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((RemoteSubscription) key.attachment()).selected(key);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.SEVERE, "Transport client failed", e);
+        } finally {
+            IOException error = new IOException("Transport client closed");
+            for (SelectionKey key : selector.keys()) {
+                ((RemoteSubscription) key.attachment()).failed(error);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+            for (BatchCompression compression : settings.compressions()) {
+                compression.release();
+            }
+        }
+    }
+
+    /**
+     * A subscription to a remote partition.
+     *
+     * The connection is only accessed by the selector thread, and the subscriber only by a drain loop on the executor.
+     */
+    private final class RemoteSubscription implements Subscription, Runnable {
+
+        private final Subscriber<Object> subscriber;
+        private final MessageCodec codec;
+        private final long from;
+        private final DemandController window;
+        private final int initialCredit;
+        private final ConcurrentLinkedQueue<ByteBuffer> received = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        // Selector thread state
+        private final TransportFrames.Reader reader = new TransportFrames.Reader(MAX_FRAME);
+        private final CRC32 crc = new CRC32();
+        private SocketChannel channel;
+        private SelectionKey key;
+        private long arrived;
+
+        // Drain state, the records of the current batch, the next sequence to deliver, and the messages consumed and
+        // the credit granted since the subscription started
+        private ByteBuffer records;
+        private int recordPosition;
+        private int recordsRemaining;
+        private int recordHeaderSize;
+        // The buffer that compressed batches are decompressed into, reused since their messages are decoded at once
+        private ByteBuffer decompressed;
+        private long next;
+        private long consumed;
+        private long granted;
+
+        RemoteSubscription(Subscriber<Object> subscriber, MessageCodec codec, long from,
+                DemandController.Budget prefetchBudget) {
+            this.subscriber = subscriber;
+            this.codec = codec;
+            this.from = from;
+            this.next = from;
+            this.window = new DemandController(MIN_CREDIT_WINDOW, MAX_CREDIT_WINDOW, prefetchBudget);
+            this.initialCredit = window.window();
+            this.granted = initialCredit;
+        }
+
+        void connect(InetSocketAddress address, String topic, int partition) {
+            if (cancelled) {
+                return;
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                writes.offer(TransportFrames.subscribe(topic, partition, from));
+                writes.offer(TransportFrames.credit(initialCredit));
+                window.requested(initialCredit, System.nanoTime());
+                if (channel.connect(address)) {
+                    key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+                } else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException | RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        void selected(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (key.isReadable()) {
+                    while (reader.read(channel)) {
+                        frame(reader.type(), reader.payload());
+                    }
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write();
+                }
+            } catch (IOException | RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        private void frame(byte type, ByteBuffer payload) throws IOException {
+            if (type == TransportFrames.ERROR) {
+                throw new IOException("Server failed subscription: " + TransportFrames.readString(payload));
+            } else if (type != TransportFrames.BATCHES) {
+                throw new IOException("Unexpected frame type " + type);
+            }
+            int limit = payload.limit();
+            int batch = 0;
+            while (batch < limit) {
+                int length = payload.getInt(batch);
+                int batchEnd = batch + 4 + length;
+                if (length < LogSegment.BATCH_HEADER_SIZE - 4 || batchEnd > limit) {
+                    throw new IOException("Malformed batch of length " + length);
+                }
+                if (payload.getInt(batch + 4) != LogSegment.checksum(payload, batch, batchEnd, crc)) {
+                    throw new IOException("Batch from sequence " + payload.getLong(batch + 8) + " failed its checksum");
+                }
+                ByteBuffer slice = payload.duplicate();
+                slice.limit(batchEnd).position(batch);
+                received.offer(slice.slice());
+                arrived += payload.getInt(batch + 24);
+                batch = batchEnd;
+            }
+            // A frame holds many messages, so rather than every few messages, the count is reported once per frame
+            window.received(arrived, System.nanoTime());
+            drain();
+        }
+
+        private void write() throws IOException {
+            ByteBuffer frame;
+            while ((frame = writes.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                writes.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            writeScheduled.set(false);
+            // A frame may have been queued before we cleared the flag
+            if (!writes.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Grant the server more credit, from any thread.
+         */
+        private void grant(long n) {
+            writes.offer(TransportFrames.credit(n));
+            if (writeScheduled.compareAndSet(false, true)) {
+                execute(() -> {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+        }
+
+        /**
+         * The connection failed, invoked on the selector thread.
+         */
+        void failed(Throwable cause) {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing more we can do
+                }
+            }
+            if (error == null) {
+                error = cause;
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException(
+                        "Rule 3.9: Subscription.request must be called with a positive number, but was " + n);
+                cancel();
+                executor.execute(() -> subscriber.onError(error));
+                return;
+            }
+            for (;;) {
+                long current = demand.get();
+                long updated = current + n;
+                if (updated < 0) {
+                    updated = Long.MAX_VALUE;
+                }
+                if (demand.compareAndSet(current, updated)) {
+                    break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                window.close();
+                execute(() -> {
+                    if (key != null) {
+                        key.cancel();
+                    }
+                    if (channel != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            // Nothing more we can do
+                        }
+                    }
+                });
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            for (;;) {
+                long requested = demand.get();
+                long emitted = 0;
+                while (emitted != requested && !cancelled) {
+                    Object message;
+                    try {
+                        message = nextMessage();
+                    } catch (RuntimeException e) {
+                        cancel();
+                        subscriber.onError(e);
+                        return;
+                    }
+                    if (message == null) {
+                        break;
+                    }
+                    subscriber.onNext(message);
+                    emitted++;
+                }
+                if (emitted != 0 && requested != Long.MAX_VALUE) {
+                    demand.addAndGet(-emitted);
+                }
+                consumed += emitted;
+                // Top the credit up to the window once half of it has been used
+                long outstanding = granted - consumed;
+                int size = window.window();
+                if (outstanding <= size / 2 && !cancelled) {
+                    long n = size - outstanding;
+                    grant(n);
+                    granted += n;
+                    window.requested(n, System.nanoTime());
+                }
+                if (cancelled) {
+                    received.clear();
+                    records = null;
+                    return;
+                }
+                Throwable failure = error;
+                if (failure != null && recordsRemaining == 0 && received.isEmpty()) {
+                    cancelled = true;
+                    window.close();
+                    subscriber.onError(failure);
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Decode the next message, decompressing the next batch if the current one is used up.
+         *
+         * @return The message, or null if there are no more messages received yet.
+         */
+        private Object nextMessage() {
+            for (;;) {
+                if (recordsRemaining > 0) {
+                    int record = recordPosition;
+                    int recordEnd = record + 4 + records.getInt(record);
+                    recordPosition = recordEnd;
+                    recordsRemaining--;
+                    long sequence = records.getLong(record + 4);
+                    // The first batch may start before the messages we asked for, which the server still counts against
+                    // our credit
+                    if (sequence < next) {
+                        consumed++;
+                        continue;
+                    }
+                    next = sequence + 1;
+                    ByteBuffer message = records.duplicate();
+                    message.limit(recordEnd).position(record + recordHeaderSize);
+                    return codec.decode(message);
+                }
+                ByteBuffer batch = received.poll();
+                if (batch == null) {
+                    return null;
+                }
+                records = decompressor.records(batch, 0, decompressed);
+                if (BatchCompressor.isCompressed(batch, 0)) {
+                    decompressed = records;
+                }
+                recordPosition = records.position();
+                recordsRemaining = batch.getInt(24);
+                recordHeaderSize = LogSegment.recordHeaderSize(batch, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.example.messaging.broker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The framing protocol spoken between a {@link TransportClient} and a {@link TransportServer}.
+ *
+ * Each frame is laid out as follows:
+ *
+ * <pre>
+ * int   length          the number of bytes in the frame after this field
+ * byte  type
+ * byte[] payload
+ * </pre>
+ *
+ * The client sends a {@link #SUBSCRIBE} frame when it connects, followed by {@link #CREDIT} frames as its subscriber
+ * consumes messages. The server sends {@link #BATCHES} frames, each holding one or more whole batches laid out exactly
+ * as they are in a {@link LogSegment}, which for a durable partition are the bytes of the segment itself, and an
+ * {@link #ERROR} frame if it can't serve the subscription, after which it closes the connection. Batches may be
+ * compressed, as described by {@link BatchCompressor}, and are only decompressed by the client. Every batch carries
+ * its checksum, which the client validates. The server never creates topics, a subscription to a topic the broker
+ * doesn't have is answered with an ERROR.
+ *
+ * The server never sends batches once the client's credit is used up, but since it only sends whole batches, the last
+ * batch it sends may take the client past its credit, by at most the size of a batch.
+ */
+final class TransportFrames {
+
+    static final int HEADER_SIZE = 5;
+
+    /**
+     * Subscribe to a partition: short topic length, topic UTF-8 bytes, int partition, long first sequence.
+     */
+    static final byte SUBSCRIBE = 1;
+
+    /**
+     * Grant the server credit to send more messages: long number of messages.
+     */
+    static final byte CREDIT = 2;
+
+    /**
+     * Messages: one or more whole log batches.
+     */
+    static final byte BATCHES = 3;
+
+    /**
+     * The subscription failed: UTF-8 error message.
+     */
+    static final byte ERROR = 4;
+
+    private TransportFrames() {
+    }
+
+    static ByteBuffer subscribe(String topic, int partition, long from) {
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = frame(SUBSCRIBE, 2 + name.length + 12);
+        frame.putShort((short) name.length).put(name).putInt(partition).putLong(from);
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer credit(long n) {
+        ByteBuffer frame = frame(CREDIT, 8);
+        frame.putLong(n);
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer error(String message) {
+        byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = frame(ERROR, bytes.length);
+        frame.put(bytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * The header of a frame whose payload is sent separately.
+     */
+    static ByteBuffer header(byte type, int payloadLength) {
+        ByteBuffer header = frame(type, 0);
+        header.putInt(0, 1 + payloadLength);
+        header.flip();
+        return header;
+    }
+
+    private static ByteBuffer frame(byte type, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        frame.putInt(1 + payloadLength).put(type);
+        return frame;
+    }
+
+    static String readString(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads frames from a non-blocking channel, as they arrive.
+     *
+     * Each frame's payload is read into a buffer of its own, which the reader doesn't touch again, so the messages in
+     * it may be decoded after the reader has moved on.
+     */
+    static final class Reader {
+
+        private final int maxFrameSize;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private ByteBuffer payload;
+        private byte type;
+        private boolean complete;
+
+        Reader(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        /**
+         * Read from the channel until a frame is complete, or there's nothing more to read.
+         *
+         * @return true if a frame is complete, in which case it's available from {@link #type()} and
+         *         {@link #payload()} until this is next invoked.
+         * @throws EOFException If the channel was closed.
+         */
+        boolean read(ReadableByteChannel channel) throws IOException {
+            if (complete) {
+                complete = false;
+                payload = null;
+                header.clear();
+            }
+            if (payload == null) {
+                if (fill(channel, header)) {
+                    return false;
+                }
+                int length = header.getInt(0);
+                if (length < 1 || length - 1 > maxFrameSize) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                type = header.get(4);
+                payload = ByteBuffer.allocate(length - 1);
+            }
+            if (fill(channel, payload)) {
+                return false;
+            }
+            payload.flip();
+            complete = true;
+            return true;
+        }
+
+        /**
+         * @return true if the buffer still isn't full.
+         */
+        private static boolean fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("Connection closed");
+                }
+                if (read == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        byte type() {
+            return type;
+        }
+
+        ByteBuffer payload() {
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package org.example.messaging.broker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Serves the partitions of a broker's topics to {@link TransportClient}s over TCP.
+ *
+ * The server runs a single selector thread, that does all of its network IO without blocking. Each connection serves
+ * a single subscription to a partition, using the protocol described in {@link TransportFrames}. The server only sends
+ * the messages that the client has granted it credit for, so the demand of the remote subscriber propagates back to
+ * the partition, and a connection that runs out of credit, or catches up with the partition, parks until it's granted
+ * more credit, or more messages are available.
+ *
+ * For a durable partition, messages are served straight out of the log. The server walks the headers of the batches
+ * after the last message it sent to find a range of whole batches in a segment, and sends the range with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so the messages are neither
+ * decoded nor copied through the JVM, and compressed batches stay compressed. For a partition that isn't durable,
+ * messages are read out of the ring buffer and encoded with the topic's codec into batches with the same layout, which
+ * are compressed with the topic's compression, if it has one, and checksummed like the batches of the log. A remote
+ * subscriber gates the ring buffer until its messages have been encoded, like the subscribers of clients created with
+ * {@link InMemoryMessageBroker#create(Class)} do, so one that falls behind holds up the partition's publishers.
+ *
+ * Servers are started with {@link InMemoryMessageBroker#listen(InetSocketAddress)}, and are closed with the broker.
+ */
+public final class TransportServer implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(TransportServer.class.getName());
+
+    /**
+     * The most bytes of batches to send in a single frame, though a frame always holds at least one batch.
+     */
+    private static final int MAX_CHUNK = 1 << 20;
+
+    /**
+     * The most messages from a ring buffer to encode into a single frame.
+     */
+    private static final int MAX_ENCODED = 256;
+
+    private static final int MAX_REQUEST_FRAME = 64 * 1024;
+
+    private final BrokerContext context;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    TransportServer(BrokerContext context, InetSocketAddress address) throws IOException {
+        this.context = context;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        Thread thread = new Thread(this::run, "messaging-transport-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The address the server is listening on.
+     */
+    public InetSocketAddress address() {
+        try {
+            return (InetSocketAddress) server.getLocalAddress();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stop listening, and close all connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    connection.serve();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection selected = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        selected.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        selected.serve();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.SEVERE, "Transport server on " + server + " failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            closeQuietly(server);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Nothing more we can do
+        }
+    }
+
+    /**
+     * A connection, serving a subscription to a single partition. Only accessed by the selector thread, other than
+     * to be woken.
+     */
+    private final class Connection implements Wakeable {
+
+        private final SocketChannel channel;
+        private final TransportFrames.Reader reader = new TransportFrames.Reader(MAX_REQUEST_FRAME);
+        private SelectionKey key;
+        private boolean writing;
+        private boolean closing;
+        private volatile boolean parked;
+
+        private TopicPartition partition;
+        private long next;
+        private long credit;
+
+        // The position in the log, for a durable partition
+        private LogSegment segment;
+        private ByteBuffer view;
+        private int position;
+
+        // The cursor into the ring buffer, the cursor that gates it, the buffer messages are encoded into, and
+        // compressed in, and the CRC batches are checksummed with, for a partition that isn't durable
+        private PartitionCursor cursor;
+        private Cursor gating;
+        private ByteBuffer encoded;
+        private BatchCompressor compressor;
+        private CRC32 crc;
+
+        // What's left to write of the current frame
+        private ByteBuffer out;
+        private FileChannel file;
+        private long filePosition;
+        private long fileEnd;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            try {
+                while (reader.read(channel)) {
+                    ByteBuffer payload = reader.payload();
+                    switch (reader.type()) {
+                        case TransportFrames.SUBSCRIBE:
+                            subscribe(payload);
+                            break;
+                        case TransportFrames.CREDIT:
+                            credit += payload.getLong();
+                            break;
+                        default:
+                            throw new IOException("Unexpected frame type " + reader.type());
+                    }
+                }
+            } catch (EOFException e) {
+                close();
+                return;
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            serve();
+        }
+
+        private void subscribe(ByteBuffer payload) throws IOException {
+            if (partition != null || closing) {
+                throw new IOException("Connection is already subscribed");
+            }
+            byte[] name = new byte[payload.getShort()];
+            payload.get(name);
+            String topicName = new String(name, StandardCharsets.UTF_8);
+            int index = payload.getInt();
+            long from = payload.getLong();
+            // Only serve topics that already exist, a remote client mustn't be able to create them
+            Topic topic = context.existingTopic(topicName);
+            if (topic == null) {
+                out = TransportFrames.error("No such topic " + topicName);
+                closing = true;
+                return;
+            }
+            if (index < 0 || index >= topic.partitionCount()) {
+                out = TransportFrames.error("Topic " + topicName + " has no partition " + index);
+                closing = true;
+                return;
+            }
+            partition = topic.partition(index);
+            next = Math.max(from, partition.firstSequence());
+            if (partition.log() == null) {
+                cursor = new PartitionCursor(partition, next);
+                gating = new Cursor(next);
+                partition.retain(gating);
+                encoded = ByteBuffer.allocate(64 * 1024);
+                compressor = new BatchCompressor(context.settings().compression(topicName),
+                        context.settings()::compressionFor);
+                crc = new CRC32();
+            }
+            partition.addConsumer(this);
+        }
+
+        /**
+         * Send as much as the client has credit for.
+         */
+        void serve() {
+            try {
+                for (;;) {
+                    if (!flush()) {
+                        return;
+                    }
+                    if (closing) {
+                        close();
+                        return;
+                    }
+                    if (partition == null || credit <= 0) {
+                        return;
+                    }
+                    if (!(cursor == null ? nextBatches() : nextEncoded())) {
+                        parked = true;
+                        // Messages may have become available before we parked
+                        if (available()) {
+                            parked = false;
+                            continue;
+                        }
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Write what's left of the current frame.
+         *
+         * @return false if the socket can't take any more yet.
+         */
+        private boolean flush() throws IOException {
+            if (out != null) {
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    return awaitWritable();
+                }
+                out = null;
+            }
+            while (file != null) {
+                long transferred = file.transferTo(filePosition, fileEnd - filePosition, channel);
+                filePosition += transferred;
+                if (filePosition >= fileEnd) {
+                    file = null;
+                } else if (transferred == 0) {
+                    return awaitWritable();
+                }
+            }
+            if (writing) {
+                writing = false;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            return true;
+        }
+
+        private boolean awaitWritable() {
+            if (!writing) {
+                writing = true;
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            return false;
+        }
+
+        private boolean available() {
+            return cursor == null ? next < partition.readLimit() : cursor.mayBeAvailable();
+        }
+
+        /**
+         * Set up the transfer of the next range of whole batches from the log.
+         *
+         * @return false if there are no more messages available yet.
+         */
+        private boolean nextBatches() {
+            SegmentLog segmentLog = partition.log();
+            long limit = partition.readLimit();
+            if (next >= limit) {
+                return false;
+            }
+            if (segment != null && segmentLog.segmentFor(segment.baseSequence()) != segment) {
+                // The segment has been replaced with a compacted copy of it, so look up where to carry on in the copy
+                segment = null;
+            }
+            if (segment == null) {
+                segment = segmentLog.segmentFor(next);
+                view = segment.view();
+                position = segment.lookup(next);
+            }
+            int start = -1;
+            int end = position;
+            long count = 0;
+            long last = -1;
+            while (count < credit) {
+                int length = batchLength(end);
+                if (length == 0) {
+                    if (start >= 0) {
+                        // The rest is in the next segment, which will be sent in the next frame
+                        break;
+                    }
+                    LogSegment following = segmentLog.segmentAfter(segment);
+                    if (following == null) {
+                        break;
+                    }
+                    // The writer has rolled, so everything it wrote to this segment is now visible, check again
+                    if (batchLength(end) != 0) {
+                        continue;
+                    }
+                    segment = following;
+                    view = following.view();
+                    end = 0;
+                    position = 0;
+                    continue;
+                }
+                long base = view.getLong(end + 8);
+                if (base >= limit) {
+                    break;
+                }
+                long batchLast = view.getLong(end + 16);
+                if (batchLast < next) {
+                    // Only the batches before the first one to send can end before the next message
+                    end += 4 + length;
+                    position = end;
+                    continue;
+                }
+                if (start >= 0 && end + 4 + length - start > MAX_CHUNK) {
+                    break;
+                }
+                if (start < 0) {
+                    start = end;
+                }
+                // The client counts every record of the batch, even those before the next message that it skips, and
+                // compacted batches can have gaps in their sequences
+                count += view.getInt(end + 24);
+                last = batchLast;
+                end += 4 + length;
+            }
+            if (start < 0) {
+                // The log has no more records before the limit, so anything before it was never written
+                next = Math.max(next, limit);
+                return false;
+            }
+            out = TransportFrames.header(TransportFrames.BATCHES, end - start);
+            file = segment.channel();
+            filePosition = start;
+            fileEnd = end;
+            position = end;
+            next = last + 1;
+            credit -= count;
+            return true;
+        }
+
+        private int batchLength(int batchPosition) {
+            return view.capacity() - batchPosition < LogSegment.BATCH_HEADER_SIZE ? 0 : view.getInt(batchPosition);
+        }
+
+        /**
+         * Encode the next messages from the ring buffer into a batch.
+         *
+         * @return false if there are no more messages available yet.
+         */
+        private boolean nextEncoded() {
+            MessageCodec codec = context.settings().codec(partition.topic());
+            ByteBuffer buffer = encoded;
+            buffer.clear().position(TransportFrames.HEADER_SIZE + LogSegment.BATCH_HEADER_SIZE);
+            long timestamp = System.currentTimeMillis();
+            int max = (int) Math.min(credit, MAX_ENCODED);
+            int count = 0;
+            long base = -1;
+            long last = -1;
+            Object message;
+            while (count < max && (message = cursor.poll()) != null) {
+                long sequence = cursor.sequence();
+                message = EncodedMessage.decoded(message);
+                for (;;) {
+                    int recordStart = buffer.position();
+                    try {
+                        if (buffer.remaining() < LogSegment.RECORD_HEADER_SIZE) {
+                            throw new BufferOverflowException();
+                        }
+                        buffer.position(recordStart + LogSegment.RECORD_HEADER_SIZE);
+                        codec.encode(message, buffer);
+                        buffer.putInt(recordStart, buffer.position() - recordStart - 4);
+                        buffer.putLong(recordStart + 4, sequence);
+                        buffer.putLong(recordStart + 12, timestamp);
+                        break;
+                    } catch (BufferOverflowException e) {
+                        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                        buffer.limit(recordStart).position(0);
+                        larger.put(buffer);
+                        buffer = encoded = larger;
+                    }
+                }
+                if (count == 0) {
+                    base = sequence;
+                }
+                last = sequence;
+                count++;
+            }
+            if (count == 0) {
+                return false;
+            }
+            int batch = TransportFrames.HEADER_SIZE;
+            buffer.putLong(batch + 8, base);
+            buffer.putLong(batch + 16, last);
+            buffer.putInt(batch + 24, count);
+            buffer.put(batch + BatchCompressor.ATTRIBUTES_OFFSET, (byte) 0);
+            int end = compressor.compress(buffer, batch, buffer.position());
+            buffer.putInt(0, end - 4);
+            buffer.put(4, TransportFrames.BATCHES);
+            buffer.putInt(batch, end - batch - 4);
+            buffer.putInt(batch + 4, LogSegment.checksum(buffer, batch, end, crc));
+            buffer.limit(end).position(0);
+            out = buffer;
+            next = last + 1;
+            credit -= count;
+            // The messages have been copied out of the ring buffer, so their slots can be reused
+            if (gating.advanceTo(next)) {
+                partition.capacityReleased();
+            }
+            return true;
+        }
+
+        @Override
+        public void wake() {
+            if (parked) {
+                parked = false;
+                ready.offer(this);
+                selector.wakeup();
+            }
+        }
+
+        private void fail(Throwable error) {
+            log.log(Level.WARNING, "Transport connection " + channel + " failed", error);
+            if (!(error instanceof IOException) && !closing && out == null && file == null) {
+                // Tell the client why, if we're between frames
+                out = TransportFrames.error(error.toString());
+                closing = true;
+                serve();
+            } else {
+                close();
+            }
+        }
+
+        void close() {
+            if (partition != null) {
+                partition.removeConsumer(this);
+                if (gating != null) {
+                    partition.release(gating);
+                    gating = null;
+                }
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageFilter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The filter declared by a {@link MessageFilter} on a subscriber method.
+ *
+ * Messages read from a log are filtered by the type name that their codec reads from their encoding, so they're only
+ * decoded if the codec can't tell their type. Whether each type is accepted is worked out once and cached, so
+ * filtering a message costs a map lookup.
+ *
+ * Thread safe, the filter is shared by the streams of every partition that the method subscribes to.
+ */
+final class TypeFilter {
+
+    private final Class<?>[] types;
+    private final Map<String, Boolean> acceptedNames = new ConcurrentHashMap<>();
+    private final ClassValue<Boolean> accepted = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> acceptedType : types) {
+                if (acceptedType.isAssignableFrom(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    };
+
+    TypeFilter(Class<?>[] types) {
+        this.types = types.clone();
+    }
+
+    /**
+     * Whether the given message, which may be an {@link EncodedMessage}, should be delivered.
+     */
+    boolean accepts(Object message) {
+        if (message instanceof EncodedMessage) {
+            EncodedMessage encoded = (EncodedMessage) message;
+            String typeName = encoded.typeName();
+            Boolean accepts = typeName == null ? null : acceptedNames.computeIfAbsent(typeName, this::acceptsName);
+            if (accepts != null) {
+                return accepts;
+            }
+            message = encoded.decode();
+        }
+        return accepted.get(message.getClass());
+    }
+
+    /**
+     * Whether the type with the given name is accepted, or null if the type can't be loaded without decoding a
+     * message, in which case nothing is cached, and it's decided from the decoded message's class.
+     */
+    private Boolean acceptsName(String typeName) {
+        for (Class<?> type : types) {
+            if (type.getName().equals(typeName)) {
+                return true;
+            }
+        }
+        // It may be a subtype of one of the types, so see if the loaders of the types can load it
+        for (Class<?> type : types) {
+            try {
+                return accepted.get(Class.forName(typeName, false, type.getClassLoader()));
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Try the next loader
+            }
+        }
+        return null;
+    }
+}
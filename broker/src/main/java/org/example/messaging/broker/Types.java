@@ -0,0 +1,50 @@
+package org.example.messaging.broker;
+
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+
+/**
+ * Utilities for working with generic types of handler methods.
+ */
+final class Types {
+
+    private Types() {
+    }
+
+    /**
+     * Get the type argument at the given index of a parameterized type, or {@link Object} if the type isn't
+     * parameterized.
+     */
+    static Type typeArgument(Type type, int index) {
+        if (type instanceof ParameterizedType) {
+            Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+            if (index < arguments.length) {
+                return arguments[index];
+            }
+        }
+        return Object.class;
+    }
+
+    /**
+     * Get the raw class of the given type.
+     */
+    static Class<?> rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        } else if (type instanceof ParameterizedType) {
+            return rawType(((ParameterizedType) type).getRawType());
+        } else if (type instanceof WildcardType) {
+            return rawType(((WildcardType) type).getUpperBounds()[0]);
+        } else if (type instanceof TypeVariable) {
+            return rawType(((TypeVariable<?>) type).getBounds()[0]);
+        } else if (type instanceof GenericArrayType) {
+            return java.lang.reflect.Array.newInstance(
+                    rawType(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        } else {
+            return Object.class;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.example.messaging.broker;
+
+/**
+ * Something that parks itself when it can't make progress, and needs to be woken up when it can.
+ */
+interface Wakeable {
+
+    /**
+     * Wake up, if parked.
+     *
+     * This is invoked on the hot path of the thread that made progress possible, so implementations must be cheap
+     * when not parked, and must not do any work inline beyond scheduling themselves.
+     */
+    void wake();
+}
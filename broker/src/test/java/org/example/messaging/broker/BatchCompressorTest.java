@@ -0,0 +1,160 @@
+package org.example.messaging.broker;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchCompressorTest {
+
+    private static final byte PRODUCERS = (byte) 0x80;
+
+    private final DeflateCompression compression = new DeflateCompression();
+    private final BatchCompressor compressor = new BatchCompressor(compression,
+            id -> id == compression.id() ? compression : null);
+
+    @After
+    public void releaseCompression() {
+        compression.release();
+    }
+
+    @Test
+    public void deflateRoundTripsHeapAndDirectBuffers() {
+        byte[] data = compressible(10_000);
+        for (boolean direct : new boolean[] {false, true}) {
+            ByteBuffer source = allocate(data.length, direct);
+            source.put(data).flip();
+            ByteBuffer compressed = allocate(data.length, direct);
+            compression.compress(source, compressed);
+            assertFalse(source.hasRemaining());
+            compressed.flip();
+            assertTrue(compressed.remaining() < data.length / 2);
+
+            ByteBuffer decompressed = allocate(data.length, direct);
+            compression.decompress(compressed, decompressed);
+            decompressed.flip();
+            assertEquals(ByteBuffer.wrap(data), decompressed);
+        }
+    }
+
+    @Test
+    public void deflateOverflowsATargetThatIsTooSmall() {
+        byte[] data = random(1000);
+        try {
+            compression.compress(ByteBuffer.wrap(data), ByteBuffer.allocate(500));
+            fail("Compressed random bytes to half their size");
+        } catch (BufferOverflowException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void deflateRejectsCorruptInput() {
+        try {
+            compression.decompress(ByteBuffer.wrap(random(100)), ByteBuffer.allocate(1000));
+            fail("Decompressed random bytes");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void roundTripsCompressedBatch() {
+        byte[] records = compressible(5000);
+        ByteBuffer buffer = batch(100, records, PRODUCERS);
+        int end = compressor.compress(buffer, 100, 100 + LogSegment.BATCH_HEADER_SIZE + records.length);
+        buffer.putInt(100, end - 100 - 4);
+        assertTrue(BatchCompressor.isCompressed(buffer, 100));
+        assertTrue(end - 100 < records.length / 2);
+        // The compressor leaves the other attributes as they were
+        assertEquals((PRODUCERS & 0xff) | compression.id(), buffer.get(100 + BatchCompressor.ATTRIBUTES_OFFSET) & 0xff);
+
+        ByteBuffer decompressed = compressor.records(buffer, 100, null);
+        assertEquals(ByteBuffer.wrap(records), decompressed);
+        // A target that's large enough is reused, and one that isn't is replaced
+        ByteBuffer target = ByteBuffer.allocate(records.length);
+        assertSame(target, compressor.records(buffer, 100, target));
+        assertEquals(ByteBuffer.wrap(records), target);
+        ByteBuffer small = ByteBuffer.allocate(10);
+        assertNotSame(small, compressor.records(buffer, 100, small));
+    }
+
+    @Test
+    public void leavesBatchesUncompressedUnlessThatMakesThemSmaller() {
+        byte[][] uncompressed = {compressible(100), random(5000)};
+        for (byte[] records : uncompressed) {
+            ByteBuffer buffer = batch(0, records, (byte) 0);
+            int end = LogSegment.BATCH_HEADER_SIZE + records.length;
+            assertEquals(end, compressor.compress(buffer, 0, end));
+            assertFalse(BatchCompressor.isCompressed(buffer, 0));
+            assertEquals(ByteBuffer.wrap(records), compressor.records(buffer, 0, null));
+        }
+    }
+
+    @Test
+    public void leavesBatchesUncompressedWithoutACompression() {
+        byte[] records = compressible(5000);
+        ByteBuffer buffer = batch(0, records, PRODUCERS);
+        int end = LogSegment.BATCH_HEADER_SIZE + records.length;
+        BatchCompressor uncompressed = new BatchCompressor(null, id -> id == compression.id() ? compression : null);
+        assertEquals(end, uncompressed.compress(buffer, 0, end));
+        assertFalse(BatchCompressor.isCompressed(buffer, 0));
+        assertEquals(PRODUCERS, buffer.get(BatchCompressor.ATTRIBUTES_OFFSET));
+        assertEquals(ByteBuffer.wrap(records), uncompressed.records(buffer, 0, null));
+    }
+
+    @Test
+    public void refusesBatchesCompressedWithAnUnknownCompression() {
+        byte[] records = compressible(5000);
+        ByteBuffer buffer = batch(0, records, (byte) 0);
+        int end = compressor.compress(buffer, 0, LogSegment.BATCH_HEADER_SIZE + records.length);
+        buffer.putInt(0, end - 4);
+        try {
+            new BatchCompressor(null, id -> null).records(buffer, 0, null);
+            fail("Decompressed a batch without its compression");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("isn't configured"));
+        }
+    }
+
+    /**
+     * A buffer with a batch of the given records at the given position, with the given attributes.
+     */
+    private static ByteBuffer batch(int batchStart, byte[] records, byte attributes) {
+        ByteBuffer buffer = ByteBuffer.allocate(batchStart + LogSegment.BATCH_HEADER_SIZE + records.length);
+        buffer.putInt(batchStart, LogSegment.BATCH_HEADER_SIZE - 4 + records.length);
+        buffer.put(batchStart + BatchCompressor.ATTRIBUTES_OFFSET, attributes);
+        buffer.position(batchStart + LogSegment.BATCH_HEADER_SIZE);
+        buffer.put(records);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static byte[] compressible(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) {
+            text.append("message-").append(i % 100).append(' ');
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
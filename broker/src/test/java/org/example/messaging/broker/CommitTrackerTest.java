@@ -0,0 +1,74 @@
+package org.example.messaging.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CommitTrackerTest {
+
+    @Test
+    public void watermarkWaitsForTheFirstPendingMessage() {
+        CommitTracker tracker = new CommitTracker(100);
+        assertEquals(100, tracker.delivered(100, 109, false));
+        assertEquals(100, tracker.commit(105, 109));
+        assertEquals(100, tracker.commit(101, 102));
+        assertEquals(103, tracker.commit(100, 100));
+        assertEquals(110, tracker.commit(103, 104));
+        // Committing again, or beyond what was delivered, changes nothing
+        assertEquals(110, tracker.commit(100, 200));
+        assertEquals(110, tracker.watermark());
+    }
+
+    @Test
+    public void sequencesThatWereNeverDeliveredDontHoldTheWatermarkBack() {
+        CommitTracker tracker = new CommitTracker(0);
+        tracker.delivered(0, 1, false);
+        tracker.delivered(5, 6, false);
+        tracker.delivered(200, 200, false);
+        assertEquals(0, tracker.commit(5, 6));
+        assertEquals(200, tracker.commit(0, 1));
+        assertEquals(201, tracker.commit(200, 200));
+        // With nothing pending, the next delivery starts the watermark, wherever it is
+        assertEquals(1000, tracker.delivered(1000, 1000, false));
+    }
+
+    @Test
+    public void committedOutOfOrderAcrossAWideSpread() {
+        CommitTracker tracker = new CommitTracker(10);
+        // Pairs of messages with a gap between each, so the bitset grows well past its initial size
+        long last = 10;
+        for (long sequence = 10; sequence < 100_000; sequence += 3) {
+            tracker.delivered(sequence, sequence + 1, false);
+            last = sequence;
+        }
+        for (long sequence = last; sequence > 10; sequence -= 3) {
+            assertEquals(10, tracker.commit(sequence, sequence + 1));
+        }
+        assertEquals(10, tracker.commit(11, 11));
+        assertEquals(last + 2, tracker.commit(10, 10));
+    }
+
+    @Test
+    public void filteredMessagesMoveTheWatermarkOnceNothingIsPending() {
+        CommitTracker tracker = new CommitTracker(0);
+        tracker.delivered(0, 0, false);
+        assertEquals(0, tracker.filtered(5));
+        assertEquals(5, tracker.commit(0, 0));
+        assertEquals(8, tracker.filtered(8));
+        assertEquals(10, tracker.delivered(10, 10, false));
+    }
+
+    @Test
+    public void acknowledgementsCommitElementsInDeliveryOrder() {
+        CommitTracker tracker = new CommitTracker(0);
+        int elements = 100;
+        for (long element = 0; element < elements; element++) {
+            tracker.delivered(element * 2, element * 2 + 1, true);
+        }
+        for (long element = 0; element < elements; element++) {
+            assertEquals(element * 2 + 2, tracker.acknowledged());
+        }
+        // Nothing is left awaiting acknowledgement
+        assertEquals(elements * 2, tracker.acknowledged());
+    }
+}
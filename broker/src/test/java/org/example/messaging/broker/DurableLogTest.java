@@ -0,0 +1,139 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DurableLogTest {
+
+    private static final int MESSAGES = 20_000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryOffsetStore offsetStore = new InMemoryOffsetStore();
+    private BrokerSettings settings;
+
+    @Before
+    public void createSettings() throws IOException {
+        settings = BrokerSettings.defaults().withLogDirectory(folder.newFolder().toPath()).withSegmentSize(64 * 1024)
+                .withOffsetStore(offsetStore);
+    }
+
+    @Test
+    public void restartRecoversEveryMessageOnce() throws Exception {
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            publish(broker, 0, MESSAGES);
+        }
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            assertRange(0, MESSAGES, subscribe(broker, MessageOffset.None.INSTANCE, MESSAGES));
+            // Messages published after the restart carry on from the last sequence, rather than overwriting
+            publish(broker, MESSAGES, 2 * MESSAGES);
+            assertRange(0, 2 * MESSAGES, subscribe(broker, MessageOffset.None.INSTANCE, 2 * MESSAGES));
+            assertRange(MESSAGES, 2 * MESSAGES,
+                    subscribe(broker, new MessageOffset.Sequence(MESSAGES - 1), MESSAGES));
+        }
+    }
+
+    @Test
+    public void subscriberResumesFromCommittedOffsetAfterRestart() throws Exception {
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            publish(broker, 0, MESSAGES);
+            Consumer consumer = new Consumer(MESSAGES / 2);
+            broker.register(consumer);
+            assertRange(0, MESSAGES / 2, consumer.await(MESSAGES / 2));
+            TestStreams.await("the consumer's offset is stored", () -> new MessageOffset.Sequence(MESSAGES / 2 - 1)
+                    .equals(offsetStore.load(Consumer.STREAM_ID, 0)));
+        }
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            Consumer consumer = new Consumer(Long.MAX_VALUE);
+            broker.register(consumer);
+            publish(broker, MESSAGES, 2 * MESSAGES);
+            assertRange(MESSAGES / 2, 2 * MESSAGES, consumer.await(MESSAGES + MESSAGES / 2));
+        }
+    }
+
+    private static void publish(InMemoryMessageBroker broker, long from, long to) throws InterruptedException {
+        TestStreams.publish(broker.create(Client.class).publish(), TestStreams.range(from, to, true, i -> i));
+    }
+
+    private static List<Long> subscribe(InMemoryMessageBroker broker, MessageOffset offset, int count)
+            throws InterruptedException {
+        TestStreams.Collector<Long> subscriber = new TestStreams.Collector<>();
+        broker.create(Client.class).subscribe(offset).subscribe(subscriber);
+        return subscriber.await(count);
+    }
+
+    private static void assertRange(long from, long to, List<Long> received) {
+        assertEquals(to - from, received.size());
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(from + i, (long) received.get(i));
+        }
+    }
+
+    public interface Client {
+        @MessagePublisher("t")
+        Processor<Long, Long> publish();
+
+        @MessageSubscriber("t")
+        Publisher<Long> subscribe(MessageOffset offset);
+    }
+
+    /**
+     * Consumes and commits up to a limit of messages.
+     */
+    public static class Consumer {
+
+        static final String STREAM_ID = Consumer.class.getName() + ".consume/t";
+
+        private final long limit;
+        private final TestStreams.Collector<Long> received = new TestStreams.Collector<>();
+
+        Consumer(long limit) {
+            this.limit = limit;
+        }
+
+        @MessageSubscriber("t")
+        public Subscriber<MessageEnvelope<Long>> consume() {
+            return new Subscriber<MessageEnvelope<Long>>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    subscription.request(limit);
+                }
+
+                @Override
+                public void onNext(MessageEnvelope<Long> envelope) {
+                    received.onNext(envelope.message());
+                    envelope.commit();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    received.onError(t);
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            };
+        }
+
+        List<Long> await(int count) throws InterruptedException {
+            return received.await(count);
+        }
+    }
+}
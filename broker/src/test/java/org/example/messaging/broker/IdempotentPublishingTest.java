@@ -0,0 +1,133 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IdempotentPublishingTest {
+
+    private static final int PRODUCED = 100;
+    private static final int FILLER = 1000;
+    private static final String PADDING = new String(new char[200]).replace('\0', '.');
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private BrokerSettings settings;
+
+    @Before
+    public void createSettings() throws IOException {
+        // Loses the offsets of publishers, so that they republish everything when they're restarted
+        InMemoryOffsetStore subscriberOffsets = new InMemoryOffsetStore();
+        OffsetStore offsetStore = new OffsetStore() {
+            @Override
+            public MessageOffset load(String streamId, int partition) {
+                return subscriberOffsets.load(streamId, partition);
+            }
+
+            @Override
+            public void store(String streamId, int partition, MessageOffset offset) {
+                if (!streamId.equals(Producer.STREAM_ID)) {
+                    subscriberOffsets.store(streamId, partition, offset);
+                }
+            }
+        };
+        settings = BrokerSettings.defaults().withLogDirectory(folder.newFolder().toPath()).withSegmentSize(16 * 1024)
+                .withIdempotentPublishing("t").withOffsetStore(offsetStore);
+    }
+
+    @Test
+    public void dropsMessagesRepublishedAfterRestart() throws Exception {
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            broker.register(new Producer(PRODUCED));
+            awaitProduced(broker, PRODUCED - 1);
+            // Pushes the producer's messages many segments back, so they're not in the tail of the log
+            TestStreams.publish(broker.create(Client.class).publish(),
+                    TestStreams.range(0, FILLER, true, i -> "filler-" + i + PADDING));
+        }
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            broker.register(new Producer(PRODUCED + 1));
+            List<String> messages = awaitProduced(broker, PRODUCED);
+            assertEquals(PRODUCED + 1 + FILLER, messages.size());
+            int produced = 0;
+            for (String message : messages) {
+                if (message.startsWith("produced-")) {
+                    assertEquals("produced-" + produced, message);
+                    produced++;
+                }
+            }
+            assertEquals(PRODUCED + 1, produced);
+        }
+    }
+
+    @Test
+    public void refusesSecondProducerWithTheSameStreamId() {
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            broker.register(new Producer(PRODUCED));
+            try {
+                broker.register(new Producer(PRODUCED));
+                fail("Registered a second producer with the same stream id");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(Producer.STREAM_ID));
+            }
+        }
+    }
+
+    /**
+     * Wait until the message the producer publishes with the given producer sequence is in the log, and return the
+     * messages of the log up to it.
+     */
+    private static List<String> awaitProduced(InMemoryMessageBroker broker, int sequence) throws InterruptedException {
+        TestStreams.Collector<String> subscriber = new TestStreams.Collector<>();
+        broker.create(Client.class).subscribe(MessageOffset.None.INSTANCE).subscribe(subscriber);
+        TestStreams.await("produced-" + sequence + " is published",
+                () -> subscriber.received().contains("produced-" + sequence));
+        // Give any duplicates that would follow it the chance to arrive
+        Thread.sleep(200);
+        return subscriber.received();
+    }
+
+    public interface Client {
+        @MessagePublisher("t")
+        Processor<String, String> publish();
+
+        @MessageSubscriber("t")
+        Publisher<String> subscribe(MessageOffset offset);
+    }
+
+    /**
+     * Publishes messages up to a count, with their index as their producer sequence, from the start each time, since
+     * its offsets are never stored. It completes once it has published them, so that it doesn't hold sequences claimed
+     * for more, and so it's restarted, and republishes them, until the broker is closed.
+     */
+    public static class Producer {
+
+        static final String STREAM_ID = Producer.class.getName() + ".produce/t";
+
+        private final int count;
+
+        Producer(int count) {
+            this.count = count;
+        }
+
+        @MessagePublisher("t")
+        public Publisher<MessageEnvelope<String>> produce(MessageOffset offset) {
+            return TestStreams.range(0, count, true,
+                    i -> MessageEnvelope.create("produced-" + i, new MessageOffset.Sequence(i)));
+        }
+    }
+}
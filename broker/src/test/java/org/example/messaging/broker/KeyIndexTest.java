@@ -0,0 +1,89 @@
+package org.example.messaging.broker;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.DayOfWeek;
+import java.time.Month;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyIndexTest {
+
+    @Test
+    public void equalKeysHashTheSame() {
+        assertEquals(KeyIndex.hash("key"), KeyIndex.hash(new String("key")));
+        assertEquals(KeyIndex.hash(42L), KeyIndex.hash(Long.valueOf(42)));
+        assertEquals(KeyIndex.hash(new BigInteger("123456789012345678901234567890")),
+                KeyIndex.hash(new BigInteger("123456789012345678901234567890")));
+        UUID uuid = UUID.randomUUID();
+        assertEquals(KeyIndex.hash(uuid), KeyIndex.hash(new UUID(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits())));
+        assertEquals(KeyIndex.hash(TimeUnit.SECONDS), KeyIndex.hash(TimeUnit.valueOf("SECONDS")));
+    }
+
+    @Test
+    public void keysWithTheSameStringFormHashDifferently() {
+        Set<Long> hashes = new HashSet<>();
+        Object[] keys = {"1", 1L, 1, (short) 1, (byte) 1, 1.0, 1.0f, BigInteger.ONE, BigDecimal.ONE,
+            new BigDecimal("1.0")};
+        for (Object key : keys) {
+            assertTrue("Collision of " + key.getClass(), hashes.add(KeyIndex.hash(key)));
+        }
+        // Constants of different enums with the same name
+        assertNotEquals(KeyIndex.hash(TimeUnit.DAYS), KeyIndex.hash("DAYS"));
+        assertNotEquals(KeyIndex.hash(Month.MAY), KeyIndex.hash(Unit.MAY));
+    }
+
+    @Test
+    public void hashesAreNeverZero() {
+        for (long i = 0; i < 100_000; i++) {
+            assertNotEquals(0, KeyIndex.hash(i));
+        }
+    }
+
+    @Test
+    public void onlyHashesValueTypes() {
+        assertTrue(KeyIndex.hashable(String.class));
+        assertTrue(KeyIndex.hashable(long.class));
+        assertTrue(KeyIndex.hashable(Integer.class));
+        assertTrue(KeyIndex.hashable(UUID.class));
+        assertTrue(KeyIndex.hashable(DayOfWeek.class));
+        assertFalse(KeyIndex.hashable(Object.class));
+        assertFalse(KeyIndex.hashable(Number.class));
+        assertFalse(KeyIndex.hashable(Enum.class));
+        assertFalse(KeyIndex.hashable(StringBuilder.class));
+        try {
+            KeyIndex.hash(new Object());
+            fail("Hashed an object by its identity");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void latestSequenceReplacesEarlier() {
+        KeyIndex index = new KeyIndex(4);
+        for (long sequence = 0; sequence < 1000; sequence++) {
+            index.put(KeyIndex.hash("key-" + sequence % 100), sequence);
+        }
+        assertEquals(100, index.size());
+        for (int key = 0; key < 100; key++) {
+            assertEquals(900 + key, index.get(KeyIndex.hash("key-" + key)));
+        }
+        assertEquals(-1, index.get(KeyIndex.hash("missing")));
+    }
+
+    private enum Unit {
+        MAY
+    }
+}
@@ -0,0 +1,328 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageKey;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogCompactorTest {
+
+    private static final int KEYS = 10;
+    private static final int KEYED = 500;
+    private static final int FILLER = 200;
+    private static final long END = Long.MAX_VALUE;
+    private static final String PADDING = new String(new char[200]).replace('\0', '.');
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private BrokerSettings settings;
+
+    @Before
+    public void createSettings() throws IOException {
+        // A small ring buffer, so that reading from the start reads the log
+        settings = BrokerSettings.defaults().withLogDirectory(folder.newFolder().toPath()).withSegmentSize(16 * 1024)
+                .withRingBufferSize(64).withCompaction("t").withCompactionInterval(Duration.ofMillis(50));
+    }
+
+    @Test
+    public void keepsTheLatestRecordOfEachKeyAndRecordsWithoutKeys() throws Exception {
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            List<Event> published = publishKeyedThenFiller(broker, 0);
+            awaitCompacted(broker, compacted(published));
+        }
+    }
+
+    @Test
+    public void keepsTheLatestRecordOfEachProducer() throws Exception {
+        settings = settings.withIdempotentPublishing("t");
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            broker.register(new Producer());
+            List<Event> produced = new ArrayList<>();
+            for (long i = 0; i < KEYED; i++) {
+                produced.add(Producer.event(i));
+            }
+            readUntil(broker, KEYED - 1);
+            // Supersedes every key, including that of the producer's latest record
+            List<Event> published = publishKeyedThenFiller(broker, KEYED);
+            List<Event> expected = new ArrayList<>();
+            expected.add(produced.get(KEYED - 1));
+            expected.addAll(compacted(published));
+            awaitCompacted(broker, expected);
+        }
+    }
+
+    @Test
+    public void readsAcrossAReplacedSegment() throws Exception {
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            List<Event> published = publishKeyedThenFiller(broker, 0);
+            List<Event> expected = compacted(published);
+            Reader reader = new Reader(1);
+            broker.create(Client.class).subscribe(MessageOffset.None.INSTANCE).subscribe(reader);
+            TestStreams.await("the first record is read", () -> reader.size() == 1);
+            // The reader is part way through the first segment when it's replaced
+            awaitCompacted(broker, expected);
+            reader.request(Long.MAX_VALUE);
+            List<Event> read = reader.awaitEnd();
+
+            // It carries on without skipping or repeating records, though it may read some that have been removed
+            List<Long> publishedIndexes = indexes(published);
+            long previous = -1;
+            for (Event event : read) {
+                assertTrue("Read " + event.index + " after " + previous, event.index > previous);
+                assertTrue("Read " + event.index + ", which wasn't published", publishedIndexes.contains(event.index));
+                previous = event.index;
+            }
+            List<Long> readIndexes = indexes(read);
+            for (Event event : expected) {
+                assertTrue("Didn't read " + event.index, readIndexes.contains(event.index));
+            }
+        }
+    }
+
+    @Test
+    public void refusesPublishersOfKeysThatCantBeHashed() {
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            try {
+                broker.create(OpaqueKeyClient.class);
+                fail("Created a client that publishes opaque keys to a compacted topic");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(OpaqueKeyed.class.getName()));
+            }
+            try {
+                broker.register(new OpaqueKeyPublisher());
+                fail("Registered a publisher of opaque keys to a compacted topic");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(OpaqueKeyed.class.getName()));
+            }
+        }
+    }
+
+    /**
+     * Publish {@link #KEYED} messages, some of them without keys, followed by {@link #FILLER} messages without keys,
+     * so that the keyed messages are in sealed segments, and then the message at the end, and return them all.
+     */
+    private static List<Event> publishKeyedThenFiller(InMemoryMessageBroker broker, long from)
+            throws InterruptedException {
+        List<Event> events = new ArrayList<>();
+        for (long i = from; i < from + KEYED; i++) {
+            events.add(new Event(i % 7 == 0 ? null : "key-" + i % KEYS, i));
+        }
+        for (long i = from + KEYED; i < from + KEYED + FILLER; i++) {
+            events.add(new Event(null, i));
+        }
+        events.add(new Event(null, END));
+        TestStreams.publish(broker.create(Client.class).publish(),
+                TestStreams.range(0, events.size(), true, i -> events.get((int) i)));
+        return events;
+    }
+
+    /**
+     * The given events, without those that have a key and aren't the latest of it.
+     */
+    private static List<Event> compacted(List<Event> events) {
+        Map<String, Long> latest = new HashMap<>();
+        for (Event event : events) {
+            if (event.key != null) {
+                latest.put(event.key, event.index);
+            }
+        }
+        List<Event> compacted = new ArrayList<>();
+        for (Event event : events) {
+            if (event.key == null || latest.get(event.key) == event.index) {
+                compacted.add(event);
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Wait until reading the log from the start reads only the expected events.
+     */
+    private static void awaitCompacted(InMemoryMessageBroker broker, List<Event> expected) throws InterruptedException {
+        AtomicReference<List<Long>> read = new AtomicReference<>();
+        try {
+            TestStreams.await("the log is compacted", () -> {
+                read.set(indexes(readUntil(broker, END)));
+                return read.get().equals(indexes(expected));
+            });
+        } catch (AssertionError e) {
+            assertEquals(indexes(expected), read.get());
+            throw e;
+        }
+    }
+
+    /**
+     * Read the log from the start, up to the event with the given index.
+     */
+    private static List<Event> readUntil(InMemoryMessageBroker broker, long index) {
+        Reader reader = new Reader(Long.MAX_VALUE, index);
+        broker.create(Client.class).subscribe(MessageOffset.None.INSTANCE).subscribe(reader);
+        try {
+            return reader.awaitEnd();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        } finally {
+            reader.cancel();
+        }
+    }
+
+    private static List<Long> indexes(List<Event> events) {
+        List<Long> indexes = new ArrayList<>();
+        for (Event event : events) {
+            indexes.add(event.index);
+        }
+        return indexes;
+    }
+
+    /**
+     * A subscriber that requests as many events as it's told to, and collects them, up to the one with the given
+     * index.
+     */
+    private static final class Reader implements Subscriber<Event> {
+
+        private final long initialRequest;
+        private final long endIndex;
+        private final List<Event> received = new ArrayList<>();
+        private volatile Subscription subscription;
+        private volatile boolean ended;
+        private volatile Throwable error;
+
+        Reader(long initialRequest) {
+            this(initialRequest, END);
+        }
+
+        Reader(long initialRequest, long endIndex) {
+            this.initialRequest = initialRequest;
+            this.endIndex = endIndex;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public synchronized void onNext(Event event) {
+            if (!ended) {
+                received.add(event);
+                ended = event.index == endIndex;
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        void request(long n) {
+            subscription.request(n);
+        }
+
+        void cancel() {
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+
+        synchronized int size() {
+            return received.size();
+        }
+
+        synchronized List<Event> received() {
+            return new ArrayList<>(received);
+        }
+
+        List<Event> awaitEnd() throws InterruptedException {
+            TestStreams.await("event " + endIndex + " is read", () -> {
+                if (error != null) {
+                    throw new AssertionError("Subscription failed", error);
+                }
+                return ended;
+            });
+            return received();
+        }
+    }
+
+    public interface Client {
+        @MessagePublisher("t")
+        Processor<Event, Event> publish();
+
+        @MessageSubscriber("t")
+        Publisher<Event> subscribe(MessageOffset offset);
+    }
+
+    /**
+     * Publishes keyed messages, with their index as their producer sequence, from the start each time it's restarted,
+     * so its republished messages are dropped.
+     */
+    public static class Producer {
+        @MessagePublisher("t")
+        public Publisher<MessageEnvelope<Event>> produce(MessageOffset offset) {
+            return TestStreams.range(0, KEYED, true,
+                    i -> MessageEnvelope.create(event(i), new MessageOffset.Sequence(i)));
+        }
+
+        static Event event(long index) {
+            return new Event("key-" + index % KEYS, index);
+        }
+    }
+
+    public static final class Event implements Serializable {
+        @MessageKey
+        final String key;
+        final long index;
+        final String padding = PADDING;
+
+        Event(String key, long index) {
+            this.key = key;
+            this.index = index;
+        }
+    }
+
+    public interface OpaqueKeyClient {
+        @MessagePublisher("t")
+        Processor<OpaqueKeyed, OpaqueKeyed> publish();
+    }
+
+    public static class OpaqueKeyPublisher {
+        @MessagePublisher("t")
+        public Publisher<OpaqueKeyed> publish() {
+            return TestStreams.range(0, 0, true, i -> new OpaqueKeyed());
+        }
+    }
+
+    public static final class OpaqueKeyed implements Serializable {
+        // Its string form, and its hash code, are those of its identity
+        @MessageKey
+        final Object key = new Object();
+    }
+}
@@ -0,0 +1,87 @@
+package org.example.messaging.broker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogReaderTest {
+
+    private static final int BATCHES = 5;
+    private static final int BATCH_SIZE = 20;
+    private static final String PADDING = new String(new char[100]).replace('\0', '.');
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger decoded = new AtomicInteger();
+    private SegmentLog log;
+
+    @Before
+    public void openLog() throws IOException {
+        MessageCodec codec = new JavaSerializationCodec() {
+            @Override
+            public Object decode(ByteBuffer source) {
+                decoded.incrementAndGet();
+                return super.decode(source);
+            }
+        };
+        DeflateCompression compression = new DeflateCompression();
+        log = SegmentLog.open(folder.newFolder().toPath(), 1024 * 1024, 4096, codec,
+                new BatchCompressor(compression, id -> id == compression.id() ? compression : null));
+        LogSegment segment = log.active();
+        long sequence = 0;
+        for (int batch = 0; batch < BATCHES; batch++) {
+            assertTrue(segment.beginBatch());
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                assertTrue(segment.appendRecord(sequence, 0, message(sequence), codec));
+                sequence++;
+            }
+            segment.endBatch();
+        }
+        log.written().set(sequence);
+    }
+
+    @After
+    public void closeLog() {
+        log.close();
+    }
+
+    @Test
+    public void readsCompressedBatchesWithoutDecodingThem() {
+        List<EncodedMessage> messages = new ArrayList<>();
+        LogReader reader = log.reader(0);
+        while (reader.next()) {
+            messages.add(reader.encodedMessage());
+        }
+        assertEquals(0, decoded.get());
+        // Every message still refers to the batch it was decompressed from, after the reader has moved past it
+        assertEquals(BATCHES * BATCH_SIZE, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(i, messages.get(i).sequence());
+            assertEquals(message(i), messages.get(i).decode());
+        }
+    }
+
+    @Test
+    public void readsFromTheMiddleOfACompressedBatch() {
+        LogReader reader = log.reader(BATCH_SIZE + 3);
+        assertTrue(reader.next());
+        assertEquals(BATCH_SIZE + 3, reader.sequence());
+        assertEquals(message(BATCH_SIZE + 3), reader.encodedMessage().decode());
+    }
+
+    private static String message(long sequence) {
+        return "message-" + sequence + PADDING;
+    }
+}
@@ -0,0 +1,186 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageEnvelope;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.Partition;
+import org.example.messaging.Partitioned;
+import org.junit.After;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionSchedulerTest {
+
+    private static final int PARTITIONS = 32;
+    private static final int PUBLISHED = 10;
+
+    private final List<InMemoryMessageBroker> brokers = new ArrayList<>();
+
+    @After
+    public void closeBrokers() {
+        for (InMemoryMessageBroker broker : brokers) {
+            broker.close();
+        }
+    }
+
+    @Test
+    public void joiningNodeOnlyTakesPartitionsFromOthers() {
+        PartitionScheduler scheduler = new PartitionScheduler();
+        for (int i = 0; i < 4; i++) {
+            scheduler.join("node" + i, 1);
+        }
+        String[] before = owners(scheduler, 10_000);
+        scheduler.join("node4", 1);
+        String[] after = owners(scheduler, 10_000);
+
+        int moved = 0;
+        for (int p = 0; p < before.length; p++) {
+            if (!before[p].equals(after[p])) {
+                assertEquals("Partition " + p + " moved between existing nodes", "node4", after[p]);
+                moved++;
+            }
+        }
+        // About a fifth of the partitions move to the fifth node
+        assertTrue("Moved " + moved, moved > 1500 && moved < 2500);
+    }
+
+    @Test
+    public void leavingNodeOnlyGivesUpItsOwnPartitions() {
+        PartitionScheduler scheduler = new PartitionScheduler();
+        for (int i = 0; i < 4; i++) {
+            scheduler.join("node" + i, 1);
+        }
+        String[] before = owners(scheduler, 10_000);
+        scheduler.leave("node2");
+        String[] after = owners(scheduler, 10_000);
+
+        for (int p = 0; p < before.length; p++) {
+            if (before[p].equals("node2")) {
+                assertTrue(!after[p].equals("node2"));
+            } else {
+                assertEquals("Partition " + p + " moved between remaining nodes", before[p], after[p]);
+            }
+        }
+        scheduler.leave("node0");
+        scheduler.leave("node1");
+        scheduler.leave("node3");
+        assertNull(scheduler.owner("t", 0));
+    }
+
+    @Test
+    public void weightsSkewAssignment() {
+        PartitionScheduler scheduler = new PartitionScheduler();
+        scheduler.join("light", 1);
+        scheduler.join("heavy", 3);
+        int heavy = 0;
+        for (String owner : owners(scheduler, 10_000)) {
+            if (owner.equals("heavy")) {
+                heavy++;
+            }
+        }
+        assertTrue("Heavy node owns " + heavy, heavy > 7000 && heavy < 8000);
+    }
+
+    @Test
+    public void brokersRunTheStreamsOfTheirPartitions() throws InterruptedException {
+        PartitionScheduler scheduler = new PartitionScheduler();
+        InMemoryOffsetStore offsetStore = new InMemoryOffsetStore();
+        Map<Integer, String> running = new ConcurrentHashMap<>();
+        Map<Integer, MessageOffset> resumedFrom = new ConcurrentHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            start(scheduler, offsetStore, "node" + i, running, resumedFrom);
+        }
+        TestStreams.await("every partition runs on its owner", () -> runsOnOwners(scheduler, running));
+        Map<Integer, String> before = new HashMap<>(running);
+        // Wait for the first owners to publish everything, so the new owners have an offset to resume from
+        TestStreams.await("every partition stores its offset", () -> {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (!new MessageOffset.Sequence(PUBLISHED - 1).equals(offsetStore.load(Handler.STREAM_ID, p))) {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        start(scheduler, offsetStore, "node3", running, resumedFrom);
+        TestStreams.await("every partition runs on its owner after a node joins",
+                () -> runsOnOwners(scheduler, running));
+        int moved = 0;
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (!before.get(p).equals(running.get(p))) {
+                assertEquals("node3", running.get(p));
+                assertEquals(new MessageOffset.Sequence(PUBLISHED - 1), resumedFrom.get(p));
+                moved++;
+            }
+        }
+        assertTrue("No partitions moved to the new node", moved > 0);
+
+        brokers.remove(0).close();
+        assertEquals(3, scheduler.nodes().size());
+        TestStreams.await("every partition runs on its owner after a node leaves",
+                () -> runsOnOwners(scheduler, running));
+        for (int p = 0; p < PARTITIONS; p++) {
+            assertTrue(!running.get(p).equals("node0"));
+        }
+    }
+
+    private void start(PartitionScheduler scheduler, OffsetStore offsetStore, String node,
+            Map<Integer, String> running, Map<Integer, MessageOffset> resumedFrom) {
+        InMemoryMessageBroker broker = new InMemoryMessageBroker(BrokerSettings.defaults()
+                .withOffsetStore(offsetStore).withPartitionScheduler(scheduler, node, 1));
+        brokers.add(broker);
+        broker.register(new Handler(node, running, resumedFrom));
+    }
+
+    private static boolean runsOnOwners(PartitionScheduler scheduler, Map<Integer, String> running) {
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (!scheduler.owner("t", p).equals(running.get(p))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] owners(PartitionScheduler scheduler, int partitions) {
+        String[] owners = new String[partitions];
+        for (int p = 0; p < partitions; p++) {
+            owners[p] = scheduler.owner("t", p);
+        }
+        return owners;
+    }
+
+    public static class Handler {
+
+        static final String STREAM_ID = Handler.class.getName() + ".publish/t";
+
+        private final String node;
+        private final Map<Integer, String> running;
+        private final Map<Integer, MessageOffset> resumedFrom;
+
+        Handler(String node, Map<Integer, String> running, Map<Integer, MessageOffset> resumedFrom) {
+            this.node = node;
+            this.running = running;
+            this.resumedFrom = resumedFrom;
+        }
+
+        @MessagePublisher("t")
+        @Partitioned(PARTITIONS)
+        public Publisher<MessageEnvelope<Long>> publish(MessageOffset offset, @Partition int partition) {
+            running.put(partition, node);
+            resumedFrom.put(partition, offset);
+            long from = offset instanceof MessageOffset.Sequence ? ((MessageOffset.Sequence) offset).value() + 1 : 0;
+            return TestStreams.range(from, PUBLISHED, false, i -> MessageEnvelope.create(i,
+                    new MessageOffset.Sequence(i)), () -> running.remove(partition, node));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.example.messaging.broker;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PojoCodecTest {
+
+    @Test
+    public void roundTripsEveryFieldTypeThroughItsConstructor() {
+        Fields fields = new Fields("base", true, (byte) -2, (short) 300, '\u00e9', -70_000, Long.MIN_VALUE, 1.5f,
+                Double.MAX_VALUE, false, (byte) 7, (short) -300, 'x', 42, 1L << 40, -0.25f, Math.PI, "h\u00e9llo",
+                new byte[] {1, 2, 3}, TimeUnit.MINUTES);
+        Fields decoded = roundTrip(PojoCodec.forClass(Fields.class), fields);
+        assertTrue(decoded.constructed);
+        assertEquals("base", decoded.base);
+        assertEquals(true, decoded.booleanValue);
+        assertEquals((byte) -2, decoded.byteValue);
+        assertEquals((short) 300, decoded.shortValue);
+        assertEquals('\u00e9', decoded.charValue);
+        assertEquals(-70_000, decoded.intValue);
+        assertEquals(Long.MIN_VALUE, decoded.longValue);
+        assertEquals(1.5f, decoded.floatValue, 0);
+        assertEquals(Double.MAX_VALUE, decoded.doubleValue, 0);
+        assertEquals(Boolean.FALSE, decoded.booleanBox);
+        assertEquals(Byte.valueOf((byte) 7), decoded.byteBox);
+        assertEquals(Short.valueOf((short) -300), decoded.shortBox);
+        assertEquals(Character.valueOf('x'), decoded.charBox);
+        assertEquals(Integer.valueOf(42), decoded.intBox);
+        assertEquals(Long.valueOf(1L << 40), decoded.longBox);
+        assertEquals(Float.valueOf(-0.25f), decoded.floatBox);
+        assertEquals(Double.valueOf(Math.PI), decoded.doubleBox);
+        assertEquals("h\u00e9llo", decoded.string);
+        assertArrayEquals(new byte[] {1, 2, 3}, decoded.bytes);
+        assertEquals(TimeUnit.MINUTES, decoded.unit);
+    }
+
+    @Test
+    public void roundTripsNullReferences() {
+        Fields fields = new Fields(null, false, (byte) 0, (short) 0, '\0', 0, 0, 0, 0, null, null, null, null, null,
+                null, null, null, null, null, null);
+        Fields decoded = roundTrip(PojoCodec.forClass(Fields.class), fields);
+        assertNull(decoded.base);
+        assertNull(decoded.booleanBox);
+        assertNull(decoded.intBox);
+        assertNull(decoded.doubleBox);
+        assertNull(decoded.string);
+        assertNull(decoded.bytes);
+        assertNull(decoded.unit);
+    }
+
+    @Test
+    public void setsFieldsWhenThereIsNoConstructorThatTakesThem() {
+        Settable settable = new Settable();
+        settable.name = "name";
+        settable.count = 3;
+        settable.unit = TimeUnit.DAYS;
+        settable.ignored = new Object();
+        Settable decoded = roundTrip(PojoCodec.forClass(Settable.class), settable);
+        assertEquals("name", decoded.name);
+        assertEquals(3, decoded.count);
+        assertEquals(TimeUnit.DAYS, decoded.unit);
+        assertNull(decoded.ignored);
+    }
+
+    @Test
+    public void refusesUnsupportedFieldTypes() {
+        try {
+            PojoCodec.forClass(Unsupported.class);
+            fail("Created a codec for a class with an Object field");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("value"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(PojoCodec<T> codec, T message) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        codec.encode(message, buffer);
+        buffer.flip();
+        T decoded = (T) codec.decode(buffer);
+        assertEquals("Bytes left over", 0, buffer.remaining());
+        return decoded;
+    }
+
+    static class Base {
+        final String base;
+
+        Base(String base) {
+            this.base = base;
+        }
+    }
+
+    static final class Fields extends Base {
+        final boolean booleanValue;
+        final byte byteValue;
+        final short shortValue;
+        final char charValue;
+        final int intValue;
+        final long longValue;
+        final float floatValue;
+        final double doubleValue;
+        final Boolean booleanBox;
+        final Byte byteBox;
+        final Short shortBox;
+        final Character charBox;
+        final Integer intBox;
+        final Long longBox;
+        final Float floatBox;
+        final Double doubleBox;
+        final String string;
+        final byte[] bytes;
+        final TimeUnit unit;
+        final transient boolean constructed;
+
+        Fields(String base, boolean booleanValue, byte byteValue, short shortValue, char charValue, int intValue,
+                long longValue, float floatValue, double doubleValue, Boolean booleanBox, Byte byteBox,
+                Short shortBox, Character charBox, Integer intBox, Long longBox, Float floatBox, Double doubleBox,
+                String string, byte[] bytes, TimeUnit unit) {
+            super(base);
+            this.booleanValue = booleanValue;
+            this.byteValue = byteValue;
+            this.shortValue = shortValue;
+            this.charValue = charValue;
+            this.intValue = intValue;
+            this.longValue = longValue;
+            this.floatValue = floatValue;
+            this.doubleValue = doubleValue;
+            this.booleanBox = booleanBox;
+            this.byteBox = byteBox;
+            this.shortBox = shortBox;
+            this.charBox = charBox;
+            this.intBox = intBox;
+            this.longBox = longBox;
+            this.floatBox = floatBox;
+            this.doubleBox = doubleBox;
+            this.string = string;
+            this.bytes = bytes;
+            this.unit = unit;
+            this.constructed = true;
+        }
+    }
+
+    static final class Settable {
+        // Neither is written, so neither needs a supported type
+        static Object shared;
+        String name;
+        int count;
+        TimeUnit unit;
+        transient Object ignored;
+    }
+
+    static final class Unsupported {
+        Object value;
+    }
+}
@@ -0,0 +1,75 @@
+package org.example.messaging.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RingBufferTest {
+
+    @Test
+    public void readsPublishedMessages() {
+        RingBuffer ring = new RingBuffer(8, 0);
+        assertSame(RingBuffer.NOT_AVAILABLE, ring.read(0));
+        long start = ring.tryClaim(2);
+        assertEquals(0, start);
+        ring.publish(0, "a");
+        ring.publish(1, RingBuffer.SKIPPED);
+        assertEquals("a", ring.read(0));
+        assertSame(RingBuffer.SKIPPED, ring.read(1));
+        assertSame(RingBuffer.NOT_AVAILABLE, ring.read(2));
+    }
+
+    @Test
+    public void overwritesWithoutGatingCursors() {
+        RingBuffer ring = new RingBuffer(8, 0);
+        publish(ring, 12);
+        assertSame(RingBuffer.OVERWRITTEN, ring.read(3));
+        assertEquals(4L, ring.read(4));
+        assertEquals(4, ring.oldestSequence());
+    }
+
+    @Test
+    public void gatingCursorAddedAfterClaimsIsNeverOvertaken() {
+        RingBuffer ring = new RingBuffer(8, 0);
+        // Caches a gating minimum while there are no cursors
+        publish(ring, 4);
+        Cursor cursor = new Cursor(4);
+        ring.addGatingCursor(cursor);
+        publish(ring, 8);
+        assertEquals(-1, ring.tryClaim(1));
+        assertEquals(0, ring.remainingCapacity());
+        assertEquals(4L, ring.read(4));
+
+        cursor.set(6);
+        assertEquals(2, ring.remainingCapacity());
+        assertEquals(12, ring.tryClaim(2));
+        assertEquals(-1, ring.tryClaim(1));
+
+        ring.removeGatingCursor(cursor);
+        assertEquals(14, ring.tryClaim(8));
+    }
+
+    @Test
+    public void slowestGatingCursorGates() {
+        RingBuffer ring = new RingBuffer(8, 0);
+        Cursor slow = new Cursor(0);
+        Cursor fast = new Cursor(0);
+        ring.addGatingCursor(slow);
+        ring.addGatingCursor(fast);
+        publish(ring, 8);
+        fast.set(8);
+        assertEquals(-1, ring.tryClaim(1));
+        slow.set(3);
+        assertEquals(8, ring.tryClaim(3));
+        assertEquals(-1, ring.tryClaim(1));
+    }
+
+    private static void publish(RingBuffer ring, int n) {
+        for (int i = 0; i < n; i++) {
+            long sequence = ring.tryClaim(1);
+            assertEquals("Claim " + i, ring.nextSequence() - 1, sequence);
+            ring.publish(sequence, sequence);
+        }
+    }
+}
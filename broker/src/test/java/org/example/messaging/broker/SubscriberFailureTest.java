@@ -0,0 +1,176 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.Concurrent;
+import org.example.messaging.MessageKey;
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.example.messaging.MessageSubscriber;
+import org.example.messaging.Parallel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Processor;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that subscribers that consume messages out of order, blocking and {@link Parallel} subscribers, only ever
+ * commit offsets that every message before has been handled by, and carry on from the committed offset when they
+ * fail.
+ */
+public class SubscriberFailureTest {
+
+    private static final int MESSAGES = 2000;
+    private static final int FAILS_AT = 700;
+
+    private final Set<Long> handled = ConcurrentHashMap.newKeySet();
+    private final List<String> violations = new ArrayList<>();
+    private final InMemoryOffsetStore offsets = new InMemoryOffsetStore();
+    private InMemoryMessageBroker broker;
+
+    @Before
+    public void createBroker() {
+        OffsetStore offsetStore = new OffsetStore() {
+            @Override
+            public MessageOffset load(String streamId, int partition) {
+                return offsets.load(streamId, partition);
+            }
+
+            @Override
+            public void store(String streamId, int partition, MessageOffset offset) {
+                long committed = ((MessageOffset.Sequence) offset).value();
+                MessageOffset previous = offsets.load(streamId, partition);
+                synchronized (violations) {
+                    if (previous instanceof MessageOffset.Sequence
+                            && ((MessageOffset.Sequence) previous).value() > committed) {
+                        violations.add("Committed " + committed + " after " + previous);
+                    }
+                    for (long i = 0; i <= committed; i++) {
+                        if (!handled.contains(i)) {
+                            violations.add("Committed " + committed + " before " + i + " was handled");
+                            break;
+                        }
+                    }
+                }
+                offsets.store(streamId, partition, offset);
+            }
+        };
+        broker = new InMemoryMessageBroker(BrokerSettings.defaults().withOffsetStore(offsetStore)
+                .withBackoff(Duration.ofMillis(10), Duration.ofMillis(20)));
+    }
+
+    @After
+    public void closeBroker() {
+        broker.close();
+    }
+
+    @Test
+    public void blockingSubscriberCommitsInOrder() throws Exception {
+        assertCommitsInOrder(new Blocking(), Blocking.STREAM_ID);
+    }
+
+    @Test
+    public void asynchronousSubscriberCommitsInOrder() throws Exception {
+        assertCommitsInOrder(new Asynchronous(), Asynchronous.STREAM_ID);
+    }
+
+    @Test
+    public void parallelSubscriberCommitsInOrder() throws Exception {
+        assertCommitsInOrder(new ParallelHandler(), ParallelHandler.STREAM_ID);
+    }
+
+    private void assertCommitsInOrder(Handler handler, String streamId) throws InterruptedException {
+        broker.register(handler);
+        TestStreams.publish(broker.create(Client.class).publish(), TestStreams.range(0, MESSAGES, true, Event::new));
+        TestStreams.await("every message is handled", () -> handled.size() == MESSAGES);
+        TestStreams.await("the last message is committed",
+                () -> new MessageOffset.Sequence(MESSAGES - 1).equals(offsets.load(streamId, 0)));
+        assertTrue("The subscriber didn't fail", handler.failed.get());
+        synchronized (violations) {
+            assertEquals(new ArrayList<String>(), violations);
+        }
+    }
+
+    public interface Client {
+        @MessagePublisher("t")
+        Processor<Event, Event> publish();
+    }
+
+    public static final class Event {
+
+        @MessageKey
+        final long key;
+        final long index;
+
+        Event(long index) {
+            this.key = index % 16;
+            this.index = index;
+        }
+    }
+
+    private abstract class Handler {
+
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        /**
+         * Handle an event, failing the first time the event at {@link #FAILS_AT} is handled.
+         */
+        void handle(Event event) throws InterruptedException {
+            // Long enough for the events after to overtake the one that fails
+            Thread.sleep(1);
+            if (event.index == FAILS_AT && failed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Failed to handle " + event.index);
+            }
+            handled.add(event.index);
+        }
+    }
+
+    public class Blocking extends Handler {
+
+        static final String STREAM_ID = "org.example.messaging.broker.SubscriberFailureTest$Blocking.consume/t";
+
+        @MessageSubscriber("t")
+        @Concurrent(16)
+        public void consume(Event event) throws InterruptedException {
+            handle(event);
+        }
+    }
+
+    public class Asynchronous extends Handler {
+
+        static final String STREAM_ID = "org.example.messaging.broker.SubscriberFailureTest$Asynchronous.consume/t";
+
+        @MessageSubscriber("t")
+        @Concurrent(16)
+        public CompletionStage<Void> consume(Event event) {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    handle(event);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+
+    public class ParallelHandler extends Handler {
+
+        static final String STREAM_ID = "org.example.messaging.broker.SubscriberFailureTest$ParallelHandler.consume/t";
+
+        @MessageSubscriber("t")
+        @Parallel(4)
+        public void consume(Event event) throws InterruptedException {
+            handle(event);
+        }
+    }
+}
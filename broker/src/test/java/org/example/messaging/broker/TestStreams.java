@@ -0,0 +1,184 @@
+package org.example.messaging.broker;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongFunction;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Publishers, subscribers and waits shared by the broker tests.
+ */
+final class TestStreams {
+
+    static final long TIMEOUT_MILLIS = 30_000;
+
+    private TestStreams() {
+    }
+
+    /**
+     * A publisher of the elements for the indexes from <tt>from</tt> to <tt>to</tt>, exclusive, that completes after
+     * the last, or never completes if <tt>complete</tt> is false.
+     */
+    static <T> Publisher<T> range(long from, long to, boolean complete, LongFunction<T> element) {
+        return range(from, to, complete, element, () -> { });
+    }
+
+    /**
+     * A publisher of the elements for the indexes from <tt>from</tt> to <tt>to</tt>, exclusive, that runs
+     * <tt>cancelled</tt> when its subscription is cancelled.
+     */
+    static <T> Publisher<T> range(long from, long to, boolean complete, LongFunction<T> element, Runnable cancelled) {
+        return subscriber -> subscriber.onSubscribe(new Subscription() {
+            final AtomicLong demand = new AtomicLong();
+            final AtomicInteger wip = new AtomicInteger();
+            volatile boolean stopped;
+            long next = from;
+            boolean completed;
+
+            @Override
+            public void request(long n) {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+                int missed = 1;
+                do {
+                    while (!stopped && next < to && demand.get() > 0) {
+                        demand.decrementAndGet();
+                        subscriber.onNext(element.apply(next++));
+                    }
+                    if (!stopped && next == to && complete && !completed) {
+                        completed = true;
+                        subscriber.onComplete();
+                    }
+                    missed = wip.addAndGet(-missed);
+                } while (missed != 0);
+            }
+
+            @Override
+            public void cancel() {
+                if (!stopped) {
+                    stopped = true;
+                    cancelled.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Publish the given elements with a client publisher, and wait until they've all been published.
+     */
+    static <T> void publish(Processor<T, T> processor, Publisher<T> elements) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        processor.subscribe(new Subscriber<T>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(T element) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                error.set(t);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        elements.subscribe(processor);
+        assertTrue("Timed out publishing", done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        if (error.get() != null) {
+            throw new AssertionError("Publishing failed", error.get());
+        }
+    }
+
+    /**
+     * Wait until the given condition holds.
+     */
+    static void await(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting until " + description);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A subscriber that requests everything, and collects what it receives.
+     */
+    static final class Collector<T> implements Subscriber<T> {
+
+        private final List<T> received = new ArrayList<>();
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public synchronized void onNext(T element) {
+            received.add(element);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        synchronized List<T> received() {
+            return new ArrayList<>(received);
+        }
+
+        synchronized int size() {
+            return received.size();
+        }
+
+        /**
+         * Wait until the subscription fails, and return why.
+         */
+        Throwable awaitError() throws InterruptedException {
+            TestStreams.await("the subscription fails", () -> error != null);
+            return error;
+        }
+
+        /**
+         * Wait until the given number of elements have been received, and return them.
+         */
+        List<T> await(int count) throws InterruptedException {
+            TestStreams.await(count + " elements are received", () -> {
+                if (error != null) {
+                    throw new AssertionError("Subscription failed", error);
+                }
+                return size() >= count;
+            });
+            return received();
+        }
+    }
+}
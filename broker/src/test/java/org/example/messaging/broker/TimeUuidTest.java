@@ -0,0 +1,79 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageOffset.TimeUuid;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeUuidTest {
+
+    @Test
+    public void ordersByTimestampAcrossTheBoundariesOfItsFields() {
+        // Where the low 32 bits of the timestamp, which come first in the UUID, go negative, and wrap into the next 16
+        long[] boundaries = {1L << 31, 1L << 32, 1L << 48, 0x0a1b2c3d4e5f6000L};
+        Random random = new Random(42);
+        for (long boundary : boundaries) {
+            List<TimeUuid> uuids = new ArrayList<>();
+            for (long timestamp = boundary - 3; timestamp <= boundary + 3; timestamp++) {
+                uuids.add(timeUuid(timestamp, random.nextLong()));
+            }
+            List<TimeUuid> sorted = new ArrayList<>(uuids);
+            Collections.shuffle(sorted, random);
+            Collections.sort(sorted);
+            assertEquals("Around " + Long.toHexString(boundary), uuids, sorted);
+            for (TimeUuid uuid : uuids) {
+                assertEquals(uuid.value().timestamp(), uuid.timestamp());
+            }
+        }
+    }
+
+    @Test
+    public void ordersUuidsOfTheSameTimestampByClockSequenceAndNode() {
+        TimeUuid low = timeUuid(1000, 0x0000_0000_0000_0001L);
+        TimeUuid high = timeUuid(1000, 0x3fff_ffff_ffff_ffffL);
+        assertTrue(low.compareTo(high) < 0);
+        assertTrue(high.compareTo(low) > 0);
+        assertEquals(0, low.compareTo(new TimeUuid(new UUID(low.value().getMostSignificantBits(),
+                low.value().getLeastSignificantBits()))));
+    }
+
+    @Test
+    public void startOfIsTheFirstUuidOfItsMillisecond() {
+        Random random = new Random(42);
+        long[] millis = {0, 1, 999, System.currentTimeMillis(), -1, -12_219_292_800_000L + 1};
+        for (long epochMillis : millis) {
+            TimeUuid start = TimeUuid.startOf(epochMillis);
+            assertEquals(epochMillis, start.epochMillis());
+            assertEquals(1, start.value().version());
+            assertEquals(2, start.value().variant());
+            long timestamp = start.timestamp();
+            for (int i = 0; i < 100; i++) {
+                TimeUuid same = timeUuid(timestamp + random.nextInt(10_000), random.nextLong());
+                assertEquals(epochMillis, same.epochMillis());
+                assertTrue(start + " after " + same, start.compareTo(same) <= 0);
+                TimeUuid before = timeUuid(timestamp - 1 - random.nextInt(10_000), random.nextLong());
+                assertEquals(epochMillis - 1, before.epochMillis());
+                assertTrue(start + " before " + before, start.compareTo(before) > 0);
+            }
+        }
+    }
+
+    /**
+     * A version 1 UUID of the given timestamp, with the given clock sequence and node, apart from its variant bits.
+     */
+    private static TimeUuid timeUuid(long timestamp, long clockSequenceAndNode) {
+        long most = (timestamp << 32)
+                | ((timestamp >>> 16) & 0xffff0000L)
+                | 0x1000L
+                | ((timestamp >>> 48) & 0x0fffL);
+        long least = (clockSequenceAndNode & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return new TimeUuid(new UUID(most, least));
+    }
+}
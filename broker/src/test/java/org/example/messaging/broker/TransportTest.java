@@ -0,0 +1,147 @@
+package org.example.messaging.broker;
+
+import org.example.messaging.MessageOffset;
+import org.example.messaging.MessagePublisher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reactivestreams.Processor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransportTest {
+
+    private static final int MESSAGES = 20_000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private TransportClient client;
+
+    @Before
+    public void createClient() throws IOException {
+        client = new TransportClient(BrokerSettings.defaults());
+    }
+
+    @After
+    public void closeClient() {
+        client.close();
+    }
+
+    @Test
+    public void servesDurablePartitionFromTheLog() throws Exception {
+        BrokerSettings settings = BrokerSettings.defaults().withLogDirectory(folder.newFolder().toPath())
+                .withSegmentSize(64 * 1024);
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            InetSocketAddress address = broker.listen(new InetSocketAddress("127.0.0.1", 0)).address();
+            publish(broker, 0, MESSAGES);
+            assertRange(0, MESSAGES, subscribe(address, MessageOffset.None.INSTANCE, MESSAGES));
+        }
+    }
+
+    @Test
+    public void resumesFromOffsetAndTailsNewMessages() throws Exception {
+        BrokerSettings settings = BrokerSettings.defaults().withLogDirectory(folder.newFolder().toPath());
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            InetSocketAddress address = broker.listen(new InetSocketAddress("127.0.0.1", 0)).address();
+            publish(broker, 0, MESSAGES);
+            TestStreams.Collector<Long> tail = new TestStreams.Collector<>();
+            client.<Long>subscribe(address, "t", 0, new MessageOffset.Sequence(MESSAGES / 2 - 1)).subscribe(tail);
+            publish(broker, MESSAGES, 2 * MESSAGES);
+            assertRange(MESSAGES / 2, 2 * MESSAGES, tail.await(MESSAGES + MESSAGES / 2));
+        }
+    }
+
+    @Test
+    public void decompressesCompressedBatches() throws Exception {
+        BrokerSettings settings = BrokerSettings.defaults().withLogDirectory(folder.newFolder().toPath())
+                .withCompression(new DeflateCompression());
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            InetSocketAddress address = broker.listen(new InetSocketAddress("127.0.0.1", 0)).address();
+            publish(broker, 0, MESSAGES);
+            assertRange(0, MESSAGES, subscribe(address, MessageOffset.None.INSTANCE, MESSAGES));
+        }
+    }
+
+    @Test
+    public void servesPartitionThatIsNotDurableFromTheRingBuffer() throws Exception {
+        // Big enough that nothing published is overwritten before the subscriber connects
+        BrokerSettings settings = BrokerSettings.defaults().withRingBufferSize(65536);
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(settings)) {
+            InetSocketAddress address = broker.listen(new InetSocketAddress("127.0.0.1", 0)).address();
+            publish(broker, 0, MESSAGES);
+            TestStreams.Collector<Long> subscriber = new TestStreams.Collector<>();
+            client.<Long>subscribe(address, "t", 0, MessageOffset.None.INSTANCE).subscribe(subscriber);
+            subscriber.await(MESSAGES);
+            publish(broker, MESSAGES, 2 * MESSAGES);
+            assertRange(0, 2 * MESSAGES, subscriber.await(2 * MESSAGES));
+        }
+    }
+
+    @Test
+    public void refusesToCreateTopics() throws Exception {
+        try (InMemoryMessageBroker broker = new InMemoryMessageBroker(BrokerSettings.defaults())) {
+            InetSocketAddress address = broker.listen(new InetSocketAddress("127.0.0.1", 0)).address();
+            TestStreams.Collector<Long> subscriber = new TestStreams.Collector<>();
+            client.<Long>subscribe(address, "unknown", 0, MessageOffset.None.INSTANCE).subscribe(subscriber);
+            Throwable error = subscriber.awaitError();
+            assertTrue(error.getMessage(), error.getMessage().contains("No such topic unknown"));
+        }
+    }
+
+    @Test
+    public void rejectsBatchesThatFailTheirChecksum() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            TestStreams.Collector<Long> subscriber = new TestStreams.Collector<>();
+            client.<Long>subscribe((InetSocketAddress) server.getLocalAddress(), "t", 0, MessageOffset.None.INSTANCE)
+                    .subscribe(subscriber);
+            try (SocketChannel channel = server.accept()) {
+                // A batch of one empty record, with the wrong checksum
+                ByteBuffer batch = ByteBuffer.allocate(LogSegment.BATCH_HEADER_SIZE + LogSegment.RECORD_HEADER_SIZE);
+                batch.putInt(0, batch.capacity() - 4).putLong(8, 0).putLong(16, 0).putInt(24, 1);
+                batch.putInt(LogSegment.BATCH_HEADER_SIZE, LogSegment.RECORD_HEADER_SIZE - 4);
+                batch.putInt(4, LogSegment.checksum(batch, 0, batch.capacity(), new CRC32()) + 1);
+                ByteBuffer header = TransportFrames.header(TransportFrames.BATCHES, batch.capacity());
+                channel.write(new ByteBuffer[] {header, batch});
+                Throwable error = subscriber.awaitError();
+                assertTrue(error.getMessage(), error.getMessage().contains("failed its checksum"));
+            }
+            assertEquals(0, subscriber.size());
+        }
+    }
+
+    private List<Long> subscribe(InetSocketAddress address, MessageOffset offset, int count)
+            throws InterruptedException {
+        TestStreams.Collector<Long> subscriber = new TestStreams.Collector<>();
+        client.<Long>subscribe(address, "t", 0, offset).subscribe(subscriber);
+        return subscriber.await(count);
+    }
+
+    private static void publish(InMemoryMessageBroker broker, long from, long to) throws InterruptedException {
+        TestStreams.publish(broker.create(Client.class).publish(), TestStreams.range(from, to, true, i -> i));
+    }
+
+    private static void assertRange(long from, long to, List<Long> received) {
+        assertEquals(to - from, received.size());
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(from + i, (long) received.get(i));
+        }
+    }
+
+    public interface Client {
+        @MessagePublisher("t")
+        Processor<Long, Long> publish();
+    }
+}
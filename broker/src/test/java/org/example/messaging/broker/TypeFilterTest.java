@@ -0,0 +1,83 @@
+package org.example.messaging.broker;
+
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TypeFilterTest {
+
+    private final AtomicInteger decoded = new AtomicInteger();
+    private final MessageCodec codec = new JavaSerializationCodec() {
+        @Override
+        public Object decode(ByteBuffer source) {
+            decoded.incrementAndGet();
+            return super.decode(source);
+        }
+    };
+
+    @Test
+    public void acceptsSubtypesOfTheDeclaredTypes() {
+        TypeFilter filter = new TypeFilter(new Class<?>[] {Event.class, Number.class});
+        assertTrue(filter.accepts(new Created()));
+        assertTrue(filter.accepts(new Renamed()));
+        assertTrue(filter.accepts(42));
+        assertTrue(filter.accepts(4.2));
+        assertFalse(filter.accepts(new Unrelated()));
+        assertFalse(filter.accepts("42"));
+    }
+
+    @Test
+    public void acceptsEncodedSubtypesByTheirNameWithoutDecodingThem() {
+        TypeFilter filter = new TypeFilter(new Class<?>[] {Event.class, Number.class});
+        for (int i = 0; i < 2; i++) {
+            assertTrue(filter.accepts(encode(new Created())));
+            assertTrue(filter.accepts(encode(new Renamed())));
+            assertTrue(filter.accepts(encode(42L)));
+            assertFalse(filter.accepts(encode(new Unrelated())));
+            assertFalse(filter.accepts(encode("42")));
+        }
+        assertEquals(0, decoded.get());
+    }
+
+    @Test
+    public void decodesMessagesWhoseTypeCantBeLoadedByName() {
+        MessageCodec misnaming = new JavaSerializationCodec() {
+            @Override
+            public String typeName(ByteBuffer source) {
+                return TypeFilterTest.class.getName() + "$Missing";
+            }
+        };
+        TypeFilter filter = new TypeFilter(new Class<?>[] {Event.class});
+        assertTrue(filter.accepts(encode(new Renamed(), misnaming)));
+        assertFalse(filter.accepts(encode(new Unrelated(), misnaming)));
+    }
+
+    private EncodedMessage encode(Object message) {
+        return encode(message, codec);
+    }
+
+    private static EncodedMessage encode(Object message, MessageCodec codec) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        codec.encode(message, buffer);
+        buffer.flip();
+        return new EncodedMessage(0, buffer, codec);
+    }
+
+    public interface Event extends Serializable {
+    }
+
+    public static class Created implements Event {
+    }
+
+    public static final class Renamed extends Created {
+    }
+
+    public static final class Unrelated implements Serializable {
+    }
+}
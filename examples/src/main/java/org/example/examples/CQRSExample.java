@@ -101,6 +101,22 @@ public class CQRSExample {
                 .run(materializer);
     }
 
+    /**
+     * Same as the first subscriber, with at least once semantics, but as a plain blocking method rather than a stream.
+     *
+     * The method is invoked with each event, and the event is acknowledged once the method returns. Since it's
+     * concurrent, up to 100 events of each partition are handled at once, on virtual threads where the JVM has them,
+     * so this suits a handler that does a blocking JDBC update for each event.
+     */
+    @MessageSubscriber("some-topic")
+    @Concurrent(100)
+    public void consumeSomeEventBlocking(SomeEvent event) {
+
+        // Do something like update a read side database table, or just log to standard out.
+        System.out.println("I got an event: " + event);
+
+    }
+
     // Mechanics below are not strictly relevant to the message publisher API.
     private final EventsByTagQuery2 someEventsByTagQuery;
     private final Materializer materializer;